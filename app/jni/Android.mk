@@ -3,7 +3,7 @@ LOCAL_PATH := $(call my-dir)
 include $(CLEAR_VARS)
 
 LOCAL_MODULE    := diag_revealer
-LOCAL_SRC_FILES := diag_revealer.c
+LOCAL_SRC_FILES := diag_revealer.c fifo_framing.c qcdm_filter.c shm_ring.c control_channel.c
 LOCAL_LDLIBS    := -L$(SYSROOT)/usr/lib -llog
 
 include $(BUILD_EXECUTABLE)
@@ -0,0 +1,95 @@
+/* control_channel.c
+ * See control_channel.h.
+ */
+
+#include "control_channel.h"
+
+#include <string.h>
+
+static uint32_t
+read_le32 (const unsigned char *p)
+{
+    return (uint32_t) p[0] | ((uint32_t) p[1] << 8) | ((uint32_t) p[2] << 16) | ((uint32_t) p[3] << 24);
+}
+
+// Drops the first count buffered bytes.
+static void
+consume (struct ControlReader *reader, size_t count)
+{
+    memmove(reader->buf, reader->buf + count, reader->len - count);
+    reader->len -= count;
+}
+
+// Drops bytes up to the next place the magic could start, which may be a
+// partial magic at the end of the buffer.
+static void
+skip_to_next_magic (struct ControlReader *reader)
+{
+    static const unsigned char magic[4] = {
+            CONTROL_MAGIC & 0xff, (CONTROL_MAGIC >> 8) & 0xff,
+            (CONTROL_MAGIC >> 16) & 0xff, (CONTROL_MAGIC >> 24) & 0xff};
+
+    size_t i;
+    for (i = 1; i < reader->len; i++) {
+        size_t n = reader->len - i < sizeof(magic) ? reader->len - i : sizeof(magic);
+        if (memcmp(reader->buf + i, magic, n) == 0)
+            break;
+    }
+    consume(reader, i);
+}
+
+void
+control_reader_init (struct ControlReader *reader)
+{
+    memset(reader, 0, sizeof(*reader));
+}
+
+// Hands every complete message in the buffer to the handler.
+static int
+parse_messages (struct ControlReader *reader, control_message_handler handler, void *ctx)
+{
+    int handled = 0;
+    while (reader->len >= CONTROL_HEADER_SIZE) {
+        uint32_t payload_len = read_le32(reader->buf + 4);
+        if (read_le32(reader->buf) != CONTROL_MAGIC || payload_len == 0 || payload_len > CONTROL_MAX_PAYLOAD) {
+            reader->bad_headers++;
+            skip_to_next_magic(reader);
+            continue;
+        }
+
+        size_t message_len = CONTROL_HEADER_SIZE + payload_len;
+        if (reader->len < message_len)
+            break;
+
+        reader->messages++;
+        int ret = handler(ctx, reader->buf + CONTROL_HEADER_SIZE, payload_len);
+        consume(reader, message_len);
+        if (ret < 0)
+            return -1;
+        handled++;
+    }
+    return handled;
+}
+
+int
+control_reader_feed (struct ControlReader *reader, const unsigned char *data, size_t len,
+                     control_message_handler handler, void *ctx)
+{
+    int handled = 0;
+    while (len > 0) {
+        size_t space = sizeof(reader->buf) - reader->len;
+        size_t n = len < space ? len : space;
+        memcpy(reader->buf + reader->len, data, n);
+        reader->len += n;
+        data += n;
+        len -= n;
+
+        // A full buffer always holds at least one message or a bad header, so
+        // this always makes room for the rest of the data.
+        int ret = parse_messages(reader, handler, ctx);
+        if (ret < 0)
+            return -1;
+        handled += ret;
+    }
+    return handled;
+}
@@ -0,0 +1,59 @@
+/* control_channel.h
+ * Parses the messages the app writes to diag_revealer's control FIFO (the -c
+ * option), so that the modem log mask can be changed while the capture keeps
+ * running instead of restarting diag_revealer with a new config file.
+ *
+ * Each message is an 8-byte header followed by a payload. The header fields
+ * are little endian:
+ *    0   magic: 4-byte integer, CONTROL_MAGIC.
+ *    4   payload length: 4-byte integer, 1 to CONTROL_MAX_PAYLOAD.
+ * The payload has the same format as the diag config file: HDLC framed diag
+ * commands, each ending with 0x7e. diag_revealer sends them to /dev/diag the
+ * same way it sends the config file at start up.
+ *
+ * The FIFO is a byte stream, so a message can arrive split across several
+ * reads, or several messages can arrive in one read. The reader buffers the
+ * bytes until a whole message is there. If a header is bad, the reader skips
+ * ahead to the next copy of the magic so that one bad write does not break
+ * the channel for good.
+ *
+ * This file has no Android dependencies so that it can be built and tested on
+ * a regular Linux host (see test/).
+ */
+
+#ifndef CONTROL_CHANNEL_H
+#define CONTROL_CHANNEL_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+#define CONTROL_MAGIC 0x4E534331	// "1CSN" in the stream, for Network Survey Control v1
+#define CONTROL_HEADER_SIZE 8
+#define CONTROL_MAX_PAYLOAD 65536
+
+/*
+ * Called for each complete message. Returns 0 on success, or -1 to stop
+ * parsing and make control_reader_feed() fail.
+ */
+typedef int (*control_message_handler) (void *ctx, const unsigned char *payload, size_t len);
+
+struct ControlReader {
+    unsigned char buf[CONTROL_HEADER_SIZE + CONTROL_MAX_PAYLOAD];
+    size_t len;			// Bytes buffered so far.
+
+    // Counters for the messages seen so far.
+    unsigned long messages;
+    unsigned long bad_headers;
+};
+
+void control_reader_init (struct ControlReader *reader);
+
+/*
+ * Appends the bytes read from the control FIFO and calls the handler for each
+ * message they complete.
+ * Returns the number of messages handled, or -1 if the handler failed.
+ */
+int control_reader_feed (struct ControlReader *reader, const unsigned char *data, size_t len,
+                         control_message_handler handler, void *ctx);
+
+#endif /* CONTROL_CHANNEL_H */
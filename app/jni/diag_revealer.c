@@ -22,6 +22,26 @@
  *    payload: byte stream of variable length.
  * Otherwise, "type" contains only one field:
  *    filename: the related log file's name
+ *
+ * This is framing v1. When started with "-f 2", the packets use framing v2
+ * instead, which has a 32-bit length, a sequence number and a monotonic
+ * nanosecond timestamp. See fifo_framing.h for the v2 format.
+ *
+ * When started with "-l LOG_CODES" (a comma separated allow-list such as
+ * "0xB0C0,0xB0EC"), the QCDM frames are deframed, CRC checked and filtered
+ * here, and only the allowed log messages are sent. This implies framing v2.
+ * See qcdm_filter.h for the format of those packets.
+ *
+ * When started with "-s RING_PATH", the packets are copied into a shared
+ * memory ring buffer in RING_PATH instead of being written to the FIFO, and
+ * the FIFO is only used to wake up the reader. This implies framing v2. See
+ * shm_ring.h for the ring layout.
+ *
+ * When started with "-c CONTROL_FIFO_PATH", diag_revealer also reads messages
+ * from that FIFO while it captures. Each one holds diag commands in the same
+ * format as the config file, such as a new log mask, which are sent to
+ * /dev/diag without stopping the capture. See control_channel.h for the
+ * message format.
  */
 
 #include <assert.h>
@@ -39,6 +59,9 @@
 #include <sys/mman.h>
 #include <dlfcn.h>
 
+#include "control_channel.h"
+#include "fifo_framing.h"
+
 // #include <linux/diagchar.h>
 #define _GNU_SOURCE
 #define F_SETPIPE_SZ (F_LINUX_SPECIFIC_BASE + 7)
@@ -64,7 +87,7 @@ typedef int (*F_FUNC)(int);
 typedef int (*R_FUNC)(const char *);
 
 // NOTE: the following number should be updated every time.
-#define DIAG_REVEALER_VERSION "3.0"
+#define DIAG_REVEALER_VERSION "3.3"
 
 #define LOG_CUT_SIZE_DEFAULT (1 * 1024 * 1024)
 // #define BUFFER_SIZE	8192
@@ -76,10 +99,6 @@ typedef int (*R_FUNC)(const char *);
 // #define DIAG_FIFO_PIPE_SIZE (128 * 1024 * 1024) // 128MB
 #define DIAG_FIFO_PIPE_SIZE (10 * 1024 * 1024) // 10MB
 
-#define FIFO_MSG_TYPE_LOG 1
-#define FIFO_MSG_TYPE_START_LOG_FILE 2
-#define FIFO_MSG_TYPE_END_LOG_FILE 3
-
 #define LIBDIAG_TMPPATH "/data/data/com.craxiom.networksurveyplus/cache/libdiag.so"
 
 /*
@@ -283,6 +302,11 @@ struct diag_dci_client_tbl {
  */
 
 static char buf_read[BUFFER_SIZE] = {};	// From Haotian: improve reliability
+static struct FifoWriter fifo_writer;	// Batches the packets from one read into one FIFO write
+static struct QcdmFilter qcdm_filter;	// Log code allow-list, used with -l
+static struct ShmRing shm_ring;		// Shared memory transport, used with -s
+static struct ControlReader control_reader;	// Messages from the control FIFO, used with -c
+static int control_fd = -1;	// Read end of the control FIFO, or -1
 // int mode = CALLBACK_MODE;	// Logging mode
 static int mode = MEMORY_DEVICE_MODE;	// logging mode
 static uint16_t remote_dev = 0; // MSM (0) or not
@@ -315,14 +339,6 @@ sigpipe_handler (int signo)
     }
 }
 
-static double
-get_posix_timestamp ()
-{
-    struct timeval tv;
-    (void) gettimeofday(&tv, NULL);
-    return (double)(tv.tv_sec) + (double)(tv.tv_usec) / 1.0e6;
-}
-
 typedef struct {
     char *p;
     size_t len;
@@ -387,9 +403,19 @@ print_hex (const char *buf, int len)
         //printf("\n");
 }
 
+// Called with each response read back after a command. Returns 0 on success
+// or -1 on failure.
+typedef int (*diag_response_handler) (void *ctx, const char *buf, int len);
+
 // Write commands to /dev/diag device.
+// At start up on_response is NULL and the responses are thrown away. While
+// capturing, the read after a command can return logs as well as the
+// response, so they are handed to on_response instead, and a read that finds
+// nothing is not an error because the response will come with a later read.
+// Returns 0 on success, -1 if a command could not be sent, or -2 if
+// on_response failed.
 static int
-write_commands (int fd, BinaryBuffer *pbuf_write)
+write_commands (int fd, BinaryBuffer *pbuf_write, diag_response_handler on_response, void *ctx)
 {
     size_t i = 0;
     char *p = pbuf_write->p;
@@ -435,6 +461,7 @@ write_commands (int fd, BinaryBuffer *pbuf_write)
             LOGD("write_commands: ret=%d\n", ret);
             if (ret < 0) {
                 LOGE("write_commands error (len=%lu, offset=%lu): %s\n", len, offset, strerror(errno));
+                free(send_buf);
                 return -1;
             }
             /*
@@ -445,9 +472,17 @@ write_commands (int fd, BinaryBuffer *pbuf_write)
              */
             LOGD("Before read\n");
             int read_len = read(fd, buf_read, sizeof(buf_read));
-            if (read_len < 0) {
+            if (read_len < 0 && on_response != NULL && (errno == EAGAIN || errno == EWOULDBLOCK)) {
+                LOGD("No response yet\n");
+            } else if (read_len < 0) {
                 LOGE("write_commands read error: %s\n", strerror(errno));
+                free(send_buf);
                 return -1;
+            } else if (on_response != NULL) {
+                if (on_response(ctx, buf_read, read_len) < 0) {
+                    free(send_buf);
+                    return -2;
+                }
             } else {
                 LOGD("Reading %d bytes of resp\n", read_len);
                 LOGD("write_commands responses\n");
@@ -458,6 +493,7 @@ write_commands (int fd, BinaryBuffer *pbuf_write)
         i += len;
     }
 
+    free(send_buf);
     return 0;
 }
 
@@ -498,30 +534,16 @@ manager_get_log_name (struct LogManagerState *pstate, char *out_buf, size_t out_
 }
 
 static int
-manager_start_new_log (struct LogManagerState *pstate, int fifo_fd)
+manager_start_new_log (struct LogManagerState *pstate, struct FifoWriter *writer)
 {
     static char filename[1024] = {};
     int ret;
     if (pstate->log_fp != NULL) {	// end the last log
         assert(pstate->log_id >= 0);
         manager_get_log_name(pstate, filename, sizeof(filename));
-        short fifo_msg_type = FIFO_MSG_TYPE_END_LOG_FILE;
-        short msg_len = strlen(filename);
-
-        // Wirte msg type to pipe
-        ret = write(fifo_fd, &fifo_msg_type, sizeof(short));
-        if (ret < 0) {
-            return -1;
-        }
 
-        // Write len of filename
-        ret = write(fifo_fd, &msg_len, sizeof(short));
-        if (ret < 0) {
-            return -1;
-        }
-
-        // Write filename of ended log to pipe
-        ret = write(fifo_fd, filename, msg_len);
+        // Queue the filename of the ended log for the pipe
+        ret = fifo_writer_append_filename(writer, FIFO_MSG_TYPE_END_LOG_FILE, filename);
         if (ret < 0) {
             return -1;
         }
@@ -536,22 +558,9 @@ manager_start_new_log (struct LogManagerState *pstate, int fifo_fd)
     if (pstate->log_fp != NULL) {
         // printf("success\n");
         pstate->log_size = 0;
-        short fifo_msg_type = FIFO_MSG_TYPE_START_LOG_FILE;
-        short msg_len = strlen(filename);
-        // Wirte msg type to pipe
-        ret = write(fifo_fd, &fifo_msg_type, sizeof(short));
-        if (ret < 0) {
-            return -1;
-        }
-
-        // Write len of filename
-        ret = write(fifo_fd, &msg_len, sizeof(short));
-        if (ret < 0) {
-            return -1;
-        }
 
-        // Write filename of ended log to pipe
-        ret = write(fifo_fd, filename, msg_len);
+        // Queue the filename of the new log for the pipe
+        ret = fifo_writer_append_filename(writer, FIFO_MSG_TYPE_START_LOG_FILE, filename);
         if (ret < 0) {
             return -1;
         }
@@ -570,11 +579,11 @@ manager_start_new_log (struct LogManagerState *pstate, int fifo_fd)
 // When appending new data to logs, call this function to maintain states.
 // If the size of the current log exceeds log_cut_size, a new log file is created.
 static int
-manager_append_log (struct LogManagerState *pstate, int fifo_fd, size_t msg_len)
+manager_append_log (struct LogManagerState *pstate, struct FifoWriter *writer, size_t msg_len)
 {
 
     if (pstate->log_size + msg_len > pstate->log_cut_size) {
-        int ret = manager_start_new_log(pstate, fifo_fd);
+        int ret = manager_start_new_log(pstate, writer);
         if (ret < 0) {
             return -1;
         }
@@ -1066,6 +1075,104 @@ enable_logging (int fd, int mode)
     return ret;
 }
 
+// Write mi2log output for a log that has been queued for the pipe.
+static int
+manager_save_log (void *ctx, const char *payload, int payload_len)
+{
+    struct LogManagerState *pstate = (struct LogManagerState *) ctx;
+    if (pstate->log_fp == NULL) {
+        return 0;
+    }
+
+    int ret = manager_append_log(pstate, &fifo_writer, payload_len);
+    if (ret < 0) {
+        LOGI("Fail to append logs. diag_revealer will exit");
+        return -1;
+    }
+
+    size_t log_res = fwrite(payload, sizeof(char), payload_len, pstate->log_fp);
+    if (log_res != payload_len) {
+        LOGI("Fail to save logs. diag_revealer will exit");
+        return -1;
+    }
+    fflush(pstate->log_fp);
+    return 0;
+}
+
+// Sends the logs from one read of /dev/diag to the FIFO (or ring).
+// Returns 0 on success, -1 if the pipe is broken, or -2 if a log could not
+// be saved.
+static int
+handle_diag_read (struct LogManagerState *pstate, const char *buf, int read_len)
+{
+    if (*((int *)buf) != USER_SPACE_DATA_TYPE) {
+        // TODO: Check other raw binary types
+        LOGI("Not USER_SPACE_DATA_TYPE: %d\n", *((int *)buf));
+        return 0;
+    }
+
+    // All the logs in this read are queued and then written to the
+    // pipe with a single write() rather than four writes per log.
+    struct FifoTimestamp ts;
+    fifo_timestamp_now(&ts);
+    int ret_err = fifo_frame_diag_logs(&fifo_writer, buf, read_len, remote_dev,
+                                       &ts, manager_save_log, pstate);
+    if (ret_err == -2) {
+        return -2;
+    }
+    if (ret_err == -1 || fifo_writer_flush(&fifo_writer) < 0) {
+        return -1;
+    }
+    return 0;
+}
+
+// write_commands response handler used while capturing. The response is
+// passed on like any other read, since it may also hold logs.
+static int
+forward_diag_response (void *ctx, const char *buf, int len)
+{
+    return handle_diag_read((struct LogManagerState *) ctx, buf, len) == 0 ? 0 : -1;
+}
+
+// Sends the diag commands in one control message to /dev/diag.
+static int
+apply_control_message (void *ctx, const unsigned char *payload, size_t len)
+{
+    BinaryBuffer buf_control;
+    buf_control.p = (char *) payload;
+    buf_control.len = len;
+
+    LOGI("Applying %lu bytes of diag commands from the control FIFO\n", (unsigned long) len);
+    int ret = write_commands(fd, &buf_control, forward_diag_response, ctx);
+    if (ret == -2) {
+        return -1;
+    }
+    if (ret < 0) {
+        // The capture carries on with whatever part of the mask was applied
+        LOGE("Failed to apply the diag commands from the control FIFO\n");
+    }
+    return 0;
+}
+
+// Handles whatever has arrived on the control FIFO, without blocking.
+// Returns 0 on success, or -1 if the pipe broke while handling a message.
+static int
+poll_control_channel (struct LogManagerState *pstate)
+{
+    static unsigned char buf_control[4096];
+    if (control_fd < 0) {
+        return 0;
+    }
+
+    int read_len;
+    while ((read_len = read(control_fd, buf_control, sizeof(buf_control))) > 0) {
+        if (control_reader_feed(&control_reader, buf_control, read_len, apply_control_message, pstate) < 0) {
+            return -1;
+        }
+    }
+    return 0;
+}
+
 int
 main (int argc, char **argv)
 {
@@ -1073,7 +1180,48 @@ main (int argc, char **argv)
         LOGW("WARNING: diag_revealer cannot capture SIGPIPE\n");
     }
 
-    if (argc < 3 || argc > 5) {
+    int framing_version = FIFO_FRAMING_V1;
+    int use_filter = 0;
+    const char *ring_path = NULL;
+    const char *control_path = NULL;
+    int bad_option = 0;
+    int opt;
+    while ((opt = getopt(argc, argv, "f:l:s:c:")) != -1) {
+        switch (opt) {
+        case 'f':
+            framing_version = atoi(optarg);
+            if (framing_version != FIFO_FRAMING_V1 && framing_version != FIFO_FRAMING_V2) {
+                fprintf(stderr, "Unsupported FIFO framing version %s\n", optarg);
+                return -8000;
+            }
+            break;
+        case 'l':
+            if (qcdm_filter_init(&qcdm_filter, optarg) < 0) {
+                fprintf(stderr, "Invalid log code list %s\n", optarg);
+                return -8000;
+            }
+            use_filter = 1;
+            break;
+        case 's':
+            ring_path = optarg;
+            break;
+        case 'c':
+            control_path = optarg;
+            break;
+        default:
+            bad_option = 1;
+            break;
+        }
+    }
+    if ((use_filter || ring_path != NULL) && framing_version < FIFO_FRAMING_V2) {
+        // The DEFRAMED flag only exists in v2, and the ring relies on the v2 sequence numbers to report drops
+        framing_version = FIFO_FRAMING_V2;
+    }
+    // Make argv[1] the first positional argument again
+    argc -= optind - 1;
+    argv += optind - 1;
+
+    if (bad_option || argc < 3 || argc > 5) {
         printf("Diag_revealer " DIAG_REVEALER_VERSION "\n");
         printf("Author: Yuanjie Li, Jiayao Li, Ruihan Li\n");
         printf("UCLA Wing Group, PKU SOAR Group\n");
@@ -1111,7 +1259,7 @@ main (int argc, char **argv)
         puts("              %%######(((((((##################%%                      ");
         puts("              %%######(((((((((((((((((((((((((%%                      ");
         puts("//////////////%%%%%%%%#########################%%/////////  /// \n");
-        printf("Usage: diag_revealer DIAG_CFG_PATH FIFO_PATH [LOG_OUTPUT_DIR] [LOG_CUT_SIZE (in MB)]\n");
+        printf("Usage: diag_revealer [-f FIFO_FRAMING_VERSION] [-l LOG_CODES] [-s RING_PATH] [-c CONTROL_FIFO_PATH] DIAG_CFG_PATH FIFO_PATH [LOG_OUTPUT_DIR] [LOG_CUT_SIZE (in MB)]\n");
         return 0;
     }
 
@@ -1141,7 +1289,7 @@ main (int argc, char **argv)
 
     // Write commands to /dev/diag device to enable log collecting.
     // LOGD("Before write_commands\n");
-    ret = write_commands(fd, &buf_write);
+    ret = write_commands(fd, &buf_write, NULL, NULL);
     fflush(stdout);
     free(buf_write.p);
     if (ret != 0) {
@@ -1179,6 +1327,31 @@ main (int argc, char **argv)
     res = fcntl(fifo_fd, F_GETPIPE_SZ, pipesize);
     LOGI("FIFO capacity: %d\n", res);
 
+    fifo_writer_init(&fifo_writer, fifo_fd, framing_version);
+    if (use_filter) {
+        fifo_writer.filter = &qcdm_filter;
+        LOGI("Filtering QCDM frames with %d allowed log codes\n", qcdm_filter.allowed_count);
+    }
+    if (ring_path != NULL) {
+        if (shm_ring_open(&shm_ring, ring_path, fifo_fd) < 0) {
+            perror("open shared memory ring");
+            return -8007;
+        }
+        fifo_writer.ring = &shm_ring;
+        LOGI("Shared memory ring capacity: %u\n", shm_ring.capacity);
+    }
+    if (control_path != NULL) {
+        control_fd = open(control_path, O_RDONLY | O_NONBLOCK);
+        // Holding a write end open means read() reports an empty FIFO rather
+        // than end of file when the app has no writer open.
+        if (control_fd < 0 || open(control_path, O_WRONLY | O_NONBLOCK) < 0) {
+            perror("open control fifo");
+            return -8008;
+        }
+        control_reader_init(&control_reader);
+        LOGI("Reading diag commands from the control FIFO\n");
+    }
+
     struct LogManagerState state;
     // Initialize state
     manager_init_state(&state, NULL, 0);
@@ -1199,7 +1372,10 @@ main (int argc, char **argv)
 
         printf("log_cut_size = %lld\n", (long long int) log_cut_size);
 
-        int ret2 = manager_start_new_log(&state, fifo_fd);
+        int ret2 = manager_start_new_log(&state, &fifo_writer);
+        if (ret2 == 0) {
+            ret2 = fifo_writer_flush(&fifo_writer);
+        }
         if (ret2 < 0 || state.log_fp == NULL) {
             perror("open diag log");
             return -8006;
@@ -1210,87 +1386,23 @@ main (int argc, char **argv)
         //LOGI("Reading logs...\n");
         int read_len = read(fd, buf_read, sizeof(buf_read));
         //LOGI("Received logs. read_len=%d\n", read_len);
+        int ret_err = 0;
         if (read_len > 0) {
-            if (*((int *)buf_read) == USER_SPACE_DATA_TYPE) {
-                int num_data = *((int *)(buf_read + 4));
-                // LOGI("num_data=%d\n", num_data);
-                int i = 0;
-                // long long offset = 8;
-                long long offset = remote_dev ? 12 : 8;
-                for (i = 0; i < num_data; i++) {
-                    int ret_err;
-                    short fifo_msg_type = FIFO_MSG_TYPE_LOG;
-                    short fifo_msg_len;
-                    double ts = get_posix_timestamp();
-
-                    // Copy msg_len
-                    int msg_len = 0;
-                    memcpy(&msg_len, buf_read + offset, sizeof(int));
-                    // memcpy(&msg_len, buf_read + offset + 4, sizeof(int));
-                    // LOGI("memcpy: msg_len=%d\n", msg_len);
-                    if (msg_len < 0)
-                        continue;
-                    // print_hex(buf_read + offset + 4, msg_len);
-                    // Wirte msg type to pipe
-
-                    // LOGD("ret_err0");
-                    ret_err = write(fifo_fd, &fifo_msg_type, sizeof(short));
-
-                    // Write size of (payload + timestamp)
-                    fifo_msg_len = (short) msg_len + 8;
-                    ret_err = write(fifo_fd, &fifo_msg_len, sizeof(short));
-                    if (ret_err < 0) {
-                        // LOGI("Pipe closed, diag_revealer will exit");
-                        LOGI("Pipe error (msg_len): %s", strerror(errno));
-                        close(fd);
-                        return -1;
-                    }
-
-                    // Write timestamp of sending payload to pipe
-                    ret_err = write(fifo_fd, &ts, sizeof(double));
-                    if (ret_err < 0) {
-                        // LOGI("Pipe closed, diag_revealer will exit");
-                        LOGI("Pipe error (timestamp): %s", strerror(errno));
-                        close(fd);
-                        return -1;
-                    }
-
-                    // Write payload to pipe
-                    ret_err = write(fifo_fd, buf_read + offset + 4, msg_len);
-                    if (ret_err < 0) {
-                        LOGI("Pipe error (payload): %s", strerror(errno));
-                        LOGD("Debug: msg_len=%d buf_read+offset+4=%s\n", msg_len, buf_read + offset + 4);
-                        // LOGI("Pipe closed, diag_revealer will exit");
-                        close(fd);
-                        return -1;
-                    }
-
-                    // Write mi2log output if necessary
-                    if (state.log_fp != NULL) {
-                        int ret2 = manager_append_log(&state, fifo_fd, msg_len);
-                        if (ret2 == 0) {
-                            size_t log_res = fwrite(buf_read + offset + 4, sizeof(char), msg_len, state.log_fp);
-                            if (log_res != msg_len) {
-                                LOGI("Fail to save logs. diag_revealer will exit");
-                                close(fd);
-                                return -1;
-                            }
-                            fflush(state.log_fp);
-                        } else {
-                            // TODO: error handling
-                            LOGI("Fail to append logs. diag_revealer will exit");
-                            close(fd);
-                            return -1;
-                        }
-                    }
-                    offset += msg_len + 4;
-                }
-            } else {
-                // TODO: Check other raw binary types
-                LOGI("Not USER_SPACE_DATA_TYPE: %d\n", *((int *)buf_read));
-            }
-        } else {
-            continue;
+            ret_err = handle_diag_read(&state, buf_read, read_len);
+        }
+        if (ret_err == 0 && poll_control_channel(&state) < 0) {
+            ret_err = -1;
+        }
+        if (ret_err == -2) {
+            close(fd);
+            return -1;
+        }
+        if (ret_err == -1) {
+            // LOGI("Pipe closed, diag_revealer will exit");
+            LOGI("Pipe error: %s", strerror(errno));
+            shm_ring_close(&shm_ring);
+            close(fd);
+            return -1;
         }
     }
 
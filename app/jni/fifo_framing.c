@@ -0,0 +1,245 @@
+/* fifo_framing.c
+ * See fifo_framing.h.
+ */
+
+#include "fifo_framing.h"
+
+#include <errno.h>
+#include <string.h>
+#include <sys/time.h>
+#include <time.h>
+#include <unistd.h>
+
+static void fifo_writer_put (struct FifoWriter *writer, const void *data, size_t size);
+
+void
+fifo_timestamp_now (struct FifoTimestamp *ts)
+{
+    struct timeval tv;
+    struct timespec boottime;
+    (void) gettimeofday(&tv, NULL);
+    ts->posix = (double)(tv.tv_sec) + (double)(tv.tv_usec) / 1.0e6;
+    if (clock_gettime(CLOCK_BOOTTIME, &boottime) == 0) {
+        ts->boottime_ns = (uint64_t) boottime.tv_sec * 1000000000ULL + (uint64_t) boottime.tv_nsec;
+    } else {
+        ts->boottime_ns = 0;
+    }
+}
+
+void
+fifo_writer_init (struct FifoWriter *writer, int fd, int version)
+{
+    writer->fd = fd;
+    writer->version = version;
+    writer->sequence = 0;
+    writer->len = 0;
+    writer->write_calls = 0;
+    writer->filter = NULL;
+    writer->ring = NULL;
+
+    if (version >= FIFO_FRAMING_V2) {
+        // Announced in v1 framing so that the reader knows to switch
+        short fifo_msg_type = FIFO_MSG_TYPE_FRAMING_VERSION;
+        short fifo_msg_len = sizeof(short);
+        short framing_version = version;
+        fifo_writer_put(writer, &fifo_msg_type, sizeof(short));
+        fifo_writer_put(writer, &fifo_msg_len, sizeof(short));
+        fifo_writer_put(writer, &framing_version, sizeof(short));
+    }
+}
+
+int
+fifo_writer_flush (struct FifoWriter *writer)
+{
+    if (writer->ring != NULL) {
+        // A dropped batch is counted in the ring header and shows up as a sequence gap
+        int ret = shm_ring_write(writer->ring, writer->buf, writer->len);
+        writer->len = 0;
+        return ret < 0 ? -1 : 0;
+    }
+
+    size_t written = 0;
+    while (written < writer->len) {
+        ssize_t ret = write(writer->fd, writer->buf + written, writer->len - written);
+        writer->write_calls++;
+        if (ret < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            return -1;
+        }
+        written += ret;
+    }
+    writer->len = 0;
+    return 0;
+}
+
+// Makes sure there are at least size bytes free in the buffer.
+static int
+fifo_writer_reserve (struct FifoWriter *writer, size_t size)
+{
+    if (writer->len + size > sizeof(writer->buf)) {
+        return fifo_writer_flush(writer);
+    }
+    return 0;
+}
+
+static void
+fifo_writer_put (struct FifoWriter *writer, const void *data, size_t size)
+{
+    memcpy(writer->buf + writer->len, data, size);
+    writer->len += size;
+}
+
+static int
+fifo_writer_append_v2 (struct FifoWriter *writer, short type, uint16_t flags, uint64_t boottime_ns,
+                       const void *payload, uint32_t payload_len)
+{
+    if (fifo_writer_reserve(writer, FIFO_V2_HEADER_SIZE + payload_len) < 0) {
+        return -1;
+    }
+    fifo_writer_put(writer, &type, sizeof(short));
+    fifo_writer_put(writer, &flags, sizeof(uint16_t));
+    fifo_writer_put(writer, &payload_len, sizeof(uint32_t));
+    fifo_writer_put(writer, &writer->sequence, sizeof(uint32_t));
+    fifo_writer_put(writer, &boottime_ns, sizeof(uint64_t));
+    fifo_writer_put(writer, payload, payload_len);
+    writer->sequence++;
+    return 0;
+}
+
+int
+fifo_writer_append_log (struct FifoWriter *writer, const struct FifoTimestamp *ts,
+                        const char *payload, int payload_len)
+{
+    if (writer->version >= FIFO_FRAMING_V2) {
+        return fifo_writer_append_v2(writer, FIFO_MSG_TYPE_LOG, 0, ts->boottime_ns, payload, payload_len);
+    }
+
+    short fifo_msg_type = FIFO_MSG_TYPE_LOG;
+    // Size of (payload + timestamp)
+    short fifo_msg_len = (short) payload_len + 8;
+
+    if (fifo_writer_reserve(writer, FIFO_LOG_HEADER_SIZE + payload_len) < 0) {
+        return -1;
+    }
+    fifo_writer_put(writer, &fifo_msg_type, sizeof(short));
+    fifo_writer_put(writer, &fifo_msg_len, sizeof(short));
+    fifo_writer_put(writer, &ts->posix, sizeof(double));
+    fifo_writer_put(writer, payload, payload_len);
+    return 0;
+}
+
+int
+fifo_writer_append_filename (struct FifoWriter *writer, short type, const char *filename)
+{
+    if (writer->version >= FIFO_FRAMING_V2) {
+        struct FifoTimestamp ts;
+        fifo_timestamp_now(&ts);
+        return fifo_writer_append_v2(writer, type, 0, ts.boottime_ns, filename, strlen(filename));
+    }
+
+    short msg_len = strlen(filename);
+
+    if (fifo_writer_reserve(writer, 2 * sizeof(short) + msg_len) < 0) {
+        return -1;
+    }
+    fifo_writer_put(writer, &type, sizeof(short));
+    fifo_writer_put(writer, &msg_len, sizeof(short));
+    fifo_writer_put(writer, filename, msg_len);
+    return 0;
+}
+
+int
+fifo_writer_append_deframed (struct FifoWriter *writer, struct QcdmFilter *filter,
+                             const struct FifoTimestamp *ts, const char *payload, int payload_len)
+{
+    static const unsigned char qcdm_prefix[4] = {0x98, 0x01, 0x00, 0x00};
+    // Leave room in front of the frame for the Subscription ID when there is no prefix
+    unsigned char *frame = writer->frame_buf + 4;
+    size_t pos = 0;
+    int appended = 0;
+    int frame_len;
+
+    while ((frame_len = qcdm_next_frame((const unsigned char *) payload, payload_len, &pos, frame)) >= 0) {
+        filter->frames_in++;
+
+        if (frame_len < 3) {
+            filter->crc_errors++;
+            continue;
+        }
+        uint16_t expected_crc = frame[frame_len - 2] | (frame[frame_len - 1] << 8);
+        if (qcdm_crc16_x25(frame, frame_len - 2) != expected_crc) {
+            filter->crc_errors++;
+            continue;
+        }
+
+        // The packet payload is the Subscription ID followed by the QCDM message
+        unsigned char *out;
+        size_t out_len;
+        if (frame_len >= 10 && memcmp(frame, qcdm_prefix, sizeof(qcdm_prefix)) == 0) {
+            out = frame + 4;
+            out_len = frame_len - 2 - 4;
+        } else {
+            memset(writer->frame_buf, 0, 4);
+            out = writer->frame_buf;
+            out_len = 4 + frame_len - 2;
+        }
+
+        // Only log messages carry a log code, and they are the only ones the app uses
+        const unsigned char *qcdm = out + 4;
+        if (out_len < 4 + 8 || qcdm[0] != QCDM_DIAG_LOG_F
+                || !qcdm_filter_allows(filter, (uint16_t) (qcdm[6] | (qcdm[7] << 8)))) {
+            filter->filtered++;
+            continue;
+        }
+
+        if (fifo_writer_append_v2(writer, FIFO_MSG_TYPE_LOG, FIFO_FLAG_DEFRAMED, ts->boottime_ns, out, out_len) < 0) {
+            return -1;
+        }
+        filter->frames_out++;
+        appended++;
+    }
+
+    return appended;
+}
+
+int
+fifo_frame_diag_logs (struct FifoWriter *writer, const char *buf, int read_len, int remote_dev,
+                      const struct FifoTimestamp *ts, fifo_log_callback callback, void *ctx)
+{
+    int num_data = 0;
+    int framed = 0;
+    int i = 0;
+    long long offset = remote_dev ? 12 : 8;
+
+    if (read_len < offset) {
+        return 0;
+    }
+    memcpy(&num_data, buf + 4, sizeof(int));
+
+    for (i = 0; i < num_data; i++) {
+        int msg_len = 0;
+        if (offset + 4 > read_len) {
+            break;
+        }
+        memcpy(&msg_len, buf + offset, sizeof(int));
+        if (msg_len < 0 || offset + 4 + msg_len > read_len) {
+            break;
+        }
+
+        if (writer->filter != NULL && writer->version >= FIFO_FRAMING_V2) {
+            if (fifo_writer_append_deframed(writer, writer->filter, ts, buf + offset + 4, msg_len) < 0) {
+                return -1;
+            }
+        } else if (fifo_writer_append_log(writer, ts, buf + offset + 4, msg_len) < 0) {
+            return -1;
+        }
+        if (callback != NULL && callback(ctx, buf + offset + 4, msg_len) < 0) {
+            return -2;
+        }
+        framed++;
+        offset += msg_len + 4;
+    }
+    return framed;
+}
@@ -0,0 +1,149 @@
+/* fifo_framing.h
+ * Assembles the FIFO packets written by diag_revealer (see the packet format
+ * described at the top of diag_revealer.c) into a single contiguous buffer so
+ * that all the packets from one /dev/diag read reach the FIFO in one write().
+ *
+ * Writing each field of each packet with its own write() meant four syscalls
+ * per diag log, and a reader could wake up with only part of a packet in the
+ * pipe. Batching the packets cuts the producer's syscalls to roughly one per
+ * /dev/diag read and keeps every packet whole.
+ *
+ * Two framings are supported. v1 is the original format described in
+ * diag_revealer.c. Its 16-bit length wraps for payloads over ~32 KB and its
+ * timestamp is a wall clock double. v2 is announced to the reader with a
+ * single v1 FRAMING_VERSION packet (type 4, length 2, payload: the 2-byte
+ * version), after which every packet has this 20-byte header:
+ *    type: 2-byte integer, same values as v1.
+ *    flags: 2-byte integer. FIFO_FLAG_DEFRAMED is set when the payload is a
+ *      single deframed QCDM message (see qcdm_filter.h).
+ *    length: 4-byte integer. The number of payload bytes after the header.
+ *    sequence: 4-byte integer. Starts at 0 and goes up by one for every
+ *      packet, so the reader can tell when packets were lost.
+ *    timestamp: 8-byte integer. CLOCK_BOOTTIME in nanoseconds, the same clock
+ *      as SystemClock.elapsedRealtimeNanos() on Android.
+ * followed by the payload (the log, or the filename for START/END_LOG_FILE).
+ * All fields are in the host byte order, which is little endian on Android.
+ *
+ * This file has no Android dependencies so that it can be built and tested on
+ * a regular Linux host (see test/).
+ */
+
+#ifndef FIFO_FRAMING_H
+#define FIFO_FRAMING_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+#include "qcdm_filter.h"
+#include "shm_ring.h"
+
+#define FIFO_MSG_TYPE_LOG 1
+#define FIFO_MSG_TYPE_START_LOG_FILE 2
+#define FIFO_MSG_TYPE_END_LOG_FILE 3
+#define FIFO_MSG_TYPE_FRAMING_VERSION 4
+
+#define FIFO_FRAMING_V1 1
+#define FIFO_FRAMING_V2 2
+
+#define FIFO_FLAG_DEFRAMED 0x0001
+
+/*
+ * The size of the packet header for a LOG packet: type (2 bytes), length
+ * (2 bytes) and timestamp (8 bytes).
+ */
+#define FIFO_LOG_HEADER_SIZE 12
+
+/*
+ * The size of the v2 packet header: type, flags, length, sequence, timestamp.
+ */
+#define FIFO_V2_HEADER_SIZE 20
+
+/*
+ * Large enough to hold all the packets from a 64 KB /dev/diag read, even when
+ * the read is made up of many small logs, so that one read is one write().
+ */
+#define FIFO_WRITER_CAPACITY (2 * 65536)
+
+/*
+ * The time a /dev/diag read completed, on both clocks so that either framing
+ * can be written without another clock call.
+ */
+struct FifoTimestamp {
+    double posix;		// Wall clock seconds, used by v1.
+    uint64_t boottime_ns;	// CLOCK_BOOTTIME nanoseconds, used by v2.
+};
+
+struct FifoWriter {
+    int fd;
+    int version;		// FIFO_FRAMING_V1 or FIFO_FRAMING_V2.
+    uint32_t sequence;		// Sequence number of the next v2 packet.
+    size_t len;			// Number of bytes waiting in buf.
+    unsigned long write_calls;	// Number of write() syscalls issued so far.
+    struct QcdmFilter *filter;	// If set (v2 only), logs are deframed and filtered.
+    struct ShmRing *ring;	// If set, flushes go to this ring instead of fd.
+    char buf[FIFO_WRITER_CAPACITY];
+    // Room for one unescaped frame, plus 4 bytes in front for the Subscription ID.
+    unsigned char frame_buf[4 + 65536];
+};
+
+/*
+ * Called for each log found by fifo_frame_diag_logs(), after the log's packet
+ * has been appended to the writer. A negative return value stops the framing.
+ */
+typedef int (*fifo_log_callback) (void *ctx, const char *payload, int payload_len);
+
+void fifo_timestamp_now (struct FifoTimestamp *ts);
+
+/*
+ * Sets up the writer for the given framing version. For v2, the
+ * FRAMING_VERSION packet is queued so that it is the first thing the reader
+ * sees. No filter or ring is set.
+ */
+void fifo_writer_init (struct FifoWriter *writer, int fd, int version);
+
+/*
+ * Appends a packet for each QCDM frame in a diag log that passes the filter,
+ * with the DEFRAMED flag set. Requires v2 framing.
+ * Returns the number of packets appended, or -1 if a flush failed.
+ */
+int fifo_writer_append_deframed (struct FifoWriter *writer, struct QcdmFilter *filter,
+                                 const struct FifoTimestamp *ts, const char *payload, int payload_len);
+
+/*
+ * Appends a LOG packet. The writer is flushed first if the packet does not fit.
+ * Returns 0 on success, or -1 if a flush failed.
+ */
+int fifo_writer_append_log (struct FifoWriter *writer, const struct FifoTimestamp *ts,
+                            const char *payload, int payload_len);
+
+/*
+ * Appends a START_LOG_FILE or END_LOG_FILE packet. The filename is copied, so
+ * the caller may reuse its buffer right away.
+ * Returns 0 on success, or -1 if a flush failed.
+ */
+int fifo_writer_append_filename (struct FifoWriter *writer, short type, const char *filename);
+
+/*
+ * Writes all the pending packets to the FIFO, retrying partial writes and
+ * writes interrupted by a signal. If the writer has a ring, the packets are
+ * copied into the ring as one batch instead, and dropped if they do not fit.
+ * Returns 0 on success, or -1 with errno set if the write failed.
+ */
+int fifo_writer_flush (struct FifoWriter *writer);
+
+/*
+ * Appends a LOG packet for each log in a USER_SPACE_DATA_TYPE buffer read from
+ * /dev/diag. The buffer starts with the data type and the number of logs,
+ * followed by the remote device ID when remote_dev is set, and then each log
+ * as a 4-byte length followed by the payload. All the logs are stamped with
+ * ts, the time the buffer was read. If the writer has a filter, each log is
+ * deframed and filtered with fifo_writer_append_deframed() instead. The
+ * callback still sees every log as read. The writer is not flushed at the end.
+ *
+ * Returns the number of logs framed, -1 if a flush failed, or -2 if the
+ * callback failed. Logs that run past read_len are dropped.
+ */
+int fifo_frame_diag_logs (struct FifoWriter *writer, const char *buf, int read_len, int remote_dev,
+                          const struct FifoTimestamp *ts, fifo_log_callback callback, void *ctx);
+
+#endif /* FIFO_FRAMING_H */
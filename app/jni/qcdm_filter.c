@@ -0,0 +1,85 @@
+/* qcdm_filter.c
+ * See qcdm_filter.h.
+ */
+
+#include "qcdm_filter.h"
+
+#include <stdlib.h>
+#include <string.h>
+
+int
+qcdm_filter_init (struct QcdmFilter *filter, const char *log_codes)
+{
+    const char *p = log_codes;
+
+    memset(filter, 0, sizeof(*filter));
+    if (log_codes == NULL) {
+        return -1;
+    }
+
+    while (*p != '\0') {
+        char *end;
+        unsigned long log_code = strtoul(p, &end, 0);
+        if (end == p || log_code > 0xFFFF || (*end != ',' && *end != '\0')) {
+            return -1;
+        }
+        if (!qcdm_filter_allows(filter, (uint16_t) log_code)) {
+            filter->allowed[log_code >> 3] |= (uint8_t) (1 << (log_code & 7));
+            filter->allowed_count++;
+        }
+        p = (*end == ',') ? end + 1 : end;
+    }
+
+    return filter->allowed_count > 0 ? filter->allowed_count : -1;
+}
+
+int
+qcdm_filter_allows (const struct QcdmFilter *filter, uint16_t log_code)
+{
+    return (filter->allowed[log_code >> 3] >> (log_code & 7)) & 1;
+}
+
+uint16_t
+qcdm_crc16_x25 (const unsigned char *data, size_t len)
+{
+    uint16_t crc = 0xFFFF;
+    size_t i;
+    int bit;
+    for (i = 0; i < len; i++) {
+        crc ^= data[i];
+        for (bit = 0; bit < 8; bit++) {
+            crc = (crc & 1) ? (crc >> 1) ^ 0x8408 : crc >> 1;
+        }
+    }
+    return (uint16_t) ~crc;
+}
+
+int
+qcdm_next_frame (const unsigned char *in, size_t in_len, size_t *pos, unsigned char *out)
+{
+    size_t i = *pos;
+    int out_len = 0;
+
+    while (i < in_len) {
+        unsigned char c = in[i++];
+        if (c == QCDM_HDLC_FLAG) {
+            *pos = i;
+            return out_len;
+        }
+        if (c == QCDM_HDLC_ESCAPE) {
+            if (i >= in_len) {
+                break;
+            }
+            c = in[i++];
+            if (c != (QCDM_HDLC_FLAG ^ 0x20) && c != (QCDM_HDLC_ESCAPE ^ 0x20)) {
+                // Not a valid escape sequence, drop both bytes like the Java parser does
+                continue;
+            }
+            c ^= 0x20;
+        }
+        out[out_len++] = c;
+    }
+
+    *pos = in_len;
+    return -1;
+}
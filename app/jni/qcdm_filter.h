@@ -0,0 +1,62 @@
+/* qcdm_filter.h
+ * Native HDLC deframing, CRC checking and log code filtering of the QCDM
+ * frames read from /dev/diag.
+ *
+ * Each diag log read from /dev/diag holds one or more HDLC frames. Each frame
+ * ends with 0x7e, and any 0x7e or 0x7d inside it is escaped as 0x7d followed
+ * by the byte XORed with 0x20. The last two bytes of each unescaped frame are
+ * a CRC-16/X-25 of the rest. Frames may start with an 8-byte prefix
+ * (0x98 0x01 0x00 0x00 followed by a 4-byte Subscription ID).
+ *
+ * When a filter is in use, diag_revealer does this work itself and only sends
+ * the frames whose log code is in the allow-list. Each one is sent as its own
+ * v2 LOG packet with the DEFRAMED flag set, and the payload is the 4-byte
+ * Subscription ID followed by the QCDM message with the prefix, CRC and 0x7e
+ * removed. The Java side can then skip the unescaping and CRC check.
+ *
+ * This file has no Android dependencies so that it can be built and tested on
+ * a regular Linux host (see test/).
+ */
+
+#ifndef QCDM_FILTER_H
+#define QCDM_FILTER_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+#define QCDM_DIAG_LOG_F 0x10
+#define QCDM_HDLC_FLAG 0x7e
+#define QCDM_HDLC_ESCAPE 0x7d
+
+struct QcdmFilter {
+    uint8_t allowed[65536 / 8];	// Bit set of the allowed log codes.
+    int allowed_count;
+
+    // Counters for the frames seen while filtering.
+    unsigned long frames_in;
+    unsigned long frames_out;
+    unsigned long crc_errors;
+    unsigned long filtered;
+};
+
+/*
+ * Sets up the filter from a comma separated list of log codes, in hex
+ * (0xB0C0) or decimal.
+ * Returns the number of log codes in the allow-list, or -1 if the list could
+ * not be parsed.
+ */
+int qcdm_filter_init (struct QcdmFilter *filter, const char *log_codes);
+
+int qcdm_filter_allows (const struct QcdmFilter *filter, uint16_t log_code);
+
+uint16_t qcdm_crc16_x25 (const unsigned char *data, size_t len);
+
+/*
+ * Unescapes the next HDLC frame in in[*pos, in_len) into out, which must hold
+ * at least in_len - *pos bytes. On return, *pos is just past the frame's 0x7e.
+ * Returns the unescaped length including the CRC, or -1 if there is no
+ * complete frame left.
+ */
+int qcdm_next_frame (const unsigned char *in, size_t in_len, size_t *pos, unsigned char *out);
+
+#endif /* QCDM_FILTER_H */
@@ -0,0 +1,124 @@
+/* shm_ring.c
+ * See shm_ring.h.
+ */
+
+#include "shm_ring.h"
+
+#include <errno.h>
+#include <fcntl.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#define SHM_RING_FIELD(ring, type, offset) ((type *) ((ring)->map + (offset)))
+
+int
+shm_ring_open (struct ShmRing *ring, const char *path, int doorbell_fd)
+{
+    struct stat st;
+    memset(ring, 0, sizeof(*ring));
+    ring->doorbell_fd = doorbell_fd;
+
+    int fd = open(path, O_RDWR);
+    if (fd < 0) {
+        return -1;
+    }
+    if (fstat(fd, &st) < 0) {
+        close(fd);
+        return -1;
+    }
+
+    size_t capacity = st.st_size > SHM_RING_HEADER_SIZE ? (size_t) st.st_size - SHM_RING_HEADER_SIZE : 0;
+    if (capacity == 0 || capacity > UINT32_MAX || (capacity & (capacity - 1)) != 0) {
+        close(fd);
+        errno = EINVAL;
+        return -1;
+    }
+
+    void *map = mmap(NULL, st.st_size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    close(fd);
+    if (map == MAP_FAILED) {
+        return -1;
+    }
+
+    ring->map = map;
+    ring->map_len = st.st_size;
+    ring->capacity = (uint32_t) capacity;
+
+    memset(ring->map, 0, SHM_RING_HEADER_SIZE);
+    *SHM_RING_FIELD(ring, uint32_t, SHM_RING_VERSION_OFFSET) = SHM_RING_VERSION;
+    *SHM_RING_FIELD(ring, uint32_t, SHM_RING_CAPACITY_OFFSET) = ring->capacity;
+    *SHM_RING_FIELD(ring, uint32_t, SHM_RING_DATA_OFFSET_OFFSET) = SHM_RING_HEADER_SIZE;
+    // The magic goes last so that the consumer never sees a half written header
+    __atomic_store_n(SHM_RING_FIELD(ring, uint32_t, SHM_RING_MAGIC_OFFSET), SHM_RING_MAGIC, __ATOMIC_RELEASE);
+    return 0;
+}
+
+// Writes one byte to the doorbell if the consumer is asleep.
+static int
+shm_ring_ring_doorbell (struct ShmRing *ring)
+{
+    // Pairs with the consumer setting the flag and then re-reading head, so
+    // that one of the two sides always sees the other's store.
+    if (ring->doorbell_fd < 0
+            || !__atomic_load_n(SHM_RING_FIELD(ring, uint32_t, SHM_RING_CONSUMER_WAITING_OFFSET), __ATOMIC_SEQ_CST)) {
+        return 0;
+    }
+
+    __atomic_store_n(SHM_RING_FIELD(ring, uint32_t, SHM_RING_CONSUMER_WAITING_OFFSET), 0, __ATOMIC_RELAXED);
+    const char wakeup = 1;
+    ssize_t ret;
+    do {
+        ret = write(ring->doorbell_fd, &wakeup, 1);
+    } while (ret < 0 && errno == EINTR);
+    if (ret < 0) {
+        return -1;
+    }
+    ring->doorbells++;
+    return 0;
+}
+
+int
+shm_ring_write (struct ShmRing *ring, const void *data, size_t len)
+{
+    if (__atomic_load_n(SHM_RING_FIELD(ring, uint32_t, SHM_RING_CONSUMER_CLOSED_OFFSET), __ATOMIC_RELAXED)) {
+        errno = EPIPE;
+        return -1;
+    }
+
+    uint64_t *head_field = SHM_RING_FIELD(ring, uint64_t, SHM_RING_HEAD_OFFSET);
+    // Only this process writes head, so a relaxed load is enough
+    uint64_t head = __atomic_load_n(head_field, __ATOMIC_RELAXED);
+    uint64_t tail = __atomic_load_n(SHM_RING_FIELD(ring, uint64_t, SHM_RING_TAIL_OFFSET), __ATOMIC_ACQUIRE);
+
+    if (len > ring->capacity - (head - tail)) {
+        *SHM_RING_FIELD(ring, uint64_t, SHM_RING_DROPPED_BATCHES_OFFSET) += 1;
+        *SHM_RING_FIELD(ring, uint64_t, SHM_RING_DROPPED_BYTES_OFFSET) += len;
+        return 1;
+    }
+
+    unsigned char *ring_data = ring->map + SHM_RING_HEADER_SIZE;
+    size_t start = head & (ring->capacity - 1);
+    size_t first = ring->capacity - start;
+    if (first > len) {
+        first = len;
+    }
+    memcpy(ring_data + start, data, first);
+    memcpy(ring_data, (const unsigned char *) data + first, len - first);
+
+    __atomic_store_n(head_field, head + len, __ATOMIC_SEQ_CST);
+    return shm_ring_ring_doorbell(ring);
+}
+
+void
+shm_ring_close (struct ShmRing *ring)
+{
+    if (ring->map == NULL) {
+        return;
+    }
+    __atomic_store_n(SHM_RING_FIELD(ring, uint32_t, SHM_RING_PRODUCER_CLOSED_OFFSET), 1, __ATOMIC_SEQ_CST);
+    shm_ring_ring_doorbell(ring);
+    munmap(ring->map, ring->map_len);
+    ring->map = NULL;
+}
@@ -0,0 +1,92 @@
+/* shm_ring.h
+ * A single-producer/single-consumer ring buffer in a shared memory file, used
+ * by diag_revealer (the producer) to hand the framed packets to the app (the
+ * consumer) without going through the kernel pipe buffer.
+ *
+ * The ring carries exactly the same byte stream that would otherwise be
+ * written to the FIFO (see fifo_framing.h), so the v2 sequence numbers still
+ * show the reader when packets were lost.
+ *
+ * The app creates the file, zero filled, with a size of SHM_RING_HEADER_SIZE
+ * plus a power of two capacity. The producer then fills in the header and
+ * sets the magic last. All fields are little endian:
+ *    0   magic: 4-byte integer, SHM_RING_MAGIC once the producer is ready.
+ *    4   version: 4-byte integer, SHM_RING_VERSION.
+ *    8   capacity: 4-byte integer, the size of the data area.
+ *    12  data offset: 4-byte integer, SHM_RING_HEADER_SIZE.
+ *    64  head: 8-byte integer, total bytes written. Only the producer writes it.
+ *    128 tail: 8-byte integer, total bytes read. Only the consumer writes it.
+ *    192 consumer waiting: 4-byte integer, set by the consumer before it
+ *        sleeps on the doorbell.
+ *    196 producer closed: 4-byte integer, set when diag_revealer exits.
+ *    200 consumer closed: 4-byte integer, set when the app stops reading.
+ *    208 dropped batches: 8-byte integer, batches that did not fit.
+ *    216 dropped bytes: 8-byte integer.
+ * head and tail each have their own cache line so that the two sides do not
+ * keep stealing the line from each other. The byte at stream position p is at
+ * data offset + (p & (capacity - 1)).
+ *
+ * The producer never blocks: a batch that does not fit in the free space is
+ * dropped whole and counted, which the consumer sees as a sequence gap.
+ *
+ * Wakeups work like an eventfd. Before sleeping, the consumer sets the waiting
+ * flag and checks head once more. After publishing a new head, the producer
+ * writes one byte to the doorbell fd (the FIFO) if the waiting flag is set.
+ * The app has no futex access without JNI, so a blocking read of the FIFO
+ * stands in for the futex wait.
+ *
+ * This file has no Android dependencies so that it can be built and tested on
+ * a regular Linux host (see test/).
+ */
+
+#ifndef SHM_RING_H
+#define SHM_RING_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+#define SHM_RING_MAGIC 0x4E535242	// "BRSN" in the file, for Network Survey Ring Buffer
+#define SHM_RING_VERSION 1
+#define SHM_RING_HEADER_SIZE 256
+
+#define SHM_RING_MAGIC_OFFSET 0
+#define SHM_RING_VERSION_OFFSET 4
+#define SHM_RING_CAPACITY_OFFSET 8
+#define SHM_RING_DATA_OFFSET_OFFSET 12
+#define SHM_RING_HEAD_OFFSET 64
+#define SHM_RING_TAIL_OFFSET 128
+#define SHM_RING_CONSUMER_WAITING_OFFSET 192
+#define SHM_RING_PRODUCER_CLOSED_OFFSET 196
+#define SHM_RING_CONSUMER_CLOSED_OFFSET 200
+#define SHM_RING_DROPPED_BATCHES_OFFSET 208
+#define SHM_RING_DROPPED_BYTES_OFFSET 216
+
+struct ShmRing {
+    unsigned char *map;
+    size_t map_len;
+    uint32_t capacity;
+    int doorbell_fd;		// Written to when the consumer is waiting, or -1.
+    unsigned long doorbells;	// Number of wakeups written so far.
+};
+
+/*
+ * Maps an existing ring file and initializes its header. The capacity is the
+ * file size minus SHM_RING_HEADER_SIZE, and must be a power of two.
+ * Returns 0 on success, or -1 with errno set.
+ */
+int shm_ring_open (struct ShmRing *ring, const char *path, int doorbell_fd);
+
+/*
+ * Copies a batch into the ring as one unit and wakes the consumer if needed.
+ * Returns 0 if the batch was written, 1 if it was dropped because the ring is
+ * full, or -1 with errno set if the consumer has gone away (EPIPE) or the
+ * doorbell write failed.
+ */
+int shm_ring_write (struct ShmRing *ring, const void *data, size_t len);
+
+/*
+ * Marks the producer as closed, wakes the consumer and unmaps the ring.
+ */
+void shm_ring_close (struct ShmRing *ring);
+
+#endif /* SHM_RING_H */
@@ -0,0 +1,31 @@
+/* test_common.h
+ * A tiny check macro shared by the host tests.
+ */
+
+#ifndef TEST_COMMON_H
+#define TEST_COMMON_H
+
+#include <stdio.h>
+
+static int failures = 0;
+
+#define CHECK(cond) do { \
+    if (!(cond)) { \
+        fprintf(stderr, "%s:%d: check failed: %s\n", __FILE__, __LINE__, #cond); \
+        failures++; \
+    } \
+} while (0)
+
+// Prints the result and returns the exit code for main().
+static int
+test_report (const char *suite)
+{
+    if (failures > 0) {
+        fprintf(stderr, "%s: %d check(s) failed\n", suite, failures);
+        return 1;
+    }
+    printf("All %s tests passed\n", suite);
+    return 0;
+}
+
+#endif /* TEST_COMMON_H */
@@ -0,0 +1,180 @@
+/* test_control_channel.c
+ * Host tests for control_channel.c.
+ *
+ * Run with: make -C app/jni/test
+ */
+
+#include <string.h>
+
+#include "../control_channel.h"
+#include "test_common.h"
+
+static struct ControlReader reader;
+
+// Records the messages the reader hands out.
+struct Received {
+    int count;
+    size_t lens[8];
+    unsigned char last[CONTROL_MAX_PAYLOAD];
+    int fail;
+};
+
+static int
+record_message (void *ctx, const unsigned char *payload, size_t len)
+{
+    struct Received *received = (struct Received *) ctx;
+    if (received->count < 8)
+        received->lens[received->count] = len;
+    received->count++;
+    memcpy(received->last, payload, len);
+    return received->fail ? -1 : 0;
+}
+
+// Writes a message with the given payload, and returns its total length.
+static size_t
+encode (unsigned char *out, const unsigned char *payload, uint32_t len)
+{
+    uint32_t magic = CONTROL_MAGIC;
+    for (int i = 0; i < 4; i++) {
+        out[i] = (magic >> (8 * i)) & 0xff;
+        out[4 + i] = (len >> (8 * i)) & 0xff;
+    }
+    memcpy(out + CONTROL_HEADER_SIZE, payload, len);
+    return CONTROL_HEADER_SIZE + len;
+}
+
+static void
+test_single_message (void)
+{
+    const unsigned char payload[] = {0x1d, 0x1c, 0x93, 0x7e};
+    unsigned char message[64];
+    size_t len = encode(message, payload, sizeof(payload));
+    struct Received received = {0};
+
+    control_reader_init(&reader);
+    CHECK(control_reader_feed(&reader, message, len, record_message, &received) == 1);
+    CHECK(received.count == 1);
+    CHECK(received.lens[0] == sizeof(payload));
+    CHECK(memcmp(received.last, payload, sizeof(payload)) == 0);
+    CHECK(reader.len == 0);
+    CHECK(reader.messages == 1);
+}
+
+static void
+test_split_and_combined_messages (void)
+{
+    const unsigned char first[] = {0x00, 0x78, 0xf0, 0x7e};
+    const unsigned char second[] = {0x60, 0x00, 0x12, 0x6a, 0x7e};
+    unsigned char stream[64];
+    size_t len = encode(stream, first, sizeof(first));
+    len += encode(stream + len, second, sizeof(second));
+    struct Received received = {0};
+
+    control_reader_init(&reader);
+    // One byte at a time, like the worst case of a FIFO read
+    int handled = 0;
+    for (size_t i = 0; i < len; i++) {
+        handled += control_reader_feed(&reader, stream + i, 1, record_message, &received);
+    }
+    CHECK(handled == 2);
+    CHECK(received.count == 2);
+    CHECK(received.lens[0] == sizeof(first));
+    CHECK(received.lens[1] == sizeof(second));
+    CHECK(memcmp(received.last, second, sizeof(second)) == 0);
+
+    // Both at once
+    memset(&received, 0, sizeof(received));
+    CHECK(control_reader_feed(&reader, stream, len, record_message, &received) == 2);
+    CHECK(received.count == 2);
+    CHECK(reader.len == 0);
+}
+
+static void
+test_resync_after_bad_header (void)
+{
+    const unsigned char payload[] = {0x7d, 0x5e, 0x7e};
+    unsigned char stream[64] = {0x01, 0x02, 0x03};
+    size_t len = 3 + encode(stream + 3, payload, sizeof(payload));
+    struct Received received = {0};
+
+    control_reader_init(&reader);
+    CHECK(control_reader_feed(&reader, stream, len, record_message, &received) == 1);
+    CHECK(received.count == 1);
+    CHECK(memcmp(received.last, payload, sizeof(payload)) == 0);
+    CHECK(reader.bad_headers == 1);
+}
+
+static void
+test_bad_lengths_are_skipped (void)
+{
+    const unsigned char payload[] = {0x0c, 0x14, 0x3a, 0x7e};
+    unsigned char stream[64];
+    size_t len = encode(stream, payload, 0);	// Empty payloads are not allowed
+    len += encode(stream + len, payload, sizeof(payload));
+    struct Received received = {0};
+
+    control_reader_init(&reader);
+    CHECK(control_reader_feed(&reader, stream, len, record_message, &received) == 1);
+    CHECK(received.count == 1);
+    CHECK(received.lens[0] == sizeof(payload));
+    CHECK(reader.bad_headers == 1);
+
+    // A length over the limit would otherwise wait forever for the payload
+    unsigned char too_long[CONTROL_HEADER_SIZE];
+    encode(too_long, payload, 0);
+    too_long[4] = 0x01;
+    too_long[6] = 0x01;	// 0x10001 bytes
+    len = encode(stream, payload, sizeof(payload));
+    memset(&received, 0, sizeof(received));
+    control_reader_init(&reader);
+    CHECK(control_reader_feed(&reader, too_long, sizeof(too_long), record_message, &received) == 0);
+    CHECK(control_reader_feed(&reader, stream, len, record_message, &received) == 1);
+    CHECK(received.count == 1);
+    CHECK(reader.bad_headers == 1);
+}
+
+static void
+test_largest_message (void)
+{
+    static unsigned char payload[CONTROL_MAX_PAYLOAD];
+    static unsigned char stream[2 * (CONTROL_HEADER_SIZE + CONTROL_MAX_PAYLOAD)];
+    static struct Received received;
+    memset(payload, 0xab, sizeof(payload));
+    size_t len = encode(stream, payload, sizeof(payload));
+    len += encode(stream + len, payload, sizeof(payload));
+    memset(&received, 0, sizeof(received));
+
+    // More data than the buffer holds in one call
+    control_reader_init(&reader);
+    CHECK(control_reader_feed(&reader, stream, len, record_message, &received) == 2);
+    CHECK(received.count == 2);
+    CHECK(received.lens[1] == CONTROL_MAX_PAYLOAD);
+    CHECK(reader.len == 0);
+}
+
+static void
+test_handler_failure (void)
+{
+    const unsigned char payload[] = {0x1d, 0x1c, 0x93, 0x7e};
+    unsigned char message[64];
+    size_t len = encode(message, payload, sizeof(payload));
+    struct Received received = {0};
+    received.fail = 1;
+
+    control_reader_init(&reader);
+    CHECK(control_reader_feed(&reader, message, len, record_message, &received) == -1);
+    CHECK(received.count == 1);
+    CHECK(reader.len == 0);
+}
+
+int
+main (void)
+{
+    test_single_message();
+    test_split_and_combined_messages();
+    test_resync_after_bad_header();
+    test_bad_lengths_are_skipped();
+    test_largest_message();
+    test_handler_failure();
+    return test_report("control_channel");
+}
@@ -0,0 +1,451 @@
+/* test_fifo_framing.c
+ * Host tests for fifo_framing.c. Builds fake USER_SPACE_DATA_TYPE buffers like
+ * the ones read from /dev/diag, frames them into a temporary file, and checks
+ * the packets that come out the other side.
+ *
+ * Run with: make -C app/jni/test
+ */
+
+#include <errno.h>
+#include <signal.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+#include "../fifo_framing.h"
+#include "test_common.h"
+
+#define USER_SPACE_DATA_TYPE 0x00000020
+
+static struct FifoWriter writer;
+
+// Returns a timestamp with the same value on both clocks.
+static const struct FifoTimestamp *
+ts_at (double seconds)
+{
+    static struct FifoTimestamp ts;
+    ts.posix = seconds;
+    ts.boottime_ns = (uint64_t) (seconds * 1e9);
+    return &ts;
+}
+
+struct FakeDiagBuffer {
+    char data[65536];
+    int len;
+};
+
+static void
+fake_init (struct FakeDiagBuffer *fake, int remote_dev)
+{
+    int type = USER_SPACE_DATA_TYPE;
+    int num_data = 0;
+    memcpy(fake->data, &type, sizeof(int));
+    memcpy(fake->data + 4, &num_data, sizeof(int));
+    fake->len = 8;
+    if (remote_dev) {
+        int remote_id = -1;
+        memcpy(fake->data + 8, &remote_id, sizeof(int));
+        fake->len = 12;
+    }
+}
+
+// Adds a log whose payload bytes are seed, seed + 1, ...
+static void
+fake_add_log (struct FakeDiagBuffer *fake, int payload_len, unsigned char seed)
+{
+    int num_data;
+    int i;
+    memcpy(&num_data, fake->data + 4, sizeof(int));
+    num_data++;
+    memcpy(fake->data + 4, &num_data, sizeof(int));
+
+    memcpy(fake->data + fake->len, &payload_len, sizeof(int));
+    fake->len += 4;
+    for (i = 0; i < payload_len; i++) {
+        fake->data[fake->len + i] = (char) (seed + i);
+    }
+    fake->len += payload_len;
+}
+
+static int
+open_temp_file (void)
+{
+    char path[] = "/tmp/fifo_framing_XXXXXX";
+    int fd = mkstemp(path);
+    if (fd < 0) {
+        perror("mkstemp");
+        exit(1);
+    }
+    unlink(path);
+    return fd;
+}
+
+// Reads everything written to fd so far into out.
+static size_t
+read_back (int fd, char *out, size_t out_size)
+{
+    size_t total = 0;
+    ssize_t ret;
+    lseek(fd, 0, SEEK_SET);
+    while ((ret = read(fd, out + total, out_size - total)) > 0) {
+        total += ret;
+    }
+    return total;
+}
+
+// Checks a LOG packet at out + *pos and moves *pos past it.
+static void
+check_log_packet (const char *out, size_t *pos, double ts, int payload_len, unsigned char seed)
+{
+    short type;
+    short len;
+    double packet_ts;
+    int i;
+    memcpy(&type, out + *pos, sizeof(short));
+    memcpy(&len, out + *pos + 2, sizeof(short));
+    memcpy(&packet_ts, out + *pos + 4, sizeof(double));
+    CHECK(type == FIFO_MSG_TYPE_LOG);
+    CHECK(len == payload_len + 8);
+    CHECK(packet_ts == ts);
+    for (i = 0; i < payload_len; i++) {
+        CHECK((unsigned char) out[*pos + FIFO_LOG_HEADER_SIZE + i] == (unsigned char) (seed + i));
+    }
+    *pos += FIFO_LOG_HEADER_SIZE + payload_len;
+}
+
+static void
+check_filename_packet (const char *out, size_t *pos, short expected_type, const char *filename)
+{
+    short type;
+    short len;
+    memcpy(&type, out + *pos, sizeof(short));
+    memcpy(&len, out + *pos + 2, sizeof(short));
+    CHECK(type == expected_type);
+    CHECK(len == (short) strlen(filename));
+    CHECK(memcmp(out + *pos + 4, filename, len) == 0);
+    *pos += 4 + len;
+}
+
+// Checks a v2 packet at out + *pos and moves *pos past it.
+static void
+check_v2_packet (const char *out, size_t *pos, short expected_type, uint32_t expected_sequence,
+                 uint64_t expected_ns, const char *expected_payload, uint32_t expected_len)
+{
+    short type;
+    uint16_t flags;
+    uint32_t len;
+    uint32_t sequence;
+    uint64_t ns;
+    memcpy(&type, out + *pos, sizeof(short));
+    memcpy(&flags, out + *pos + 2, sizeof(uint16_t));
+    memcpy(&len, out + *pos + 4, sizeof(uint32_t));
+    memcpy(&sequence, out + *pos + 8, sizeof(uint32_t));
+    memcpy(&ns, out + *pos + 12, sizeof(uint64_t));
+    CHECK(type == expected_type);
+    CHECK(flags == 0);
+    CHECK(len == expected_len);
+    CHECK(sequence == expected_sequence);
+    if (expected_ns != 0) {
+        CHECK(ns == expected_ns);
+    }
+    CHECK(memcmp(out + *pos + FIFO_V2_HEADER_SIZE, expected_payload, expected_len) == 0);
+    *pos += FIFO_V2_HEADER_SIZE + len;
+}
+
+static void
+test_one_write_per_read (void)
+{
+    static struct FakeDiagBuffer fake;
+    static char out[2 * FIFO_WRITER_CAPACITY];
+    int fd = open_temp_file();
+    int i;
+    size_t pos = 0;
+
+    fake_init(&fake, 0);
+    for (i = 0; i < 40; i++) {
+        fake_add_log(&fake, 20 + i * 7, (unsigned char) i);
+    }
+
+    fifo_writer_init(&writer, fd, FIFO_FRAMING_V1);
+    CHECK(fifo_frame_diag_logs(&writer, fake.data, fake.len, 0, ts_at(1234.5), NULL, NULL) == 40);
+    CHECK(writer.write_calls == 0);
+    CHECK(fifo_writer_flush(&writer) == 0);
+    CHECK(writer.write_calls == 1);
+    CHECK(writer.len == 0);
+
+    size_t total = read_back(fd, out, sizeof(out));
+    for (i = 0; i < 40; i++) {
+        check_log_packet(out, &pos, 1234.5, 20 + i * 7, (unsigned char) i);
+    }
+    CHECK(pos == total);
+    close(fd);
+}
+
+static void
+test_remote_dev_offset (void)
+{
+    static struct FakeDiagBuffer fake;
+    static char out[FIFO_WRITER_CAPACITY];
+    int fd = open_temp_file();
+    size_t pos = 0;
+
+    fake_init(&fake, 1);
+    fake_add_log(&fake, 33, 0x10);
+    fake_add_log(&fake, 5, 0x80);
+
+    fifo_writer_init(&writer, fd, FIFO_FRAMING_V1);
+    CHECK(fifo_frame_diag_logs(&writer, fake.data, fake.len, 1, ts_at(2.0), NULL, NULL) == 2);
+    CHECK(fifo_writer_flush(&writer) == 0);
+
+    size_t total = read_back(fd, out, sizeof(out));
+    check_log_packet(out, &pos, 2.0, 33, 0x10);
+    check_log_packet(out, &pos, 2.0, 5, 0x80);
+    CHECK(pos == total);
+    close(fd);
+}
+
+static void
+test_truncated_log_is_dropped (void)
+{
+    static struct FakeDiagBuffer fake;
+    static char out[FIFO_WRITER_CAPACITY];
+    int fd = open_temp_file();
+    size_t pos = 0;
+
+    fake_init(&fake, 0);
+    fake_add_log(&fake, 16, 1);
+    fake_add_log(&fake, 100, 2);
+
+    fifo_writer_init(&writer, fd, FIFO_FRAMING_V1);
+    // Cut the second log short, as if the buffer claimed more than was read
+    CHECK(fifo_frame_diag_logs(&writer, fake.data, fake.len - 10, 0, ts_at(3.0), NULL, NULL) == 1);
+    CHECK(fifo_writer_flush(&writer) == 0);
+
+    size_t total = read_back(fd, out, sizeof(out));
+    check_log_packet(out, &pos, 3.0, 16, 1);
+    CHECK(pos == total);
+    close(fd);
+}
+
+static void
+test_full_buffer_is_flushed (void)
+{
+    static struct FakeDiagBuffer fake;
+    static char out[4 * FIFO_WRITER_CAPACITY];
+    int fd = open_temp_file();
+    int i;
+    int round;
+    size_t pos = 0;
+
+    // Each read holds about 60 KB, so the third read no longer fits
+    fake_init(&fake, 0);
+    for (i = 0; i < 6; i++) {
+        fake_add_log(&fake, 10000, (unsigned char) i);
+    }
+
+    fifo_writer_init(&writer, fd, FIFO_FRAMING_V1);
+    for (round = 0; round < 3; round++) {
+        CHECK(fifo_frame_diag_logs(&writer, fake.data, fake.len, 0, ts_at((double) round), NULL, NULL) == 6);
+    }
+    CHECK(writer.write_calls == 1);
+    CHECK(fifo_writer_flush(&writer) == 0);
+    CHECK(writer.write_calls == 2);
+
+    size_t total = read_back(fd, out, sizeof(out));
+    for (round = 0; round < 3; round++) {
+        for (i = 0; i < 6; i++) {
+            check_log_packet(out, &pos, (double) round, 10000, (unsigned char) i);
+        }
+    }
+    CHECK(pos == total);
+    close(fd);
+}
+
+// Simulates a log file rotation after the second log, like manager_save_log()
+static int
+rotate_after_second_log (void *ctx, const char *payload, int payload_len)
+{
+    int *count = (int *) ctx;
+    (*count)++;
+    if (*count == 2) {
+        char filename[64];
+        strcpy(filename, "/data/0.mi2log");
+        if (fifo_writer_append_filename(&writer, FIFO_MSG_TYPE_END_LOG_FILE, filename) < 0) {
+            return -1;
+        }
+        // The writer must have copied the name, so the buffer can be reused
+        strcpy(filename, "/data/1.mi2log");
+        if (fifo_writer_append_filename(&writer, FIFO_MSG_TYPE_START_LOG_FILE, filename) < 0) {
+            return -1;
+        }
+    }
+    return 0;
+}
+
+static int
+fail_on_first_log (void *ctx, const char *payload, int payload_len)
+{
+    return -1;
+}
+
+static void
+test_callback_packets_keep_their_order (void)
+{
+    static struct FakeDiagBuffer fake;
+    static char out[FIFO_WRITER_CAPACITY];
+    int fd = open_temp_file();
+    int count = 0;
+    size_t pos = 0;
+
+    fake_init(&fake, 0);
+    fake_add_log(&fake, 8, 1);
+    fake_add_log(&fake, 9, 2);
+    fake_add_log(&fake, 10, 3);
+
+    fifo_writer_init(&writer, fd, FIFO_FRAMING_V1);
+    CHECK(fifo_frame_diag_logs(&writer, fake.data, fake.len, 0, ts_at(4.0), rotate_after_second_log, &count) == 3);
+    CHECK(count == 3);
+    CHECK(fifo_writer_flush(&writer) == 0);
+
+    size_t total = read_back(fd, out, sizeof(out));
+    check_log_packet(out, &pos, 4.0, 8, 1);
+    check_log_packet(out, &pos, 4.0, 9, 2);
+    check_filename_packet(out, &pos, FIFO_MSG_TYPE_END_LOG_FILE, "/data/0.mi2log");
+    check_filename_packet(out, &pos, FIFO_MSG_TYPE_START_LOG_FILE, "/data/1.mi2log");
+    check_log_packet(out, &pos, 4.0, 10, 3);
+    CHECK(pos == total);
+
+    fifo_writer_init(&writer, fd, FIFO_FRAMING_V1);
+    CHECK(fifo_frame_diag_logs(&writer, fake.data, fake.len, 0, ts_at(5.0), fail_on_first_log, NULL) == -2);
+    close(fd);
+}
+
+static void
+test_pipe_reader_sees_whole_packets (void)
+{
+    static struct FakeDiagBuffer fake;
+    static char out[FIFO_WRITER_CAPACITY];
+    int fds[2];
+    int i;
+    size_t pos = 0;
+    size_t total = 0;
+    ssize_t ret;
+
+    if (pipe(fds) < 0) {
+        perror("pipe");
+        exit(1);
+    }
+
+    // Small enough to fit in a default pipe without a reader draining it
+    fake_init(&fake, 0);
+    for (i = 0; i < 50; i++) {
+        fake_add_log(&fake, 50, (unsigned char) i);
+    }
+
+    fifo_writer_init(&writer, fds[1], FIFO_FRAMING_V1);
+    CHECK(fifo_frame_diag_logs(&writer, fake.data, fake.len, 0, ts_at(6.0), NULL, NULL) == 50);
+    CHECK(fifo_writer_flush(&writer) == 0);
+    CHECK(writer.write_calls == 1);
+    close(fds[1]);
+
+    while ((ret = read(fds[0], out + total, sizeof(out) - total)) > 0) {
+        total += ret;
+    }
+    for (i = 0; i < 50; i++) {
+        check_log_packet(out, &pos, 6.0, 50, (unsigned char) i);
+    }
+    CHECK(pos == total);
+    close(fds[0]);
+
+    // Writing to a pipe with no reader must surface the error
+    if (pipe(fds) < 0) {
+        perror("pipe");
+        exit(1);
+    }
+    close(fds[0]);
+    fifo_writer_init(&writer, fds[1], FIFO_FRAMING_V1);
+    CHECK(fifo_writer_append_log(&writer, ts_at(7.0), fake.data, 4) == 0);
+    CHECK(fifo_writer_flush(&writer) == -1);
+    CHECK(errno == EPIPE);
+    close(fds[1]);
+}
+
+static int
+rotate_on_first_log (void *ctx, const char *payload, int payload_len)
+{
+    int *count = (int *) ctx;
+    if ((*count)++ == 0) {
+        if (fifo_writer_append_filename(&writer, FIFO_MSG_TYPE_END_LOG_FILE, "/data/0.mi2log") < 0) {
+            return -1;
+        }
+    }
+    return 0;
+}
+
+static void
+test_v2_framing (void)
+{
+    static struct FakeDiagBuffer fake;
+    static char out[FIFO_WRITER_CAPACITY];
+    int fd = open_temp_file();
+    int count = 0;
+    size_t pos = 0;
+    short header[3];
+
+    // 40000 bytes does not fit in the 16-bit v1 length
+    fake_init(&fake, 0);
+    fake_add_log(&fake, 40000, 1);
+    fake_add_log(&fake, 12, 2);
+
+    fifo_writer_init(&writer, fd, FIFO_FRAMING_V2);
+    CHECK(fifo_frame_diag_logs(&writer, fake.data, fake.len, 0, ts_at(8.5), rotate_on_first_log, &count) == 2);
+    CHECK(fifo_writer_flush(&writer) == 0);
+    CHECK(writer.write_calls == 1);
+    CHECK(writer.sequence == 3);
+
+    size_t total = read_back(fd, out, sizeof(out));
+
+    // The version announcement comes first, in v1 framing
+    memcpy(header, out, sizeof(header));
+    CHECK(header[0] == FIFO_MSG_TYPE_FRAMING_VERSION);
+    CHECK(header[1] == 2);
+    CHECK(header[2] == FIFO_FRAMING_V2);
+    pos = sizeof(header);
+
+    check_v2_packet(out, &pos, FIFO_MSG_TYPE_LOG, 0, 8500000000ULL, fake.data + 12, 40000);
+    check_v2_packet(out, &pos, FIFO_MSG_TYPE_END_LOG_FILE, 1, 0, "/data/0.mi2log", strlen("/data/0.mi2log"));
+    check_v2_packet(out, &pos, FIFO_MSG_TYPE_LOG, 2, 8500000000ULL, fake.data + 12 + 40000 + 4, 12);
+    CHECK(pos == total);
+    close(fd);
+}
+
+static void
+test_timestamp_now (void)
+{
+    struct FifoTimestamp first;
+    struct FifoTimestamp second;
+    fifo_timestamp_now(&first);
+    fifo_timestamp_now(&second);
+    CHECK(first.posix > 1.0e9);
+    CHECK(first.boottime_ns > 0);
+    CHECK(second.boottime_ns >= first.boottime_ns);
+}
+
+int
+main (void)
+{
+    // Report a closed pipe as EPIPE instead of being killed by it
+    signal(SIGPIPE, SIG_IGN);
+
+    test_one_write_per_read();
+    test_remote_dev_offset();
+    test_truncated_log_is_dropped();
+    test_full_buffer_is_flushed();
+    test_callback_packets_keep_their_order();
+    test_pipe_reader_sees_whole_packets();
+    test_v2_framing();
+    test_timestamp_now();
+
+    return test_report("fifo_framing");
+}
@@ -0,0 +1,252 @@
+/* test_qcdm_filter.c
+ * Host tests for qcdm_filter.c and the DEFRAMED packets written by
+ * fifo_writer_append_deframed().
+ *
+ * Run with: make -C app/jni/test
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+#include "../fifo_framing.h"
+#include "../qcdm_filter.h"
+#include "test_common.h"
+
+#define LOG_LTE_RRC_OTA 0xB0C0
+#define LOG_LTE_NAS_EMM_IN 0xB0EC
+#define LOG_UNWANTED 0x1234
+
+static struct FifoWriter writer;
+static struct QcdmFilter filter;
+
+struct Bytes {
+    unsigned char data[4096];
+    size_t len;
+};
+
+static void
+put (struct Bytes *bytes, const void *data, size_t len)
+{
+    memcpy(bytes->data + bytes->len, data, len);
+    bytes->len += len;
+}
+
+// Builds an unescaped QCDM log message: opcode, pending, outer length, inner length, log code, log time, payload.
+static void
+make_log_message (struct Bytes *message, uint16_t log_code, const unsigned char *payload, size_t payload_len)
+{
+    unsigned char header[16] = {QCDM_DIAG_LOG_F, 0};
+    uint16_t length = 12 + payload_len;
+    memcpy(header + 2, &length, 2);
+    memcpy(header + 4, &length, 2);
+    memcpy(header + 6, &log_code, 2);
+    memset(header + 8, 0x11, 8);
+    message->len = 0;
+    put(message, header, sizeof(header));
+    put(message, payload, payload_len);
+}
+
+// Appends the HDLC encoding (optional prefix, CRC, escaping, 0x7e) of a message.
+static void
+append_hdlc (struct Bytes *out, const struct Bytes *message, int sim_id, int with_prefix, int corrupt_crc)
+{
+    struct Bytes raw = {{0}, 0};
+    size_t i;
+    if (with_prefix) {
+        unsigned char prefix[4] = {0x98, 0x01, 0x00, 0x00};
+        put(&raw, prefix, 4);
+        put(&raw, &sim_id, 4);
+    }
+    put(&raw, message->data, message->len);
+    uint16_t crc = qcdm_crc16_x25(raw.data, raw.len);
+    if (corrupt_crc) {
+        crc ^= 0x0101;
+    }
+    put(&raw, &crc, 2);
+
+    for (i = 0; i < raw.len; i++) {
+        if (raw.data[i] == QCDM_HDLC_FLAG || raw.data[i] == QCDM_HDLC_ESCAPE) {
+            out->data[out->len++] = QCDM_HDLC_ESCAPE;
+            out->data[out->len++] = raw.data[i] ^ 0x20;
+        } else {
+            out->data[out->len++] = raw.data[i];
+        }
+    }
+    out->data[out->len++] = QCDM_HDLC_FLAG;
+}
+
+// Checks a DEFRAMED packet at out + *pos and moves *pos past it.
+static void
+check_deframed_packet (const char *out, size_t *pos, int sim_id, const struct Bytes *message)
+{
+    short type;
+    uint16_t flags;
+    uint32_t len;
+    int packet_sim_id;
+    memcpy(&type, out + *pos, 2);
+    memcpy(&flags, out + *pos + 2, 2);
+    memcpy(&len, out + *pos + 4, 4);
+    memcpy(&packet_sim_id, out + *pos + FIFO_V2_HEADER_SIZE, 4);
+    CHECK(type == FIFO_MSG_TYPE_LOG);
+    CHECK(flags == FIFO_FLAG_DEFRAMED);
+    CHECK(len == 4 + message->len);
+    CHECK(packet_sim_id == sim_id);
+    CHECK(memcmp(out + *pos + FIFO_V2_HEADER_SIZE + 4, message->data, message->len) == 0);
+    *pos += FIFO_V2_HEADER_SIZE + len;
+}
+
+static void
+test_filter_init (void)
+{
+    CHECK(qcdm_filter_init(&filter, "0xB0C0,0xb0ec,45056") == 3);
+    CHECK(qcdm_filter_allows(&filter, 0xB0C0));
+    CHECK(qcdm_filter_allows(&filter, 0xB0EC));
+    CHECK(qcdm_filter_allows(&filter, 0xB000));
+    CHECK(!qcdm_filter_allows(&filter, 0xB0C1));
+    CHECK(!qcdm_filter_allows(&filter, 0));
+
+    // Duplicates are only counted once
+    CHECK(qcdm_filter_init(&filter, "0xB0C0,0xB0C0") == 1);
+
+    CHECK(qcdm_filter_init(&filter, "") == -1);
+    CHECK(qcdm_filter_init(&filter, "B0C0") == -1);
+    CHECK(qcdm_filter_init(&filter, "0x10000") == -1);
+    CHECK(qcdm_filter_init(&filter, "0xB0C0;0xB0EC") == -1);
+    CHECK(qcdm_filter_init(&filter, NULL) == -1);
+}
+
+static void
+test_crc (void)
+{
+    // The standard CRC-16/X-25 check value
+    CHECK(qcdm_crc16_x25((const unsigned char *) "123456789", 9) == 0x906E);
+}
+
+static void
+test_next_frame_unescapes (void)
+{
+    const unsigned char in[] = {0x01, 0x7d, 0x5e, 0x02, 0x7d, 0x5d, 0x7e, 0x03, 0x7d, 0x11, 0x04, 0x7e, 0x05};
+    unsigned char out[sizeof(in)];
+    size_t pos = 0;
+
+    CHECK(qcdm_next_frame(in, sizeof(in), &pos, out) == 4);
+    CHECK(out[0] == 0x01 && out[1] == 0x7e && out[2] == 0x02 && out[3] == 0x7d);
+    CHECK(pos == 7);
+
+    // An invalid escape sequence is dropped
+    CHECK(qcdm_next_frame(in, sizeof(in), &pos, out) == 2);
+    CHECK(out[0] == 0x03 && out[1] == 0x04);
+
+    // The trailing byte has no 0x7e, so it is not a complete frame
+    CHECK(qcdm_next_frame(in, sizeof(in), &pos, out) == -1);
+    CHECK(pos == sizeof(in));
+}
+
+static void
+test_deframed_packets (void)
+{
+    static char out[FIFO_WRITER_CAPACITY];
+    struct Bytes diag_log = {{0}, 0};
+    struct Bytes rrc;
+    struct Bytes nas;
+    struct Bytes unwanted;
+    struct Bytes not_a_log;
+    const unsigned char rrc_payload[] = {0x7e, 0x7d, 0x01, 0x02, 0x7e};
+    const unsigned char nas_payload[] = {0x07, 0x41};
+    int fds[2];
+    size_t pos = 0;
+    ssize_t total;
+
+    make_log_message(&rrc, LOG_LTE_RRC_OTA, rrc_payload, sizeof(rrc_payload));
+    make_log_message(&nas, LOG_LTE_NAS_EMM_IN, nas_payload, sizeof(nas_payload));
+    make_log_message(&unwanted, LOG_UNWANTED, nas_payload, sizeof(nas_payload));
+    not_a_log = nas;
+    not_a_log.data[0] = 0x7b;
+
+    append_hdlc(&diag_log, &rrc, 1, 1, 0);
+    append_hdlc(&diag_log, &unwanted, 0, 1, 0);
+    append_hdlc(&diag_log, &nas, 0, 0, 0);
+    append_hdlc(&diag_log, &rrc, 0, 1, 1);
+    append_hdlc(&diag_log, &not_a_log, 0, 1, 0);
+
+    CHECK(qcdm_filter_init(&filter, "0xB0C0,0xB0EC") == 2);
+    if (pipe(fds) < 0) {
+        perror("pipe");
+        exit(1);
+    }
+    fifo_writer_init(&writer, fds[1], FIFO_FRAMING_V2);
+    writer.len = 0; // Skip the version announcement, it is covered by test_fifo_framing
+
+    struct FifoTimestamp ts = {1.0, 1000};
+    CHECK(fifo_writer_append_deframed(&writer, &filter, &ts, (const char *) diag_log.data, diag_log.len) == 2);
+    CHECK(fifo_writer_flush(&writer) == 0);
+    close(fds[1]);
+
+    total = read(fds[0], out, sizeof(out));
+    close(fds[0]);
+
+    check_deframed_packet(out, &pos, 1, &rrc);
+    check_deframed_packet(out, &pos, 0, &nas);
+    CHECK(pos == (size_t) total);
+
+    CHECK(filter.frames_in == 5);
+    CHECK(filter.frames_out == 2);
+    CHECK(filter.crc_errors == 1);
+    CHECK(filter.filtered == 2);
+
+    // Deframing is smaller than sending the raw log
+    CHECK((size_t) total < FIFO_LOG_HEADER_SIZE + diag_log.len);
+}
+
+static void
+test_frame_diag_logs_uses_filter (void)
+{
+    static char out[FIFO_WRITER_CAPACITY];
+    static char diag_buf[4096];
+    struct Bytes diag_log = {{0}, 0};
+    struct Bytes nas;
+    const unsigned char nas_payload[] = {0x07, 0x41};
+    int header[2] = {0x20, 1};
+    int log_len;
+    int fds[2];
+    size_t pos = 0;
+
+    make_log_message(&nas, LOG_LTE_NAS_EMM_IN, nas_payload, sizeof(nas_payload));
+    append_hdlc(&diag_log, &nas, 2, 1, 0);
+    log_len = diag_log.len;
+    memcpy(diag_buf, header, 8);
+    memcpy(diag_buf + 8, &log_len, 4);
+    memcpy(diag_buf + 12, diag_log.data, diag_log.len);
+
+    CHECK(qcdm_filter_init(&filter, "0xB0EC") == 1);
+    if (pipe(fds) < 0) {
+        perror("pipe");
+        exit(1);
+    }
+    fifo_writer_init(&writer, fds[1], FIFO_FRAMING_V2);
+    writer.len = 0;
+    writer.filter = &filter;
+
+    struct FifoTimestamp ts = {1.0, 1000};
+    CHECK(fifo_frame_diag_logs(&writer, diag_buf, 12 + log_len, 0, &ts, NULL, NULL) == 1);
+    CHECK(fifo_writer_flush(&writer) == 0);
+    close(fds[1]);
+
+    ssize_t total = read(fds[0], out, sizeof(out));
+    close(fds[0]);
+    check_deframed_packet(out, &pos, 2, &nas);
+    CHECK(pos == (size_t) total);
+}
+
+int
+main (void)
+{
+    test_filter_init();
+    test_crc();
+    test_next_frame_unescapes();
+    test_deframed_packets();
+    test_frame_diag_logs_uses_filter();
+
+    return test_report("qcdm_filter");
+}
@@ -0,0 +1,248 @@
+/* test_shm_ring.c
+ * Host tests for shm_ring.c, with this test acting as the consumer.
+ *
+ * Run with: make -C app/jni/test
+ */
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+#include "../fifo_framing.h"
+#include "../shm_ring.h"
+#include "test_common.h"
+
+#define TEST_CAPACITY 256
+
+static char ring_path[] = "/tmp/test_shm_ring_XXXXXX";
+
+// Creates the zero filled ring file the same way the app does.
+static void
+create_ring_file (size_t capacity)
+{
+    int fd = open(ring_path, O_RDWR | O_CREAT | O_TRUNC, 0600);
+    if (fd < 0 || ftruncate(fd, SHM_RING_HEADER_SIZE + capacity) < 0) {
+        perror("create ring file");
+        exit(1);
+    }
+    close(fd);
+}
+
+static void
+make_pipe (int fds[2])
+{
+    if (pipe(fds) < 0) {
+        perror("pipe");
+        exit(1);
+    }
+    fcntl(fds[0], F_SETFL, O_NONBLOCK);
+}
+
+static uint64_t *
+field64 (struct ShmRing *ring, size_t offset)
+{
+    return (uint64_t *) (ring->map + offset);
+}
+
+static uint32_t *
+field32 (struct ShmRing *ring, size_t offset)
+{
+    return (uint32_t *) (ring->map + offset);
+}
+
+// Reads everything between tail and head, like the app's consumer does.
+static size_t
+consume (struct ShmRing *ring, unsigned char *out)
+{
+    uint64_t head = *field64(ring, SHM_RING_HEAD_OFFSET);
+    uint64_t tail = *field64(ring, SHM_RING_TAIL_OFFSET);
+    size_t len = 0;
+    while (tail < head) {
+        out[len++] = ring->map[SHM_RING_HEADER_SIZE + (tail & (ring->capacity - 1))];
+        tail++;
+    }
+    *field64(ring, SHM_RING_TAIL_OFFSET) = tail;
+    return len;
+}
+
+static void
+fill (unsigned char *data, size_t len, unsigned char first)
+{
+    size_t i;
+    for (i = 0; i < len; i++) {
+        data[i] = (unsigned char) (first + i);
+    }
+}
+
+static void
+test_open_writes_header (void)
+{
+    struct ShmRing ring;
+    create_ring_file(TEST_CAPACITY);
+    CHECK(shm_ring_open(&ring, ring_path, -1) == 0);
+    CHECK(*field32(&ring, SHM_RING_MAGIC_OFFSET) == SHM_RING_MAGIC);
+    CHECK(*field32(&ring, SHM_RING_VERSION_OFFSET) == SHM_RING_VERSION);
+    CHECK(*field32(&ring, SHM_RING_CAPACITY_OFFSET) == TEST_CAPACITY);
+    CHECK(*field32(&ring, SHM_RING_DATA_OFFSET_OFFSET) == SHM_RING_HEADER_SIZE);
+    shm_ring_close(&ring);
+
+    // The capacity has to be a power of two
+    create_ring_file(TEST_CAPACITY + 1);
+    CHECK(shm_ring_open(&ring, ring_path, -1) == -1);
+    CHECK(errno == EINVAL);
+}
+
+static void
+test_write_wraps_around (void)
+{
+    struct ShmRing ring;
+    unsigned char data[TEST_CAPACITY];
+    unsigned char out[TEST_CAPACITY];
+
+    create_ring_file(TEST_CAPACITY);
+    CHECK(shm_ring_open(&ring, ring_path, -1) == 0);
+
+    fill(data, 200, 0);
+    CHECK(shm_ring_write(&ring, data, 200) == 0);
+    CHECK(consume(&ring, out) == 200);
+    CHECK(memcmp(out, data, 200) == 0);
+
+    // Starts at offset 200 and wraps to the start of the data area
+    fill(data, 100, 50);
+    CHECK(shm_ring_write(&ring, data, 100) == 0);
+    CHECK(consume(&ring, out) == 100);
+    CHECK(memcmp(out, data, 100) == 0);
+    CHECK(*field64(&ring, SHM_RING_HEAD_OFFSET) == 300);
+
+    shm_ring_close(&ring);
+}
+
+static void
+test_full_ring_drops_whole_batch (void)
+{
+    struct ShmRing ring;
+    unsigned char data[TEST_CAPACITY];
+    unsigned char out[TEST_CAPACITY];
+
+    create_ring_file(TEST_CAPACITY);
+    CHECK(shm_ring_open(&ring, ring_path, -1) == 0);
+
+    fill(data, 200, 0);
+    CHECK(shm_ring_write(&ring, data, 200) == 0);
+    CHECK(shm_ring_write(&ring, data, 100) == 1);
+    CHECK(*field64(&ring, SHM_RING_DROPPED_BATCHES_OFFSET) == 1);
+    CHECK(*field64(&ring, SHM_RING_DROPPED_BYTES_OFFSET) == 100);
+
+    // Nothing from the dropped batch is visible to the consumer
+    CHECK(consume(&ring, out) == 200);
+
+    // Exactly filling the ring is fine
+    CHECK(shm_ring_write(&ring, data, TEST_CAPACITY) == 0);
+
+    shm_ring_close(&ring);
+}
+
+static void
+test_doorbell_only_when_waiting (void)
+{
+    struct ShmRing ring;
+    unsigned char data[16] = {0};
+    char wakeup;
+    int fds[2];
+
+    make_pipe(fds);
+    create_ring_file(TEST_CAPACITY);
+    CHECK(shm_ring_open(&ring, ring_path, fds[1]) == 0);
+
+    CHECK(shm_ring_write(&ring, data, sizeof(data)) == 0);
+    CHECK(read(fds[0], &wakeup, 1) == -1 && errno == EAGAIN);
+    CHECK(ring.doorbells == 0);
+
+    *field32(&ring, SHM_RING_CONSUMER_WAITING_OFFSET) = 1;
+    CHECK(shm_ring_write(&ring, data, sizeof(data)) == 0);
+    CHECK(read(fds[0], &wakeup, 1) == 1);
+    CHECK(*field32(&ring, SHM_RING_CONSUMER_WAITING_OFFSET) == 0);
+    CHECK(ring.doorbells == 1);
+
+    // Closing wakes a waiting consumer so it can see the closed flag
+    *field32(&ring, SHM_RING_CONSUMER_WAITING_OFFSET) = 1;
+    shm_ring_close(&ring);
+    CHECK(read(fds[0], &wakeup, 1) == 1);
+
+    // The ring is unmapped now, so check the flag through the file
+    int fd = open(ring_path, O_RDONLY);
+    uint32_t closed = 0;
+    CHECK(pread(fd, &closed, sizeof(closed), SHM_RING_PRODUCER_CLOSED_OFFSET) == sizeof(closed));
+    CHECK(closed == 1);
+    close(fd);
+
+    close(fds[0]);
+    close(fds[1]);
+}
+
+static void
+test_consumer_closed (void)
+{
+    struct ShmRing ring;
+    unsigned char data[16] = {0};
+
+    create_ring_file(TEST_CAPACITY);
+    CHECK(shm_ring_open(&ring, ring_path, -1) == 0);
+    *field32(&ring, SHM_RING_CONSUMER_CLOSED_OFFSET) = 1;
+    CHECK(shm_ring_write(&ring, data, sizeof(data)) == -1);
+    CHECK(errno == EPIPE);
+    shm_ring_close(&ring);
+}
+
+static void
+test_fifo_writer_flushes_to_ring (void)
+{
+    static struct FifoWriter writer;
+    struct ShmRing ring;
+    unsigned char out[TEST_CAPACITY];
+    const char payload[] = {1, 2, 3};
+    struct FifoTimestamp ts = {1.0, 1000};
+
+    create_ring_file(TEST_CAPACITY);
+    CHECK(shm_ring_open(&ring, ring_path, -1) == 0);
+    fifo_writer_init(&writer, -1, FIFO_FRAMING_V2);
+    writer.ring = &ring;
+
+    CHECK(fifo_writer_append_log(&writer, &ts, payload, sizeof(payload)) == 0);
+    CHECK(fifo_writer_flush(&writer) == 0);
+    CHECK(writer.len == 0);
+
+    // The version announcement (6 bytes) and then one v2 packet
+    CHECK(consume(&ring, out) == 6 + FIFO_V2_HEADER_SIZE + sizeof(payload));
+    CHECK(memcmp(out + 6 + FIFO_V2_HEADER_SIZE, payload, sizeof(payload)) == 0);
+
+    // A flush that does not fit is dropped, but the writer keeps going
+    CHECK(fifo_writer_append_log(&writer, &ts, (const char *) out, TEST_CAPACITY) == 0);
+    CHECK(fifo_writer_flush(&writer) == 0);
+    CHECK(*field64(&ring, SHM_RING_DROPPED_BATCHES_OFFSET) == 1);
+
+    shm_ring_close(&ring);
+}
+
+int
+main (void)
+{
+    int fd = mkstemp(ring_path);
+    if (fd < 0) {
+        perror("mkstemp");
+        return 1;
+    }
+    close(fd);
+
+    test_open_writes_header();
+    test_write_wraps_around();
+    test_full_ring_drops_whole_batch();
+    test_doorbell_only_when_waiting();
+    test_consumer_closed();
+    test_fifo_writer_flushes_to_ring();
+
+    unlink(ring_path);
+    return test_report("shm_ring");
+}
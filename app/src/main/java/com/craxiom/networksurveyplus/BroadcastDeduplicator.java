@@ -0,0 +1,296 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.GsmtapConstants;
+import com.craxiom.networksurveyplus.messages.LteRrcSubtypes;
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.messages.UmtsRrcSubtypes;
+import com.craxiom.networksurveyplus.util.PcapUtils;
+
+/**
+ * Drops the repeated copies of broadcast messages (MIBs and SIBs), which a cell sends every few tens of milliseconds
+ * and which make up most of the traffic on an idle device.
+ * <p>
+ * Each broadcast message is keyed by the fields in its GSMTAP header: the SIM ID, the GSMTAP type (the technology),
+ * the ARFCN, the PCI (the top 16 bits of the frame number), and the channel subtype. The first copy for a key is
+ * forwarded, and after that a copy is only forwarded if its payload hash differs from the last one (the cell changed
+ * its system information), or if the refresh interval has passed since the last one was forwarded, so that each pcap
+ * file and MQTT subscriber still gets a recent copy. The System Frame Number bits in the LTE MIB and the WCDMA
+ * BCCH-BCH messages are masked out of the hash, since they change with every copy.
+ * <p>
+ * Only LTE and WCDMA broadcast subtypes are deduplicated. The GSM records do not carry the ARFCN, so two cells could
+ * not be told apart, and everything else (dedicated, common control and paging messages) is always forwarded.
+ * <p>
+ * The entries are kept in an open addressing hash table of primitive arrays so that no objects are created per
+ * message. Entries that have not been seen for the expiry time are purged when the table fills up, and if it is still
+ * full after that, it is cleared, which at worst forwards a few extra copies.
+ * <p>
+ * This class is not thread safe; it is only used from the FIFO reader thread.
+ *
+ * @since 0.6.0
+ */
+public class BroadcastDeduplicator
+{
+    /**
+     * A key is never zero because the GSMTAP type is always set, so zero marks an empty slot.
+     */
+    private static final long EMPTY = 0;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The bits of the first payload bytes to include in the hash. The LTE MIB has the 8 most significant bits of the
+     * SFN in bits 6 through 13, and the WCDMA SystemInformation-BCH starts with the 11 bit SFN-prime.
+     */
+    private static final byte[] LTE_MIB_HASH_MASK = {(byte) 0xFC, (byte) 0x03};
+    private static final byte[] WCDMA_BCH_HASH_MASK = {(byte) 0x00, (byte) 0x1F};
+    private static final byte[] NO_HASH_MASK = {};
+
+    private static final boolean[] LTE_BROADCAST_SUBTYPES = new boolean[256];
+    private static final boolean[] WCDMA_BROADCAST_SUBTYPES = new boolean[256];
+
+    static
+    {
+        // The NB-IoT MIB is left out because its SFN bits are in a different place
+        final LteRrcSubtypes[] lteSubtypes = {
+                LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_BCCH_BCH_Message,
+                LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_BCCH_DL_SCH_Message,
+                LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_BCCH_BCH_Message_MBMS,
+                LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_BCCH_DL_SCH_Message_BR,
+                LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_BCCH_DL_SCH_Message_MBMS,
+                LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_BCCH_DL_SCH_Message_NB};
+        for (LteRrcSubtypes subtype : lteSubtypes)
+        {
+            LTE_BROADCAST_SUBTYPES[subtype.ordinal()] = true;
+        }
+
+        WCDMA_BROADCAST_SUBTYPES[UmtsRrcSubtypes.GSMTAP_RRC_SUB_BCCH_FACH_Message.ordinal()] = true;
+        WCDMA_BROADCAST_SUBTYPES[UmtsRrcSubtypes.GSMTAP_RRC_SUB_BCCH_BCH_Message.ordinal()] = true;
+        WCDMA_BROADCAST_SUBTYPES[UmtsRrcSubtypes.GSMTAP_RRC_SUB_SystemInformation_BCH.ordinal()] = true;
+        for (int i = UmtsRrcSubtypes.GSMTAP_RRC_SUB_MasterInformationBlock.ordinal();
+             i <= UmtsRrcSubtypes.GSMTAP_RRC_SUB_SysInfoTypeSB2.ordinal(); i++)
+        {
+            WCDMA_BROADCAST_SUBTYPES[i] = true;
+        }
+    }
+
+    private final int maxEntries;
+    private final long expiryMs;
+    private final long refreshIntervalMs;
+
+    private final int slotMask;
+    private final long[] keys;
+    private final long[] payloadHashes;
+    private final long[] lastForwardedMs;
+    private final long[] lastSeenMs;
+    private int size = 0;
+
+    private long suppressedCount = 0;
+    private long refreshCount = 0;
+
+    /**
+     * @param maxEntries        The most keys to keep track of at once.
+     * @param expiryMs          How long a key is kept after its last copy was seen.
+     * @param refreshIntervalMs How often an unchanged broadcast message is forwarded anyway.
+     */
+    public BroadcastDeduplicator(int maxEntries, long expiryMs, long refreshIntervalMs)
+    {
+        if (maxEntries < 1) throw new IllegalArgumentException("The max entries must be at least 1");
+
+        this.maxEntries = maxEntries;
+        this.expiryMs = expiryMs;
+        this.refreshIntervalMs = refreshIntervalMs;
+
+        // Keep the table at most half full so that the probe sequences stay short
+        final int slotCount = Integer.highestOneBit(maxEntries * 2 - 1) << 1;
+        slotMask = slotCount - 1;
+        keys = new long[slotCount];
+        payloadHashes = new long[slotCount];
+        lastForwardedMs = new long[slotCount];
+        lastSeenMs = new long[slotCount];
+    }
+
+    /**
+     * Decides if a pcap message should be sent on to the sinks.
+     *
+     * @param message The pcap message that was just created.
+     * @param nowMs   The current time, from a monotonic clock.
+     * @return True if the message should be forwarded, false if it is a repeat of a broadcast message that was
+     * recently forwarded.
+     */
+    public boolean shouldForward(PcapMessage message, long nowMs)
+    {
+        final byte[] record = message.getPcapRecordBuffer();
+        final int recordLength = message.getPcapRecordLength();
+        final int gsmtapOffset = PcapUtils.getGsmtapHeaderOffset(record, recordLength);
+        if (gsmtapOffset < 0) return true;
+
+        final int gsmtapType = record[gsmtapOffset + 2] & 0xFF;
+        final int subtype = record[gsmtapOffset + 12] & 0xFF;
+        final byte[] hashMask;
+        if (gsmtapType == GsmtapConstants.GSMTAP_TYPE_LTE_RRC && LTE_BROADCAST_SUBTYPES[subtype])
+        {
+            hashMask = subtype == LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_BCCH_BCH_Message.ordinal() ? LTE_MIB_HASH_MASK : NO_HASH_MASK;
+        } else if (gsmtapType == GsmtapConstants.GSMTAP_TYPE_UMTS_RRC && WCDMA_BROADCAST_SUBTYPES[subtype])
+        {
+            hashMask = subtype == UmtsRrcSubtypes.GSMTAP_RRC_SUB_BCCH_BCH_Message.ordinal()
+                    || subtype == UmtsRrcSubtypes.GSMTAP_RRC_SUB_SystemInformation_BCH.ordinal() ? WCDMA_BCH_HASH_MASK : NO_HASH_MASK;
+        } else
+        {
+            return true;
+        }
+
+        final long key = createKey(record, gsmtapOffset, gsmtapType, subtype);
+        final long payloadHash = hashPayload(record, gsmtapOffset + PcapUtils.GSMTAP_HEADER_LENGTH, recordLength, hashMask);
+
+        int slot = findSlot(key);
+        if (keys[slot] == EMPTY || nowMs - lastSeenMs[slot] >= expiryMs)
+        {
+            if (keys[slot] == EMPTY)
+            {
+                if (size >= maxEntries)
+                {
+                    makeRoom(nowMs);
+                    slot = findSlot(key);
+                }
+                keys[slot] = key;
+                size++;
+            }
+            return forward(slot, payloadHash, nowMs);
+        }
+
+        if (payloadHashes[slot] != payloadHash) return forward(slot, payloadHash, nowMs);
+
+        if (nowMs - lastForwardedMs[slot] >= refreshIntervalMs)
+        {
+            refreshCount++;
+            return forward(slot, payloadHash, nowMs);
+        }
+
+        lastSeenMs[slot] = nowMs;
+        suppressedCount++;
+        return false;
+    }
+
+    /**
+     * Forgets all the broadcast messages seen so far, so that the next copy of each one is forwarded.
+     */
+    public void clear()
+    {
+        for (int i = 0; i < keys.length; i++)
+        {
+            keys[i] = EMPTY;
+        }
+        size = 0;
+    }
+
+    /**
+     * @return The number of keys being tracked.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return The number of repeated copies that were not forwarded.
+     */
+    public long getSuppressedCount()
+    {
+        return suppressedCount;
+    }
+
+    /**
+     * @return The number of unchanged copies that were forwarded because the refresh interval had passed.
+     */
+    public long getRefreshCount()
+    {
+        return refreshCount;
+    }
+
+    private boolean forward(int slot, long payloadHash, long nowMs)
+    {
+        payloadHashes[slot] = payloadHash;
+        lastForwardedMs[slot] = nowMs;
+        lastSeenMs[slot] = nowMs;
+        return true;
+    }
+
+    /**
+     * @return The slot that holds the key, or the empty slot where it would go.
+     */
+    private int findSlot(long key)
+    {
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & slotMask;
+        while (keys[slot] != EMPTY && keys[slot] != key)
+        {
+            slot = (slot + 1) & slotMask;
+        }
+        return slot;
+    }
+
+    /**
+     * Drops the expired entries, or all of them if none have expired. The live entries are put back in to the table
+     * from scratch, since removing an entry from the middle of a probe sequence would break the lookups after it.
+     */
+    private void makeRoom(long nowMs)
+    {
+        final long[] liveKeys = new long[size];
+        final long[] liveHashes = new long[size];
+        final long[] liveForwardedMs = new long[size];
+        final long[] liveSeenMs = new long[size];
+        int liveCount = 0;
+        for (int i = 0; i < keys.length; i++)
+        {
+            if (keys[i] != EMPTY && nowMs - lastSeenMs[i] < expiryMs)
+            {
+                liveKeys[liveCount] = keys[i];
+                liveHashes[liveCount] = payloadHashes[i];
+                liveForwardedMs[liveCount] = lastForwardedMs[i];
+                liveSeenMs[liveCount] = lastSeenMs[i];
+                liveCount++;
+            }
+        }
+
+        clear();
+        if (liveCount >= maxEntries) return;
+
+        for (int i = 0; i < liveCount; i++)
+        {
+            final int slot = findSlot(liveKeys[i]);
+            keys[slot] = liveKeys[i];
+            payloadHashes[slot] = liveHashes[i];
+            lastForwardedMs[slot] = liveForwardedMs[i];
+            lastSeenMs[slot] = liveSeenMs[i];
+        }
+        size = liveCount;
+    }
+
+    /**
+     * Packs the GSMTAP type, subtype, ARFCN, PCI and SIM ID in to one long.
+     */
+    private static long createKey(byte[] record, int gsmtapOffset, int gsmtapType, int subtype)
+    {
+        final long arfcn = (record[gsmtapOffset + 4] & 0xFF) << 8 | (record[gsmtapOffset + 5] & 0xFF);
+        final long pci = (record[gsmtapOffset + 8] & 0xFF) << 8 | (record[gsmtapOffset + 9] & 0xFF);
+        final long simId = record[gsmtapOffset - 9] & 0xFF; // The last byte of the IP header
+
+        return (long) gsmtapType << 48 | (long) subtype << 40 | arfcn << 24 | pci << 8 | simId;
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of the payload, with the masked out bits of the first bytes cleared.
+     */
+    private static long hashPayload(byte[] record, int payloadOffset, int recordLength, byte[] hashMask)
+    {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = payloadOffset; i < recordLength; i++)
+        {
+            final int maskIndex = i - payloadOffset;
+            final int b = maskIndex < hashMask.length ? record[i] & hashMask[maskIndex] : record[i];
+            hash ^= b & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
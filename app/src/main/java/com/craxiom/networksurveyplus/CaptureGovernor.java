@@ -0,0 +1,273 @@
+package com.craxiom.networksurveyplus;
+
+/**
+ * Decides how much to capture based on how hard the pipeline is working and on the state of the device, so that long
+ * unattended runs back off before the device overheats or runs its battery flat.
+ * <p>
+ * Each call to {@link #evaluate(Input, long)} takes a sample of the inputs and returns the {@link Level} to capture
+ * at. The levels go from {@link Level#NORMAL} to {@link Level#MINIMAL}, and use hysteresis so that an input sitting
+ * right on a threshold does not flip the level back and forth:
+ * <ul>
+ * <li>Stepping up (capturing less) needs the pressure to be seen on {@code escalateSamples} evaluations in a row,
+ * which filters out single spikes, and can jump straight to the level the pressure calls for.</li>
+ * <li>Stepping down (capturing more) uses stricter thresholds than stepping up, needs them to be met for the whole
+ * recovery hold time, and only goes one level at a time.</li>
+ * <li>If the governor has to step up again soon after stepping down, the recovery hold doubles (up to
+ * {@link #MAX_HOLD_MULTIPLIER} times), so that a load that only goes away because less is being captured does not
+ * make the level cycle.</li>
+ * </ul>
+ * <p>
+ * This class has no Android dependencies so the decision logic can be tested with simulated inputs. This class is not
+ * thread safe; it is only used from the service's status thread.
+ *
+ * @since 0.6.0
+ */
+public class CaptureGovernor
+{
+    /**
+     * The thermal status values, which are the same as the {@code android.os.PowerManager} THERMAL_STATUS constants.
+     */
+    public static final int THERMAL_STATUS_NONE = 0;
+    public static final int THERMAL_STATUS_LIGHT = 1;
+    public static final int THERMAL_STATUS_MODERATE = 2;
+    public static final int THERMAL_STATUS_SEVERE = 3;
+
+    /**
+     * The battery level is unknown, or the device does not have a battery.
+     */
+    public static final int BATTERY_UNKNOWN = -1;
+
+    // The thresholds for stepping up to a level. The ones for stepping back down are further from the danger zone.
+    static final int REDUCED_BATTERY_PERCENT = 20;
+    static final int REDUCED_BATTERY_RECOVERY_PERCENT = 30;
+    static final int MINIMAL_BATTERY_PERCENT = 10;
+    static final int MINIMAL_BATTERY_RECOVERY_PERCENT = 15;
+    static final double REDUCED_FRAMES_PER_SECOND = 400;
+    static final long REDUCED_SPOOL_DEPTH_RECORDS = 50_000;
+    static final long REDUCED_SPOOL_DEPTH_RECOVERY_RECORDS = 10_000;
+    static final double MINIMAL_OVERFLOW_DROPS_PER_SECOND = 10;
+
+    static final int MAX_HOLD_MULTIPLIER = 8;
+
+    private final int escalateSamples;
+    private final long recoveryHoldMs;
+
+    private Level level = Level.NORMAL;
+    private int pressureSamples = 0;
+    private long recoveringSinceMs = -1;
+    private long lastRecoveryMs = -1;
+    private int holdMultiplier = 1;
+
+    /**
+     * @param escalateSamples How many evaluations in a row have to call for a higher level before stepping up.
+     * @param recoveryHoldMs  How long the inputs have to stay below the recovery thresholds before stepping down.
+     */
+    public CaptureGovernor(int escalateSamples, long recoveryHoldMs)
+    {
+        this.escalateSamples = Math.max(1, escalateSamples);
+        this.recoveryHoldMs = recoveryHoldMs;
+    }
+
+    /**
+     * @return The level the last evaluation decided on.
+     */
+    public Level getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * Goes back to {@link Level#NORMAL} and forgets the history, for when the governor is turned off.
+     */
+    public void reset()
+    {
+        level = Level.NORMAL;
+        pressureSamples = 0;
+        recoveringSinceMs = -1;
+        lastRecoveryMs = -1;
+        holdMultiplier = 1;
+    }
+
+    /**
+     * Takes a sample of the inputs and decides on the level to capture at.
+     *
+     * @param input The current pipeline and device state.
+     * @param nowMs The current time, from a monotonic clock.
+     * @return The level to capture at.
+     */
+    public Level evaluate(Input input, long nowMs)
+    {
+        final Level demanded = getDemandedLevel(input);
+        if (demanded.ordinal() > level.ordinal())
+        {
+            recoveringSinceMs = -1;
+            if (++pressureSamples >= escalateSamples)
+            {
+                if (lastRecoveryMs >= 0 && nowMs - lastRecoveryMs < recoveryHoldMs * holdMultiplier)
+                {
+                    holdMultiplier = Math.min(holdMultiplier * 2, MAX_HOLD_MULTIPLIER);
+                }
+                level = demanded;
+                pressureSamples = 0;
+            }
+            return level;
+        }
+        pressureSamples = 0;
+
+        if (level == Level.NORMAL || !canRecover(level, input))
+        {
+            recoveringSinceMs = -1;
+            return level;
+        }
+
+        if (recoveringSinceMs < 0) recoveringSinceMs = nowMs;
+        if (nowMs - recoveringSinceMs >= recoveryHoldMs * holdMultiplier)
+        {
+            level = Level.values()[level.ordinal() - 1];
+            lastRecoveryMs = nowMs;
+            // Another step down needs its own hold time
+            recoveringSinceMs = level == Level.NORMAL ? -1 : nowMs;
+        }
+        return level;
+    }
+
+    /**
+     * @return The level that the inputs call for, using the thresholds for stepping up.
+     */
+    private static Level getDemandedLevel(Input input)
+    {
+        final boolean onBattery = !input.charging && input.batteryPercent != BATTERY_UNKNOWN;
+
+        if (input.thermalStatus >= THERMAL_STATUS_SEVERE
+                || (onBattery && input.batteryPercent <= MINIMAL_BATTERY_PERCENT)
+                || input.overflowDropsPerSecond >= MINIMAL_OVERFLOW_DROPS_PER_SECOND)
+        {
+            return Level.MINIMAL;
+        }
+
+        if (input.thermalStatus >= THERMAL_STATUS_MODERATE
+                || (onBattery && input.batteryPercent <= REDUCED_BATTERY_PERCENT)
+                || input.overflowDropsPerSecond > 0
+                || input.framesPerSecond >= REDUCED_FRAMES_PER_SECOND
+                || input.spoolDepthRecords >= REDUCED_SPOOL_DEPTH_RECORDS)
+        {
+            return Level.REDUCED;
+        }
+
+        return Level.NORMAL;
+    }
+
+    /**
+     * Checks the stricter thresholds for stepping down from a level. The frame rate is not part of this check because
+     * it drops on its own once less is being captured; the recovery hold time and its back off take care of a load
+     * that comes back.
+     */
+    private static boolean canRecover(Level from, Input input)
+    {
+        final boolean onBattery = !input.charging && input.batteryPercent != BATTERY_UNKNOWN;
+
+        if (input.overflowDropsPerSecond > 0) return false;
+
+        if (from == Level.MINIMAL)
+        {
+            return input.thermalStatus <= THERMAL_STATUS_MODERATE
+                    && (!onBattery || input.batteryPercent >= MINIMAL_BATTERY_RECOVERY_PERCENT);
+        }
+
+        return input.thermalStatus <= THERMAL_STATUS_LIGHT
+                && (!onBattery || input.batteryPercent >= REDUCED_BATTERY_RECOVERY_PERCENT)
+                && input.spoolDepthRecords < REDUCED_SPOOL_DEPTH_RECOVERY_RECORDS;
+    }
+
+    /**
+     * The capture levels, from capturing the most to capturing the least.
+     */
+    public enum Level
+    {
+        /**
+         * Capture whatever the user picked, and publish to MQTT as the messages arrive.
+         */
+        NORMAL(CaptureProfile.FULL, true),
+
+        /**
+         * Drop to the light capture profile.
+         */
+        REDUCED(CaptureProfile.LIGHT, true),
+
+        /**
+         * The light capture profile, and the MQTT messages are held in the spool instead of being published, since the
+         * radio is one of the biggest power and heat costs. The spool is drained once the level steps back down.
+         */
+        MINIMAL(CaptureProfile.LIGHT, false);
+
+        private final CaptureProfile maxCaptureProfile;
+        private final boolean liveMqttPublishing;
+
+        Level(CaptureProfile maxCaptureProfile, boolean liveMqttPublishing)
+        {
+            this.maxCaptureProfile = maxCaptureProfile;
+            this.liveMqttPublishing = liveMqttPublishing;
+        }
+
+        /**
+         * @param selectedProfile The capture profile the user picked.
+         * @return The capture profile to use at this level, which is never more than the user picked.
+         */
+        public CaptureProfile limit(CaptureProfile selectedProfile)
+        {
+            return selectedProfile.ordinal() < maxCaptureProfile.ordinal() ? selectedProfile : maxCaptureProfile;
+        }
+
+        /**
+         * @return True if the MQTT messages should be published as they arrive, false if they should be spooled.
+         */
+        public boolean isLiveMqttPublishing()
+        {
+            return liveMqttPublishing;
+        }
+    }
+
+    /**
+     * One sample of the inputs the governor decides on.
+     */
+    public static final class Input
+    {
+        final double framesPerSecond;
+        final double overflowDropsPerSecond;
+        final long spoolDepthRecords;
+        final int batteryPercent;
+        final boolean charging;
+        final int thermalStatus;
+
+        /**
+         * @param framesPerSecond        The rate of QCDM frames coming out of diag_revealer.
+         * @param overflowDropsPerSecond The rate of messages lost between diag_revealer and the FIFO reader because
+         *                               the reader could not keep up.
+         * @param spoolDepthRecords      The number of MQTT messages waiting in the store-and-forward spool.
+         * @param batteryPercent         The battery level, or {@link #BATTERY_UNKNOWN}.
+         * @param charging               True if the device is plugged in.
+         * @param thermalStatus          One of the THERMAL_STATUS constants.
+         */
+        public Input(double framesPerSecond, double overflowDropsPerSecond, long spoolDepthRecords,
+                     int batteryPercent, boolean charging, int thermalStatus)
+        {
+            this.framesPerSecond = framesPerSecond;
+            this.overflowDropsPerSecond = overflowDropsPerSecond;
+            this.spoolDepthRecords = spoolDepthRecords;
+            this.batteryPercent = batteryPercent;
+            this.charging = charging;
+            this.thermalStatus = thermalStatus;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Input{framesPerSecond=" + framesPerSecond
+                    + ", overflowDropsPerSecond=" + overflowDropsPerSecond
+                    + ", spoolDepthRecords=" + spoolDepthRecords
+                    + ", batteryPercent=" + batteryPercent
+                    + ", charging=" + charging
+                    + ", thermalStatus=" + thermalStatus + '}';
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.QcdmConstants;
+
+import timber.log.Timber;
+
+/**
+ * The sets of QCDM log codes the modem can be asked to log. The profile can be changed while capturing (see
+ * {@link QcdmService#setCaptureProfile(CaptureProfile)}), in which case the new log mask is sent to the running
+ * diag_revealer instead of restarting it.
+ * <p>
+ * The profiles are ordered from the lightest to the fullest, which the {@link CaptureGovernor} relies on, so new
+ * profiles need to be added in the right place.
+ *
+ * @since 0.6.0
+ */
+public enum CaptureProfile
+{
+    /**
+     * Only the RRC messages, which is enough to follow the serving cell and its broadcast information. The NAS
+     * messages, which are the bulk of the traffic while the phone is in use, are not logged.
+     */
+    LIGHT("light", new int[]{
+            QcdmConstants.LOG_LTE_RRC_OTA_MSG_LOG_C,
+            QcdmConstants.LOG_LTE_RRC_MIB_MSG,
+            QcdmConstants.WCDMA_SIGNALING_MESSAGES,
+            QcdmConstants.GSM_RR_SIGNALING_MESSAGES}),
+
+    /**
+     * Every log code that this app converts to a pcap record.
+     */
+    FULL("full", QcdmMessageProcessor.HANDLED_LOG_TYPES);
+
+    private final String preferenceValue;
+    private final int[] logTypes;
+
+    CaptureProfile(String preferenceValue, int[] logTypes)
+    {
+        this.preferenceValue = preferenceValue;
+        this.logTypes = logTypes;
+    }
+
+    /**
+     * @return The value used for this profile in the settings and the MDM app restrictions.
+     */
+    public String getPreferenceValue()
+    {
+        return preferenceValue;
+    }
+
+    /**
+     * @return The QCDM log codes to enable in the modem log mask.
+     */
+    public int[] getLogTypes()
+    {
+        return logTypes.clone();
+    }
+
+    /**
+     * @param preferenceValue The value from the settings or the MDM app restrictions, such as "light".
+     * @return The matching profile, or {@link #FULL} if the value is not recognized.
+     */
+    public static CaptureProfile fromPreferenceValue(String preferenceValue)
+    {
+        for (CaptureProfile profile : values())
+        {
+            if (profile.preferenceValue.equalsIgnoreCase(preferenceValue)) return profile;
+        }
+
+        if (preferenceValue != null) Timber.w("Unknown capture profile %s, using the full profile", preferenceValue);
+        return FULL;
+    }
+}
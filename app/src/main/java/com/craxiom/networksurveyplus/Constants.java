@@ -7,6 +7,24 @@ public class Constants
     }
 
     public static final String FIFO_PIPE = "diag_revealer_fifo";
+
+    /**
+     * The FIFO that diag commands are written to while diag_revealer is running, so that the log mask can be changed
+     * without restarting it.
+     */
+    public static final String CONTROL_FIFO_PIPE = "diag_revealer_control";
+
+    /**
+     * The diag config file, compiled at runtime, that diag_revealer sends to the modem to set the log mask.
+     */
+    public static final String DIAG_CONFIG_FILE = "ns_plus_diag.cfg";
+
+    /**
+     * The shared memory ring buffer that diag_revealer writes to instead of the FIFO when the shared memory transport
+     * is enabled. The FIFO is then only used to wake up the reader. The capacity must be a power of two.
+     */
+    public static final String SHARED_MEMORY_RING_FILE = "diag_revealer_ring";
+    public static final int SHARED_MEMORY_RING_CAPACITY = 4 * 1024 * 1024;
     public static final String DIAG_REVEALER_NAME = "libdiag_revealer";
     public static final String LIB_DIAG_REVEALER_NAME = DIAG_REVEALER_NAME + ".so";
 
@@ -14,6 +32,7 @@ public class Constants
     public static final int LOGGING_NOTIFICATION_ID = 1;
 
     public static final String PCAP_FILE_NAME_PREFIX = "nsp-";
+    public static final String DASHCAM_FILE_NAME_PREFIX = "nsp-event-";
 
     /**
      * The key for the Intent extra that indicates the {@link QcdmService} is being started at boot.
@@ -22,6 +41,110 @@ public class Constants
 
     public static final int DEFAULT_LOG_ROLLOVER_SIZE_MB = 5;
 
+    /**
+     * How often the pipeline metrics are sent to the status listeners and the MQTT health topic.
+     */
+    public static final int METRICS_REPORT_INTERVAL_MS = 10_000;
+
+    /**
+     * Settings for the diag_revealer supervisor. The restart delay doubles from the initial delay up to the max delay,
+     * and goes back to the initial delay once diag_revealer has stayed up for the stable run time. The supervisor gives
+     * up if it has to restart diag_revealer more than the budget within the budget window.
+     */
+    public static final long DIAG_REVEALER_RESTART_INITIAL_DELAY_MS = 1_000;
+    public static final long DIAG_REVEALER_RESTART_MAX_DELAY_MS = 60_000;
+    public static final long DIAG_REVEALER_STABLE_RUN_MS = 60_000;
+    public static final int DIAG_REVEALER_RESTART_BUDGET = 10;
+    public static final long DIAG_REVEALER_RESTART_BUDGET_WINDOW_MS = 10 * 60_000;
+
+    /**
+     * The number of threads the QcdmService start up work is spread across.
+     */
+    public static final int BOOTSTRAP_THREAD_COUNT = 3;
+
+    /**
+     * How long a passing root and /dev/diag check is trusted before it is run again.
+     */
+    public static final long ROOT_CHECK_CACHE_MS = 5 * 60_000;
+
+    /**
+     * How long a command in the root shell can run before the shell is killed, which also covers the time the root
+     * manager waits for the user to answer its prompt.
+     */
+    public static final long ROOT_COMMAND_TIMEOUT_MS = 20_000;
+
+    /**
+     * How often the pipeline watchdog checks for progress, and how long diag_revealer can go without sending any bytes
+     * before the watchdog restarts it. The timeout doubles after each stall that is not followed by any data, up to
+     * the max timeout, since a radio with no coverage can legitimately be quiet for a long time.
+     */
+    public static final int PIPELINE_WATCHDOG_INTERVAL_MS = 5_000;
+    public static final long PIPELINE_STALL_TIMEOUT_MS = 60_000;
+    public static final long PIPELINE_STALL_MAX_TIMEOUT_MS = 16 * 60_000;
+
+    /**
+     * Settings for the {@link CaptureGovernor}. The governor runs at the interval, steps up after the escalate sample
+     * count of evaluations in a row call for it, and steps back down once the inputs have been below the recovery
+     * thresholds for the hold time. The frame rate is averaged over the last few throughput samples so that a burst of
+     * signaling on a cell change does not count as sustained load.
+     */
+    public static final int CAPTURE_GOVERNOR_INTERVAL_MS = 10_000;
+    public static final int CAPTURE_GOVERNOR_ESCALATE_SAMPLES = 2;
+    public static final long CAPTURE_GOVERNOR_RECOVERY_HOLD_MS = 5 * 60_000;
+    public static final int CAPTURE_GOVERNOR_FRAME_RATE_SAMPLES = 10;
+
+    /**
+     * Settings for the {@link BroadcastDeduplicator}. An unchanged broadcast message is sent again once the refresh
+     * interval has passed, and a cell that has not been heard from for the expiry time is forgotten.
+     */
+    public static final int BROADCAST_DEDUP_MAX_ENTRIES = 1024;
+    public static final long BROADCAST_DEDUP_EXPIRY_MS = 2 * 60_000;
+    public static final long BROADCAST_DEDUP_REFRESH_INTERVAL_MS = 60_000;
+
+    /**
+     * Settings for the {@link DashcamRecorder}. The records from the last window (capped at the max buffer size) are
+     * kept in memory, and once a trigger fires they are written out along with the records that come in for the post
+     * trigger time.
+     */
+    public static final long DASHCAM_WINDOW_MS = 5 * 60_000;
+    public static final long DASHCAM_MAX_BUFFER_BYTES = 16L * 1024 * 1024;
+    public static final long DASHCAM_POST_TRIGGER_MS = 2 * 60_000;
+    public static final String DASHCAM_TRIGGERS_OFF = "off";
+
+    /**
+     * Settings for the {@link GsmtapUdpStreamer}. Messages that come in while the queue is full are dropped.
+     */
+    public static final int GSMTAP_UDP_QUEUE_CAPACITY = 1024;
+    public static final int GSMTAP_UDP_BATCH_SIZE = 64;
+
+    /**
+     * Settings for the {@link PcapStreamServer}. A client that has no room in its buffer for longer than the stall
+     * timeout is disconnected.
+     */
+    public static final int PCAP_STREAM_DEFAULT_PORT = 5555;
+    public static final int PCAP_STREAM_MAX_CLIENTS = 4;
+    public static final int PCAP_STREAM_CLIENT_BUFFER_BYTES = 1024 * 1024;
+    public static final long PCAP_STREAM_STALL_TIMEOUT_MS = 10_000;
+
+    /**
+     * The record filter value that sends every record to a sink.
+     */
+    public static final String RECORD_FILTER_ALL = "all";
+
+    /**
+     * A batch size of 1 means batching is disabled and each message is published on its own.
+     */
+    public static final int DEFAULT_MQTT_BATCH_SIZE = 1;
+    public static final int DEFAULT_MQTT_BATCH_LINGER_MS = 1_000;
+
+    /**
+     * Settings for the store-and-forward spool that holds MQTT messages while the broker is unreachable.
+     */
+    public static final String MQTT_SPOOL_DIRECTORY_NAME = "mqtt_spool";
+    public static final long MQTT_SPOOL_MAX_BYTES = 50L * 1024 * 1024;
+    public static final long MQTT_SPOOL_SEGMENT_BYTES = 1024 * 1024;
+    public static final int MQTT_SPOOL_DRAIN_RECORDS_PER_SECOND = 200;
+
     // Preferences
     public static final String PROPERTY_MDM_OVERRIDE_KEY = "mdm_override";
     public static final String PROPERTY_LOCATION_REFRESH_RATE_MS = "location_refresh_rate_ms";
@@ -29,7 +152,22 @@ public class Constants
     // or more specifically in strings.xml
     public static final String PROPERTY_AUTO_START_PCAP_LOGGING = "auto_start_logging";
     public static final String PROPERTY_LOG_ROLLOVER_SIZE_MB = "log_rollover_size";
+    public static final String PROPERTY_NATIVE_LOG_FILTER = "native_log_filter";
+    public static final String PROPERTY_SHARED_MEMORY_TRANSPORT = "shared_memory_transport";
+    public static final String PROPERTY_CAPTURE_PROFILE = "capture_profile";
+    public static final String PROPERTY_CAPTURE_GOVERNOR = "capture_governor";
+    public static final String PROPERTY_BROADCAST_DEDUP = "broadcast_dedup";
+    public static final String PROPERTY_SAMPLING_POLICY = "sampling_policy";
+    public static final String PROPERTY_DASHCAM_TRIGGERS = "dashcam_triggers";
+    public static final String PROPERTY_PCAP_RECORD_FILTER = "pcap_record_filter";
+    public static final String PROPERTY_GSMTAP_UDP_TARGET = "gsmtap_udp_target";
+    public static final String PROPERTY_PCAP_STREAM_ADDRESS = "pcap_stream_address";
 
     // The following key is used in the app_restrictions.xml file and in the app's shared preferences
     public static final String PROPERTY_MQTT_START_ON_BOOT = "mqtt_start_on_boot";
+    public static final String PROPERTY_MQTT_BATCH_SIZE = "mqtt_batch_size";
+    public static final String PROPERTY_MQTT_BATCH_LINGER_MS = "mqtt_batch_linger_ms";
+    public static final String PROPERTY_MQTT_BATCH_DEFLATE = "mqtt_batch_deflate";
+    public static final String PROPERTY_MQTT_TOPIC_ROUTING = "mqtt_topic_routing";
+    public static final String PROPERTY_MQTT_RECORD_FILTER = "mqtt_record_filter";
 }
@@ -0,0 +1,243 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import timber.log.Timber;
+
+/**
+ * Keeps the last few minutes of pcap records in memory and only writes them to a pcap file when one of the trigger
+ * rules matches, like a dashcam that saves the footage from before and after a crash.
+ * <p>
+ * Every record is added to an in memory buffer, which drops the oldest records once they are older than the window or
+ * the buffer goes over its size cap. When a message matches a trigger, a new event pcap file is created, the buffer
+ * is written to it, and every record that comes in for the post trigger time after it is written as well. Another
+ * trigger during an event extends the event instead of starting a new file.
+ * <p>
+ * The buffer holds on to the pcap messages themselves, so each one is retained while it is in the buffer and released
+ * once it is written out or dropped.
+ *
+ * @since 0.6.0
+ */
+public class DashcamRecorder implements IPcapMessageListener
+{
+    private final RecordRuleSet triggers;
+    private final RecordFields recordFields = new RecordFields();
+    private final long windowMs;
+    private final long maxBufferBytes;
+    private final long postTriggerMs;
+    private final File outputDirectory;
+    private final PipelineMetrics metrics;
+
+    private final ArrayDeque<BufferedRecord> buffer = new ArrayDeque<>();
+    private long bufferedBytes = 0;
+
+    private BufferedOutputStream eventOutputStream;
+    private File eventFile;
+    private long eventEndMs;
+    private int eventCount = 0;
+
+    /**
+     * @param triggers        The rules that start an event; at least one is needed.
+     * @param windowMs        How far back the buffer goes.
+     * @param maxBufferBytes  The most bytes of pcap records to hold in the buffer.
+     * @param postTriggerMs   How long to keep writing records after the last trigger.
+     * @param outputDirectory The directory to create the event pcap files in.
+     * @param metrics         The metrics registry to record the number of bytes written in.
+     */
+    public DashcamRecorder(RecordRuleSet triggers, long windowMs, long maxBufferBytes, long postTriggerMs,
+                           File outputDirectory, PipelineMetrics metrics)
+    {
+        if (triggers.isEmpty()) throw new IllegalArgumentException("The dashcam recorder needs at least one trigger");
+
+        this.triggers = triggers;
+        this.windowMs = windowMs;
+        this.maxBufferBytes = maxBufferBytes;
+        this.postTriggerMs = postTriggerMs;
+        this.outputDirectory = outputDirectory;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void onPcapMessage(PcapMessage pcapMessage)
+    {
+        onPcapMessage(pcapMessage, System.nanoTime() / 1_000_000);
+    }
+
+    /**
+     * Handles a pcap message at the given time.
+     *
+     * @param pcapMessage The new pcap message.
+     * @param nowMs       The current time, from a monotonic clock.
+     */
+    synchronized void onPcapMessage(PcapMessage pcapMessage, long nowMs)
+    {
+        if (pcapMessage.getPcapRecordBuffer() == null) return;
+
+        try
+        {
+            if (eventOutputStream != null && nowMs > eventEndMs) closeEventFile();
+
+            final boolean triggered = triggers.matchesAny(recordFields.load(pcapMessage));
+            if (eventOutputStream != null)
+            {
+                write(pcapMessage);
+                eventOutputStream.flush();
+            } else
+            {
+                addToBuffer(pcapMessage, nowMs);
+                if (triggered) startEvent();
+            }
+
+            if (triggered)
+            {
+                Timber.i("A dashcam capture trigger fired; writing to %s", eventFile.getName());
+                eventEndMs = nowMs + postTriggerMs;
+            }
+        } catch (Exception e)
+        {
+            metrics.incrementDrop(PipelineMetrics.DropReason.SINK_EXCEPTION);
+            Timber.e(e, "Could not handle a pcap message in the dashcam recorder");
+            closeEventFile();
+        }
+    }
+
+    /**
+     * @return True if an event is being written to a pcap file.
+     */
+    public synchronized boolean isEventInProgress()
+    {
+        return eventOutputStream != null;
+    }
+
+    /**
+     * @return The number of events that have been written to pcap files.
+     */
+    public synchronized int getEventCount()
+    {
+        return eventCount;
+    }
+
+    /**
+     * @return The number of bytes of pcap records in the buffer.
+     */
+    synchronized long getBufferedBytes()
+    {
+        return bufferedBytes;
+    }
+
+    /**
+     * Closes the event pcap file if there is one, and throws away the records in the buffer.
+     */
+    public synchronized void close()
+    {
+        closeEventFile();
+        clearBuffer();
+    }
+
+    private void addToBuffer(PcapMessage pcapMessage, long nowMs)
+    {
+        buffer.addLast(new BufferedRecord(nowMs, pcapMessage.retain()));
+        bufferedBytes += pcapMessage.getPcapRecordLength();
+
+        while (!buffer.isEmpty() && (bufferedBytes > maxBufferBytes || nowMs - buffer.peekFirst().timeMs > windowMs))
+        {
+            final PcapMessage evicted = buffer.removeFirst().pcapMessage;
+            bufferedBytes -= evicted.getPcapRecordLength();
+            evicted.release();
+        }
+    }
+
+    /**
+     * Empties the buffer, releasing each of the messages in it.
+     */
+    private void clearBuffer()
+    {
+        BufferedRecord record;
+        while ((record = buffer.pollFirst()) != null)
+        {
+            record.pcapMessage.release();
+        }
+        bufferedBytes = 0;
+    }
+
+    /**
+     * Creates the event pcap file and writes the buffer to it.
+     */
+    private void startEvent() throws IOException
+    {
+        outputDirectory.mkdirs();
+        eventFile = createEventFile();
+        eventOutputStream = new BufferedOutputStream(new FileOutputStream(eventFile));
+        eventOutputStream.write(QcdmPcapWriter.PCAP_FILE_GLOBAL_HEADER);
+        eventCount++;
+
+        try
+        {
+            for (BufferedRecord record : buffer)
+            {
+                write(record.pcapMessage);
+            }
+            eventOutputStream.flush();
+        } finally
+        {
+            clearBuffer();
+        }
+    }
+
+    /**
+     * @return A file for the event that does not exist yet. Two events in the same second get a numbered suffix.
+     */
+    private File createEventFile()
+    {
+        final String fileName = QcdmPcapWriter.createFileName(Constants.DASHCAM_FILE_NAME_PREFIX);
+        File file = new File(outputDirectory, fileName);
+        for (int i = 2; file.exists(); i++)
+        {
+            file = new File(outputDirectory, fileName.replace(".pcap", "-" + i + ".pcap"));
+        }
+        return file;
+    }
+
+    private void write(PcapMessage pcapMessage) throws IOException
+    {
+        eventOutputStream.write(pcapMessage.getPcapRecordBuffer(), 0, pcapMessage.getPcapRecordLength());
+        metrics.addBytes(PipelineMetrics.ByteStage.PCAP_FILE_WRITTEN, pcapMessage.getPcapRecordLength());
+    }
+
+    private void closeEventFile()
+    {
+        if (eventOutputStream == null) return;
+
+        try
+        {
+            eventOutputStream.close();
+            Timber.i("Finished writing the dashcam event file %s", eventFile.getName());
+        } catch (Exception e)
+        {
+            Timber.e(e, "Could not close the dashcam event file");
+        }
+        eventOutputStream = null;
+    }
+
+    /**
+     * A retained pcap message in the buffer, along with the time it was received.
+     */
+    private static final class BufferedRecord
+    {
+        private final long timeMs;
+        private final PcapMessage pcapMessage;
+
+        private BufferedRecord(long timeMs, PcapMessage pcapMessage)
+        {
+            this.timeMs = timeMs;
+            this.pcapMessage = pcapMessage;
+        }
+    }
+}
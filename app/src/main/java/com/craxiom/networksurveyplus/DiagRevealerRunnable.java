@@ -1,11 +1,20 @@
 package com.craxiom.networksurveyplus;
 
 import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
 
+import com.craxiom.networksurveyplus.messages.DiagRevealerMessage;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+import com.craxiom.networksurveyplus.util.DiagControlChannel;
+import com.craxiom.networksurveyplus.util.PreferenceUtils;
 import com.craxiom.networksurveyplus.util.RootUtil;
-import com.google.common.io.ByteStreams;
 
-import java.io.InterruptedIOException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 
 import timber.log.Timber;
 
@@ -16,31 +25,61 @@ import timber.log.Timber;
  * The diag_revealer application write a custom format header before each QCDM message. See
  * {@link com.craxiom.networksurveyplus.messages.DiagRevealerMessageHeader} and
  * {@link com.craxiom.networksurveyplus.messages.DiagRevealerMessage} for more details.
+ * <p>
+ * This runnable also supervises the diag_revealer process for as long as it runs. If the process exits, it is
+ * restarted after a delay from the {@link RestartPolicy}, which backs off exponentially and eventually gives up. The
+ * process's stdout and stderr are each drained on their own thread so that a full pipe can never block it. The
+ * {@link PipelineWatchdog} can also ask for a restart with {@link #restart(String)} when the process is alive but has
+ * stopped sending data. Those restarts do not count against the restart budget, since a quiet radio is not a failure
+ * of diag_revealer.
+ * <p>
+ * When a control FIFO is provided, diag_revealer also reads diag commands from it while it runs, which
+ * {@link #sendDiagCommands(byte[])} uses to change the modem log mask without a restart.
  *
  * @since 0.1.0
  */
 public class DiagRevealerRunnable implements Runnable
 {
+    private static final long STREAM_GOBBLER_JOIN_MS = 1_000;
+
     private final Context context;
     private final String fifoPipeName;
+    private final String ringFileName;
+    private final String controlFifoName;
+    private final DiagControlChannel controlChannel;
+    private final PipelineMetrics metrics;
+    private final RestartPolicy restartPolicy = new RestartPolicy(Constants.DIAG_REVEALER_RESTART_INITIAL_DELAY_MS,
+            Constants.DIAG_REVEALER_RESTART_MAX_DELAY_MS, Constants.DIAG_REVEALER_STABLE_RUN_MS,
+            Constants.DIAG_REVEALER_RESTART_BUDGET, Constants.DIAG_REVEALER_RESTART_BUDGET_WINDOW_MS);
+    private final Object restartLock = new Object();
 
     private volatile boolean done = false;
-    private Process process;
+    private volatile boolean restartRequested = false;
+    private volatile Process process;
 
     /**
      * @param context      The context to use when getting the native lib directory.
      * @param fifoPipeName The name of the FIFO pipe to write the QCDM output to.
+     * @param ringFileName    The shared memory ring file to write the QCDM output to instead, in which case the FIFO
+     *                        is only used to wake up the reader. Null to use the FIFO for everything.
+     * @param controlFifoName The FIFO for diag_revealer to read diag commands from while it runs, or null if the log
+     *                        mask can only be changed with a restart.
+     * @param metrics         The metrics to record the restarts and outages in.
      */
-    DiagRevealerRunnable(Context context, String fifoPipeName)
+    DiagRevealerRunnable(Context context, String fifoPipeName, String ringFileName, String controlFifoName, PipelineMetrics metrics)
     {
         this.context = context;
         this.fifoPipeName = fifoPipeName;
+        this.ringFileName = ringFileName;
+        this.controlFifoName = controlFifoName;
+        controlChannel = controlFifoName == null ? null : new DiagControlChannel(new File(controlFifoName));
+        this.metrics = metrics;
     }
 
     @Override
     public void run()
     {
-        startDiagRevealer();
+        superviseDiagRevealer();
     }
 
     /**
@@ -50,10 +89,132 @@ public class DiagRevealerRunnable implements Runnable
     {
         done = true;
 
-        if (process != null)
+        final Process runningProcess = process;
+        if (runningProcess != null)
+        {
+            runningProcess.destroy();
+        }
+
+        synchronized (restartLock)
+        {
+            restartLock.notifyAll();
+        }
+    }
+
+    /**
+     * Kills the running diag_revealer process so that the supervisor starts a new one.
+     *
+     * @param reason Why the restart is needed, for the logs.
+     * @since 0.6.0
+     */
+    public void restart(String reason)
+    {
+        final Process runningProcess = process;
+        if (runningProcess == null) return;
+
+        Timber.w("Restarting the diag revealer: %s", reason);
+        restartRequested = true;
+        metrics.markPipelineDown();
+        runningProcess.destroy();
+    }
+
+    /**
+     * @return True if the diag_revealer process is currently running.
+     * @since 0.6.0
+     */
+    public boolean isProcessRunning()
+    {
+        final Process runningProcess = process;
+        return runningProcess != null && runningProcess.isAlive();
+    }
+
+    /**
+     * Sends diag commands, such as a new log mask, to the running diag_revealer through the control FIFO.
+     * <p>
+     * This blocks until diag_revealer has the control FIFO open, so it must not be called on the main thread. If
+     * diag_revealer is not running, nothing is sent, since the next start will send the diag config file anyway.
+     *
+     * @param diagCommands The HDLC framed diag commands to send.
+     * @return True if the commands were handed to diag_revealer.
+     * @since 0.6.0
+     */
+    public boolean sendDiagCommands(byte[] diagCommands)
+    {
+        if (controlChannel == null || !isProcessRunning()) return false;
+
+        try
+        {
+            controlChannel.send(diagCommands);
+            return true;
+        } catch (Exception e)
+        {
+            Timber.e(e, "Could not send the diag commands to the diag revealer");
+            return false;
+        }
+    }
+
+    /**
+     * Runs the diag revealer, and restarts it whenever it stops until this runnable is shut down or the
+     * {@link RestartPolicy} gives up.
+     */
+    private void superviseDiagRevealer()
+    {
+        while (!done)
+        {
+            final long startMs = SystemClock.elapsedRealtime();
+            restartRequested = false;
+            startDiagRevealer();
+            if (done) break;
+
+            metrics.markPipelineDown();
+            // Whatever made diag_revealer exit might also have taken away root or /dev/diag
+            RootUtil.invalidateCache();
+            final long nowMs = SystemClock.elapsedRealtime();
+            final long uptimeMs = nowMs - startMs;
+            // A restart asked for by the watchdog goes straight back to the initial delay and is not counted against
+            // the budget, so a long quiet spell cannot make the supervisor give up
+            final long delayMs = restartRequested ? Constants.DIAG_REVEALER_RESTART_INITIAL_DELAY_MS
+                    : restartPolicy.nextDelayMs(nowMs, uptimeMs);
+            if (delayMs == RestartPolicy.GIVE_UP)
+            {
+                Timber.e("The diag revealer has failed %d times in the last %d minutes, giving up",
+                        Constants.DIAG_REVEALER_RESTART_BUDGET, Constants.DIAG_REVEALER_RESTART_BUDGET_WINDOW_MS / 60_000);
+                break;
+            }
+
+            Timber.w("The diag revealer stopped after %d ms, restarting it in %d ms", uptimeMs, delayMs);
+            if (!waitForRestart(delayMs)) break;
+            metrics.incrementDiagRevealerRestarts();
+        }
+
+        Timber.i("The diag revealer supervisor has stopped");
+    }
+
+    /**
+     * Waits for the restart delay to pass, returning early if this runnable is shut down.
+     *
+     * @param delayMs How long to wait.
+     * @return True if the diag revealer should be restarted, false if this runnable has been shut down.
+     */
+    private boolean waitForRestart(long delayMs)
+    {
+        final long restartAtMs = SystemClock.elapsedRealtime() + delayMs;
+        synchronized (restartLock)
         {
-            process.destroy();
+            long remainingMs;
+            while (!done && (remainingMs = restartAtMs - SystemClock.elapsedRealtime()) > 0)
+            {
+                try
+                {
+                    restartLock.wait(remainingMs);
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
         }
+        return !done;
     }
 
     /**
@@ -69,6 +230,7 @@ public class DiagRevealerRunnable implements Runnable
             executeCommand(createDiagRevealerCommand(fifoPipeName));
         } else
         {
+            // Treated like any other failure, so that a root grant that comes back later is picked up by a restart
             Timber.e("Device is not ready for diagnostic monitoring.");
         }
     }
@@ -84,12 +246,45 @@ public class DiagRevealerRunnable implements Runnable
     {
         final String diagRevealer = context.getApplicationInfo().nativeLibraryDir + "/" + Constants.LIB_DIAG_REVEALER_NAME;
 
-        return new String[]{"su", "-c", "exec " + diagRevealer + " " + context.getFilesDir() + "/" + context.getResources().getResourceEntryName(R.raw.ns_plus_diag) + " " + fifoPipeName};
+        String options = " -f " + DiagRevealerMessage.FRAMING_V2;
+        if (PreferenceUtils.getNativeLogFilterPreference(context))
+        {
+            Timber.i("Filtering the QCDM log codes in diag_revealer");
+            options += " -l " + createLogFilterArgument(QcdmMessageProcessor.HANDLED_LOG_TYPES);
+        }
+        if (ringFileName != null)
+        {
+            options += " -s " + ringFileName;
+        }
+        if (controlFifoName != null)
+        {
+            options += " -c " + controlFifoName;
+        }
+
+        return new String[]{"su", "-c", "exec " + diagRevealer + options + " " + context.getFilesDir() + "/" + Constants.DIAG_CONFIG_FILE + " " + fifoPipeName};
     }
 
     /**
-     * Executes the provided command and then waits for the process to complete. This method also logs
-     * any error output.
+     * Creates the comma separated list of hex log codes that diag_revealer's "-l" option expects.
+     *
+     * @param logTypes The QCDM log types to allow through.
+     * @return The log codes formatted like "0xB0C0,0xB0EC".
+     * @since 0.6.0
+     */
+    static String createLogFilterArgument(int[] logTypes)
+    {
+        final StringBuilder argument = new StringBuilder();
+        for (int logType : logTypes)
+        {
+            if (argument.length() > 0) argument.append(',');
+            argument.append(String.format("0x%04X", logType));
+        }
+        return argument.toString();
+    }
+
+    /**
+     * Executes the provided command and then waits for the process to complete. The process's stdout and stderr are
+     * logged as they arrive.
      *
      * @param command The command to execute.
      */
@@ -97,26 +292,61 @@ public class DiagRevealerRunnable implements Runnable
     {
         try
         {
-            process = new ProcessBuilder(command)
+            final Process newProcess = new ProcessBuilder(command)
                     .redirectError(ProcessBuilder.Redirect.PIPE)
                     .redirectOutput(ProcessBuilder.Redirect.PIPE)
                     .start();
+            process = newProcess;
+            // shutdown() may have run before the process field was set
+            if (done) newProcess.destroy();
 
-            String stdErrLine = new String(ByteStreams.toByteArray(process.getErrorStream()));
-            String stdOutLine = new String(ByteStreams.toByteArray(process.getInputStream()));
-            if (!stdErrLine.isEmpty()) Timber.e("ERROR: %s", stdErrLine);
-            if (!stdOutLine.isEmpty()) Timber.d("STDOUT: %s", stdOutLine);
+            final Thread stdErrGobbler = startStreamGobbler(newProcess.getErrorStream(), "stderr", Log.ERROR);
+            final Thread stdOutGobbler = startStreamGobbler(newProcess.getInputStream(), "stdout", Log.DEBUG);
 
-            process.waitFor();
+            final int exitValue = newProcess.waitFor();
+            stdErrGobbler.join(STREAM_GOBBLER_JOIN_MS);
+            stdOutGobbler.join(STREAM_GOBBLER_JOIN_MS);
 
-            Timber.i("Done executing the diag revealer command and the process has returned with exit value %d", process.exitValue());
-        } catch (InterruptedIOException e)
+            Timber.i("Done executing the diag revealer command and the process has returned with exit value %d", exitValue);
+        } catch (InterruptedException e)
         {
             Timber.i("The diag revealer process was interrupted");
+            Thread.currentThread().interrupt();
+            done = true;
         } catch (Exception e)
         {
-            Timber.e(e, "Something went wrong when executing the diag revealer command, restarting Diag Revealer");
-            if (!done) startDiagRevealer();
+            Timber.e(e, "Something went wrong when executing the diag revealer command");
+        } finally
+        {
+            process = null;
         }
     }
+
+    /**
+     * Starts a thread that logs each line from one of the diag revealer's output streams until the stream is closed.
+     *
+     * @param stream     The stream to drain.
+     * @param streamName The name of the stream, for the logs and the thread name.
+     * @param priority   The log priority to use, such as {@link Log#ERROR}.
+     * @return The started thread.
+     */
+    private static Thread startStreamGobbler(InputStream stream, String streamName, int priority)
+    {
+        final Thread thread = new Thread(() -> {
+            try (final BufferedReader reader = new BufferedReader(new InputStreamReader(stream)))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    Timber.log(priority, "diag_revealer %s: %s", streamName, line);
+                }
+            } catch (IOException e)
+            {
+                Timber.d(e, "The diag revealer %s stream was closed", streamName);
+            }
+        }, "DiagRevealer-" + streamName);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
 }
@@ -1,12 +1,18 @@
 package com.craxiom.networksurveyplus;
 
+import android.os.SystemClock;
+
 import com.craxiom.networksurveyplus.messages.DiagRevealerMessage;
-import com.craxiom.networksurveyplus.util.ParserUtils;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+import com.craxiom.networksurveyplus.util.DiagRevealerFrameReader;
+import com.craxiom.networksurveyplus.util.SharedMemoryRingInputStream;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 
 import timber.log.Timber;
 
@@ -14,13 +20,22 @@ import timber.log.Timber;
  * A runnable that handles reading from the FIFO queue that the {@link DiagRevealerRunnable} write
  * to. This runnable handles reading from the queue, stripping off the diag_revealer added headers,
  * and then passing off the bytes to a processor so that the QCDM binary messages can be processed.
+ * <p>
+ * When the shared memory transport is in use, the messages are read from the ring buffer with a
+ * {@link SharedMemoryRingInputStream} instead, and the FIFO only carries the wakeups.
+ * <p>
+ * When diag_revealer exits, the FIFO reaches the end of the stream. The FIFO is then opened again, which blocks until
+ * the supervisor in {@link DiagRevealerRunnable} has started a new diag_revealer process.
  *
  * @since 0.1.0
  */
 public class FifoReadRunnable implements Runnable
 {
     private final String fifoPipeName;
+    private final String ringFileName;
     private final QcdmMessageProcessor qcdmMessageProcessor;
+    private final PipelineMetrics metrics;
+    private final Runnable firstMessageCallback;
 
     private volatile boolean done = false;
 
@@ -28,13 +43,21 @@ public class FifoReadRunnable implements Runnable
      * Constructs this runnable object so that it can read from the FIFO queue.
      *
      * @param fifoPipeName         The absolute path to the FIFO named pipe file.
+     * @param ringFileName         The absolute path to the shared memory ring file, or null if the messages are
+     *                             written to the FIFO.
      * @param qcdmMessageProcessor The message processor that will consume the QCDM messages coming
      *                             from the FIFO queue.
+     * @param metrics              The metrics registry to record the FIFO read stats in.
+     * @param firstMessageCallback Called with the first message read after each time the FIFO is opened.
      */
-    FifoReadRunnable(String fifoPipeName, QcdmMessageProcessor qcdmMessageProcessor)
+    FifoReadRunnable(String fifoPipeName, String ringFileName, QcdmMessageProcessor qcdmMessageProcessor,
+                     PipelineMetrics metrics, Runnable firstMessageCallback)
     {
         this.fifoPipeName = fifoPipeName;
+        this.ringFileName = ringFileName;
         this.qcdmMessageProcessor = qcdmMessageProcessor;
+        this.metrics = metrics;
+        this.firstMessageCallback = firstMessageCallback;
     }
 
     @Override
@@ -55,13 +78,44 @@ public class FifoReadRunnable implements Runnable
     {
         Timber.i("Starting the FIFO Reader");
 
+        while (!done)
+        {
+            if (!readUntilEndOfStream()) break;
+
+            if (!done) Timber.w("The diag revealer closed the FIFO, waiting for it to be restarted");
+        }
+
+        Timber.i("The FIFO Reader has stopped");
+    }
+
+    /**
+     * Opens the FIFO and reads from it until diag_revealer closes its end.
+     *
+     * @return True if the end of the stream was reached, false if reading stopped because of an error.
+     */
+    private boolean readUntilEndOfStream()
+    {
         try (final FileInputStream fileInputStream = new FileInputStream(fifoPipeName);
-             final BufferedInputStream bufferedInputStream = new BufferedInputStream(fileInputStream))
+             final InputStream messageInputStream = openMessageStream(fileInputStream))
         {
-            while (!done)
+            // Captured once so that each message's boot time stamp can be converted to wall clock time without a clock call
+            final long bootTimeToEpochNanos = System.currentTimeMillis() * 1_000_000 - SystemClock.elapsedRealtimeNanos();
+            final DiagRevealerFrameReader frameReader = new DiagRevealerFrameReader(messageInputStream, metrics, bootTimeToEpochNanos);
+
+            boolean receivedMessage = false;
+            while (!done && !frameReader.isEndOfStream())
             {
-                notifyMessageProcessor(ParserUtils.getNextDiagRevealerMessage(bufferedInputStream));
+                final DiagRevealerMessage message = frameReader.next();
+                if (message != null && !receivedMessage)
+                {
+                    // Only once per open so that the hot path is not touched
+                    receivedMessage = true;
+                    metrics.markPipelineUp();
+                    firstMessageCallback.run();
+                }
+                notifyMessageProcessor(message);
             }
+            return true;
         } catch (FileNotFoundException e)
         {
             Timber.e(e, "Could not find the named pipe %s", fifoPipeName);
@@ -72,6 +126,22 @@ public class FifoReadRunnable implements Runnable
         {
             Timber.e(e, "Caught an unexpected exception when trying to read from the FIFO diag revealer queue");
         }
+        return false;
+    }
+
+    /**
+     * Wraps the FIFO in the stream that the diag revealer messages are read from.
+     *
+     * @param fifoInputStream The stream that is reading from the FIFO.
+     * @return A buffered stream over the FIFO, or the shared memory ring with the FIFO as its doorbell.
+     * @throws IOException If the shared memory ring could not be mapped.
+     */
+    private InputStream openMessageStream(FileInputStream fifoInputStream) throws IOException
+    {
+        if (ringFileName == null) return new BufferedInputStream(fifoInputStream);
+
+        Timber.i("Reading the diag revealer messages from the shared memory ring %s", ringFileName);
+        return new SharedMemoryRingInputStream(new File(ringFileName), fifoInputStream);
     }
 
     /**
@@ -0,0 +1,273 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.GsmtapConstants;
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+import com.craxiom.networksurveyplus.util.PcapUtils;
+import com.craxiom.networksurveyplus.util.RecordBufferPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Streams the GSMTAP packets in the pcap records as UDP datagrams, so that the messages can be watched live in
+ * Wireshark (or any other GSMTAP consumer) on a computer that is tethered to the phone.
+ * <p>
+ * Each datagram is the GSMTAP header and payload from a pcap record, which is what Wireshark expects on the GSMTAP
+ * port. The messages are put on a bounded queue and sent from a separate thread, so a slow or missing network never
+ * holds up the capture: when the queue or the socket send buffer is full, the message is dropped and counted instead.
+ * The sender thread takes every message that is waiting (up to the batch size) each time it wakes up, and copies each
+ * one into the same direct buffer to hand to the non-blocking channel.
+ * <p>
+ * The queue holds on to the pooled pcap messages themselves, so each one is retained while it is queued and released
+ * once it is sent or dropped.
+ *
+ * @since 0.6.0
+ */
+public class GsmtapUdpStreamer implements IPcapMessageListener
+{
+    private final InetSocketAddress target;
+    private final int batchSize;
+    private final PipelineMetrics metrics;
+    private final ArrayBlockingQueue<PcapMessage> queue;
+    private final DatagramChannel channel;
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(RecordBufferPool.MAX_BUFFER_SIZE);
+    private final Thread senderThread;
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private volatile boolean running = true;
+    private boolean sendFailing = false;
+
+    /**
+     * @param target        The host and port to send the datagrams to, which is resolved on the sender thread.
+     * @param queueCapacity The most messages that can wait to be sent before new ones are dropped.
+     * @param batchSize     The most messages to send each time the sender thread wakes up.
+     * @param metrics       The metrics registry to record the bytes sent and the dropped messages in.
+     * @throws IOException If the UDP channel could not be opened.
+     */
+    public GsmtapUdpStreamer(InetSocketAddress target, int queueCapacity, int batchSize, PipelineMetrics metrics) throws IOException
+    {
+        this.target = target;
+        this.batchSize = Math.max(1, batchSize);
+        this.metrics = metrics;
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+
+        senderThread = new Thread(this::sendLoop, "GsmtapUdpStreamer");
+        senderThread.setDaemon(true);
+    }
+
+    /**
+     * Parses a streaming target in the form {@code host} or {@code host:port}. The GSMTAP port is used if one is not
+     * given. The host is not resolved, so this can be called from the main thread.
+     *
+     * @param target The target to parse.
+     * @return The unresolved address of the target.
+     * @throws IllegalArgumentException If the target is empty or the port is not valid.
+     */
+    public static InetSocketAddress parseTarget(String target)
+    {
+        if (target == null || target.trim().isEmpty()) throw new IllegalArgumentException("The GSMTAP target is empty");
+
+        final String trimmed = target.trim();
+        final int colon = trimmed.lastIndexOf(':');
+        if (colon < 0 || trimmed.indexOf(':') != colon)
+        {
+            // No port, or an IPv6 address without one
+            return InetSocketAddress.createUnresolved(trimmed, GsmtapConstants.GSMTAP_UDP_PORT);
+        }
+
+        final String host = trimmed.substring(0, colon);
+        final int port;
+        try
+        {
+            port = Integer.parseInt(trimmed.substring(colon + 1));
+        } catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid GSMTAP target port: " + target, e);
+        }
+        if (host.isEmpty() || port < 1 || port > 65535) throw new IllegalArgumentException("Invalid GSMTAP target: " + target);
+
+        return InetSocketAddress.createUnresolved(host, port);
+    }
+
+    /**
+     * Starts the thread that sends the queued messages.
+     */
+    public void start()
+    {
+        Timber.i("Streaming GSMTAP over UDP to %s", target);
+        senderThread.start();
+    }
+
+    @Override
+    public void onPcapMessage(PcapMessage pcapMessage)
+    {
+        if (!running) return;
+
+        pcapMessage.retain();
+        if (!queue.offer(pcapMessage))
+        {
+            pcapMessage.release();
+            drop();
+        }
+    }
+
+    /**
+     * Stops the sender thread and closes the UDP channel. Any messages that are still queued are released without
+     * being sent.
+     */
+    public void close()
+    {
+        running = false;
+        senderThread.interrupt();
+        try
+        {
+            senderThread.join(1_000);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        try
+        {
+            channel.close();
+        } catch (IOException e)
+        {
+            Timber.w(e, "Could not close the GSMTAP UDP channel");
+        }
+
+        PcapMessage pcapMessage;
+        while ((pcapMessage = queue.poll()) != null)
+        {
+            pcapMessage.release();
+        }
+
+        Timber.i("Stopped streaming GSMTAP over UDP; sent %d messages and dropped %d", sentCount.get(), droppedCount.get());
+    }
+
+    /**
+     * @return The number of datagrams that have been sent.
+     */
+    public long getSentCount()
+    {
+        return sentCount.get();
+    }
+
+    /**
+     * @return The number of messages that were dropped because the queue or the socket send buffer was full, or the
+     * network was unreachable.
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    /**
+     * Sends the queued messages until the streamer is closed. Runs on the sender thread.
+     */
+    private void sendLoop()
+    {
+        final InetSocketAddress resolvedTarget = new InetSocketAddress(target.getHostString(), target.getPort());
+        if (resolvedTarget.isUnresolved())
+        {
+            Timber.e("Could not resolve the GSMTAP target %s, so nothing will be streamed", target);
+        }
+
+        final List<PcapMessage> batch = new ArrayList<>(batchSize);
+        try
+        {
+            while (running)
+            {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+
+                for (PcapMessage pcapMessage : batch)
+                {
+                    try
+                    {
+                        if (resolvedTarget.isUnresolved())
+                        {
+                            drop();
+                        } else
+                        {
+                            send(pcapMessage, resolvedTarget);
+                        }
+                    } finally
+                    {
+                        pcapMessage.release();
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e)
+        {
+            // The streamer was closed
+        } finally
+        {
+            for (PcapMessage pcapMessage : batch)
+            {
+                pcapMessage.release();
+            }
+        }
+    }
+
+    /**
+     * Sends the GSMTAP header and payload of a pcap record as one datagram, or drops it if the socket send buffer is
+     * full.
+     */
+    private void send(PcapMessage pcapMessage, InetSocketAddress resolvedTarget)
+    {
+        final byte[] record = pcapMessage.getPcapRecordBuffer();
+        final int recordLength = pcapMessage.getPcapRecordLength();
+        final int gsmtapOffset = PcapUtils.getGsmtapHeaderOffset(record, recordLength);
+        final int datagramLength = recordLength - gsmtapOffset;
+        if (gsmtapOffset < 0 || datagramLength > sendBuffer.capacity())
+        {
+            Timber.w("Could not find the GSMTAP packet in a %s pcap record", pcapMessage.getMessageType());
+            drop();
+            return;
+        }
+
+        sendBuffer.clear();
+        sendBuffer.put(record, gsmtapOffset, datagramLength);
+        sendBuffer.flip();
+
+        try
+        {
+            if (channel.send(sendBuffer, resolvedTarget) == 0)
+            {
+                drop();
+                return;
+            }
+        } catch (IOException e)
+        {
+            // Only log the first failure, since the network can be down for a while and every message would fail
+            if (!sendFailing) Timber.w(e, "Could not send a GSMTAP datagram to %s", resolvedTarget);
+            sendFailing = true;
+            drop();
+            return;
+        }
+
+        sendFailing = false;
+        sentCount.incrementAndGet();
+        if (metrics != null) metrics.addBytes(PipelineMetrics.ByteStage.GSMTAP_UDP_SENT, datagramLength);
+    }
+
+    private void drop()
+    {
+        droppedCount.incrementAndGet();
+        if (metrics != null) metrics.incrementDrop(PipelineMetrics.DropReason.GSMTAP_UDP_DROPPED);
+    }
+}
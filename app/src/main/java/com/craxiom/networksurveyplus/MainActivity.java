@@ -11,7 +11,6 @@ import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.res.ColorStateList;
-import android.content.res.Resources;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
@@ -20,7 +19,6 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.Toast;
 
-import androidx.annotation.RawRes;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.app.AppCompatDelegate;
@@ -34,15 +32,8 @@ import androidx.navigation.ui.NavigationUI;
 import androidx.preference.PreferenceManager;
 
 import com.craxiom.networksurveyplus.ui.home.HomeViewModel;
-import com.craxiom.networksurveyplus.util.NetworkSurveyUtils;
 import com.google.android.material.bottomnavigation.BottomNavigationView;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -89,11 +80,7 @@ public class MainActivity extends AppCompatActivity
 
         setupNotificationChannel();
 
-        //copyConfigFile(R.raw.diag);
-        //copyConfigFile(R.raw.full_diag);
-        //copyConfigFile(R.raw.rrc_diag);
-        //copyConfigFile(R.raw.rrc_filter_diag);
-        copyConfigFile(R.raw.ns_plus_diag);
+        // The diag config file is copied to the app's private storage by the QcdmService while it starts up
     }
 
     @Override
@@ -385,35 +372,6 @@ public class MainActivity extends AppCompatActivity
         }
     }
 
-    /**
-     * Copies the provide config file (by its raw resource ID) to the app's private storage area so
-     * that it can be used for diag access.
-     *
-     * @param resourceId The raw resource ID.
-     */
-    private void copyConfigFile(@RawRes int resourceId)
-    {
-        final Resources resources = getResources();
-        final String filename = resources.getResourceEntryName(resourceId);
-        final File configFile = new File(getFilesDir(), filename);
-
-        try (final InputStream configFileInputStream = resources.openRawResource(resourceId);
-             final OutputStream configFileOutputStream = new FileOutputStream(configFile))
-        {
-            NetworkSurveyUtils.copyInputStreamToOutputStream(configFileInputStream, configFileOutputStream);
-        } catch (FileNotFoundException e)
-        {
-            final String message = "The " + filename + " file was not found in the app's raw directory";
-            Timber.e(e, message);
-            Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
-        } catch (IOException e)
-        {
-            final String message = "Could not create the " + filename + " file";
-            Timber.e(e, message);
-            Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
-        }
-    }
-
     /**
      * Starts or stops writing the pcap log file based on the specified parameter.
      *
@@ -522,6 +480,7 @@ public class MainActivity extends AppCompatActivity
             if (homeViewModel != null)
             {
                 qcdmService.registerServiceStatusListener(homeViewModel);
+                homeViewModel.setThroughputMonitor(qcdmService.getThroughputMonitor());
             }
 
             final boolean loggingEnabled = qcdmService.isPcapLoggingEnabled();
@@ -542,6 +501,7 @@ public class MainActivity extends AppCompatActivity
             if (homeViewModel != null)
             {
                 qcdmService.unregisterServiceStatusListener(homeViewModel);
+                homeViewModel.setThroughputMonitor(null);
             }
 
             qcdmService = null;
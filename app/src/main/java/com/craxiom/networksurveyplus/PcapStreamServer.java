@@ -0,0 +1,586 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * A TCP server that streams the pcap records live to any number of clients, such as Wireshark
+ * ({@code nc 127.0.0.1 5555 | wireshark -k -i -}) or a collector on a tethered computer. Each client is sent the same
+ * global header as the pcap files, followed by every record from the time it connected.
+ * <p>
+ * Each client gets its own bounded ring buffer. The records are copied into the rings on the capture thread, and a
+ * single selector thread writes the rings out to the sockets as they become writable, so a slow client never blocks
+ * the capture or the other clients. Only whole records are put in a ring: when a record does not fit, that client
+ * skips it and picks up again with the next record that fits, so its stream stays a valid pcap stream. A client that
+ * keeps skipping records for longer than the stall timeout is disconnected.
+ * <p>
+ * The rings are single producer, single consumer: only the capture thread writes to them, and only the selector thread
+ * reads from them, so neither side takes a lock.
+ * <p>
+ * The bind address is resolved and the server socket is opened on the selector thread, so the server can be started
+ * from the main thread.
+ *
+ * @since 0.6.0
+ */
+public class PcapStreamServer implements IPcapMessageListener
+{
+    private static final int SELECT_TIMEOUT_MS = 1_000;
+
+    private final InetSocketAddress bindAddress;
+    private final int maxClients;
+    private final int clientBufferBytes;
+    private final long stallTimeoutMs;
+    private final PipelineMetrics metrics;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(512);
+
+    private final CountDownLatch listening = new CountDownLatch(1);
+
+    private volatile Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean running = false;
+    private volatile int localPort = -1;
+
+    /**
+     * @param bindAddress       The address and port to listen on, which is resolved on the selector thread.
+     * @param maxClients        The most clients that can be connected at once; any more are turned away.
+     * @param clientBufferBytes The size of each client's ring buffer.
+     * @param stallTimeoutMs    How long a client can go without room for a new record before it is disconnected.
+     * @param metrics           The metrics registry to record the bytes sent and the skipped records in.
+     */
+    public PcapStreamServer(InetSocketAddress bindAddress, int maxClients, int clientBufferBytes, long stallTimeoutMs,
+                            PipelineMetrics metrics)
+    {
+        this.bindAddress = bindAddress;
+        this.maxClients = maxClients;
+        this.clientBufferBytes = clientBufferBytes;
+        this.stallTimeoutMs = stallTimeoutMs;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Parses the address to listen on, in the form {@code port}, {@code host}, or {@code host:port}. A port on its own
+     * listens on the loopback interface, and a host on its own uses the default port. The host is not resolved, so this
+     * can be called from the main thread.
+     *
+     * @param address The address to parse, such as 127.0.0.1:5555 or the address of the USB tether interface.
+     * @return The address to bind to, which is unresolved if a host was given.
+     * @throws IllegalArgumentException If the address is empty or the port is not valid.
+     */
+    public static InetSocketAddress parseBindAddress(String address)
+    {
+        if (address == null || address.trim().isEmpty()) throw new IllegalArgumentException("The pcap stream address is empty");
+
+        final String trimmed = address.trim();
+        final int colon = trimmed.lastIndexOf(':');
+        final String host;
+        final String port;
+        if (colon < 0 && trimmed.chars().allMatch(Character::isDigit))
+        {
+            host = null;
+            port = trimmed;
+        } else if (colon < 0 || trimmed.indexOf(':') != colon)
+        {
+            // No port, or an IPv6 address without one
+            host = trimmed;
+            port = String.valueOf(Constants.PCAP_STREAM_DEFAULT_PORT);
+        } else
+        {
+            host = trimmed.substring(0, colon);
+            port = trimmed.substring(colon + 1);
+        }
+
+        final int portNumber;
+        try
+        {
+            portNumber = Integer.parseInt(port);
+        } catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid pcap stream port: " + address, e);
+        }
+        if (portNumber < 0 || portNumber > 65535 || (host != null && host.isEmpty()))
+        {
+            throw new IllegalArgumentException("Invalid pcap stream address: " + address);
+        }
+
+        return host == null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), portNumber) : InetSocketAddress.createUnresolved(host, portNumber);
+    }
+
+    /**
+     * Starts the selector thread, which opens the server socket and then listens for clients. If the server socket
+     * could not be opened, such as when the port is already in use, the error is logged and the server stops.
+     */
+    public synchronized void start()
+    {
+        if (selectorThread != null) return;
+
+        running = true;
+        selectorThread = new Thread(this::run, "PcapStreamServer");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Waits for the selector thread to open the server socket.
+     *
+     * @param timeoutMs The most time to wait.
+     * @return True if the server is listening for clients, false if it could not open the server socket or it did not
+     * finish opening it in time.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public boolean awaitListening(long timeoutMs) throws InterruptedException
+    {
+        return listening.await(timeoutMs, TimeUnit.MILLISECONDS) && localPort >= 0;
+    }
+
+    /**
+     * @return The port the server is listening on, which is useful when it was started on port 0, or -1 if the server
+     * is not listening yet.
+     */
+    public int getLocalPort()
+    {
+        return localPort;
+    }
+
+    @Override
+    public void onPcapMessage(PcapMessage pcapMessage)
+    {
+        if (!running || clients.isEmpty()) return;
+
+        final long nowMs = System.nanoTime() / 1_000_000;
+        boolean wakeup = false;
+        for (Client client : clients)
+        {
+            if (client.offer(pcapMessage.getPcapRecordBuffer(), pcapMessage.getPcapRecordLength(), nowMs))
+            {
+                wakeup = true;
+            } else if (client.isStalled(nowMs, stallTimeoutMs))
+            {
+                client.disconnectRequested = true;
+                wakeup = true;
+            }
+        }
+
+        if (wakeup) selector.wakeup();
+    }
+
+    /**
+     * Disconnects every client and stops listening. The selector thread does the closing, and this waits a short
+     * time for it to finish.
+     */
+    public synchronized void close()
+    {
+        if (!running) return;
+
+        running = false;
+        final Selector currentSelector = selector;
+        if (currentSelector != null) currentSelector.wakeup();
+        try
+        {
+            selectorThread.join(1_000);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The throughput and lag of each client that is connected right now.
+     */
+    public List<ClientStats> getClientStats()
+    {
+        final long nowMs = System.nanoTime() / 1_000_000;
+        final List<ClientStats> stats = new ArrayList<>(clients.size());
+        for (Client client : clients)
+        {
+            stats.add(client.getStats(nowMs));
+        }
+        return stats;
+    }
+
+    /**
+     * Opens the server socket, serves the clients until the server is closed, and then closes everything. Runs on the
+     * selector thread.
+     */
+    private void run()
+    {
+        try
+        {
+            if (openServerSocket()) selectLoop();
+        } finally
+        {
+            for (Client client : clients)
+            {
+                closeClient(client, "the server stopped");
+            }
+
+            try
+            {
+                if (serverChannel != null) serverChannel.close();
+                if (selector != null) selector.close();
+            } catch (IOException e)
+            {
+                Timber.w(e, "Could not close the pcap stream server socket");
+            }
+        }
+    }
+
+    /**
+     * Resolves the bind address and opens the server socket on it.
+     *
+     * @return True if the server is listening for clients.
+     */
+    private boolean openServerSocket()
+    {
+        try
+        {
+            final InetSocketAddress resolvedAddress = bindAddress.isUnresolved()
+                    ? new InetSocketAddress(bindAddress.getHostString(), bindAddress.getPort()) : bindAddress;
+            if (resolvedAddress.isUnresolved()) throw new UnknownHostException(bindAddress.getHostString());
+
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(resolvedAddress);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            localPort = serverChannel.socket().getLocalPort();
+
+            Timber.i("Streaming pcap records to TCP clients on %s", serverChannel.getLocalAddress());
+            return true;
+        } catch (IOException e)
+        {
+            Timber.e(e, "Could not start the pcap stream server on %s", bindAddress);
+            running = false;
+            return false;
+        } finally
+        {
+            listening.countDown();
+        }
+    }
+
+    /**
+     * Accepts the new clients and writes the queued records to the clients that are ready for them. Runs on the
+     * selector thread until the server is closed.
+     */
+    private void selectLoop()
+    {
+        while (running)
+        {
+            try
+            {
+                for (Client client : clients)
+                {
+                    if (client.disconnectRequested)
+                    {
+                        closeClient(client, "it could not keep up");
+                    } else
+                    {
+                        client.key.interestOps(client.hasPending() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                    }
+                }
+
+                selector.select(SELECT_TIMEOUT_MS);
+                if (!running) break;
+
+                final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext())
+                {
+                    final SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable())
+                    {
+                        accept();
+                    } else
+                    {
+                        handleClient((Client) key.attachment(), key);
+                    }
+                }
+            } catch (Exception e)
+            {
+                Timber.e(e, "Error in the pcap stream server");
+            }
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+
+        if (clients.size() >= maxClients)
+        {
+            Timber.w("Turning away the pcap stream client %s because there are already %d clients", channel.getRemoteAddress(), maxClients);
+            channel.close();
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        final Client client = new Client(channel, clientBufferBytes, System.nanoTime() / 1_000_000);
+        client.key = channel.register(selector, SelectionKey.OP_READ, client);
+        clients.add(client);
+
+        Timber.i("Pcap stream client connected: %s", client.remoteAddress);
+    }
+
+    private void handleClient(Client client, SelectionKey key)
+    {
+        try
+        {
+            if (key.isReadable())
+            {
+                // Clients are not expected to send anything, so this is only used to find out when they hang up
+                readBuffer.clear();
+                if (client.channel.read(readBuffer) < 0)
+                {
+                    closeClient(client, "it disconnected");
+                    return;
+                }
+            }
+
+            if (key.isValid() && key.isWritable())
+            {
+                final int written = client.flush();
+                if (metrics != null && written > 0) metrics.addBytes(PipelineMetrics.ByteStage.PCAP_STREAM_SENT, written);
+            }
+        } catch (IOException e)
+        {
+            closeClient(client, e.getMessage());
+        }
+    }
+
+    private void closeClient(Client client, String reason)
+    {
+        if (!clients.remove(client)) return;
+
+        Timber.i("Pcap stream client %s closed because %s: %s", client.remoteAddress, reason,
+                client.getStats(System.nanoTime() / 1_000_000));
+        try
+        {
+            client.channel.close();
+        } catch (IOException e)
+        {
+            Timber.w(e, "Could not close the pcap stream client %s", client.remoteAddress);
+        }
+    }
+
+    /**
+     * A connected client and its ring buffer. The read and write positions only ever increase, and are reduced modulo
+     * the ring size to get the offset into the ring.
+     */
+    private final class Client
+    {
+        private final SocketChannel channel;
+        private final SocketAddress remoteAddress;
+        private final byte[] ring;
+        private final ByteBuffer ringView;
+        private final ByteBuffer header = ByteBuffer.wrap(QcdmPcapWriter.PCAP_FILE_GLOBAL_HEADER);
+        private final long connectedMs;
+        private SelectionKey key;
+
+        // Only written by the capture thread
+        private volatile long writePosition = 0;
+        private volatile long recordsQueued = 0;
+        private volatile long recordsSkipped = 0;
+        private volatile long stalledSinceMs = -1;
+
+        // Only written by the selector thread
+        private volatile long readPosition = 0;
+        private volatile long bytesSent = 0;
+
+        private volatile boolean disconnectRequested = false;
+
+        private Client(SocketChannel channel, int bufferBytes, long connectedMs) throws IOException
+        {
+            this.channel = channel;
+            this.connectedMs = connectedMs;
+            remoteAddress = channel.getRemoteAddress();
+            ring = new byte[bufferBytes];
+            ringView = ByteBuffer.wrap(ring);
+        }
+
+        /**
+         * Copies a record into the ring if there is room for all of it. Called on the capture thread.
+         *
+         * @return True if the ring was empty before this record was added, so the selector needs to be woken up.
+         */
+        private boolean offer(byte[] record, int length, long nowMs)
+        {
+            final long write = writePosition;
+            final long read = readPosition;
+            if (length > ring.length - (write - read))
+            {
+                recordsSkipped++;
+                if (stalledSinceMs < 0) stalledSinceMs = nowMs;
+                if (metrics != null) metrics.incrementDrop(PipelineMetrics.DropReason.PCAP_STREAM_SKIPPED);
+                return false;
+            }
+
+            final int offset = (int) (write % ring.length);
+            final int firstPart = Math.min(length, ring.length - offset);
+            System.arraycopy(record, 0, ring, offset, firstPart);
+            System.arraycopy(record, firstPart, ring, 0, length - firstPart);
+
+            writePosition = write + length;
+            recordsQueued++;
+            stalledSinceMs = -1;
+            return write == read;
+        }
+
+        private boolean isStalled(long nowMs, long timeoutMs)
+        {
+            final long stalledSince = stalledSinceMs;
+            return stalledSince >= 0 && nowMs - stalledSince > timeoutMs;
+        }
+
+        private boolean hasPending()
+        {
+            return header.hasRemaining() || readPosition != writePosition;
+        }
+
+        /**
+         * Writes as much of the header and the ring to the socket as it will take without blocking. Called on the
+         * selector thread.
+         *
+         * @return The number of bytes written.
+         */
+        private int flush() throws IOException
+        {
+            int total = 0;
+            if (header.hasRemaining())
+            {
+                total = channel.write(header);
+                bytesSent += total;
+                if (header.hasRemaining()) return total;
+            }
+
+            long read = readPosition;
+            final long write = writePosition;
+            while (read < write)
+            {
+                final int offset = (int) (read % ring.length);
+                final int length = (int) Math.min(write - read, ring.length - offset);
+                ringView.limit(offset + length).position(offset);
+
+                final int written = channel.write(ringView);
+                if (written == 0) break;
+
+                read += written;
+                total += written;
+                bytesSent += written;
+                readPosition = read;
+            }
+
+            return total;
+        }
+
+        private ClientStats getStats(long nowMs)
+        {
+            return new ClientStats(String.valueOf(remoteAddress), nowMs - connectedMs, bytesSent, recordsQueued,
+                    recordsSkipped, writePosition - readPosition);
+        }
+    }
+
+    /**
+     * The throughput and lag of a single client.
+     */
+    public static final class ClientStats
+    {
+        private final String remoteAddress;
+        private final long connectedMs;
+        private final long bytesSent;
+        private final long recordsQueued;
+        private final long recordsSkipped;
+        private final long pendingBytes;
+
+        ClientStats(String remoteAddress, long connectedMs, long bytesSent, long recordsQueued, long recordsSkipped,
+                    long pendingBytes)
+        {
+            this.remoteAddress = remoteAddress;
+            this.connectedMs = connectedMs;
+            this.bytesSent = bytesSent;
+            this.recordsQueued = recordsQueued;
+            this.recordsSkipped = recordsSkipped;
+            this.pendingBytes = pendingBytes;
+        }
+
+        public String getRemoteAddress()
+        {
+            return remoteAddress;
+        }
+
+        public long getConnectedMs()
+        {
+            return connectedMs;
+        }
+
+        public long getBytesSent()
+        {
+            return bytesSent;
+        }
+
+        /**
+         * @return The number of records that were put in the client's ring buffer.
+         */
+        public long getRecordsQueued()
+        {
+            return recordsQueued;
+        }
+
+        /**
+         * @return The number of records the client missed because its ring buffer was full.
+         */
+        public long getRecordsSkipped()
+        {
+            return recordsSkipped;
+        }
+
+        /**
+         * @return How far behind the client is: the bytes in its ring buffer that have not been sent yet.
+         */
+        public long getPendingBytes()
+        {
+            return pendingBytes;
+        }
+
+        /**
+         * @return The average number of bytes sent per second since the client connected.
+         */
+        public double getThroughputBytesPerSecond()
+        {
+            return connectedMs <= 0 ? 0 : bytesSent * 1_000.0 / connectedMs;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.US, "ClientStats{remoteAddress=%s, connectedMs=%d, bytesSent=%d, "
+                            + "throughput=%.0f B/s, recordsQueued=%d, recordsSkipped=%d, pendingBytes=%d}",
+                    remoteAddress, connectedMs, bytesSent, getThroughputBytesPerSecond(), recordsQueued,
+                    recordsSkipped, pendingBytes);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+
+/**
+ * Watches for the QCDM pipeline stalling, which is when diag_revealer is supposed to be running but no bytes have been
+ * read from it for longer than the stall timeout. This catches a wedged modem or a diag_revealer process that is alive
+ * but stuck, neither of which make the process exit on its own.
+ * <p>
+ * Progress is measured with the {@link PipelineMetrics.ByteStage#FIFO_READ} byte counter, so the FIFO reader does not
+ * have to do anything extra per message. The accuracy of the stall detection is the interval that {@link #check} is
+ * called at.
+ * <p>
+ * A pipeline can also be quiet because there is simply nothing to capture, such as with no coverage or in airplane
+ * mode. So each stall that is not followed by any data doubles the timeout, up to the max timeout, and the timeout
+ * goes back to the initial value as soon as data arrives.
+ * <p>
+ * This class is not thread safe; it is only used from the service's status thread.
+ *
+ * @since 0.6.0
+ */
+public class PipelineWatchdog
+{
+    private final PipelineMetrics metrics;
+    private final long stallTimeoutMs;
+    private final long maxStallTimeoutMs;
+
+    private long lastByteCount = -1;
+    private long lastProgressMs;
+    private long currentStallTimeoutMs;
+
+    /**
+     * Creates a watchdog with a fixed stall timeout.
+     *
+     * @param metrics        The pipeline metrics to watch, and to record the stalls in.
+     * @param stallTimeoutMs How long diag_revealer can go without sending anything before it is considered stalled.
+     */
+    public PipelineWatchdog(PipelineMetrics metrics, long stallTimeoutMs)
+    {
+        this(metrics, stallTimeoutMs, stallTimeoutMs);
+    }
+
+    /**
+     * @param metrics           The pipeline metrics to watch, and to record the stalls in.
+     * @param stallTimeoutMs    How long diag_revealer can go without sending anything before it is considered stalled.
+     * @param maxStallTimeoutMs The longest the stall timeout can back off to while the pipeline stays quiet.
+     */
+    public PipelineWatchdog(PipelineMetrics metrics, long stallTimeoutMs, long maxStallTimeoutMs)
+    {
+        this.metrics = metrics;
+        this.stallTimeoutMs = stallTimeoutMs;
+        this.maxStallTimeoutMs = Math.max(stallTimeoutMs, maxStallTimeoutMs);
+        currentStallTimeoutMs = stallTimeoutMs;
+    }
+
+    /**
+     * Checks whether the pipeline has made progress since the last call. Once a stall is reported, the timeout starts
+     * over so that the restarted process gets the full (backed off) timeout to start sending data.
+     *
+     * @param nowMs           The current time, from a monotonic clock.
+     * @param captureExpected True if diag_revealer is supposed to be running right now. While it is not (for example
+     *                        while the supervisor is waiting to restart it), no stall is reported.
+     * @return True if the pipeline is stalled and should be restarted.
+     */
+    public boolean check(long nowMs, boolean captureExpected)
+    {
+        final long byteCount = metrics.getByteCount(PipelineMetrics.ByteStage.FIFO_READ);
+        if (byteCount != lastByteCount) currentStallTimeoutMs = stallTimeoutMs;
+        if (!captureExpected || byteCount != lastByteCount)
+        {
+            lastByteCount = byteCount;
+            lastProgressMs = nowMs;
+            return false;
+        }
+
+        if (nowMs - lastProgressMs < currentStallTimeoutMs) return false;
+
+        metrics.incrementPipelineStalls();
+        metrics.markPipelineDown();
+        lastProgressMs = nowMs;
+        currentStallTimeoutMs = Math.min(currentStallTimeoutMs * 2, maxStallTimeoutMs);
+        return true;
+    }
+
+    /**
+     * @return How long the pipeline currently has to go without data before it is considered stalled.
+     */
+    public long getStallTimeoutMs()
+    {
+        return currentStallTimeoutMs;
+    }
+}
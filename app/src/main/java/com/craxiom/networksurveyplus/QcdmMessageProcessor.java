@@ -5,13 +5,17 @@ import com.craxiom.networksurveyplus.messages.DiagRevealerMessage;
 import com.craxiom.networksurveyplus.messages.PcapMessage;
 import com.craxiom.networksurveyplus.messages.QcdmConstants;
 import com.craxiom.networksurveyplus.messages.QcdmMessage;
+import com.craxiom.networksurveyplus.metrics.LatencyHistogram;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
 import com.craxiom.networksurveyplus.parser.QcdmGsmParser;
 import com.craxiom.networksurveyplus.parser.QcdmLteParser;
 import com.craxiom.networksurveyplus.parser.QcdmUmtsParser;
 import com.craxiom.networksurveyplus.parser.QcdmWcdmaParser;
 import com.craxiom.networksurveyplus.util.ParserUtils;
 
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 import timber.log.Timber;
@@ -24,45 +28,48 @@ import timber.log.Timber;
  */
 public class QcdmMessageProcessor
 {
-    private final Set<IPcapMessageListener> messageListeners = new CopyOnWriteArraySet<>();
-    private final Set<IServiceStatusListener> serviceMessageListeners = new CopyOnWriteArraySet<>();
-    private final GpsListener gpsListener;
-
     /**
-     * Overall record count since processing started, across all log files and MQTT connections that have been generated.
+     * The QCDM log types that {@link #convertQcdmMessage(QcdmMessage)} converts to pcap records. This is the allow-list
+     * that is handed to diag_revealer when native log filtering is enabled, so it must be kept in sync with the switch
+     * statement in that method.
+     *
+     * @since 0.6.0
      */
-    private int recordsProcessed = 0;
+    static final int[] HANDLED_LOG_TYPES = {
+            QcdmConstants.LOG_LTE_RRC_OTA_MSG_LOG_C,
+            QcdmConstants.LOG_LTE_RRC_MIB_MSG,
+            QcdmConstants.LOG_LTE_NAS_EMM_OTA_IN_MSG,
+            QcdmConstants.LOG_LTE_NAS_EMM_OTA_OUT_MSG,
+            QcdmConstants.LOG_LTE_NAS_ESM_OTA_IN_MSG,
+            QcdmConstants.LOG_LTE_NAS_ESM_OTA_OUT_MSG,
+            QcdmConstants.LOG_LTE_NAS_EMM_SEC_OTA_IN_MSG,
+            QcdmConstants.LOG_LTE_NAS_EMM_SEC_OTA_OUT_MSG,
+            QcdmConstants.LOG_LTE_NAS_ESM_SEC_OTA_IN_MSG,
+            QcdmConstants.LOG_LTE_NAS_ESM_SEC_OTA_OUT_MSG,
+            QcdmConstants.WCDMA_SIGNALING_MESSAGES,
+            QcdmConstants.UMTS_NAS_OTA,
+            QcdmConstants.UMTS_NAS_OTA_DSDS,
+            QcdmConstants.GSM_RR_SIGNALING_MESSAGES};
+
+    private final Set<IPcapMessageListener> messageListeners = new CopyOnWriteArraySet<>();
+    private final Map<IPcapMessageListener, LatencyHistogram> sinkLatencies = new ConcurrentHashMap<>();
+    private final Map<IPcapMessageListener, RecordRuleSet> sinkFilters = new ConcurrentHashMap<>();
+    private final RecordFields filterFields = new RecordFields();
+    private final GpsListener gpsListener;
+    private final PipelineMetrics metrics;
+    private volatile BroadcastDeduplicator broadcastDeduplicator;
+    private volatile SamplingPolicy samplingPolicy;
 
     /**
      * Constructs a new QCDM Message Processor.
      *
      * @param gpsListener The Location Listener to pull the location from for setting on each pcap record.
+     * @param metrics     The metrics registry to record the pipeline counters and latencies in.
      */
-    public QcdmMessageProcessor(GpsListener gpsListener)
+    public QcdmMessageProcessor(GpsListener gpsListener, PipelineMetrics metrics)
     {
         this.gpsListener = gpsListener;
-    }
-
-    /**
-     * Adds a status listener.
-     *
-     * @param listener The listener to add.
-     * @since 0.5.0
-     */
-    public void registerRecordsLoggedListener(IServiceStatusListener listener)
-    {
-        serviceMessageListeners.add(listener);
-    }
-
-    /**
-     * Removes a status listener.
-     *
-     * @param listener The listener to remove.
-     * @since 0.5.0
-     */
-    public void unregisterRecordsLoggedListener(IServiceStatusListener listener)
-    {
-        serviceMessageListeners.remove(listener);
+        this.metrics = metrics;
     }
 
     /**
@@ -81,6 +88,29 @@ public class QcdmMessageProcessor
      */
     void registerQcdmMessageListener(IPcapMessageListener qcdmMessageListener)
     {
+        registerQcdmMessageListener(qcdmMessageListener, null);
+    }
+
+    /**
+     * Adds a listener that is only sent the PCAP messages that match its allow-list. The allow-list is checked before
+     * the listener is called, so a message the listener did not ask for is never encoded or written by it.
+     *
+     * @param qcdmMessageListener The listener to add.
+     * @param filter              The rules that a message has to match at least one of to be sent to the listener, or
+     *                            null or an empty rule set to send every message.
+     * @since 0.6.0
+     */
+    void registerQcdmMessageListener(IPcapMessageListener qcdmMessageListener, RecordRuleSet filter)
+    {
+        sinkLatencies.put(qcdmMessageListener, metrics.getSinkLatency(qcdmMessageListener.getClass().getSimpleName()));
+        if (filter == null || filter.isEmpty())
+        {
+            sinkFilters.remove(qcdmMessageListener);
+        } else
+        {
+            Timber.i("Only sending the messages that match %s to the %s", filter, qcdmMessageListener.getClass().getSimpleName());
+            sinkFilters.put(qcdmMessageListener, filter);
+        }
         messageListeners.add(qcdmMessageListener);
     }
 
@@ -92,6 +122,35 @@ public class QcdmMessageProcessor
     void unregisterQcdmMessageListener(IPcapMessageListener qcdmMessageListener)
     {
         messageListeners.remove(qcdmMessageListener);
+        sinkLatencies.remove(qcdmMessageListener);
+        sinkFilters.remove(qcdmMessageListener);
+    }
+
+    /**
+     * Turns the {@link BroadcastDeduplicator} on or off. Turning it on starts from an empty cache, so the next copy of
+     * each broadcast message is always sent to the listeners.
+     *
+     * @param enabled True to drop repeated copies of the broadcast messages, false to send every copy.
+     * @since 0.6.0
+     */
+    void setBroadcastDeduplicationEnabled(boolean enabled)
+    {
+        if (enabled == (broadcastDeduplicator != null)) return;
+
+        broadcastDeduplicator = enabled ? new BroadcastDeduplicator(Constants.BROADCAST_DEDUP_MAX_ENTRIES,
+                Constants.BROADCAST_DEDUP_EXPIRY_MS, Constants.BROADCAST_DEDUP_REFRESH_INTERVAL_MS) : null;
+    }
+
+    /**
+     * Sets the {@link SamplingPolicy} used to thin out the flood channels, such as paging, before the messages are
+     * sent to the listeners.
+     *
+     * @param policy The policy to use, or null to keep every message.
+     * @since 0.6.0
+     */
+    void setSamplingPolicy(SamplingPolicy policy)
+    {
+        samplingPolicy = policy == null || policy.isKeepAll() ? null : policy;
     }
 
     /**
@@ -106,7 +165,7 @@ public class QcdmMessageProcessor
         // No reason to process the message if we don't have any listeners
         if (!messageListeners.isEmpty())
         {
-            ParserUtils.processDiagRevealerMessage(diagRevealerMessage, this::convertQcdmMessage);
+            ParserUtils.processDiagRevealerMessage(diagRevealerMessage, this::convertQcdmMessage, metrics);
         }
     }
 
@@ -125,6 +184,9 @@ public class QcdmMessageProcessor
             {
                 Timber.d("QCDM Processor: %s", qcdmMessage);
 
+                metrics.incrementLogCode(logType);
+                final long decodeStartNanos = System.nanoTime();
+                boolean handledLogType = true;
                 PcapMessage pcapMessage = null;
 
                 switch (logType)
@@ -181,6 +243,8 @@ public class QcdmMessageProcessor
                         break;*/
 
                     default:
+                        handledLogType = false;
+                        metrics.incrementDrop(PipelineMetrics.DropReason.UNHANDLED_LOG_TYPE);
                         Timber.w("Unhandled QCDM log type for the QCDM Message processor %h", logType);
                 }
 
@@ -188,10 +252,17 @@ public class QcdmMessageProcessor
                 {
                     Timber.d("Successfully processed a QCDM message into a PCAP record");
 
-                    // Notify listeners of record count
-                    recordsProcessed++;
-                    notifyStatusListeners();
-                    notifyPcapMessageListeners(pcapMessage);
+                    try
+                    {
+                        forwardPcapMessage(pcapMessage, decodeStartNanos);
+                    } finally
+                    {
+                        // Any sink that holds on to the message has retained it, so the buffer can go back to the pool
+                        pcapMessage.release();
+                    }
+                } else if (handledLogType)
+                {
+                    metrics.incrementDrop(PipelineMetrics.DropReason.PARSER_NULL);
                 }
             }
         } catch (Exception e)
@@ -201,40 +272,73 @@ public class QcdmMessageProcessor
     }
 
     /**
-     * Notify all the listeners of the updated status if the proper amount of time has passed since the last notification.
+     * Records the metrics for a new pcap message, and sends it to the listeners unless it is a repeated broadcast
+     * message or it is sampled out.
+     *
+     * @param pcapMessage      The pcap message that was just created.
+     * @param decodeStartNanos The time the QCDM message started being converted, from {@link System#nanoTime()}.
      */
-    private void notifyStatusListeners()
+    private void forwardPcapMessage(PcapMessage pcapMessage, long decodeStartNanos)
     {
-        ServiceStatusMessage recordLoggedMessage = new ServiceStatusMessage(ServiceStatusMessage.SERVICE_RECORD_LOGGED_MESSAGE, recordsProcessed);
-        for (IServiceStatusListener listener : serviceMessageListeners)
+        final PipelineMetrics.Technology technology = PipelineMetrics.Technology.fromMessageKind(pcapMessage.getMessageKind());
+        metrics.getDecodeLatency().recordNanos(System.nanoTime() - decodeStartNanos);
+        metrics.incrementRecordsProcessed(technology);
+        metrics.addBytes(PipelineMetrics.ByteStage.PCAP_RECORD, pcapMessage.getPcapRecordLength());
+
+        final long nowMs = System.nanoTime() / 1_000_000;
+        final BroadcastDeduplicator deduplicator = broadcastDeduplicator;
+        final SamplingPolicy sampler = samplingPolicy;
+        if (deduplicator != null && !deduplicator.shouldForward(pcapMessage, nowMs))
         {
-            try
-            {
-                listener.onServiceStatusMessage(recordLoggedMessage);
-            } catch (Exception e)
-            {
-                Timber.e(e, "Unable to notify a Status Listener because of an exception");
-            }
+            metrics.incrementDuplicatesSuppressed(technology);
+        } else if (sampler != null && !sampler.shouldKeep(pcapMessage, nowMs))
+        {
+            metrics.incrementSampledOut(technology);
+        } else
+        {
+            // The record count is published to the status listeners by the ServiceStatusPublisher
+            notifyPcapMessageListeners(pcapMessage);
         }
     }
 
     /**
      * Notify all the listeners that we have a new PCAP Record available.
+     * <p>
+     * The listeners with an allow-list are skipped if the message does not match it. The record fields are only read
+     * out of the message once, and only if at least one listener has an allow-list; each compiled
+     * {@link RecordRuleSet} then checks them with a few table lookups.
      *
      * @param message The new PCAP message to send to the listeners.
      */
     private void notifyPcapMessageListeners(PcapMessage message)
     {
         if (message == null) return;
+        boolean fieldsLoaded = false;
         for (IPcapMessageListener listener : messageListeners)
         {
+            final RecordRuleSet filter = sinkFilters.get(listener);
+            if (filter != null)
+            {
+                if (!fieldsLoaded)
+                {
+                    filterFields.load(message);
+                    fieldsLoaded = true;
+                }
+                if (!filter.matchesAny(filterFields)) continue;
+            }
+
+            final long sinkStartNanos = System.nanoTime();
             try
             {
                 listener.onPcapMessage(message);
             } catch (Exception e)
             {
+                metrics.incrementDrop(PipelineMetrics.DropReason.SINK_EXCEPTION);
                 Timber.e(e, "Unable to notify a PCAP Message Listener because of an exception");
             }
+
+            final LatencyHistogram sinkLatency = sinkLatencies.get(listener);
+            if (sinkLatency != null) sinkLatency.recordNanos(System.nanoTime() - sinkStartNanos);
         }
     }
 }
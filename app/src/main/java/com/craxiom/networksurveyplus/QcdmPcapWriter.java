@@ -7,6 +7,7 @@ import android.os.Bundle;
 import android.os.Environment;
 
 import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -41,7 +42,7 @@ public class QcdmPcapWriter implements IPcapMessageListener
     /**
      * The 24 byte PCAP global header.
      */
-    private static final byte[] PCAP_FILE_GLOBAL_HEADER = {
+    static final byte[] PCAP_FILE_GLOBAL_HEADER = {
             (byte) 0xd4, (byte) 0xc3, (byte) 0xb2, (byte) 0xa1, // PCAP magic number in little endian
             2, 0, 4, 0, // Major and minor file version (2 bytes each)
             0, 0, 0, 0, // GMT Offset (4 bytes)
@@ -66,32 +67,48 @@ public class QcdmPcapWriter implements IPcapMessageListener
      */
     private final Object pcapWriteLock = new Object();
 
+    private final PipelineMetrics metrics;
+
     private BufferedOutputStream outputStream;
 
     private File currentPcapFile;
     private int currentFileSizeBytes = 0;
 
+    /**
+     * Constructs a new pcap writer. {@link #createNewPcapFile()} must be called before any messages can be written.
+     *
+     * @param metrics The metrics registry to record the number of bytes written in.
+     * @since 0.6.0
+     */
+    public QcdmPcapWriter(PipelineMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
     @Override
     public void onPcapMessage(PcapMessage pcapMessage)
     {
         try
         {
-            final byte[] pcapRecord = pcapMessage.getPcapRecord();
+            final byte[] pcapRecord = pcapMessage.getPcapRecordBuffer();
             if (pcapRecord != null)
             {
                 Timber.d("Writing a message to the pcap file");
 
+                final int pcapRecordLength = pcapMessage.getPcapRecordLength();
                 synchronized (pcapWriteLock)
                 {
                     // Write the pcap record to file
-                    outputStream.write(pcapRecord);
+                    outputStream.write(pcapRecord, 0, pcapRecordLength);
                     outputStream.flush();
+                    metrics.addBytes(PipelineMetrics.ByteStage.PCAP_FILE_WRITTEN, pcapRecordLength);
 
-                    if (isRolloverNeeded(pcapRecord.length)) createNewPcapFile();
+                    if (isRolloverNeeded(pcapRecordLength)) createNewPcapFile();
                 }
             }
         } catch (Exception e)
         {
+            metrics.incrementDrop(PipelineMetrics.DropReason.SINK_EXCEPTION);
             Timber.e(e, "Could not handle a QCDM message");
         }
     }
@@ -193,8 +210,25 @@ public class QcdmPcapWriter implements IPcapMessageListener
      */
     private String createNewFilePath()
     {
-        return Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_DOWNLOADS) + "/" + LOG_DIRECTORY_NAME + "/" +
-                Constants.PCAP_FILE_NAME_PREFIX + DATE_TIME_FORMATTER.format(LocalDateTime.now()) + ".pcap";
+        return getLogDirectory() + "/" + createFileName(Constants.PCAP_FILE_NAME_PREFIX);
+    }
+
+    /**
+     * @return The public directory where the pcap files are stored.
+     * @since 0.6.0
+     */
+    static File getLogDirectory()
+    {
+        return new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS), LOG_DIRECTORY_NAME);
+    }
+
+    /**
+     * @param prefix The start of the file name.
+     * @return A pcap file name made of the prefix and the current date and time.
+     * @since 0.6.0
+     */
+    static String createFileName(String prefix)
+    {
+        return prefix + DATE_TIME_FORMATTER.format(LocalDateTime.now()) + ".pcap";
     }
 }
@@ -13,10 +13,14 @@ import android.content.RestrictionsManager;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.location.LocationManager;
+import android.os.BatteryManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.provider.Settings;
 
 import androidx.core.app.ActivityCompat;
@@ -29,14 +33,29 @@ import com.craxiom.mqttlibrary.MqttConstants;
 import com.craxiom.mqttlibrary.connection.BrokerConnectionInfo;
 import com.craxiom.mqttlibrary.connection.ConnectionState;
 import com.craxiom.mqttlibrary.ui.AConnectionFragment;
+import com.craxiom.networksurveyplus.metrics.MetricsSnapshot;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+import com.craxiom.networksurveyplus.metrics.ThroughputMonitor;
+import com.craxiom.networksurveyplus.mqtt.MqttSpool;
 import com.craxiom.networksurveyplus.mqtt.QcdmMqttConnection;
+import com.craxiom.networksurveyplus.util.DiagConfigCompiler;
+import com.craxiom.networksurveyplus.util.NetworkSurveyUtils;
 import com.craxiom.networksurveyplus.util.PreferenceUtils;
-import com.google.common.io.ByteStreams;
+import com.craxiom.networksurveyplus.util.RecordBufferPool;
+import com.craxiom.networksurveyplus.util.RootShell;
+import com.craxiom.networksurveyplus.util.RootUtil;
+import com.craxiom.networksurveyplus.util.SharedMemoryRingInputStream;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import timber.log.Timber;
@@ -54,20 +73,44 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
     private final AtomicBoolean pcapLoggingEnabled = new AtomicBoolean(false);
 
     private final QcdmServiceBinder qcdmServiceBinder;
+    private final PipelineMetrics pipelineMetrics = new PipelineMetrics();
+    private final PipelineWatchdog pipelineWatchdog = new PipelineWatchdog(pipelineMetrics, Constants.PIPELINE_STALL_TIMEOUT_MS,
+            Constants.PIPELINE_STALL_MAX_TIMEOUT_MS);
+    private final ServiceStatusPublisher statusPublisher = new ServiceStatusPublisher(pipelineMetrics);
+    private final ThroughputMonitor throughputMonitor = new ThroughputMonitor(pipelineMetrics);
+    private final CaptureGovernor captureGovernor = new CaptureGovernor(Constants.CAPTURE_GOVERNOR_ESCALATE_SAMPLES,
+            Constants.CAPTURE_GOVERNOR_RECOVERY_HOLD_MS);
+    private final ExecutorService bootstrapExecutor = Executors.newFixedThreadPool(Constants.BOOTSTRAP_THREAD_COUNT);
+    private final ServiceBootstrap bootstrap = new ServiceBootstrap(bootstrapExecutor, pipelineMetrics);
+    private final Object captureLock = new Object();
+    private final Object captureProfileLock = new Object();
 
     private HandlerThread diagHandlerThread;
     private HandlerThread fifoReadHandlerThread;
+    private HandlerThread statusHandlerThread;
     private Handler diagHandler;
     private Handler fifoReadHandler;
+    private Handler statusHandler;
 
     private String deviceId;
     private GpsListener gpsListener;
     private BroadcastReceiver managedConfigurationListener;
-    private FifoReadRunnable fifoReadRunnable;
-    private DiagRevealerRunnable diagRevealerRunnable;
+    private volatile FifoReadRunnable fifoReadRunnable;
+    private volatile DiagRevealerRunnable diagRevealerRunnable;
+    private boolean destroyed = false;
+    private volatile CaptureProfile captureProfile = CaptureProfile.FULL;
+    private volatile CaptureGovernor.Level governorLevel = CaptureGovernor.Level.NORMAL;
+    private volatile boolean captureGovernorEnabled = false;
+    private long lastSequenceGapCount = -1;
+    private long lastGovernorCheckMs;
 
     private QcdmMessageProcessor qcdmMessageProcessor;
     private QcdmPcapWriter qcdmPcapWriter;
+    private DashcamRecorder dashcamRecorder;
+    private GsmtapUdpStreamer gsmtapUdpStreamer;
+    private String gsmtapUdpTarget = "";
+    private volatile PcapStreamServer pcapStreamServer;
+    private String pcapStreamAddress = "";
 
     private QcdmMqttConnection qcdmMqttConnection;
 
@@ -91,19 +134,31 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
         fifoReadHandlerThread.start();
         fifoReadHandler = new Handler(fifoReadHandlerThread.getLooper());
 
-        deviceId = createDeviceId();
+        statusHandlerThread = new HandlerThread("ServiceStatus");
+        statusHandlerThread.start();
+        statusHandler = new Handler(statusHandlerThread.getLooper());
+
+        bootstrap.runPhaseNow("deviceId", () -> deviceId = createDeviceId());
 
         PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).registerOnSharedPreferenceChangeListener(this);
 
-        initializeLocationListener();
+        bootstrap.runPhaseNow("locationListener", this::initializeLocationListener);
 
-        initializeQcdmFeed(); // Must be called after initializing the location listener
+        bootstrap.runPhaseNow("qcdmProcessor", this::initializeQcdmProcessor); // Must be called after initializing the location listener
+        initializeQcdmFeed();
 
         // Must register for MDM updates AFTER initializing the MQTT connection because we try to make an MQTT connection if the MDM settings change
-        initializeMqttConnection();
+        bootstrap.runPhaseNow("mqttConnection", this::initializeMqttConnection);
         registerManagedConfigurationListener();
 
-        updateServiceNotification(); // Must be called after initializing the MQTT connection
+        bootstrap.runPhaseNow("notification", this::updateServiceNotification); // Must be called after initializing the MQTT connection
+
+        statusPublisher.start(statusHandler);
+        throughputMonitor.start(statusHandler);
+        statusHandler.postDelayed(this::reportPipelineMetrics, Constants.METRICS_REPORT_INTERVAL_MS);
+        statusHandler.postDelayed(this::checkPipelineWatchdog, Constants.PIPELINE_WATCHDOG_INTERVAL_MS);
+        captureGovernorEnabled = PreferenceUtils.getCaptureGovernorPreference(getApplicationContext());
+        statusHandler.postDelayed(this::checkCaptureGovernor, Constants.CAPTURE_GOVERNOR_INTERVAL_MS);
     }
 
     @Override
@@ -115,10 +170,14 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
         {
             Timber.i("Received the startedAtBoot flag in the QcdmService.");
 
-            attemptMqttConnectionAtBoot();
+            // Neither of these need to wait for the other or for the QCDM feed, so they run in parallel with it
+            bootstrap.runPhase("mqttConnectAtBoot", this::attemptMqttConnectionAtBoot);
 
             final boolean autoStartPcapLogging = PreferenceUtils.getAutoStartPreference(Constants.PROPERTY_AUTO_START_PCAP_LOGGING, false, getApplicationContext());
-            if (autoStartPcapLogging && !pcapLoggingEnabled.get()) togglePcapLogging(true);
+            if (autoStartPcapLogging && !pcapLoggingEnabled.get())
+            {
+                bootstrap.runPhase("pcapLoggingAtBoot", () -> togglePcapLogging(true));
+            }
         }
 
         return START_REDELIVER_INTENT;
@@ -141,17 +200,35 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
         unregisterManagedConfigurationListener();
 
         if (qcdmPcapWriter != null) qcdmPcapWriter.close();
+        if (dashcamRecorder != null) dashcamRecorder.close();
+        stopGsmtapUdpStreamer();
+        stopPcapStreamServer();
 
         removeLocationListener();
 
-        diagRevealerRunnable.shutdown();
+        bootstrapExecutor.shutdownNow();
+
+        synchronized (captureLock)
+        {
+            // The bootstrap might not have gotten as far as starting the capture
+            destroyed = true;
+            if (diagRevealerRunnable != null) diagRevealerRunnable.shutdown();
+            if (fifoReadRunnable != null) fifoReadRunnable.shutdown();
+        }
         diagHandlerThread.quitSafely();
         diagHandler = null;
 
-        fifoReadRunnable.shutdown();
         fifoReadHandlerThread.quitSafely();
         fifoReadHandler = null;
 
+        RootUtil.closeRootShell();
+
+        statusPublisher.stop();
+        throughputMonitor.stop();
+        statusHandler.removeCallbacksAndMessages(null);
+        statusHandlerThread.quitSafely();
+        statusHandler = null;
+
         shutdownNotifications();
         super.onDestroy();
     }
@@ -159,6 +236,26 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key)
     {
+        if (Constants.PROPERTY_CAPTURE_PROFILE.equals(key))
+        {
+            setCaptureProfile(PreferenceUtils.getCaptureProfilePreference(getApplicationContext()));
+        } else if (Constants.PROPERTY_CAPTURE_GOVERNOR.equals(key))
+        {
+            captureGovernorEnabled = PreferenceUtils.getCaptureGovernorPreference(getApplicationContext());
+        } else if (Constants.PROPERTY_BROADCAST_DEDUP.equals(key) && qcdmMessageProcessor != null)
+        {
+            qcdmMessageProcessor.setBroadcastDeduplicationEnabled(PreferenceUtils.getBroadcastDedupPreference(getApplicationContext()));
+        } else if (Constants.PROPERTY_SAMPLING_POLICY.equals(key) && qcdmMessageProcessor != null)
+        {
+            qcdmMessageProcessor.setSamplingPolicy(PreferenceUtils.getSamplingPolicyPreference(getApplicationContext()));
+        } else if (Constants.PROPERTY_GSMTAP_UDP_TARGET.equals(key) && qcdmMessageProcessor != null)
+        {
+            updateGsmtapUdpStreamer(getApplicationContext());
+        } else if (Constants.PROPERTY_PCAP_STREAM_ADDRESS.equals(key) && qcdmMessageProcessor != null)
+        {
+            updatePcapStreamServer(getApplicationContext());
+        }
+
         if (qcdmPcapWriter != null)
         {
             qcdmPcapWriter.onSharedPreferenceChanged(sharedPreferences, key);
@@ -166,14 +263,19 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
     }
 
     /**
-     * Creates the {@link QcdmMqttConnection} instance.
+     * Creates the {@link QcdmMqttConnection} instance, and recovers its spool from the last run in the background.
      *
      * @since 0.1.1
      */
     public void initializeMqttConnection()
     {
-        qcdmMqttConnection = new QcdmMqttConnection(deviceId, gpsListener);
+        final MqttSpool mqttSpool = new MqttSpool(new File(getFilesDir(), Constants.MQTT_SPOOL_DIRECTORY_NAME),
+                Constants.MQTT_SPOOL_MAX_BYTES, Constants.MQTT_SPOOL_SEGMENT_BYTES, pipelineMetrics);
+        qcdmMqttConnection = new QcdmMqttConnection(deviceId, gpsListener, pipelineMetrics, mqttSpool);
         qcdmMqttConnection.registerMqttConnectionStateListener(this);
+
+        // Scanning a large leftover spool is too slow for the main thread
+        bootstrap.runPhase("mqttSpoolRecovery", mqttSpool::recover);
     }
 
     /**
@@ -188,10 +290,7 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
             gpsListener.registerLocationUpdatesListener(listener);
         }
 
-        if (qcdmMessageProcessor != null)
-        {
-            qcdmMessageProcessor.registerRecordsLoggedListener(listener);
-        }
+        statusPublisher.registerListener(listener);
     }
 
     /**
@@ -204,10 +303,7 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
             gpsListener.unregisterLocationUpdatesListener(listener);
         }
 
-        if (qcdmMessageProcessor != null)
-        {
-            qcdmMessageProcessor.unregisterRecordsLoggedListener(listener);
-        }
+        statusPublisher.unregisterListener(listener);
     }
 
     /**
@@ -231,19 +327,39 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
 
             if (enable)
             {
-                try
+                final RecordRuleSet pcapFilter = PreferenceUtils.getRecordFilterPreference(Constants.PROPERTY_PCAP_RECORD_FILTER, getApplicationContext());
+                final RecordRuleSet triggers = PreferenceUtils.getDashcamTriggersPreference(getApplicationContext());
+                if (!triggers.isEmpty())
                 {
-                    qcdmPcapWriter.createNewPcapFile();
-                } catch (Throwable t)
+                    Timber.i("Only writing pcap files when a dashcam trigger fires: %s", triggers);
+                    dashcamRecorder = new DashcamRecorder(triggers, Constants.DASHCAM_WINDOW_MS,
+                            Constants.DASHCAM_MAX_BUFFER_BYTES, Constants.DASHCAM_POST_TRIGGER_MS,
+                            QcdmPcapWriter.getLogDirectory(), pipelineMetrics);
+                    qcdmMessageProcessor.registerQcdmMessageListener(dashcamRecorder, pcapFilter);
+                } else
                 {
-                    Timber.e(t, "Could not create a new pcap file to write the qcdm messages to");
-                    return null;
+                    try
+                    {
+                        qcdmPcapWriter.createNewPcapFile();
+                    } catch (Throwable t)
+                    {
+                        Timber.e(t, "Could not create a new pcap file to write the qcdm messages to");
+                        return null;
+                    }
+                    qcdmMessageProcessor.registerQcdmMessageListener(qcdmPcapWriter, pcapFilter);
                 }
-                qcdmMessageProcessor.registerQcdmMessageListener(qcdmPcapWriter);
             } else
             {
-                qcdmMessageProcessor.unregisterQcdmMessageListener(qcdmPcapWriter);
-                qcdmPcapWriter.close();
+                if (dashcamRecorder != null)
+                {
+                    qcdmMessageProcessor.unregisterQcdmMessageListener(dashcamRecorder);
+                    dashcamRecorder.close();
+                    dashcamRecorder = null;
+                } else
+                {
+                    qcdmMessageProcessor.unregisterQcdmMessageListener(qcdmPcapWriter);
+                    qcdmPcapWriter.close();
+                }
             }
 
             pcapLoggingEnabled.set(enable);
@@ -274,6 +390,186 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
         return pcapLoggingEnabled.get();
     }
 
+    /**
+     * @return The metrics registry for the QCDM processing pipeline.
+     * @since 0.6.0
+     */
+    public PipelineMetrics getPipelineMetrics()
+    {
+        return pipelineMetrics;
+    }
+
+    /**
+     * @return The monitor that keeps the recent history of the pipeline throughput rates.
+     * @since 0.6.0
+     */
+    public ThroughputMonitor getThroughputMonitor()
+    {
+        return throughputMonitor;
+    }
+
+    /**
+     * Sends a snapshot of the pipeline metrics to the status listeners and, if connected, to the MQTT health topic.
+     * This method reschedules itself so that the metrics are reported every {@link Constants#METRICS_REPORT_INTERVAL_MS}.
+     *
+     * @since 0.6.0
+     */
+    private void reportPipelineMetrics()
+    {
+        try
+        {
+            final MetricsSnapshot snapshot = pipelineMetrics.snapshot();
+            Timber.d("Pipeline metrics: %s", snapshot);
+
+            final PcapStreamServer streamServer = pcapStreamServer;
+            if (streamServer != null)
+            {
+                for (PcapStreamServer.ClientStats clientStats : streamServer.getClientStats())
+                {
+                    Timber.d("Pcap stream client: %s", clientStats);
+                }
+            }
+
+            statusPublisher.notifyListeners(new ServiceStatusMessage(ServiceStatusMessage.SERVICE_PIPELINE_METRICS_MESSAGE, snapshot));
+
+            if (qcdmMqttConnection != null && qcdmMqttConnection.getConnectionState() == ConnectionState.CONNECTED)
+            {
+                qcdmMqttConnection.publishHealthMessage(snapshot);
+            }
+        } catch (Exception e)
+        {
+            Timber.e(e, "Could not report the pipeline metrics");
+        }
+
+        final Handler handler = statusHandler;
+        if (handler != null) handler.postDelayed(this::reportPipelineMetrics, Constants.METRICS_REPORT_INTERVAL_MS);
+    }
+
+    /**
+     * Restarts the diag revealer if the {@link PipelineWatchdog} finds that it has stopped sending data.
+     * <p>
+     * This method reschedules itself so that the check runs every {@link Constants#PIPELINE_WATCHDOG_INTERVAL_MS}.
+     *
+     * @since 0.6.0
+     */
+    private void checkPipelineWatchdog()
+    {
+        try
+        {
+            final DiagRevealerRunnable runnable = diagRevealerRunnable;
+            final boolean captureExpected = runnable != null && runnable.isProcessRunning();
+            final long stallTimeoutMs = pipelineWatchdog.getStallTimeoutMs();
+            if (pipelineWatchdog.check(SystemClock.elapsedRealtime(), captureExpected))
+            {
+                runnable.restart("no data received for " + stallTimeoutMs / 1000 + " seconds");
+            }
+        } catch (Exception e)
+        {
+            Timber.e(e, "Could not check the pipeline watchdog");
+        }
+
+        final Handler handler = statusHandler;
+        if (handler != null) handler.postDelayed(this::checkPipelineWatchdog, Constants.PIPELINE_WATCHDOG_INTERVAL_MS);
+    }
+
+    /**
+     * Feeds the current pipeline and device state to the {@link CaptureGovernor}, and applies its decision if the
+     * capture level changed. When the governor is turned off, the capture goes back to the normal level.
+     * <p>
+     * This method reschedules itself so that the check runs every {@link Constants#CAPTURE_GOVERNOR_INTERVAL_MS}.
+     *
+     * @since 0.6.0
+     */
+    private void checkCaptureGovernor()
+    {
+        try
+        {
+            final long nowMs = SystemClock.elapsedRealtime();
+            final long sequenceGapCount = pipelineMetrics.getDropCount(PipelineMetrics.DropReason.SEQUENCE_GAP);
+            final double overflowDropsPerSecond = lastSequenceGapCount < 0 || nowMs <= lastGovernorCheckMs ? 0
+                    : (sequenceGapCount - lastSequenceGapCount) * 1_000.0 / (nowMs - lastGovernorCheckMs);
+            lastSequenceGapCount = sequenceGapCount;
+            lastGovernorCheckMs = nowMs;
+
+            final CaptureGovernor.Level level;
+            if (captureGovernorEnabled)
+            {
+                final CaptureGovernor.Input input = createCaptureGovernorInput(overflowDropsPerSecond);
+                level = captureGovernor.evaluate(input, nowMs);
+                if (level != governorLevel) Timber.i("The capture governor moved to the %s level for %s", level, input);
+            } else
+            {
+                captureGovernor.reset();
+                level = captureGovernor.getLevel();
+            }
+
+            if (level != governorLevel) applyGovernorLevel(level);
+        } catch (Exception e)
+        {
+            Timber.e(e, "Could not run the capture governor");
+        }
+
+        final Handler handler = statusHandler;
+        if (handler != null) handler.postDelayed(this::checkCaptureGovernor, Constants.CAPTURE_GOVERNOR_INTERVAL_MS);
+    }
+
+    /**
+     * Samples the inputs for the {@link CaptureGovernor}.
+     *
+     * @param overflowDropsPerSecond The rate of sequence gaps since the last check.
+     * @return The current pipeline and device state.
+     */
+    private CaptureGovernor.Input createCaptureGovernorInput(double overflowDropsPerSecond)
+    {
+        final double framesPerSecond = throughputMonitor.snapshot()
+                .getRecentAverage(ThroughputMonitor.Series.FRAMES, Constants.CAPTURE_GOVERNOR_FRAME_RATE_SAMPLES);
+
+        int batteryPercent = CaptureGovernor.BATTERY_UNKNOWN;
+        boolean charging = false;
+        final BatteryManager batteryManager = getSystemService(BatteryManager.class);
+        if (batteryManager != null)
+        {
+            final int capacity = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+            if (capacity >= 0 && capacity <= 100) batteryPercent = capacity;
+            charging = batteryManager.isCharging();
+        }
+
+        int thermalStatus = CaptureGovernor.THERMAL_STATUS_NONE;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+        {
+            final PowerManager powerManager = getSystemService(PowerManager.class);
+            if (powerManager != null) thermalStatus = powerManager.getCurrentThermalStatus();
+        }
+
+        return new CaptureGovernor.Input(framesPerSecond, overflowDropsPerSecond, pipelineMetrics.getSpoolDepthRecords(),
+                batteryPercent, charging, thermalStatus);
+    }
+
+    /**
+     * Switches the capture to a new governor level: pauses or resumes the live MQTT publishing, and sends the new log
+     * mask to diag_revealer if the capture profile changes.
+     *
+     * @param level The level to capture at.
+     */
+    private void applyGovernorLevel(CaptureGovernor.Level level)
+    {
+        final CaptureProfile previousProfile = getEffectiveCaptureProfile();
+        governorLevel = level;
+
+        if (qcdmMqttConnection != null) qcdmMqttConnection.setLivePublishingPaused(!level.isLiveMqttPublishing());
+
+        if (getEffectiveCaptureProfile() != previousProfile)
+        {
+            try
+            {
+                bootstrapExecutor.execute(this::applyCaptureProfile);
+            } catch (RejectedExecutionException e)
+            {
+                Timber.d(e, "The service is shutting down, so the capture profile was not applied");
+            }
+        }
+    }
+
     /**
      * Registers with the Android {@link LocationManager} for location updates.
      */
@@ -333,6 +629,16 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
                 attemptMqttConnectWithMdmConfig(true);
 
                 if (qcdmPcapWriter != null) qcdmPcapWriter.onMdmPreferenceChanged(context);
+
+                setCaptureProfile(PreferenceUtils.getCaptureProfilePreference(context));
+                captureGovernorEnabled = PreferenceUtils.getCaptureGovernorPreference(context);
+                if (qcdmMessageProcessor != null)
+                {
+                    qcdmMessageProcessor.setBroadcastDeduplicationEnabled(PreferenceUtils.getBroadcastDedupPreference(context));
+                    qcdmMessageProcessor.setSamplingPolicy(PreferenceUtils.getSamplingPolicyPreference(context));
+                    updateGsmtapUdpStreamer(context);
+                    updatePcapStreamServer(context);
+                }
             }
         };
 
@@ -357,32 +663,251 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
         }
     }
 
+    /**
+     * Creates the QCDM message processor and the pcap writer, which need to exist before the rest of the service can
+     * register listeners with them.
+     */
+    private void initializeQcdmProcessor()
+    {
+        // The pooled pcap records have to be released by every sink that holds them, so check for leaks while developing
+        RecordBufferPool.getShared().setLeakDetectionEnabled(BuildConfig.DEBUG);
+
+        qcdmMessageProcessor = new QcdmMessageProcessor(gpsListener, pipelineMetrics);
+        qcdmMessageProcessor.setBroadcastDeduplicationEnabled(PreferenceUtils.getBroadcastDedupPreference(getApplicationContext()));
+        qcdmMessageProcessor.setSamplingPolicy(PreferenceUtils.getSamplingPolicyPreference(getApplicationContext()));
+        updateGsmtapUdpStreamer(getApplicationContext());
+        updatePcapStreamServer(getApplicationContext());
+
+        if (qcdmPcapWriter == null)
+        {
+            try
+            {
+                qcdmPcapWriter = new QcdmPcapWriter(pipelineMetrics);
+            } catch (Exception e)
+            {
+                Timber.e(e, "Could not create the QCDM PCAP writer");
+            }
+        }
+    }
+
+    /**
+     * Starts, stops, or restarts the {@link GsmtapUdpStreamer} so that it matches the GSMTAP stream target preference.
+     *
+     * @param context The context to use when getting the preference.
+     */
+    private synchronized void updateGsmtapUdpStreamer(Context context)
+    {
+        final String target = PreferenceUtils.getGsmtapUdpTargetPreference(context);
+        if (target.equals(gsmtapUdpTarget)) return;
+
+        stopGsmtapUdpStreamer();
+        gsmtapUdpTarget = target;
+        if (target.isEmpty()) return;
+
+        try
+        {
+            gsmtapUdpStreamer = new GsmtapUdpStreamer(GsmtapUdpStreamer.parseTarget(target),
+                    Constants.GSMTAP_UDP_QUEUE_CAPACITY, Constants.GSMTAP_UDP_BATCH_SIZE, pipelineMetrics);
+            gsmtapUdpStreamer.start();
+            qcdmMessageProcessor.registerQcdmMessageListener(gsmtapUdpStreamer);
+        } catch (Exception e)
+        {
+            Timber.e(e, "Could not start streaming GSMTAP over UDP to %s", target);
+            gsmtapUdpStreamer = null;
+        }
+    }
+
+    /**
+     * Stops streaming GSMTAP over UDP, if it was started.
+     */
+    private synchronized void stopGsmtapUdpStreamer()
+    {
+        if (gsmtapUdpStreamer == null) return;
+
+        qcdmMessageProcessor.unregisterQcdmMessageListener(gsmtapUdpStreamer);
+        gsmtapUdpStreamer.close();
+        gsmtapUdpStreamer = null;
+        gsmtapUdpTarget = "";
+    }
+
+    /**
+     * Starts, stops, or restarts the {@link PcapStreamServer} so that it matches the pcap stream address preference.
+     * The server resolves its address and opens its socket on its own thread, so this can be called from the main
+     * thread.
+     *
+     * @param context The context to use when getting the preference.
+     */
+    private synchronized void updatePcapStreamServer(Context context)
+    {
+        final String address = PreferenceUtils.getPcapStreamAddressPreference(context);
+        if (address.equals(pcapStreamAddress)) return;
+
+        stopPcapStreamServer();
+        pcapStreamAddress = address;
+        if (address.isEmpty()) return;
+
+        try
+        {
+            final PcapStreamServer server = new PcapStreamServer(PcapStreamServer.parseBindAddress(address),
+                    Constants.PCAP_STREAM_MAX_CLIENTS, Constants.PCAP_STREAM_CLIENT_BUFFER_BYTES,
+                    Constants.PCAP_STREAM_STALL_TIMEOUT_MS, pipelineMetrics);
+            server.start();
+            pcapStreamServer = server;
+            qcdmMessageProcessor.registerQcdmMessageListener(server);
+        } catch (IllegalArgumentException e)
+        {
+            Timber.e(e, "Could not start the pcap stream server on %s", address);
+        }
+    }
+
+    /**
+     * Stops the pcap stream server and disconnects its clients, if it was started.
+     */
+    private synchronized void stopPcapStreamServer()
+    {
+        if (pcapStreamServer == null) return;
+
+        qcdmMessageProcessor.unregisterQcdmMessageListener(pcapStreamServer);
+        pcapStreamServer.close();
+        pcapStreamServer = null;
+        pcapStreamAddress = "";
+    }
+
     /**
      * Initialize the /dev/diag port so that it starts sending QCDM messages.
+     * <p>
+     * The steps that need root or disk access run in parallel on the bootstrap executor. The root check does not
+     * produce anything the other steps need, but running it early starts the root shell and caches the result, so
+     * that diag_revealer can be started as soon as the named pipe and config file are ready.
      */
     private void initializeQcdmFeed()
     {
         final Context applicationContext = getApplicationContext();
-
         final String fifoPipeName = applicationContext.getFilesDir() + "/" + Constants.FIFO_PIPE;
-        createNamedPipe(fifoPipeName);
+        final String controlFifoName = applicationContext.getFilesDir() + "/" + Constants.CONTROL_FIFO_PIPE;
+        captureProfile = PreferenceUtils.getCaptureProfilePreference(applicationContext);
+
+        bootstrap.runPhase("rootCheck", RootUtil::isDeviceReadyForDiagReceiver);
+        final CompletableFuture<Void> namedPipe = bootstrap.runPhase("namedPipe", () -> createNamedPipe(fifoPipeName));
+        // Without the control FIFO the capture still works, but the capture profile only changes on a restart
+        final CompletableFuture<String> controlPipe = bootstrap.supplyPhase("controlPipe",
+                () -> createNamedPipe(controlFifoName) ? controlFifoName : null);
+        final CompletableFuture<String> sharedMemoryRing = bootstrap.supplyPhase("sharedMemoryRing", () -> createSharedMemoryRing(applicationContext));
+        final CompletableFuture<Void> configFile = bootstrap.runPhase("configFile", this::writeDiagConfigFile);
+
+        bootstrap.runPhase("startCapture", () -> startQcdmFeed(fifoPipeName, sharedMemoryRing.join(), controlPipe.join()),
+                namedPipe, controlPipe, sharedMemoryRing, configFile);
+    }
+
+    /**
+     * Starts reading from the FIFO and starts the diag revealer, unless the service was destroyed while the bootstrap
+     * was still running.
+     *
+     * @param fifoPipeName The absolute path to the FIFO named pipe file.
+     * @param ringFileName    The absolute path to the shared memory ring file, or null to use the FIFO for everything.
+     * @param controlFifoName The absolute path to the control FIFO, or null if it could not be created.
+     */
+    private void startQcdmFeed(String fifoPipeName, String ringFileName, String controlFifoName)
+    {
+        synchronized (captureLock)
+        {
+            if (destroyed) return;
 
-        qcdmMessageProcessor = new QcdmMessageProcessor(gpsListener);
+            fifoReadRunnable = new FifoReadRunnable(fifoPipeName, ringFileName, qcdmMessageProcessor, pipelineMetrics,
+                    bootstrap::markFirstMessage);
+            fifoReadHandler.post(fifoReadRunnable);
+
+            diagRevealerRunnable = new DiagRevealerRunnable(getApplicationContext(), fifoPipeName, ringFileName, controlFifoName, pipelineMetrics);
+            diagHandler.post(diagRevealerRunnable);
+        }
+    }
 
-        fifoReadRunnable = new FifoReadRunnable(fifoPipeName, qcdmMessageProcessor);
-        fifoReadHandler.post(fifoReadRunnable);
+    /**
+     * @return The capture profile that was picked in the settings or with {@link #setCaptureProfile(CaptureProfile)}.
+     * @since 0.6.0
+     */
+    public CaptureProfile getCaptureProfile()
+    {
+        return captureProfile;
+    }
 
-        diagRevealerRunnable = new DiagRevealerRunnable(applicationContext, fifoPipeName);
-        diagHandler.post(diagRevealerRunnable);
+    /**
+     * @return The capture profile the modem is actually using, which can be lighter than the one that was picked if
+     * the {@link CaptureGovernor} has scaled back the capture.
+     * @since 0.6.0
+     */
+    public CaptureProfile getEffectiveCaptureProfile()
+    {
+        return governorLevel.limit(captureProfile);
+    }
 
-        if (qcdmPcapWriter == null)
+    /**
+     * Switches the modem to the log mask of the provided capture profile. If diag_revealer is running, the new mask is
+     * sent to it through the control FIFO so the capture carries on without a restart. The diag config file is also
+     * updated, so that the profile sticks if diag_revealer is restarted later. While the {@link CaptureGovernor} has
+     * scaled back the capture, the modem keeps using the lighter profile until the governor steps back down.
+     * <p>
+     * The work is done on a background thread, so this can be called from the main thread.
+     *
+     * @param profile The capture profile to switch to.
+     * @since 0.6.0
+     */
+    public void setCaptureProfile(CaptureProfile profile)
+    {
+        if (profile == captureProfile) return;
+        final CaptureProfile previousProfile = getEffectiveCaptureProfile();
+
+        Timber.i("Switching to the %s capture profile", profile);
+        captureProfile = profile;
+        if (getEffectiveCaptureProfile() == previousProfile) return;
+        try
+        {
+            bootstrapExecutor.execute(this::applyCaptureProfile);
+        } catch (RejectedExecutionException e)
+        {
+            Timber.d(e, "The service is shutting down, so the capture profile was not applied");
+        }
+    }
+
+    /**
+     * Applies the current capture profile. Profile changes that come in quick succession can run on different
+     * threads, so they take turns and each applies whatever profile is current when its turn comes, which means the
+     * last change always wins.
+     */
+    private void applyCaptureProfile()
+    {
+        synchronized (captureProfileLock)
+        {
+            final CaptureProfile profile = getEffectiveCaptureProfile();
+            writeDiagConfigFile();
+
+            final DiagRevealerRunnable runnable = diagRevealerRunnable;
+            final byte[] maskUpdate = new DiagConfigCompiler().addLogCodes(profile.getLogTypes()).compileMaskUpdate();
+            if (runnable != null && runnable.sendDiagCommands(maskUpdate))
+            {
+                Timber.i("Sent the %s capture profile log mask to the running diag revealer", profile);
+            }
+        }
+    }
+
+    /**
+     * Compiles the diag config file that diag_revealer sends to the modem, and writes it to the app's private storage
+     * area. Only the log codes of the current {@link CaptureProfile} are enabled, so the modem does not spend any
+     * effort logging messages that would be thrown away. The file is only written if its content has changed, which
+     * is normally only after an app update or a capture profile change.
+     */
+    private void writeDiagConfigFile()
+    {
+        synchronized (captureProfileLock)
         {
+            final byte[] diagConfig = new DiagConfigCompiler().addLogCodes(getEffectiveCaptureProfile().getLogTypes()).compile();
             try
             {
-                qcdmPcapWriter = new QcdmPcapWriter();
-            } catch (Exception e)
+                final boolean written = NetworkSurveyUtils.writeFileIfChanged(new File(getFilesDir(), Constants.DIAG_CONFIG_FILE), diagConfig);
+                if (written) Timber.i("Wrote the %s diag config file to the app's files directory", Constants.DIAG_CONFIG_FILE);
+            } catch (IOException e)
             {
-                Timber.e(e, "Could not create the QCDM PCAP writer");
+                Timber.e(e, "Could not create the %s file", Constants.DIAG_CONFIG_FILE);
             }
         }
     }
@@ -473,7 +998,6 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
     private boolean createNamedPipe(String fifoPipeName)
     {
         boolean status = false;
-        final String[] namedPipeCommand = {"su", "-c", "exec mknod -m=rw " + fifoPipeName + " p"};
 
         try
         {
@@ -484,14 +1008,12 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
                 status = true; // named pipe already exists
             } else
             {
+                final RootShell.CommandResult result = RootUtil.runAsRoot("mknod -m=rw " + fifoPipeName + " p");
 
-                final Process process = new ProcessBuilder(namedPipeCommand).redirectError(ProcessBuilder.Redirect.PIPE).start();
-                final int exitValue = process.waitFor();
-
-                if (exitValue != 0)
+                if (!result.isSuccess())
                 {
-                    Timber.e("exit value of creating the named pipe: %s", exitValue);
-                    Timber.e("mknod ERROR: %s", new String(ByteStreams.toByteArray(process.getErrorStream())));
+                    Timber.e("exit value of creating the named pipe: %s", result.exitStatus);
+                    Timber.e("mknod ERROR: %s", result.output);
                 } else
                 {
                     status = true;
@@ -505,6 +1027,29 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
         return status;
     }
 
+    /**
+     * Creates the shared memory ring buffer file if the shared memory transport is turned on. The file is created here,
+     * rather than by diag_revealer, so that it belongs to this app.
+     *
+     * @param context The context to use for the preferences and the files directory.
+     * @return The absolute path to the ring file, or null if diag_revealer should write to the FIFO instead.
+     */
+    private String createSharedMemoryRing(Context context)
+    {
+        if (!PreferenceUtils.getSharedMemoryTransportPreference(context)) return null;
+
+        final File ringFile = new File(context.getFilesDir(), Constants.SHARED_MEMORY_RING_FILE);
+        try
+        {
+            SharedMemoryRingInputStream.createRingFile(ringFile, Constants.SHARED_MEMORY_RING_CAPACITY);
+            return ringFile.getAbsolutePath();
+        } catch (Exception e)
+        {
+            Timber.e(e, "Could not create the shared memory ring, falling back to the FIFO");
+            return null;
+        }
+    }
+
     /**
      * A notification for this service that is started in the foreground so that we can continue to get GPS location
      * updates while the phone is locked or the app is not in the foreground.
@@ -635,9 +1180,13 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
     @Override
     public void connectToMqttBroker(BrokerConnectionInfo connectionInfo)
     {
-        qcdmMqttConnection.connect(getApplicationContext(), connectionInfo);
+        final Context context = getApplicationContext();
+        qcdmMqttConnection.setBatchConfig(PreferenceUtils.getMqttBatchConfig(context));
+        qcdmMqttConnection.setTopicRouting(PreferenceUtils.getMqttTopicRoutingPreference(context));
+        qcdmMqttConnection.connect(context, connectionInfo);
 
-        qcdmMessageProcessor.registerQcdmMessageListener(qcdmMqttConnection);
+        qcdmMessageProcessor.registerQcdmMessageListener(qcdmMqttConnection,
+                PreferenceUtils.getRecordFilterPreference(Constants.PROPERTY_MQTT_RECORD_FILTER, context));
     }
 
     /**
@@ -652,6 +1201,7 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
 
         qcdmMessageProcessor.unregisterQcdmMessageListener(qcdmMqttConnection);
 
+        qcdmMqttConnection.stopBatching();
         qcdmMqttConnection.disconnect();
     }
 
@@ -678,6 +1228,7 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
             // disconnectFromMqttBroker() method because it will cause the listener to get unregistered, which will
             // cause the QcdmService to get stopped if it is the last listener/user of the service.  Since we
             // are starting the connection right back up there is not a need to remove the listener.
+            qcdmMqttConnection.stopBatching();
             qcdmMqttConnection.disconnect();
 
             connectToMqttBroker(connectionInfo);
@@ -744,6 +1295,15 @@ public class QcdmService extends Service implements IConnectionStateListener, Sh
     public void onConnectionStateChange(ConnectionState newConnectionState)
     {
         updateServiceNotification();
+
+        // Publish anything that was spooled while the broker was unreachable
+        if (newConnectionState == ConnectionState.CONNECTED)
+        {
+            qcdmMqttConnection.startSpoolDrain();
+        } else
+        {
+            qcdmMqttConnection.stopSpoolDrain();
+        }
     }
 
     /**
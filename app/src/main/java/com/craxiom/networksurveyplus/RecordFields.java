@@ -0,0 +1,147 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics.Technology;
+import com.craxiom.networksurveyplus.util.PcapUtils;
+
+/**
+ * The fields of a pcap message that a {@link RecordRuleSet} can match on, pulled out of the message once so that
+ * every rule can use them.
+ * <p>
+ * The fields come from the metadata the parser put in the {@link PcapMessage}. For messages without that metadata,
+ * the SIM ID, ARFCN, direction and PCI are read back out of the GSMTAP and IP headers of the pcap record. One instance
+ * is meant to be reused for every message, so loading a message does not allocate anything. This class is not thread
+ * safe.
+ *
+ * @since 0.6.0
+ */
+public final class RecordFields
+{
+    public static final int UNKNOWN = -1;
+    public static final int DIRECTION_DOWNLINK = 0;
+    public static final int DIRECTION_UPLINK = 1;
+
+    private static final int GSMTAP_UPLINK_FLAG = 0x40;
+
+    int logType;
+    int technology;
+    int subtype;
+    int simId;
+    int arfcn;
+    int pci;
+    int direction;
+
+    byte[] record;
+    int recordLength;
+    int payloadOffset;
+
+    public RecordFields()
+    {
+        clear();
+    }
+
+    /**
+     * Replaces the fields with the ones from the provided message.
+     *
+     * @param message The pcap message to pull the fields out of.
+     * @return This instance, to allow chaining.
+     */
+    public RecordFields load(PcapMessage message)
+    {
+        clear();
+
+        logType = message.getLogType();
+        final Technology messageTechnology = Technology.fromMessageKind(message.getMessageKind());
+        if (messageTechnology != null) technology = messageTechnology.ordinal();
+
+        record = message.getPcapRecordBuffer();
+        recordLength = message.getPcapRecordLength();
+        final int gsmtapOffset = PcapUtils.getGsmtapHeaderOffset(record, recordLength);
+        if (gsmtapOffset >= 0)
+        {
+            payloadOffset = gsmtapOffset + PcapUtils.GSMTAP_HEADER_LENGTH;
+            subtype = record[gsmtapOffset + 12] & 0xFF;
+        }
+
+        if (message.hasRecordMetadata())
+        {
+            simId = message.getSimId();
+            arfcn = message.getArfcn();
+            pci = message.getPci();
+            direction = message.isUplink() ? DIRECTION_UPLINK : DIRECTION_DOWNLINK;
+        } else if (gsmtapOffset >= 0)
+        {
+            simId = PcapUtils.getSimId(record, recordLength);
+            arfcn = (record[gsmtapOffset + 4] & 0x3F) << 8 | record[gsmtapOffset + 5] & 0xFF;
+            direction = (record[gsmtapOffset + 4] & GSMTAP_UPLINK_FLAG) != 0 ? DIRECTION_UPLINK : DIRECTION_DOWNLINK;
+
+            // Only the LTE RRC parser puts the PCI in the top 16 bits of the frame number
+            if (messageTechnology == Technology.LTE_RRC)
+            {
+                pci = (record[gsmtapOffset + 8] & 0xFF) << 8 | record[gsmtapOffset + 9] & 0xFF;
+            }
+        }
+
+        if (message.hasChannelType()) subtype = message.getChannelType();
+
+        return this;
+    }
+
+    /**
+     * Resets every field to {@link #UNKNOWN}.
+     */
+    public void clear()
+    {
+        logType = UNKNOWN;
+        technology = UNKNOWN;
+        subtype = UNKNOWN;
+        simId = UNKNOWN;
+        arfcn = UNKNOWN;
+        pci = UNKNOWN;
+        direction = UNKNOWN;
+        record = null;
+        recordLength = 0;
+        payloadOffset = UNKNOWN;
+    }
+
+    public int getLogType()
+    {
+        return logType;
+    }
+
+    /**
+     * @return The ordinal of the {@link Technology}, or {@link #UNKNOWN}.
+     */
+    public int getTechnology()
+    {
+        return technology;
+    }
+
+    public int getSubtype()
+    {
+        return subtype;
+    }
+
+    public int getSimId()
+    {
+        return simId;
+    }
+
+    public int getArfcn()
+    {
+        return arfcn;
+    }
+
+    public int getPci()
+    {
+        return pci;
+    }
+
+    /**
+     * @return {@link #DIRECTION_DOWNLINK}, {@link #DIRECTION_UPLINK}, or {@link #UNKNOWN}.
+     */
+    public int getDirection()
+    {
+        return direction;
+    }
+}
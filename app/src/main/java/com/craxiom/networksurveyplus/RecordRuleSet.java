@@ -0,0 +1,513 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics.Technology;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A set of rules that are matched against the {@link RecordFields} of every pcap message, such as the dashcam capture
+ * triggers.
+ * <p>
+ * A rule is a comma separated list of {@code key=value} conditions, all of which have to match. Rules are separated
+ * with semicolons, and the rule {@code all} matches every message. The keys are:
+ * <ul>
+ * <li>{@code log}: the QCDM log code, such as {@code 0xB0C0}.</li>
+ * <li>{@code tech}: the technology, one of {@link Technology} in lower case.</li>
+ * <li>{@code subtype}: the GSMTAP channel subtype. This only means something along with {@code tech}, since each
+ * technology numbers its subtypes differently.</li>
+ * <li>{@code sim}: the SIM ID.</li>
+ * <li>{@code arfcn}: the ARFCN, UARFCN or EARFCN in the GSMTAP header.</li>
+ * <li>{@code pci}: the LTE PCI.</li>
+ * <li>{@code dir}: {@code ul} or {@code dl}.</li>
+ * <li>{@code bytes}: hex bytes that the payload after the GSMTAP header has at the offset, written as
+ * {@code HEX[/MASK][@OFFSET]}. The mask only compares some of the bits, and without an offset the bytes can be
+ * anywhere in the payload.</li>
+ * </ul>
+ * Every key other than {@code bytes} can list several values separated with {@code |}, and the numeric keys can also
+ * use ranges such as {@code pci=100..110}. For example, {@code tech=lte_nas,bytes=0744@0;tech=lte_rrc,pci=101|102}
+ * matches an LTE attach reject, or any LTE RRC message from PCI 101 or 102.
+ * <p>
+ * The rules are compiled when they are loaded. For each field there is a table, indexed by the field value, of the
+ * bitset of rules that accept the value, so matching a message ANDs together one bitset per field and then only
+ * checks the byte patterns of the rules that are still left. Matching does not allocate anything, and a rule set can
+ * be shared between threads as long as each thread uses its own {@link RecordFields}.
+ *
+ * @since 0.6.0
+ */
+public final class RecordRuleSet
+{
+    public static final String MATCH_ALL = "all";
+    public static final int MAX_RULES = Long.SIZE;
+
+    private static final RecordRuleSet EMPTY = new RecordRuleSet(new ArrayList<>());
+    private static final int BYTE_FIELD_SIZE = 256;
+
+    private final String[] ruleSpecs;
+    private final long allRules;
+
+    // Indexed by the field value plus one, so that index 0 is for an unknown value
+    private final long[] technologyMasks;
+    private final long[] subtypeMasks;
+    private final long[] simMasks;
+    private final long[] directionMasks;
+
+    private final IntervalIndex logIndex;
+    private final IntervalIndex arfcnIndex;
+    private final IntervalIndex pciIndex;
+
+    private final BytePattern[] bytePatterns;
+    private final long bytePatternRules;
+
+    private RecordRuleSet(List<Rule> rules)
+    {
+        ruleSpecs = new String[rules.size()];
+        long all = 0;
+        long patternRules = 0;
+        bytePatterns = new BytePattern[rules.size()];
+        for (int i = 0; i < rules.size(); i++)
+        {
+            ruleSpecs[i] = rules.get(i).spec;
+            all |= 1L << i;
+            bytePatterns[i] = rules.get(i).bytePattern;
+            if (bytePatterns[i] != null) patternRules |= 1L << i;
+        }
+        allRules = all;
+        bytePatternRules = patternRules;
+
+        technologyMasks = buildTable(rules, Field.TECH, Technology.values().length);
+        subtypeMasks = buildTable(rules, Field.SUBTYPE, BYTE_FIELD_SIZE);
+        simMasks = buildTable(rules, Field.SIM, BYTE_FIELD_SIZE);
+        directionMasks = buildTable(rules, Field.DIR, 2);
+
+        logIndex = new IntervalIndex(rules, Field.LOG);
+        arfcnIndex = new IntervalIndex(rules, Field.ARFCN);
+        pciIndex = new IntervalIndex(rules, Field.PCI);
+    }
+
+    /**
+     * Compiles the rules from their text form, as described in the class comment.
+     *
+     * @param spec The rules, separated by semicolons.
+     * @return The compiled rules, which is empty if the spec is null or blank.
+     * @throws IllegalArgumentException If one of the rules is invalid, or there are more than {@link #MAX_RULES}.
+     */
+    public static RecordRuleSet compile(String spec)
+    {
+        if (spec == null || spec.trim().isEmpty()) return EMPTY;
+
+        final List<Rule> rules = new ArrayList<>();
+        for (String ruleSpec : spec.split(";"))
+        {
+            if (!ruleSpec.trim().isEmpty()) rules.add(Rule.parse(ruleSpec.trim()));
+        }
+
+        if (rules.size() > MAX_RULES)
+        {
+            throw new IllegalArgumentException("There can't be more than " + MAX_RULES + " rules, but there are " + rules.size());
+        }
+
+        return new RecordRuleSet(rules);
+    }
+
+    /**
+     * Finds all the rules that match a message.
+     *
+     * @param fields The fields of the message to match.
+     * @return A bitset where bit N is set if the Nth rule matched.
+     */
+    public long match(RecordFields fields)
+    {
+        long matches = allRules
+                & technologyMasks[tableIndex(fields.technology, technologyMasks)]
+                & subtypeMasks[tableIndex(fields.subtype, subtypeMasks)]
+                & simMasks[tableIndex(fields.simId, simMasks)]
+                & directionMasks[tableIndex(fields.direction, directionMasks)];
+        if (matches == 0) return 0;
+
+        matches &= logIndex.lookup(fields.logType) & arfcnIndex.lookup(fields.arfcn) & pciIndex.lookup(fields.pci);
+
+        long patternsToCheck = matches & bytePatternRules;
+        while (patternsToCheck != 0)
+        {
+            final int rule = Long.numberOfTrailingZeros(patternsToCheck);
+            patternsToCheck &= patternsToCheck - 1;
+            if (!bytePatterns[rule].matches(fields)) matches &= ~(1L << rule);
+        }
+
+        return matches;
+    }
+
+    /**
+     * @param fields The fields of the message to match.
+     * @return True if any of the rules match the message.
+     */
+    public boolean matchesAny(RecordFields fields)
+    {
+        return match(fields) != 0;
+    }
+
+    /**
+     * @return The number of rules.
+     */
+    public int size()
+    {
+        return ruleSpecs.length;
+    }
+
+    /**
+     * @return True if there are no rules, in which case nothing matches.
+     */
+    public boolean isEmpty()
+    {
+        return ruleSpecs.length == 0;
+    }
+
+    /**
+     * @param index The index of the rule, which is also its bit in the result of {@link #match(RecordFields)}.
+     * @return The text form of the rule.
+     */
+    public String getRuleSpec(int index)
+    {
+        return ruleSpecs[index];
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.join(";", ruleSpecs);
+    }
+
+    private static int tableIndex(int value, long[] table)
+    {
+        final int index = value + 1;
+        return index < 0 || index >= table.length ? 0 : index;
+    }
+
+    /**
+     * Builds the table of rule bitsets for a field that only has a few possible values.
+     */
+    private static long[] buildTable(List<Rule> rules, Field field, int fieldSize)
+    {
+        final long[] table = new long[fieldSize + 1];
+        for (int i = 0; i < rules.size(); i++)
+        {
+            final int[] ranges = rules.get(i).ranges.get(field);
+            for (int value = -1; value < fieldSize; value++)
+            {
+                if (ranges == null || (value >= 0 && contains(ranges, value))) table[value + 1] |= 1L << i;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * @param ranges The ranges as pairs of the lowest and highest value, inclusive.
+     */
+    private static boolean contains(int[] ranges, int value)
+    {
+        for (int i = 0; i < ranges.length; i += 2)
+        {
+            if (value >= ranges[i] && value <= ranges[i + 1]) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The fields that rules can have conditions on, along with the highest value each one can have. The byte pattern
+     * is handled on its own.
+     */
+    private enum Field
+    {
+        LOG(0xFFFF),
+        TECH(Technology.values().length - 1),
+        SUBTYPE(BYTE_FIELD_SIZE - 1),
+        SIM(BYTE_FIELD_SIZE - 1),
+        ARFCN(262143), // The highest EARFCN
+        PCI(0xFFFF),
+        DIR(1);
+
+        private final int maxValue;
+
+        Field(int maxValue)
+        {
+            this.maxValue = maxValue;
+        }
+    }
+
+    /**
+     * A parsed rule, which is only used while compiling a rule set.
+     */
+    private static final class Rule
+    {
+        private final String spec;
+        private final Map<Field, int[]> ranges = new HashMap<>();
+        private BytePattern bytePattern;
+
+        private Rule(String spec)
+        {
+            this.spec = spec;
+        }
+
+        static Rule parse(String spec)
+        {
+            final Rule rule = new Rule(spec);
+            if (MATCH_ALL.equalsIgnoreCase(spec)) return rule;
+
+            for (String condition : spec.split(","))
+            {
+                final String[] keyAndValue = condition.split("=");
+                if (keyAndValue.length != 2)
+                {
+                    throw new IllegalArgumentException("A rule condition must be key=value: " + condition);
+                }
+
+                final String key = keyAndValue[0].trim().toLowerCase(Locale.US);
+                final String value = keyAndValue[1].trim();
+                try
+                {
+                    if ("bytes".equals(key))
+                    {
+                        if (rule.bytePattern != null) throw new IllegalArgumentException("Duplicate condition: " + condition);
+                        rule.bytePattern = BytePattern.parse(value);
+                        continue;
+                    }
+
+                    final Field field = parseField(key, condition);
+                    if (rule.ranges.put(field, parseValues(field, value)) != null)
+                    {
+                        throw new IllegalArgumentException("Duplicate condition: " + condition);
+                    }
+                } catch (NumberFormatException e)
+                {
+                    throw new IllegalArgumentException("Invalid rule condition: " + condition, e);
+                }
+            }
+            return rule;
+        }
+
+        private static Field parseField(String key, String condition)
+        {
+            switch (key)
+            {
+                case "log":
+                    return Field.LOG;
+                case "tech":
+                    return Field.TECH;
+                case "subtype":
+                    return Field.SUBTYPE;
+                case "sim":
+                    return Field.SIM;
+                case "arfcn":
+                    return Field.ARFCN;
+                case "pci":
+                    return Field.PCI;
+                case "dir":
+                    return Field.DIR;
+                default:
+                    throw new IllegalArgumentException("Unknown rule condition: " + condition);
+            }
+        }
+
+        /**
+         * @return The ranges as pairs of the lowest and highest value, inclusive.
+         */
+        private static int[] parseValues(Field field, String value)
+        {
+            final String[] alternatives = value.split("\\|");
+            final int[] ranges = new int[alternatives.length * 2];
+            for (int i = 0; i < alternatives.length; i++)
+            {
+                final String alternative = alternatives[i].trim();
+                final int rangeIndex = alternative.indexOf("..");
+                if (rangeIndex >= 0)
+                {
+                    ranges[i * 2] = parseValue(field, alternative.substring(0, rangeIndex));
+                    ranges[i * 2 + 1] = parseValue(field, alternative.substring(rangeIndex + 2));
+                    if (ranges[i * 2] > ranges[i * 2 + 1])
+                    {
+                        throw new IllegalArgumentException("The range is backwards: " + alternative);
+                    }
+                } else
+                {
+                    ranges[i * 2] = parseValue(field, alternative);
+                    ranges[i * 2 + 1] = ranges[i * 2];
+                }
+            }
+            return ranges;
+        }
+
+        private static int parseValue(Field field, String value)
+        {
+            final String trimmedValue = value.trim();
+            final int parsedValue;
+            if (field == Field.TECH)
+            {
+                parsedValue = Technology.valueOf(trimmedValue.toUpperCase(Locale.US)).ordinal();
+            } else if (field == Field.DIR)
+            {
+                if ("dl".equalsIgnoreCase(trimmedValue))
+                {
+                    parsedValue = RecordFields.DIRECTION_DOWNLINK;
+                } else if ("ul".equalsIgnoreCase(trimmedValue))
+                {
+                    parsedValue = RecordFields.DIRECTION_UPLINK;
+                } else
+                {
+                    throw new IllegalArgumentException("The direction must be ul or dl: " + value);
+                }
+            } else
+            {
+                parsedValue = Integer.decode(trimmedValue);
+            }
+
+            if (parsedValue < 0 || parsedValue > field.maxValue)
+            {
+                throw new IllegalArgumentException("The value is out of range for " + field.name().toLowerCase(Locale.US) + ": " + value);
+            }
+            return parsedValue;
+        }
+    }
+
+    /**
+     * The rule bitsets for a field with too many possible values for a table. The values are split into intervals at
+     * every range boundary of every rule, so each interval has one bitset and a lookup is a binary search.
+     */
+    private static final class IntervalIndex
+    {
+        private final int[] starts;
+        private final long[] masks;
+
+        IntervalIndex(List<Rule> rules, Field field)
+        {
+            final TreeSet<Integer> boundaries = new TreeSet<>();
+            boundaries.add(Integer.MIN_VALUE);
+            for (Rule rule : rules)
+            {
+                final int[] ranges = rule.ranges.get(field);
+                if (ranges == null) continue;
+
+                for (int i = 0; i < ranges.length; i += 2)
+                {
+                    boundaries.add(ranges[i]);
+                    boundaries.add(ranges[i + 1] + 1);
+                }
+            }
+
+            starts = new int[boundaries.size()];
+            masks = new long[boundaries.size()];
+            int index = 0;
+            for (int start : boundaries)
+            {
+                starts[index] = start;
+                for (int i = 0; i < rules.size(); i++)
+                {
+                    final int[] ranges = rules.get(i).ranges.get(field);
+                    if (ranges == null || contains(ranges, start)) masks[index] |= 1L << i;
+                }
+                index++;
+            }
+        }
+
+        long lookup(int value)
+        {
+            final int index = Arrays.binarySearch(starts, value);
+            return masks[index >= 0 ? index : -index - 2];
+        }
+    }
+
+    /**
+     * The bytes that the payload of a message has to have.
+     */
+    private static final class BytePattern
+    {
+        private static final int ANYWHERE = -1;
+
+        private final byte[] pattern;
+        private final byte[] mask;
+        private final int offset;
+
+        private BytePattern(byte[] pattern, byte[] mask, int offset)
+        {
+            this.pattern = pattern;
+            this.mask = mask;
+            this.offset = offset;
+        }
+
+        /**
+         * Parses {@code HEX[/MASK][@OFFSET]}.
+         */
+        static BytePattern parse(String value)
+        {
+            String bytes = value;
+            int offset = ANYWHERE;
+            final int offsetIndex = bytes.indexOf('@');
+            if (offsetIndex >= 0)
+            {
+                offset = Integer.parseInt(bytes.substring(offsetIndex + 1).trim());
+                if (offset < 0) throw new IllegalArgumentException("The byte offset can't be negative: " + value);
+                bytes = bytes.substring(0, offsetIndex);
+            }
+
+            byte[] mask = null;
+            final int maskIndex = bytes.indexOf('/');
+            if (maskIndex >= 0)
+            {
+                mask = parseHex(bytes.substring(maskIndex + 1).trim());
+                bytes = bytes.substring(0, maskIndex);
+            }
+
+            final byte[] pattern = parseHex(bytes.trim());
+            if (pattern.length == 0) throw new IllegalArgumentException("The byte pattern is empty: " + value);
+            if (mask != null && mask.length != pattern.length)
+            {
+                throw new IllegalArgumentException("The mask must be the same length as the bytes: " + value);
+            }
+
+            return new BytePattern(pattern, mask, offset);
+        }
+
+        boolean matches(RecordFields fields)
+        {
+            final byte[] record = fields.record;
+            if (record == null || fields.payloadOffset < 0) return false;
+
+            if (offset != ANYWHERE) return matchesAt(record, fields.recordLength, fields.payloadOffset + offset);
+
+            for (int i = fields.payloadOffset; i <= fields.recordLength - pattern.length; i++)
+            {
+                if (matchesAt(record, fields.recordLength, i)) return true;
+            }
+            return false;
+        }
+
+        private boolean matchesAt(byte[] record, int recordLength, int start)
+        {
+            if (start + pattern.length > recordLength) return false;
+
+            for (int i = 0; i < pattern.length; i++)
+            {
+                final int bitMask = mask == null ? 0xFF : mask[i];
+                if (((record[start + i] ^ pattern[i]) & bitMask) != 0) return false;
+            }
+            return true;
+        }
+
+        private static byte[] parseHex(String hex)
+        {
+            if (hex.length() % 2 != 0) throw new IllegalArgumentException("Hex bytes need two digits each: " + hex);
+
+            final byte[] bytes = new byte[hex.length() / 2];
+            for (int i = 0; i < bytes.length; i++)
+            {
+                bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+            }
+            return bytes;
+        }
+    }
+}
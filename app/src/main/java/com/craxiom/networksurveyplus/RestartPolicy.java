@@ -0,0 +1,83 @@
+package com.craxiom.networksurveyplus;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Decides how long the diag_revealer supervisor should wait before restarting the process, and when it should give up.
+ * <p>
+ * The delay starts at the initial delay and doubles with each restart up to the max delay, so a wedged modem or a
+ * flapping root grant does not turn into a tight restart loop. If the process stayed up for at least the stable run
+ * time, the failure is treated as a one off and the delay goes back to the initial delay. Independently of the delay,
+ * only a limited number of restarts are allowed within a sliding window, after which the supervisor gives up.
+ * <p>
+ * This class is not thread safe; it is only used from the supervisor thread.
+ *
+ * @since 0.6.0
+ */
+public class RestartPolicy
+{
+    /**
+     * Returned by {@link #nextDelayMs(long, long)} when the restart budget has been used up.
+     */
+    public static final long GIVE_UP = -1;
+
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final long stableRunMs;
+    private final int restartBudget;
+    private final long budgetWindowMs;
+
+    private final Deque<Long> restartTimesMs = new ArrayDeque<>();
+    private int consecutiveFailures = 0;
+
+    /**
+     * @param initialDelayMs The delay before the first restart after a failure.
+     * @param maxDelayMs     The longest the delay can grow to.
+     * @param stableRunMs    A run at least this long resets the delay back to the initial delay.
+     * @param restartBudget  The maximum number of restarts allowed within the budget window.
+     * @param budgetWindowMs The length of the sliding window the restart budget applies to.
+     */
+    public RestartPolicy(long initialDelayMs, long maxDelayMs, long stableRunMs, int restartBudget, long budgetWindowMs)
+    {
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.stableRunMs = stableRunMs;
+        this.restartBudget = restartBudget;
+        this.budgetWindowMs = budgetWindowMs;
+    }
+
+    /**
+     * Called each time the process has stopped, to find out how long to wait before starting it again.
+     *
+     * @param nowMs    The current time, from a monotonic clock.
+     * @param uptimeMs How long the process ran before it stopped.
+     * @return The number of milliseconds to wait before restarting, or {@link #GIVE_UP} if the restart budget has been
+     * used up.
+     */
+    public long nextDelayMs(long nowMs, long uptimeMs)
+    {
+        if (uptimeMs >= stableRunMs) consecutiveFailures = 0;
+
+        while (!restartTimesMs.isEmpty() && nowMs - restartTimesMs.peekFirst() >= budgetWindowMs)
+        {
+            restartTimesMs.removeFirst();
+        }
+        if (restartTimesMs.size() >= restartBudget) return GIVE_UP;
+        restartTimesMs.addLast(nowMs);
+
+        // Cap the shift so that a long run of failures cannot overflow
+        final long delayMs = initialDelayMs << Math.min(consecutiveFailures, 30);
+        consecutiveFailures++;
+        return Math.min(delayMs, maxDelayMs);
+    }
+
+    /**
+     * Forgets all previous failures, for when the supervisor is started again from scratch.
+     */
+    public void reset()
+    {
+        restartTimesMs.clear();
+        consecutiveFailures = 0;
+    }
+}
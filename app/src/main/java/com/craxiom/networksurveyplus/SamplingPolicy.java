@@ -0,0 +1,267 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.GsmSubtypes;
+import com.craxiom.networksurveyplus.messages.LteRrcSubtypes;
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.messages.UmtsRrcSubtypes;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics.Technology;
+
+import java.util.Locale;
+
+/**
+ * Thins out the channels that send messages in floods, such as paging, so that they do not drown out everything else
+ * in the pcap files and on MQTT.
+ * <p>
+ * Each {@link SampledChannel} can be given one of these rules:
+ * <ul>
+ * <li>{@code all}: keep every message, which is the same as not listing the channel.</li>
+ * <li>{@code 1/N}: keep the first of every N messages.</li>
+ * <li>{@code N/s}: a token bucket that keeps up to N messages per second, with bursts of up to N messages (or 1 if N
+ * is less than 1).</li>
+ * </ul>
+ * A policy is written as a comma separated list of {@code channel=rule} entries, for example
+ * {@code lte_pcch=1/10,gsm_ccch=5/s}. The policy {@code all} (or an empty string) keeps everything.
+ * <p>
+ * Only the channels in {@link SampledChannel} can be sampled, and none of them carry dedicated signaling, so the DCCH
+ * and NAS messages are always kept. The number of messages each channel dropped is counted exactly.
+ * <p>
+ * This class is not thread safe; it is only used from the FIFO reader thread.
+ *
+ * @since 0.6.0
+ */
+public class SamplingPolicy
+{
+    public static final String KEEP_ALL = "all";
+
+    private static final int SUBTYPE_COUNT = 256;
+
+    private final Rule[][] rulesByTechnology = new Rule[Technology.values().length][];
+    private final long[] sampledOutCounts = new long[SampledChannel.values().length];
+    private final String spec;
+
+    private SamplingPolicy(String spec)
+    {
+        this.spec = spec;
+    }
+
+    /**
+     * Creates a sampling policy from its text form, as described in the class comment.
+     *
+     * @param spec The policy, such as {@code lte_pcch=1/10,gsm_ccch=5/s}.
+     * @return The new policy.
+     * @throws IllegalArgumentException If the policy names an unknown channel or has an invalid rule.
+     */
+    public static SamplingPolicy parse(String spec)
+    {
+        final String trimmedSpec = spec == null ? "" : spec.trim();
+        if (trimmedSpec.isEmpty() || KEEP_ALL.equalsIgnoreCase(trimmedSpec)) return new SamplingPolicy(KEEP_ALL);
+
+        final SamplingPolicy policy = new SamplingPolicy(trimmedSpec);
+        for (String entry : trimmedSpec.split(","))
+        {
+            final String[] channelAndRule = entry.split("=");
+            if (channelAndRule.length != 2)
+            {
+                throw new IllegalArgumentException("A sampling policy entry must be channel=rule: " + entry);
+            }
+
+            final SampledChannel channel = SampledChannel.fromName(channelAndRule[0].trim());
+            final Rule rule = Rule.parse(channel, channelAndRule[1].trim());
+            if (rule != null) policy.addRule(rule);
+        }
+        return policy;
+    }
+
+    /**
+     * @return True if this policy keeps every message.
+     */
+    public boolean isKeepAll()
+    {
+        for (Rule[] rules : rulesByTechnology)
+        {
+            if (rules != null) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decides if a pcap message should be sent on to the sinks.
+     *
+     * @param message The pcap message that was just created.
+     * @param nowMs   The current time, from a monotonic clock.
+     * @return True if the message should be kept, false if it was sampled out.
+     */
+    public boolean shouldKeep(PcapMessage message, long nowMs)
+    {
+        if (!message.hasChannelType()) return true;
+
+        final Technology technology = Technology.fromMessageKind(message.getMessageKind());
+        if (technology == null) return true;
+
+        final Rule[] rules = rulesByTechnology[technology.ordinal()];
+        final int channelType = message.getChannelType();
+        if (rules == null || channelType < 0 || channelType >= SUBTYPE_COUNT) return true;
+
+        final Rule rule = rules[channelType];
+        if (rule == null || rule.keep(nowMs)) return true;
+
+        sampledOutCounts[rule.channel.ordinal()]++;
+        return false;
+    }
+
+    /**
+     * @param channel The channel to get the count for.
+     * @return The number of messages on the channel that were sampled out.
+     */
+    public long getSampledOutCount(SampledChannel channel)
+    {
+        return sampledOutCounts[channel.ordinal()];
+    }
+
+    /**
+     * @return The number of messages that were sampled out on all the channels.
+     */
+    public long getTotalSampledOutCount()
+    {
+        long total = 0;
+        for (long count : sampledOutCounts)
+        {
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString()
+    {
+        return spec;
+    }
+
+    private void addRule(Rule rule)
+    {
+        final int technologyIndex = rule.channel.technology.ordinal();
+        if (rulesByTechnology[technologyIndex] == null) rulesByTechnology[technologyIndex] = new Rule[SUBTYPE_COUNT];
+
+        for (int subtype : rule.channel.subtypes)
+        {
+            rulesByTechnology[technologyIndex][subtype] = rule;
+        }
+    }
+
+    /**
+     * The channels that can be sampled. Only common channels are listed here; dedicated channels must never be added.
+     */
+    public enum SampledChannel
+    {
+        LTE_PCCH(Technology.LTE_RRC, LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_PCCH_Message.ordinal(),
+                LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_PCCH_Message_NB.ordinal()),
+        LTE_MIB(Technology.LTE_RRC, LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_BCCH_BCH_Message.ordinal()),
+        LTE_SIB(Technology.LTE_RRC, LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_BCCH_DL_SCH_Message.ordinal(),
+                LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_BCCH_DL_SCH_Message_BR.ordinal()),
+        WCDMA_PCCH(Technology.WCDMA_RRC, UmtsRrcSubtypes.GSMTAP_RRC_SUB_PCCH_Message.ordinal()),
+        WCDMA_BCCH(Technology.WCDMA_RRC, UmtsRrcSubtypes.GSMTAP_RRC_SUB_BCCH_BCH_Message.ordinal(),
+                UmtsRrcSubtypes.GSMTAP_RRC_SUB_BCCH_FACH_Message.ordinal(),
+                UmtsRrcSubtypes.GSMTAP_RRC_SUB_SystemInformation_BCH.ordinal()),
+        GSM_CCCH(Technology.GSM, GsmSubtypes.GSMTAP_CHANNEL_CCCH.ordinal()),
+        GSM_BCCH(Technology.GSM, GsmSubtypes.GSMTAP_CHANNEL_BCCH.ordinal());
+
+        private final Technology technology;
+        private final int[] subtypes;
+
+        SampledChannel(Technology technology, int... subtypes)
+        {
+            this.technology = technology;
+            this.subtypes = subtypes;
+        }
+
+        /**
+         * @return The name used for this channel in the text form of a policy.
+         */
+        public String getPolicyName()
+        {
+            return name().toLowerCase(Locale.US);
+        }
+
+        static SampledChannel fromName(String name)
+        {
+            for (SampledChannel channel : values())
+            {
+                if (channel.getPolicyName().equalsIgnoreCase(name)) return channel;
+            }
+            throw new IllegalArgumentException("Unknown sampling policy channel: " + name);
+        }
+    }
+
+    /**
+     * The sampling rule for one channel, along with the state it needs to make its decisions.
+     */
+    private static final class Rule
+    {
+        private final SampledChannel channel;
+        private final int keepOneIn;
+        private final double ratePerSecond;
+        private final double burst;
+
+        private long messageCount = 0;
+        private double tokens;
+        private long lastRefillMs = -1;
+
+        private Rule(SampledChannel channel, int keepOneIn, double ratePerSecond)
+        {
+            this.channel = channel;
+            this.keepOneIn = keepOneIn;
+            this.ratePerSecond = ratePerSecond;
+            burst = Math.max(1, ratePerSecond);
+            tokens = burst;
+        }
+
+        /**
+         * @return The rule, or null if the rule keeps every message.
+         */
+        static Rule parse(SampledChannel channel, String rule)
+        {
+            try
+            {
+                if (KEEP_ALL.equalsIgnoreCase(rule)) return null;
+
+                if (rule.startsWith("1/"))
+                {
+                    final int keepOneIn = Integer.parseInt(rule.substring(2).trim());
+                    if (keepOneIn < 1) throw new IllegalArgumentException("N must be at least 1 in " + rule);
+                    return keepOneIn == 1 ? null : new Rule(channel, keepOneIn, 0);
+                }
+
+                if (rule.endsWith("/s"))
+                {
+                    final double ratePerSecond = Double.parseDouble(rule.substring(0, rule.length() - 2).trim());
+                    if (!(ratePerSecond > 0) || Double.isInfinite(ratePerSecond))
+                    {
+                        throw new IllegalArgumentException("The rate must be more than 0 in " + rule);
+                    }
+                    return new Rule(channel, 0, ratePerSecond);
+                }
+            } catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Invalid sampling rule for " + channel.getPolicyName() + ": " + rule, e);
+            }
+
+            throw new IllegalArgumentException("Invalid sampling rule for " + channel.getPolicyName() + ": " + rule);
+        }
+
+        boolean keep(long nowMs)
+        {
+            if (keepOneIn > 0) return messageCount++ % keepOneIn == 0;
+
+            if (lastRefillMs >= 0 && nowMs > lastRefillMs)
+            {
+                tokens = Math.min(burst, tokens + (nowMs - lastRefillMs) * ratePerSecond / 1000);
+            }
+            if (lastRefillMs < 0 || nowMs > lastRefillMs) lastRefillMs = nowMs;
+
+            if (tokens < 1) return false;
+
+            tokens -= 1;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import timber.log.Timber;
+
+/**
+ * Runs the {@link QcdmService} start up work as a set of named phases, so that the slow steps (the root checks,
+ * creating the named pipe, copying the diag config file, connecting to the MQTT broker) can run in parallel on a
+ * background executor instead of one after the other on the main thread.
+ * <p>
+ * A phase starts once all of the phases it depends on have finished. How long each phase takes is logged and recorded
+ * in the {@link PipelineMetrics}, along with how long it took from the start of the bootstrap to the first QCDM
+ * message (see {@link #markFirstMessage()}), so that the boot to first record latency can be tracked.
+ * <p>
+ * Each phase is expected to handle its own errors. If one throws anyway, the phases that depend on it are skipped.
+ *
+ * @since 0.6.0
+ */
+public class ServiceBootstrap
+{
+    static final String FIRST_MESSAGE_PHASE = "firstMessage";
+
+    private final ExecutorService executor;
+    private final PipelineMetrics metrics;
+    private final long startNanos = System.nanoTime();
+    private final AtomicBoolean firstMessageSeen = new AtomicBoolean(false);
+
+    /**
+     * @param executor The executor to run the background phases on.
+     * @param metrics  The metrics to record the phase durations in.
+     */
+    public ServiceBootstrap(ExecutorService executor, PipelineMetrics metrics)
+    {
+        this.executor = executor;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Runs a phase on the background executor once its dependencies have finished.
+     *
+     * @param phase        The name of the phase, for the logs and metrics.
+     * @param work         The work to do.
+     * @param dependencies The phases that have to finish first.
+     * @return A future that completes with the result of the work.
+     */
+    public <T> CompletableFuture<T> supplyPhase(String phase, Supplier<T> work, CompletableFuture<?>... dependencies)
+    {
+        return CompletableFuture.allOf(dependencies)
+                .thenApplyAsync(ignored -> timePhase(phase, work), executor)
+                .whenComplete((result, throwable) -> {
+                    if (throwable != null) Timber.e(throwable, "The %s start up phase did not complete", phase);
+                });
+    }
+
+    /**
+     * Runs a phase that does not produce a result on the background executor once its dependencies have finished.
+     *
+     * @see #supplyPhase(String, Supplier, CompletableFuture[])
+     */
+    public CompletableFuture<Void> runPhase(String phase, Runnable work, CompletableFuture<?>... dependencies)
+    {
+        return supplyPhase(phase, () -> {
+            work.run();
+            return null;
+        }, dependencies);
+    }
+
+    /**
+     * Runs a phase on the calling thread, for the steps that have to happen on the main thread.
+     *
+     * @param phase The name of the phase, for the logs and metrics.
+     * @param work  The work to do.
+     */
+    public void runPhaseNow(String phase, Runnable work)
+    {
+        timePhase(phase, () -> {
+            work.run();
+            return null;
+        });
+    }
+
+    /**
+     * Records the time from the start of the bootstrap to the first QCDM message read from diag_revealer. Only the
+     * first call has any effect, so this is cheap enough to call for every message.
+     */
+    public void markFirstMessage()
+    {
+        if (firstMessageSeen.get() || !firstMessageSeen.compareAndSet(false, true)) return;
+
+        final long elapsedMs = (System.nanoTime() - startNanos) / 1_000_000;
+        Timber.i("Received the first QCDM message %d ms after the service started", elapsedMs);
+        metrics.recordStartupPhase(FIRST_MESSAGE_PHASE, elapsedMs);
+    }
+
+    private <T> T timePhase(String phase, Supplier<T> work)
+    {
+        final long phaseStartNanos = System.nanoTime();
+        try
+        {
+            return work.get();
+        } finally
+        {
+            final long durationMs = (System.nanoTime() - phaseStartNanos) / 1_000_000;
+            Timber.i("The %s start up phase took %d ms", phase, durationMs);
+            metrics.recordStartupPhase(phase, durationMs);
+        }
+    }
+}
@@ -7,8 +7,15 @@ public class ServiceStatusMessage
 {
     // Message types
     public static final int SERVICE_LOCATION_MESSAGE = 1;
+    /**
+     * The data for this message type is a {@link RecordStatus}.
+     */
     public static final int SERVICE_RECORD_LOGGED_MESSAGE = 2;
     public static final int SERVICE_GPS_LOCATION_PROVIDER_STATUS = 3;
+    /**
+     * The data for this message type is a {@link com.craxiom.networksurveyplus.metrics.MetricsSnapshot}.
+     */
+    public static final int SERVICE_PIPELINE_METRICS_MESSAGE = 4;
 
     /**
      * The message identifier.
@@ -35,4 +42,30 @@ public class ServiceStatusMessage
         GPS_PROVIDER_ENABLED,
         GPS_PROVIDER_DISABLED
     }
+
+    /**
+     * The record count and throughput of the QCDM pipeline.
+     * <p>
+     * The {@link ServiceStatusPublisher} reuses the same instance for every update, so listeners must copy out the
+     * values they need before returning from {@link IServiceStatusListener#onServiceStatusMessage(ServiceStatusMessage)}.
+     *
+     * @since 0.6.0
+     */
+    public static class RecordStatus
+    {
+        /**
+         * Overall record count since processing started, across all log files and MQTT connections.
+         */
+        public long recordCount;
+
+        /**
+         * The number of pcap records produced per second, averaged over the last second.
+         */
+        public double recordsPerSecond;
+
+        /**
+         * The number of QCDM frames decoded per second, averaged over the last second.
+         */
+        public double framesPerSecond;
+    }
 }
@@ -0,0 +1,193 @@
+package com.craxiom.networksurveyplus;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import timber.log.Timber;
+
+/**
+ * Publishes the record count and throughput of the QCDM pipeline to the {@link IServiceStatusListener}s at a fixed
+ * cadence instead of once per record.
+ * <p>
+ * The pipeline only increments the counters in {@link PipelineMetrics}; this class samples those counters every
+ * {@link #PUBLISH_INTERVAL_MS} and only notifies the listeners if something changed since the last update. The same
+ * {@link ServiceStatusMessage} and {@link ServiceStatusMessage.RecordStatus} instances are reused for every update so
+ * that publishing does not allocate.
+ *
+ * @since 0.6.0
+ */
+public class ServiceStatusPublisher
+{
+    /**
+     * Publish updates at 4 Hz, which is plenty fast for a human watching the UI.
+     */
+    static final int PUBLISH_INTERVAL_MS = 250;
+
+    /**
+     * The number of samples that make up the one second window used to calculate the per-second rates.
+     */
+    private static final int RATE_WINDOW_SAMPLES = 1_000 / PUBLISH_INTERVAL_MS;
+
+    private final Set<IServiceStatusListener> listeners = new CopyOnWriteArraySet<>();
+    private final PipelineMetrics metrics;
+
+    private final ServiceStatusMessage.RecordStatus recordStatus = new ServiceStatusMessage.RecordStatus();
+    private final ServiceStatusMessage recordStatusMessage = new ServiceStatusMessage(ServiceStatusMessage.SERVICE_RECORD_LOGGED_MESSAGE, recordStatus);
+
+    // Ring buffers of the previous samples so the rates can be calculated over a sliding one second window
+    private final long[] sampleTimesNanos = new long[RATE_WINDOW_SAMPLES + 1];
+    private final long[] sampleRecordCounts = new long[RATE_WINDOW_SAMPLES + 1];
+    private final long[] sampleFrameCounts = new long[RATE_WINDOW_SAMPLES + 1];
+    private int sampleIndex = 0;
+    private int sampleCount = 0;
+
+    private long lastPublishedRecordCount = -1;
+    private double lastPublishedRecordRate = -1;
+    private double lastPublishedFrameRate = -1;
+
+    private final Runnable publishRunnable = this::publishOnSchedule;
+    private volatile Handler handler;
+
+    /**
+     * Constructs a new publisher.
+     *
+     * @param metrics The metrics registry to pull the record and frame counts from.
+     */
+    public ServiceStatusPublisher(PipelineMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts publishing status updates on the provided handler's thread.
+     *
+     * @param handler The handler to schedule the periodic updates on.
+     */
+    public void start(Handler handler)
+    {
+        this.handler = handler;
+        handler.postDelayed(publishRunnable, PUBLISH_INTERVAL_MS);
+    }
+
+    /**
+     * Stops publishing status updates.
+     */
+    public void stop()
+    {
+        final Handler currentHandler = handler;
+        handler = null;
+        if (currentHandler != null) currentHandler.removeCallbacks(publishRunnable);
+    }
+
+    /**
+     * Adds a status listener.
+     *
+     * @param listener The listener to add.
+     */
+    public void registerListener(IServiceStatusListener listener)
+    {
+        listeners.add(listener);
+
+        // Make sure the new listener gets the current values on the next update, even if nothing has changed
+        lastPublishedRecordCount = -1;
+    }
+
+    /**
+     * Removes a status listener.
+     *
+     * @param listener The listener to remove.
+     */
+    public void unregisterListener(IServiceStatusListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Immediately sends the provided message to all the listeners. This is intended for messages that are already
+     * infrequent, such as the periodic metrics snapshot.
+     *
+     * @param statusMessage The message to send.
+     */
+    public void notifyListeners(ServiceStatusMessage statusMessage)
+    {
+        for (IServiceStatusListener listener : listeners)
+        {
+            try
+            {
+                listener.onServiceStatusMessage(statusMessage);
+            } catch (Exception e)
+            {
+                Timber.e(e, "Unable to notify a Status Listener because of an exception");
+            }
+        }
+    }
+
+    private void publishOnSchedule()
+    {
+        try
+        {
+            publishStatus(SystemClock.elapsedRealtimeNanos());
+        } catch (Exception e)
+        {
+            Timber.e(e, "Could not publish the record status");
+        }
+
+        final Handler currentHandler = handler;
+        if (currentHandler != null) currentHandler.postDelayed(publishRunnable, PUBLISH_INTERVAL_MS);
+    }
+
+    /**
+     * Takes a sample of the pipeline counters, and if the count or rates have changed since the last update, notifies
+     * the listeners of the latest values.
+     *
+     * @param nowNanos The current monotonic time in nanoseconds.
+     * @return True if the listeners were notified, false if nothing changed or there are no listeners.
+     */
+    boolean publishStatus(long nowNanos)
+    {
+        final long recordCount = metrics.getRecordsProcessed();
+        final long frameCount = metrics.getFramesDecoded();
+
+        sampleTimesNanos[sampleIndex] = nowNanos;
+        sampleRecordCounts[sampleIndex] = recordCount;
+        sampleFrameCounts[sampleIndex] = frameCount;
+        if (sampleCount < sampleTimesNanos.length) sampleCount++;
+
+        // The oldest sample in the ring is the one that will be overwritten next
+        final int oldestIndex = sampleCount < sampleTimesNanos.length ? 0 : (sampleIndex + 1) % sampleTimesNanos.length;
+        sampleIndex = (sampleIndex + 1) % sampleTimesNanos.length;
+
+        final long elapsedNanos = nowNanos - sampleTimesNanos[oldestIndex];
+        final double recordRate = getRate(recordCount - sampleRecordCounts[oldestIndex], elapsedNanos);
+        final double frameRate = getRate(frameCount - sampleFrameCounts[oldestIndex], elapsedNanos);
+
+        if (listeners.isEmpty()) return false;
+
+        if (recordCount == lastPublishedRecordCount && recordRate == lastPublishedRecordRate && frameRate == lastPublishedFrameRate)
+        {
+            return false;
+        }
+
+        lastPublishedRecordCount = recordCount;
+        lastPublishedRecordRate = recordRate;
+        lastPublishedFrameRate = frameRate;
+
+        recordStatus.recordCount = recordCount;
+        recordStatus.recordsPerSecond = recordRate;
+        recordStatus.framesPerSecond = frameRate;
+        notifyListeners(recordStatusMessage);
+
+        return true;
+    }
+
+    private static double getRate(long delta, long elapsedNanos)
+    {
+        if (elapsedNanos <= 0) return 0;
+        return delta * 1_000_000_000.0 / elapsedNanos;
+    }
+}
@@ -29,6 +29,20 @@ import timber.log.Timber;
  * <p>
  * Worthy of note is that the `length` does not include the type or length bytes.
  * <p>
+ * The above is version 1 of the framing. Version 1 can't describe messages longer than 64 KB and uses a wall clock
+ * timestamp, so diag_revealer can also be started with version 2 of the framing. A version 2 stream starts with a
+ * version 1 message of type {@link #MESSAGE_TYPE_FRAMING_VERSION} whose 2 byte payload is the framing version, and
+ * every message after that has a 20 byte header (all fields little endian):
+ * <pre>
+ * *****************************************************************************************
+ * | Message Type |  Flags  | Payload Length | Sequence Number | Timestamp (ns) | Payload |
+ * |   2 bytes    | 2 bytes |    4 bytes     |     4 bytes     |    8 bytes     | n bytes |
+ * *****************************************************************************************
+ * </pre>
+ * The sequence number increments for every message so that lost messages can be detected, and the timestamp is
+ * CLOCK_BOOTTIME, the same clock as {@link android.os.SystemClock#elapsedRealtimeNanos()}. See
+ * {@link com.craxiom.networksurveyplus.util.DiagRevealerFrameReader} for the reader that handles both versions.
+ * <p>
  * The general structure of the Diag Revealer message for a log record is:
  * <pre>
  * *******************************************************
@@ -41,10 +55,31 @@ import timber.log.Timber;
  */
 public class DiagRevealerMessage
 {
+    /**
+     * The message type diag_revealer uses to announce which version of the framing follows.
+     *
+     * @since 0.6.0
+     */
+    public static final int MESSAGE_TYPE_FRAMING_VERSION = 4;
+
+    /**
+     * The original framing with a 2 byte length and a wall clock timestamp.
+     *
+     * @since 0.6.0
+     */
+    public static final int FRAMING_V1 = 1;
+
+    /**
+     * The framing with a 4 byte length, a sequence number, and a monotonic nanosecond timestamp.
+     *
+     * @since 0.6.0
+     */
+    public static final int FRAMING_V2 = 2;
+
     public final DiagRevealerMessageHeader header;
 
     // The instance variables if the messageType == 1
-    private long timestamp;
+    private long timestampMicros;
     public byte[] payload;
 
     // The instance variables if the messageType == 2 || 3
@@ -54,14 +89,15 @@ public class DiagRevealerMessage
      * Creates a Diag Revealer message object assuming the messageType == 1. In other words, the file name variable
      * will be null and the timestamp and payload are set.
      *
-     * @param header    The header which specifies the message type and message length.
-     * @param timestamp The timestamp for this Diag Revealer message.
-     * @param payload   The byte array containing the QCDM message as a payload.
+     * @param header          The header which specifies the message type and message length.
+     * @param timestampMicros The time diag_revealer read this message from /dev/diag, in microseconds since the epoch,
+     *                        or 0 if the time is not known.
+     * @param payload         The byte array containing the QCDM message as a payload.
      */
-    public DiagRevealerMessage(DiagRevealerMessageHeader header, long timestamp, byte[] payload)
+    public DiagRevealerMessage(DiagRevealerMessageHeader header, long timestampMicros, byte[] payload)
     {
         this.header = header;
-        this.timestamp = timestamp;
+        this.timestampMicros = timestampMicros;
         //noinspection AssignmentOrReturnOfFieldWithMutableType
         this.payload = payload;
     }
@@ -105,12 +141,13 @@ public class DiagRevealerMessage
                     return null;
                 }
 
-                final long timestamp = ParserUtils.getLong(messageBytes, 0, java.nio.ByteOrder.LITTLE_ENDIAN);
+                // The timestamp is a double holding the POSIX time in seconds
+                final double timestampSeconds = Double.longBitsToDouble(ParserUtils.getLong(messageBytes, 0, java.nio.ByteOrder.LITTLE_ENDIAN));
 
                 // The payload runs from just after the timestamp to the end of the message
                 final byte[] payload = Arrays.copyOfRange(messageBytes, 8, header.messageLength);
 
-                return new DiagRevealerMessage(header, timestamp, payload);
+                return new DiagRevealerMessage(header, (long) (timestampSeconds * 1_000_000), payload);
             } else if (header.messageType == 2 || header.messageType == 3)
             {
                 // The entire payload is just the filename that is either being started (2) or ended (3)
@@ -129,13 +166,23 @@ public class DiagRevealerMessage
         }
     }
 
+    /**
+     * @return The time diag_revealer read this message from /dev/diag, in microseconds since the epoch, or 0 if the
+     * time is not known.
+     * @since 0.6.0
+     */
+    public long getTimestampMicros()
+    {
+        return timestampMicros;
+    }
+
     @SuppressWarnings("NullableProblems")
     @Override
     public String toString()
     {
         return "DiagRevealerMessage{" +
                 "header=" + header +
-                ", timestamp=" + timestamp +
+                ", timestampMicros=" + timestampMicros +
                 ", payload=" + ParserUtils.convertBytesToHexString(payload, 0, payload.length) +
                 ", fileName='" + fileName + '\'' +
                 '}';
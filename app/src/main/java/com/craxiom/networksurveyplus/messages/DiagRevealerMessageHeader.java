@@ -13,6 +13,7 @@ import timber.log.Timber;
  * 1: Represents a QCDM "Log" message.
  * 2: Represents the start of a new log file (typically qmdl or mi2log).
  * 3. Represents the end of a log file.
+ * 4. Announces the framing version used for the rest of the stream (see {@link DiagRevealerMessage}).
  * <p>
  * See {@link DiagRevealerMessage} for more details on the diag revealer message format.
  *
@@ -20,9 +21,46 @@ import timber.log.Timber;
  */
 public class DiagRevealerMessageHeader
 {
+    /**
+     * The length of the header when version 2 of the framing is in use.
+     *
+     * @since 0.6.0
+     */
+    public static final int V2_HEADER_LENGTH = 20;
+
+    /**
+     * Set in a version 2 header when diag_revealer has already deframed the QCDM message (see diag_revealer's "-l"
+     * option). The payload is then a 4 byte little endian Subscription ID followed by a single QCDM message that has
+     * no HDLC escaping, prefix, CRC, or trailing 0x7e.
+     *
+     * @since 0.6.0
+     */
+    public static final int FLAG_DEFRAMED = 0x0001;
+
     public final int messageType;
     public final int messageLength;
 
+    /**
+     * The flags field from a version 2 header, or 0 for version 1.
+     *
+     * @since 0.6.0
+     */
+    public final int flags;
+
+    /**
+     * The sequence number from a version 2 header (an unsigned 32 bit value), or 0 for version 1.
+     *
+     * @since 0.6.0
+     */
+    public final long sequenceNumber;
+
+    /**
+     * The CLOCK_BOOTTIME timestamp in nanoseconds from a version 2 header, or 0 for version 1.
+     *
+     * @since 0.6.0
+     */
+    public final long timestampNanos;
+
     /**
      * Constructs a new instance of the diag revealer message header.
      *
@@ -30,9 +68,27 @@ public class DiagRevealerMessageHeader
      * @param messageLength The length of the message (excludes the 4 byte header).
      */
     public DiagRevealerMessageHeader(int messageType, int messageLength)
+    {
+        this(messageType, messageLength, 0, 0, 0);
+    }
+
+    /**
+     * Constructs a new instance of a version 2 diag revealer message header.
+     *
+     * @param messageType    The message type (see the class javadoc for more details on the messageType field.
+     * @param messageLength  The length of the payload (excludes the 20 byte header).
+     * @param flags          The flags field.
+     * @param sequenceNumber The sequence number of the message.
+     * @param timestampNanos The CLOCK_BOOTTIME timestamp in nanoseconds.
+     * @since 0.6.0
+     */
+    public DiagRevealerMessageHeader(int messageType, int messageLength, int flags, long sequenceNumber, long timestampNanos)
     {
         this.messageType = messageType;
         this.messageLength = messageLength;
+        this.flags = flags;
+        this.sequenceNumber = sequenceNumber;
+        this.timestampNanos = timestampNanos;
     }
 
     /**
@@ -52,7 +108,8 @@ public class DiagRevealerMessageHeader
             }
 
             final short messageType = ParserUtils.getShort(headerBytes, 0, java.nio.ByteOrder.LITTLE_ENDIAN);
-            final short messageLength = ParserUtils.getShort(headerBytes, 2, java.nio.ByteOrder.LITTLE_ENDIAN);
+            // The length is unsigned, so lengths between 32 KB and 64 KB should not come out negative
+            final int messageLength = ParserUtils.getShort(headerBytes, 2, java.nio.ByteOrder.LITTLE_ENDIAN) & 0xFFFF;
 
             return new DiagRevealerMessageHeader(messageType, messageLength);
         } catch (Exception e)
@@ -62,12 +119,46 @@ public class DiagRevealerMessageHeader
         }
     }
 
+    /**
+     * Parses a version 2 header that the Diag Revealer C program adds on to the QCDM messages.
+     *
+     * @param headerBytes The message header bytes.
+     * @return null if the parsing was unsuccessful or the {@link DiagRevealerMessageHeader} object if a message could be parsed.
+     * @since 0.6.0
+     */
+    public static DiagRevealerMessageHeader parseDiagRevealerMessageHeaderV2(byte[] headerBytes)
+    {
+        try
+        {
+            if (headerBytes.length < V2_HEADER_LENGTH)
+            {
+                Timber.e("The provided header byte array must be at least %d bytes long", V2_HEADER_LENGTH);
+                return null;
+            }
+
+            final short messageType = ParserUtils.getShort(headerBytes, 0, java.nio.ByteOrder.LITTLE_ENDIAN);
+            final int flags = ParserUtils.getShort(headerBytes, 2, java.nio.ByteOrder.LITTLE_ENDIAN) & 0xFFFF;
+            final int messageLength = ParserUtils.getInteger(headerBytes, 4, java.nio.ByteOrder.LITTLE_ENDIAN);
+            final long sequenceNumber = ParserUtils.getInteger(headerBytes, 8, java.nio.ByteOrder.LITTLE_ENDIAN) & 0xFFFFFFFFL;
+            final long timestampNanos = ParserUtils.getLong(headerBytes, 12, java.nio.ByteOrder.LITTLE_ENDIAN);
+
+            return new DiagRevealerMessageHeader(messageType, messageLength, flags, sequenceNumber, timestampNanos);
+        } catch (Exception e)
+        {
+            Timber.e(e, "Could not parse an incoming diag_revelaer message header due to an exception.");
+            return null;
+        }
+    }
+
     @Override
     public String toString()
     {
         return "DiagRevealerMessageHeader{" +
                 "messageType=" + messageType +
                 ", messageLength=" + messageLength +
+                ", flags=" + flags +
+                ", sequenceNumber=" + sequenceNumber +
+                ", timestampNanos=" + timestampNanos +
                 '}';
     }
 }
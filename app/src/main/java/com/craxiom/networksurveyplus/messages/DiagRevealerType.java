@@ -20,7 +20,8 @@ public enum DiagRevealerType
     //@BoundEnumOption(2)
     START_LOG_FILE(2),
     //@BoundEnumOption(3)
-    END_LOG_FILE(3);
+    END_LOG_FILE(3),
+    FRAMING_VERSION(4);
 
     private static final DiagRevealerType[] VALUES = values();
 
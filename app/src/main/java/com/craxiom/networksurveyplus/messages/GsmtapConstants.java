@@ -14,6 +14,8 @@ public final class GsmtapConstants
     {
     }
 
+    public static final int GSMTAP_UDP_PORT = 4729;
+
     public static final int GSMTAP_TYPE_UM = 0x01;
     public static final int GSMTAP_TYPE_ABIS = 0x02;
     public static final int GSMTAP_TYPE_UM_BURST = 0x03;       /* raw burst bits */
@@ -0,0 +1,49 @@
+package com.craxiom.networksurveyplus.messages;
+
+/**
+ * The kind of cellular message a {@link PcapMessage} holds. Sinks can switch on this instead of on the Network Survey
+ * Messaging API message type string, which has to be hashed and compared for every message.
+ *
+ * @since 0.6.0
+ */
+public enum MessageKind
+{
+    GSM_SIGNALING(CraxiomConstants.GSM_SIGNALING_MESSAGE_TYPE),
+    UMTS_NAS(CraxiomConstants.UMTS_NAS_MESSAGE_TYPE),
+    WCDMA_RRC(CraxiomConstants.WCDMA_RRC_MESSAGE_TYPE),
+    LTE_RRC(CraxiomConstants.LTE_RRC_MESSAGE_TYPE),
+    LTE_MIB(CraxiomConstants.LTE_MIB_MESSAGE_TYPE),
+    LTE_NAS(CraxiomConstants.LTE_NAS_MESSAGE_TYPE),
+    UNKNOWN(null);
+
+    private final String messageType;
+
+    MessageKind(String messageType)
+    {
+        this.messageType = messageType;
+    }
+
+    /**
+     * @return The message type that follows the Network Survey Messaging API specification, or null for
+     * {@link #UNKNOWN}.
+     */
+    public String getMessageType()
+    {
+        return messageType;
+    }
+
+    /**
+     * @param messageType The Network Survey Messaging API message type.
+     * @return The message kind for the message type, or {@link #UNKNOWN} if it is not recognized.
+     */
+    public static MessageKind fromMessageType(String messageType)
+    {
+        if (messageType == null) return UNKNOWN;
+
+        for (MessageKind kind : values())
+        {
+            if (messageType.equals(kind.messageType)) return kind;
+        }
+        return UNKNOWN;
+    }
+}
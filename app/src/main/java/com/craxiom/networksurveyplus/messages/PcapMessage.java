@@ -1,18 +1,58 @@
 package com.craxiom.networksurveyplus.messages;
 
+import com.craxiom.networksurveyplus.util.RecordBufferPool;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * A simple wrapper for PCAP formatted byte arrays to allow for additional information to tag along with the pcap
  * record.
+ * <p>
+ * The messages created by the parsers also carry the values that went into the GSMTAP header (ARFCN, PCI, SFN,
+ * direction, SIM ID) and the capture time, so that the sinks can use them without reading them back out of the pcap
+ * record.
+ * <p>
+ * The messages created by the parsers hold their pcap record in an array from a {@link RecordBufferPool}, which can be
+ * longer than the record. Those messages are reference counted: the creator holds the first reference, a sink that
+ * keeps the message after {@link com.craxiom.networksurveyplus.IPcapMessageListener#onPcapMessage(PcapMessage)}
+ * returns has to {@link #retain()} it, and everyone that holds a reference has to {@link #release()} it when they are
+ * done. The array goes back to the pool with the last release, so the record must not be read after that.
  *
  * @since 0.5.0
  */
 public class PcapMessage
 {
     public static final int UNSET_CHANNEL_TYPE = -1;
+    public static final int UNSET_LOG_TYPE = -1;
+
+    /**
+     * The value of the ARFCN, PCI, SFN, subframe number, and SIM ID when they are not known.
+     *
+     * @since 0.6.0
+     */
+    public static final int UNSET_FIELD = -1;
+
+    private static final AtomicIntegerFieldUpdater<PcapMessage> REFERENCE_COUNT_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(PcapMessage.class, "referenceCount");
 
     private final byte[] pcapRecord;
+    private final int pcapRecordLength;
+    private final RecordBufferPool pool;
+    private final Object leakTracker;
+    private volatile int referenceCount = 1;
+    private byte[] exactPcapRecord;
     private final String messageType;
+    private final MessageKind messageKind;
     private final int channelType;
+    private final int logType;
+    private final int arfcn;
+    private final int pci;
+    private final int sfn;
+    private final int subframeNumber;
+    private final boolean uplink;
+    private final int simId;
+    private final long timestampMicros;
+    private final boolean recordMetadata;
 
     /**
      * Constructor for when the Channel Type does not need to be set.
@@ -35,10 +75,125 @@ public class PcapMessage
      *                    the GSMTAP channel (sub)types, see https://osmocom.org/projects/libosmocore/repository/revisions/master/entry/include/osmocom/core/gsmtap.h
      */
     public PcapMessage(byte[] pcapRecord, String messageType, int channelType)
+    {
+        this(pcapRecord, messageType, channelType, UNSET_LOG_TYPE);
+    }
+
+    /**
+     * Constructor that also records the QCDM log type the pcap record was created from.
+     *
+     * @param pcapRecord  The pcap record bytes.
+     * @param messageType The message type that follows the Network Survey Messaging API specification.
+     * @param channelType The GSMTAP Channel Type, or {@link #UNSET_CHANNEL_TYPE}.
+     * @param logType     The QCDM log type (e.g. 0xB0C0 for LTE RRC OTA), or {@link #UNSET_LOG_TYPE}.
+     * @since 0.6.0
+     */
+    public PcapMessage(byte[] pcapRecord, String messageType, int channelType, int logType)
+    {
+        this(pcapRecord, pcapRecord == null ? 0 : pcapRecord.length, null, MessageKind.fromMessageType(messageType),
+                messageType, channelType, logType, UNSET_FIELD, UNSET_FIELD, UNSET_FIELD, UNSET_FIELD, false, UNSET_FIELD,
+                0, false);
+    }
+
+    /**
+     * Constructor with all the record metadata, which is used by
+     * {@link com.craxiom.networksurveyplus.util.PcapUtils#createPcapMessage}.
+     *
+     * @param pcapRecord       The array holding the pcap record, which can be longer than the record.
+     * @param pcapRecordLength The length of the pcap record.
+     * @param pool             The pool the array came from, or null if it is not pooled.
+     * @param messageKind      The kind of message.
+     * @param channelType      The GSMTAP Channel Type, or {@link #UNSET_CHANNEL_TYPE}.
+     * @param logType          The QCDM log type, or {@link #UNSET_LOG_TYPE}.
+     * @param arfcn            The ARFCN, UARFCN, or EARFCN, or {@link #UNSET_FIELD}. Unlike the GSMTAP header, this is
+     *                         not limited to 14 bits.
+     * @param pci              The LTE PCI, or {@link #UNSET_FIELD}.
+     * @param sfn              The System Frame Number, or {@link #UNSET_FIELD}.
+     * @param subframeNumber   The subframe number, or {@link #UNSET_FIELD}.
+     * @param uplink           True if the message was sent on the uplink.
+     * @param simId            The SIM ID, or {@link #UNSET_FIELD}.
+     * @param timestampMicros  The capture time of the pcap record in microseconds since the epoch.
+     * @since 0.6.0
+     */
+    public PcapMessage(byte[] pcapRecord, int pcapRecordLength, RecordBufferPool pool, MessageKind messageKind,
+                       int channelType, int logType, int arfcn, int pci, int sfn, int subframeNumber, boolean uplink,
+                       int simId, long timestampMicros)
+    {
+        this(pcapRecord, pcapRecordLength, pool, messageKind, messageKind.getMessageType(), channelType, logType, arfcn,
+                pci, sfn, subframeNumber, uplink, simId, timestampMicros, true);
+    }
+
+    private PcapMessage(byte[] pcapRecord, int pcapRecordLength, RecordBufferPool pool, MessageKind messageKind,
+                        String messageType, int channelType, int logType, int arfcn, int pci, int sfn,
+                        int subframeNumber, boolean uplink, int simId, long timestampMicros, boolean recordMetadata)
     {
         this.pcapRecord = pcapRecord;
+        this.pcapRecordLength = pcapRecordLength;
+        this.pool = pool;
+        this.messageKind = messageKind;
         this.messageType = messageType;
         this.channelType = channelType;
+        this.logType = logType;
+        this.arfcn = arfcn;
+        this.pci = pci;
+        this.sfn = sfn;
+        this.subframeNumber = subframeNumber;
+        this.uplink = uplink;
+        this.simId = simId;
+        this.timestampMicros = timestampMicros;
+        this.recordMetadata = recordMetadata;
+        leakTracker = pool == null ? null : pool.track(this);
+    }
+
+    /**
+     * Adds a reference to this message, which is needed to hold on to it after the listener call returns.
+     *
+     * @return This message, to allow chaining.
+     * @throws IllegalStateException If the message has already been released by every holder.
+     * @since 0.6.0
+     */
+    public PcapMessage retain()
+    {
+        int count;
+        do
+        {
+            count = referenceCount;
+            if (count <= 0) throw new IllegalStateException("The pcap message has already been released");
+        } while (!REFERENCE_COUNT_UPDATER.compareAndSet(this, count, count + 1));
+
+        return this;
+    }
+
+    /**
+     * Removes a reference to this message. The pcap record array is given back to the pool when the last reference is
+     * removed, so the record must not be read after this call.
+     *
+     * @throws IllegalStateException If the message has already been released by every holder.
+     * @since 0.6.0
+     */
+    public void release()
+    {
+        final int count = REFERENCE_COUNT_UPDATER.decrementAndGet(this);
+        if (count < 0)
+        {
+            REFERENCE_COUNT_UPDATER.incrementAndGet(this);
+            throw new IllegalStateException("The pcap message has already been released");
+        }
+
+        if (count == 0 && pool != null)
+        {
+            pool.untrack(leakTracker);
+            pool.release(pcapRecord);
+        }
+    }
+
+    /**
+     * @return The number of holders that have not released this message yet.
+     * @since 0.6.0
+     */
+    public int getReferenceCount()
+    {
+        return referenceCount;
     }
 
     /**
@@ -49,11 +204,42 @@ public class PcapMessage
         return channelType != UNSET_CHANNEL_TYPE;
     }
 
+    /**
+     * @return The pcap record in an array of its exact length. For a pooled message this is a copy that is made on the
+     * first call, so the sinks should use {@link #getPcapRecordBuffer()} and {@link #getPcapRecordLength()} instead.
+     */
     public byte[] getPcapRecord()
+    {
+        if (pcapRecord == null || pcapRecord.length == pcapRecordLength) return pcapRecord;
+
+        if (exactPcapRecord == null)
+        {
+            final byte[] copy = new byte[pcapRecordLength];
+            System.arraycopy(pcapRecord, 0, copy, 0, pcapRecordLength);
+            exactPcapRecord = copy;
+        }
+        return exactPcapRecord;
+    }
+
+    /**
+     * @return The array that holds the pcap record, starting at index 0. It can be longer than the record, so it must
+     * be used along with {@link #getPcapRecordLength()}.
+     * @since 0.6.0
+     */
+    public byte[] getPcapRecordBuffer()
     {
         return pcapRecord;
     }
 
+    /**
+     * @return The length of the pcap record in bytes.
+     * @since 0.6.0
+     */
+    public int getPcapRecordLength()
+    {
+        return pcapRecordLength;
+    }
+
     /**
      * @return The message type that follows the Network Survey Messaging API specification.
      */
@@ -62,6 +248,15 @@ public class PcapMessage
         return messageType;
     }
 
+    /**
+     * @return The kind of message, which is {@link MessageKind#UNKNOWN} if the message type is not recognized.
+     * @since 0.6.0
+     */
+    public MessageKind getMessageKind()
+    {
+        return messageKind;
+    }
+
     /**
      * @return The GSMTAP Channel Type of the Cellular Logical Channel that this message was sent over. This
      * GSM Channel Type (Sometimes call subtype) is represented as an integer. More information on
@@ -71,4 +266,86 @@ public class PcapMessage
     {
         return channelType;
     }
+
+    /**
+     * @return The QCDM log type that the pcap record was created from, or {@link #UNSET_LOG_TYPE} if it is not known.
+     * @since 0.6.0
+     */
+    public int getLogType()
+    {
+        return logType;
+    }
+
+    /**
+     * @return True if the parser filled in the record metadata (ARFCN, PCI, SFN, direction, SIM ID and capture time).
+     * When false, those values have to be read from the pcap record.
+     * @since 0.6.0
+     */
+    public boolean hasRecordMetadata()
+    {
+        return recordMetadata;
+    }
+
+    /**
+     * @return The ARFCN, UARFCN, or EARFCN, or {@link #UNSET_FIELD} if it is not known.
+     * @since 0.6.0
+     */
+    public int getArfcn()
+    {
+        return arfcn;
+    }
+
+    /**
+     * @return The LTE PCI, or {@link #UNSET_FIELD} if it is not known.
+     * @since 0.6.0
+     */
+    public int getPci()
+    {
+        return pci;
+    }
+
+    /**
+     * @return The System Frame Number, or {@link #UNSET_FIELD} if it is not known.
+     * @since 0.6.0
+     */
+    public int getSfn()
+    {
+        return sfn;
+    }
+
+    /**
+     * @return The subframe number, or {@link #UNSET_FIELD} if it is not known.
+     * @since 0.6.0
+     */
+    public int getSubframeNumber()
+    {
+        return subframeNumber;
+    }
+
+    /**
+     * @return True if the message was sent on the uplink, false if it was sent on the downlink or it is not known.
+     * @since 0.6.0
+     */
+    public boolean isUplink()
+    {
+        return uplink;
+    }
+
+    /**
+     * @return The SIM ID, or {@link #UNSET_FIELD} if it is not known.
+     * @since 0.6.0
+     */
+    public int getSimId()
+    {
+        return simId;
+    }
+
+    /**
+     * @return The capture time of the pcap record in microseconds since the epoch, or 0 if it is not known.
+     * @since 0.6.0
+     */
+    public long getTimestampMicros()
+    {
+        return timestampMicros;
+    }
 }
@@ -47,6 +47,7 @@ public class QcdmMessage
      */
     public final byte[] messageBytes;
     private final int simId;
+    private final long captureTimeMicros;
 
     /**
      * Constructs a new {@link QcdmMessage} object.
@@ -57,10 +58,27 @@ public class QcdmMessage
      *                     each SIM card in the device.
      */
     public QcdmMessage(byte[] messageBytes, int simId)
+    {
+        this(messageBytes, simId, 0);
+    }
+
+    /**
+     * Constructs a new {@link QcdmMessage} object.
+     *
+     * @param messageBytes      The message bytes. This is with the QCDM header (0x98, 0x01, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00)
+     *                          and footer (0x7e) removed.
+     * @param simId             The Subscription ID associated with the QCDM message. This starts at 0, and increments
+     *                          for each SIM card in the device.
+     * @param captureTimeMicros The time diag_revealer read this message from /dev/diag, in microseconds since the
+     *                          epoch, or 0 if the time is not known.
+     * @since 0.6.0
+     */
+    public QcdmMessage(byte[] messageBytes, int simId, long captureTimeMicros)
     {
         //noinspection AssignmentOrReturnOfFieldWithMutableType
         this.messageBytes = messageBytes;
         this.simId = simId;
+        this.captureTimeMicros = captureTimeMicros;
     }
 
     /**
@@ -110,6 +128,16 @@ public class QcdmMessage
         return simId;
     }
 
+    /**
+     * @return The time diag_revealer read this message from /dev/diag, in microseconds since the epoch, or 0 if the
+     * time is not known.
+     * @since 0.6.0
+     */
+    public long getCaptureTimeMicros()
+    {
+        return captureTimeMicros;
+    }
+
     @SuppressWarnings("NullableProblems")
     @Override
     public String toString()
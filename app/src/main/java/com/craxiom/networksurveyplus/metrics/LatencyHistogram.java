@@ -0,0 +1,173 @@
+package com.craxiom.networksurveyplus.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram that uses the same log-linear bucketing approach as HdrHistogram.
+ * <p>
+ * Each power of two range is split into {@link #SUB_BUCKET_COUNT} linear sub-buckets, which bounds the relative error
+ * of any reported value to 1 / {@link #SUB_BUCKET_COUNT} (12.5%) while keeping the whole histogram in a small fixed
+ * size array. Recording a value is a couple of bit operations and an atomic increment, so it is safe to call from the
+ * hot path of the QCDM processing pipeline.
+ *
+ * @since 0.6.0
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values are tracked up to 2^40 nanoseconds (a bit over 18 minutes). Anything larger lands in the last bucket.
+     */
+    private static final int MAX_MAGNITUDE = 40;
+    private static final int BUCKET_COUNT = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records a single latency value.
+     *
+     * @param nanos The latency in nanoseconds. Negative values are treated as 0.
+     */
+    public void recordNanos(long nanos)
+    {
+        if (nanos < 0) nanos = 0;
+
+        buckets.incrementAndGet(getBucketIndex(nanos));
+        totalCount.increment();
+        totalNanos.add(nanos);
+
+        long currentMax = maxNanos.get();
+        while (nanos > currentMax && !maxNanos.compareAndSet(currentMax, nanos))
+        {
+            currentMax = maxNanos.get();
+        }
+    }
+
+    /**
+     * @return A point in time view of this histogram. Because recording is lock-free, a value that is recorded while
+     * the snapshot is being taken might show up in some of the stats but not others.
+     */
+    public HistogramSnapshot snapshot()
+    {
+        final long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+
+        final long max = maxNanos.get();
+        final long mean = count == 0 ? 0 : totalNanos.sum() / count;
+
+        return new HistogramSnapshot(count, mean,
+                getValueAtPercentile(counts, count, 50.0, max),
+                getValueAtPercentile(counts, count, 90.0, max),
+                getValueAtPercentile(counts, count, 99.0, max),
+                max);
+    }
+
+    /**
+     * @return The total number of values recorded in this histogram.
+     */
+    public long getCount()
+    {
+        return totalCount.sum();
+    }
+
+    /**
+     * Finds the bucket that the provided value belongs in.
+     *
+     * @param value The (non-negative) value to find the bucket for.
+     * @return The index of the bucket.
+     */
+    static int getBucketIndex(long value)
+    {
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+
+        final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        final int index = (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+
+        return Math.min(index, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @param index The bucket index.
+     * @return The largest value that falls in the specified bucket.
+     */
+    static long getBucketUpperBound(int index)
+    {
+        if (index < SUB_BUCKET_COUNT) return index;
+
+        final int magnitude = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        final int subBucket = index % SUB_BUCKET_COUNT;
+        final int shift = magnitude - SUB_BUCKET_BITS;
+        final long lowerBound = ((long) (SUB_BUCKET_COUNT + subBucket)) << shift;
+
+        return lowerBound + (1L << shift) - 1;
+    }
+
+    private static long getValueAtPercentile(long[] counts, long totalCount, double percentile, long max)
+    {
+        if (totalCount == 0) return 0;
+
+        final long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long runningCount = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            runningCount += counts[i];
+            if (runningCount >= countAtPercentile)
+            {
+                return Math.min(getBucketUpperBound(i), max);
+            }
+        }
+
+        return max;
+    }
+
+    /**
+     * An immutable summary of a {@link LatencyHistogram}. All values are in nanoseconds.
+     *
+     * @since 0.6.0
+     */
+    public static final class HistogramSnapshot
+    {
+        public final long count;
+        public final long meanNanos;
+        public final long p50Nanos;
+        public final long p90Nanos;
+        public final long p99Nanos;
+        public final long maxNanos;
+
+        HistogramSnapshot(long count, long meanNanos, long p50Nanos, long p90Nanos, long p99Nanos, long maxNanos)
+        {
+            this.count = count;
+            this.meanNanos = meanNanos;
+            this.p50Nanos = p50Nanos;
+            this.p90Nanos = p90Nanos;
+            this.p99Nanos = p99Nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "HistogramSnapshot{" +
+                    "count=" + count +
+                    ", meanNanos=" + meanNanos +
+                    ", p50Nanos=" + p50Nanos +
+                    ", p90Nanos=" + p90Nanos +
+                    ", p99Nanos=" + p99Nanos +
+                    ", maxNanos=" + maxNanos +
+                    '}';
+        }
+    }
+}
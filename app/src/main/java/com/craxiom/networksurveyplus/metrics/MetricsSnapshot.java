@@ -0,0 +1,265 @@
+package com.craxiom.networksurveyplus.metrics;
+
+import java.util.Map;
+
+/**
+ * An immutable, point in time copy of the {@link PipelineMetrics}. Snapshots are created periodically by the
+ * {@link com.craxiom.networksurveyplus.QcdmService} and handed out to status listeners and the MQTT health topic.
+ *
+ * @since 0.6.0
+ */
+public class MetricsSnapshot
+{
+    private final long timestampMs;
+    private final long framesDecoded;
+    private final long recordsProcessed;
+    private final Map<Integer, Long> logCodeCounts;
+    private final long[] dropCounts;
+    private final long[] byteCounts;
+    private final long[] duplicatesSuppressed;
+    private final long[] sampledOut;
+    private final LatencyHistogram.HistogramSnapshot decodeLatency;
+    private final Map<String, LatencyHistogram.HistogramSnapshot> sinkLatencies;
+    private final long spoolDepthRecords;
+    private final long spoolDepthBytes;
+    private final long diagRevealerRestarts;
+    private final long pipelineStalls;
+    private final long lastTimeToRecoverMs;
+    private final long maxTimeToRecoverMs;
+    private final Map<String, Long> startupPhasesMs;
+
+    MetricsSnapshot(long timestampMs, long framesDecoded, long recordsProcessed, Map<Integer, Long> logCodeCounts,
+                    long[] dropCounts, long[] byteCounts, long[] duplicatesSuppressed, long[] sampledOut,
+                    LatencyHistogram.HistogramSnapshot decodeLatency,
+                    Map<String, LatencyHistogram.HistogramSnapshot> sinkLatencies, long spoolDepthRecords,
+                    long spoolDepthBytes, long diagRevealerRestarts, long pipelineStalls, long lastTimeToRecoverMs,
+                    long maxTimeToRecoverMs, Map<String, Long> startupPhasesMs)
+    {
+        this.timestampMs = timestampMs;
+        this.framesDecoded = framesDecoded;
+        this.recordsProcessed = recordsProcessed;
+        this.logCodeCounts = logCodeCounts;
+        //noinspection AssignmentOrReturnOfFieldWithMutableType
+        this.dropCounts = dropCounts;
+        //noinspection AssignmentOrReturnOfFieldWithMutableType
+        this.byteCounts = byteCounts;
+        //noinspection AssignmentOrReturnOfFieldWithMutableType
+        this.duplicatesSuppressed = duplicatesSuppressed;
+        //noinspection AssignmentOrReturnOfFieldWithMutableType
+        this.sampledOut = sampledOut;
+        this.decodeLatency = decodeLatency;
+        this.sinkLatencies = sinkLatencies;
+        this.spoolDepthRecords = spoolDepthRecords;
+        this.spoolDepthBytes = spoolDepthBytes;
+        this.diagRevealerRestarts = diagRevealerRestarts;
+        this.pipelineStalls = pipelineStalls;
+        this.lastTimeToRecoverMs = lastTimeToRecoverMs;
+        this.maxTimeToRecoverMs = maxTimeToRecoverMs;
+        this.startupPhasesMs = startupPhasesMs;
+    }
+
+    /**
+     * @return The wall clock time (in milliseconds since the epoch) that this snapshot was taken.
+     */
+    public long getTimestampMs()
+    {
+        return timestampMs;
+    }
+
+    /**
+     * @return The number of QCDM frames that passed the CRC check.
+     */
+    public long getFramesDecoded()
+    {
+        return framesDecoded;
+    }
+
+    /**
+     * @return The number of pcap records produced.
+     */
+    public long getRecordsProcessed()
+    {
+        return recordsProcessed;
+    }
+
+    /**
+     * @return The number of QCDM log messages received for each log code, sorted by log code.
+     */
+    public Map<Integer, Long> getLogCodeCounts()
+    {
+        return logCodeCounts;
+    }
+
+    /**
+     * @param reason The drop reason to get the count for.
+     * @return The number of frames or records dropped for the specified reason.
+     */
+    public long getDropCount(PipelineMetrics.DropReason reason)
+    {
+        return dropCounts[reason.ordinal()];
+    }
+
+    /**
+     * @return The number of frames or records dropped for any reason.
+     */
+    public long getTotalDropCount()
+    {
+        long total = 0;
+        for (long dropCount : dropCounts)
+        {
+            total += dropCount;
+        }
+        return total;
+    }
+
+    /**
+     * @param stage The pipeline stage to get the byte count for.
+     * @return The number of bytes processed by the specified stage.
+     */
+    public long getByteCount(PipelineMetrics.ByteStage stage)
+    {
+        return byteCounts[stage.ordinal()];
+    }
+
+    /**
+     * @param technology The technology to get the count for.
+     * @return The number of repeated broadcast messages for the specified technology that were not sent to the sinks.
+     */
+    public long getDuplicatesSuppressed(PipelineMetrics.Technology technology)
+    {
+        return duplicatesSuppressed[technology.ordinal()];
+    }
+
+    /**
+     * @return The number of repeated broadcast messages that were not sent to the sinks.
+     */
+    public long getTotalDuplicatesSuppressed()
+    {
+        long total = 0;
+        for (long count : duplicatesSuppressed)
+        {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @param technology The technology to get the count for.
+     * @return The number of pcap records for the specified technology that were sampled out.
+     */
+    public long getSampledOut(PipelineMetrics.Technology technology)
+    {
+        return sampledOut[technology.ordinal()];
+    }
+
+    /**
+     * @return The number of pcap records that were sampled out.
+     */
+    public long getTotalSampledOut()
+    {
+        long total = 0;
+        for (long count : sampledOut)
+        {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return The latency of converting a QCDM message to a pcap record.
+     */
+    public LatencyHistogram.HistogramSnapshot getDecodeLatency()
+    {
+        return decodeLatency;
+    }
+
+    /**
+     * @return The latency of each sink, keyed by the sink name.
+     */
+    public Map<String, LatencyHistogram.HistogramSnapshot> getSinkLatencies()
+    {
+        return sinkLatencies;
+    }
+
+    /**
+     * @return The number of records waiting in the MQTT store-and-forward spool.
+     */
+    public long getSpoolDepthRecords()
+    {
+        return spoolDepthRecords;
+    }
+
+    /**
+     * @return The number of bytes the MQTT store-and-forward spool is using on disk.
+     */
+    public long getSpoolDepthBytes()
+    {
+        return spoolDepthBytes;
+    }
+
+    /**
+     * @return The number of times the diag_revealer process has been restarted.
+     */
+    public long getDiagRevealerRestarts()
+    {
+        return diagRevealerRestarts;
+    }
+
+    /**
+     * @return The number of times the watchdog found the pipeline stalled.
+     */
+    public long getPipelineStalls()
+    {
+        return pipelineStalls;
+    }
+
+    /**
+     * @return The time in milliseconds it took the pipeline to recover from its last outage, or -1 if it has not had
+     * one.
+     */
+    public long getLastTimeToRecoverMs()
+    {
+        return lastTimeToRecoverMs;
+    }
+
+    /**
+     * @return The longest time in milliseconds it took the pipeline to recover from an outage, or -1 if it has not had
+     * one.
+     */
+    public long getMaxTimeToRecoverMs()
+    {
+        return maxTimeToRecoverMs;
+    }
+
+    /**
+     * @return How long each phase of the service start up took in milliseconds, sorted by phase name.
+     */
+    public Map<String, Long> getStartupPhasesMs()
+    {
+        return startupPhasesMs;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder drops = new StringBuilder();
+        for (PipelineMetrics.DropReason reason : PipelineMetrics.DropReason.values())
+        {
+            drops.append(reason.name()).append('=').append(dropCounts[reason.ordinal()]).append(' ');
+        }
+
+        return "MetricsSnapshot{" +
+                "timestampMs=" + timestampMs +
+                ", framesDecoded=" + framesDecoded +
+                ", recordsProcessed=" + recordsProcessed +
+                ", drops=[" + drops.toString().trim() + ']' +
+                ", duplicatesSuppressed=" + getTotalDuplicatesSuppressed() +
+                ", sampledOut=" + getTotalSampledOut() +
+                ", decodeLatency=" + decodeLatency +
+                ", spoolDepthRecords=" + spoolDepthRecords +
+                ", diagRevealerRestarts=" + diagRevealerRestarts +
+                ", pipelineStalls=" + pipelineStalls +
+                ", lastTimeToRecoverMs=" + lastTimeToRecoverMs +
+                '}';
+    }
+}
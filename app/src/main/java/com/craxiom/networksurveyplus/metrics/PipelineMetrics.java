@@ -0,0 +1,603 @@
+package com.craxiom.networksurveyplus.metrics;
+
+import com.craxiom.networksurveyplus.messages.CraxiomConstants;
+import com.craxiom.networksurveyplus.messages.MessageKind;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free registry of counters and latency histograms for the QCDM processing pipeline (FIFO reader -> QCDM
+ * deframer -> parsers -> sinks).
+ * <p>
+ * All the update methods on this class are safe to call from any thread and do not allocate once a counter has been
+ * created, so they can be called for every QCDM frame. Use {@link #snapshot()} to get a consistent-enough view of the
+ * metrics for reporting.
+ *
+ * @since 0.6.0
+ */
+public class PipelineMetrics
+{
+    /**
+     * QCDM log codes are 16-bit values, so a flat array indexed by the log code avoids boxing on the hot path.
+     */
+    private static final int LOG_CODE_COUNT = 0x10000;
+
+    private final AtomicReferenceArray<LongAdder> logCodeCounters = new AtomicReferenceArray<>(LOG_CODE_COUNT);
+    private final LongAdder[] dropCounters = createCounters(DropReason.values().length);
+    private final LongAdder[] byteCounters = createCounters(ByteStage.values().length);
+    private final LongAdder framesDecoded = new LongAdder();
+    private final LongAdder recordsProcessed = new LongAdder();
+    private final LongAdder[] technologyRecordCounters = createCounters(Technology.values().length);
+    private final LongAdder[] duplicatesSuppressedCounters = createCounters(Technology.values().length);
+    private final LongAdder[] sampledOutCounters = createCounters(Technology.values().length);
+    private final LongAdder mqttMessagesPublished = new LongAdder();
+    private volatile long spoolDepthRecords;
+    private volatile long spoolDepthBytes;
+    private final LongAdder diagRevealerRestarts = new LongAdder();
+    private final LongAdder pipelineStalls = new LongAdder();
+    private final AtomicLong pipelineDownSinceNanos = new AtomicLong();
+    private volatile long lastTimeToRecoverMs = -1;
+    private volatile long maxTimeToRecoverMs = -1;
+    private final LatencyHistogram decodeLatency = new LatencyHistogram();
+    private final Map<String, LatencyHistogram> sinkLatencies = new ConcurrentHashMap<>();
+    private final Map<String, Long> startupPhasesMs = new ConcurrentHashMap<>();
+
+    /**
+     * Records that a QCDM frame made it through deframing and passed the CRC check.
+     */
+    public void incrementFramesDecoded()
+    {
+        framesDecoded.increment();
+    }
+
+    /**
+     * Records that a QCDM log message with the specified log code was received.
+     *
+     * @param logCode The QCDM log code (e.g. 0xB0C0 for LTE RRC OTA).
+     */
+    public void incrementLogCode(int logCode)
+    {
+        final int index = logCode & 0xFFFF;
+        LongAdder counter = logCodeCounters.get(index);
+        if (counter == null)
+        {
+            logCodeCounters.compareAndSet(index, null, new LongAdder());
+            counter = logCodeCounters.get(index);
+        }
+        counter.increment();
+    }
+
+    /**
+     * Records that a pcap record was successfully created from a QCDM message.
+     */
+    public void incrementRecordsProcessed()
+    {
+        recordsProcessed.increment();
+    }
+
+    /**
+     * Records that a pcap record for the specified technology was successfully created from a QCDM message.
+     *
+     * @param technology The technology of the pcap record, or null if it is unknown.
+     * @since 0.6.0
+     */
+    public void incrementRecordsProcessed(Technology technology)
+    {
+        recordsProcessed.increment();
+        if (technology != null) technologyRecordCounters[technology.ordinal()].increment();
+    }
+
+    /**
+     * Records that a pcap record was not sent to the sinks because it was a repeat of a broadcast message that was
+     * recently sent.
+     *
+     * @param technology The technology of the pcap record, or null if it is unknown.
+     */
+    public void incrementDuplicatesSuppressed(Technology technology)
+    {
+        if (technology != null) duplicatesSuppressedCounters[technology.ordinal()].increment();
+    }
+
+    /**
+     * Records that a pcap record was not sent to the sinks because the sampling policy thinned out its channel.
+     *
+     * @param technology The technology of the pcap record, or null if it is unknown.
+     */
+    public void incrementSampledOut(Technology technology)
+    {
+        if (technology != null) sampledOutCounters[technology.ordinal()].increment();
+    }
+
+    /**
+     * Records that a cellular OTA message was handed to the MQTT client for publishing.
+     */
+    public void incrementMqttMessagesPublished()
+    {
+        mqttMessagesPublished.increment();
+    }
+
+    /**
+     * Records that a frame or record was dropped somewhere in the pipeline.
+     *
+     * @param reason The reason it was dropped.
+     */
+    public void incrementDrop(DropReason reason)
+    {
+        dropCounters[reason.ordinal()].increment();
+    }
+
+    /**
+     * Records that several frames or records were dropped at once.
+     *
+     * @param reason The reason they were dropped.
+     * @param count  The number that were dropped.
+     */
+    public void addDrops(DropReason reason, long count)
+    {
+        dropCounters[reason.ordinal()].add(count);
+    }
+
+    /**
+     * Sets the current depth of the MQTT store-and-forward spool.
+     *
+     * @param records The number of records waiting in the spool.
+     * @param bytes   The number of bytes the spool is using on disk.
+     */
+    public void setSpoolDepth(long records, long bytes)
+    {
+        spoolDepthRecords = records;
+        spoolDepthBytes = bytes;
+    }
+
+    /**
+     * Records that the diag_revealer supervisor restarted the diag_revealer process.
+     */
+    public void incrementDiagRevealerRestarts()
+    {
+        diagRevealerRestarts.increment();
+    }
+
+    /**
+     * Records that the watchdog found the pipeline stalled (no bytes read from diag_revealer for too long).
+     */
+    public void incrementPipelineStalls()
+    {
+        pipelineStalls.increment();
+    }
+
+    /**
+     * Records that the pipeline has stopped delivering data, because diag_revealer exited or stalled. Only the first
+     * call counts until the pipeline is marked as up again, so the time to recover covers the whole outage.
+     */
+    public void markPipelineDown()
+    {
+        pipelineDownSinceNanos.compareAndSet(0, System.nanoTime());
+    }
+
+    /**
+     * Records that data is flowing from diag_revealer again. If the pipeline was marked as down, the time since then
+     * is recorded as the time to recover.
+     */
+    public void markPipelineUp()
+    {
+        final long downSinceNanos = pipelineDownSinceNanos.getAndSet(0);
+        if (downSinceNanos == 0) return;
+
+        final long timeToRecoverMs = (System.nanoTime() - downSinceNanos) / 1_000_000;
+        lastTimeToRecoverMs = timeToRecoverMs;
+        if (timeToRecoverMs > maxTimeToRecoverMs) maxTimeToRecoverMs = timeToRecoverMs;
+    }
+
+    /**
+     * Adds to the byte count for the specified pipeline stage.
+     *
+     * @param stage The pipeline stage that processed the bytes.
+     * @param bytes The number of bytes processed.
+     */
+    public void addBytes(ByteStage stage, long bytes)
+    {
+        byteCounters[stage.ordinal()].add(bytes);
+    }
+
+    /**
+     * Records how long one phase of the service start up took. Recording the same phase again replaces the old value.
+     *
+     * @param phase      The name of the start up phase.
+     * @param durationMs How long the phase took, in milliseconds.
+     */
+    public void recordStartupPhase(String phase, long durationMs)
+    {
+        startupPhasesMs.put(phase, durationMs);
+    }
+
+    /**
+     * @return The histogram that tracks how long it takes to convert a QCDM message to a pcap record.
+     */
+    public LatencyHistogram getDecodeLatency()
+    {
+        return decodeLatency;
+    }
+
+    /**
+     * Returns the latency histogram for the specified sink, creating it if necessary. Callers on the hot path should
+     * hold on to the returned histogram instead of looking it up for every record.
+     *
+     * @param sinkName A name that identifies the sink (e.g. the simple class name).
+     * @return The histogram that tracks how long the sink takes to handle each pcap record.
+     */
+    public LatencyHistogram getSinkLatency(String sinkName)
+    {
+        LatencyHistogram histogram = sinkLatencies.get(sinkName);
+        if (histogram == null)
+        {
+            final LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = sinkLatencies.putIfAbsent(sinkName, newHistogram);
+            if (histogram == null) histogram = newHistogram;
+        }
+        return histogram;
+    }
+
+    /**
+     * @return The number of QCDM frames that passed the CRC check since the pipeline was started.
+     */
+    public long getFramesDecoded()
+    {
+        return framesDecoded.sum();
+    }
+
+    /**
+     * @return The number of pcap records produced since the pipeline was started.
+     */
+    public long getRecordsProcessed()
+    {
+        return recordsProcessed.sum();
+    }
+
+    /**
+     * @param technology The technology to get the record count for.
+     * @return The number of pcap records produced for the specified technology.
+     */
+    public long getRecordsProcessed(Technology technology)
+    {
+        return technologyRecordCounters[technology.ordinal()].sum();
+    }
+
+    /**
+     * @param technology The technology to get the count for.
+     * @return The number of repeated broadcast messages for the specified technology that were not sent to the sinks.
+     */
+    public long getDuplicatesSuppressed(Technology technology)
+    {
+        return duplicatesSuppressedCounters[technology.ordinal()].sum();
+    }
+
+    /**
+     * @param technology The technology to get the count for.
+     * @return The number of pcap records for the specified technology that were sampled out.
+     */
+    public long getSampledOut(Technology technology)
+    {
+        return sampledOutCounters[technology.ordinal()].sum();
+    }
+
+    /**
+     * @return The number of cellular OTA messages handed to the MQTT client for publishing.
+     */
+    public long getMqttMessagesPublished()
+    {
+        return mqttMessagesPublished.sum();
+    }
+
+    /**
+     * @return The number of records waiting in the MQTT store-and-forward spool.
+     */
+    public long getSpoolDepthRecords()
+    {
+        return spoolDepthRecords;
+    }
+
+    /**
+     * @return The number of bytes the MQTT store-and-forward spool is using on disk.
+     */
+    public long getSpoolDepthBytes()
+    {
+        return spoolDepthBytes;
+    }
+
+    /**
+     * @return The number of times the diag_revealer process has been restarted.
+     */
+    public long getDiagRevealerRestarts()
+    {
+        return diagRevealerRestarts.sum();
+    }
+
+    /**
+     * @return The number of times the watchdog found the pipeline stalled.
+     */
+    public long getPipelineStalls()
+    {
+        return pipelineStalls.sum();
+    }
+
+    /**
+     * @return True if the pipeline has been marked as down and has not delivered any data since.
+     */
+    public boolean isPipelineDown()
+    {
+        return pipelineDownSinceNanos.get() != 0;
+    }
+
+    /**
+     * @return The time in milliseconds it took the pipeline to recover from its last outage, or -1 if it has not had
+     * one.
+     */
+    public long getLastTimeToRecoverMs()
+    {
+        return lastTimeToRecoverMs;
+    }
+
+    /**
+     * @return The longest time in milliseconds it took the pipeline to recover from an outage, or -1 if it has not had
+     * one.
+     */
+    public long getMaxTimeToRecoverMs()
+    {
+        return maxTimeToRecoverMs;
+    }
+
+    /**
+     * @param reason The drop reason to get the count for.
+     * @return The number of frames or records dropped for the specified reason.
+     */
+    public long getDropCount(DropReason reason)
+    {
+        return dropCounters[reason.ordinal()].sum();
+    }
+
+    /**
+     * @return The number of frames or records dropped for any reason.
+     */
+    public long getTotalDropCount()
+    {
+        long total = 0;
+        for (LongAdder dropCounter : dropCounters)
+        {
+            total += dropCounter.sum();
+        }
+        return total;
+    }
+
+    /**
+     * @param stage The pipeline stage to get the byte count for.
+     * @return The number of bytes processed by the specified stage.
+     */
+    public long getByteCount(ByteStage stage)
+    {
+        return byteCounters[stage.ordinal()].sum();
+    }
+
+    /**
+     * @return An immutable view of all the metrics at this point in time.
+     */
+    public MetricsSnapshot snapshot()
+    {
+        final Map<Integer, Long> logCodeCounts = new TreeMap<>();
+        for (int i = 0; i < LOG_CODE_COUNT; i++)
+        {
+            final LongAdder counter = logCodeCounters.get(i);
+            if (counter != null) logCodeCounts.put(i, counter.sum());
+        }
+
+        final long[] drops = new long[dropCounters.length];
+        for (int i = 0; i < drops.length; i++)
+        {
+            drops[i] = dropCounters[i].sum();
+        }
+
+        final long[] bytes = new long[byteCounters.length];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = byteCounters[i].sum();
+        }
+
+        final long[] duplicatesSuppressed = new long[duplicatesSuppressedCounters.length];
+        for (int i = 0; i < duplicatesSuppressed.length; i++)
+        {
+            duplicatesSuppressed[i] = duplicatesSuppressedCounters[i].sum();
+        }
+
+        final long[] sampledOut = new long[sampledOutCounters.length];
+        for (int i = 0; i < sampledOut.length; i++)
+        {
+            sampledOut[i] = sampledOutCounters[i].sum();
+        }
+
+        final Map<String, LatencyHistogram.HistogramSnapshot> sinkSnapshots = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : sinkLatencies.entrySet())
+        {
+            sinkSnapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+
+        return new MetricsSnapshot(System.currentTimeMillis(), framesDecoded.sum(), recordsProcessed.sum(),
+                Collections.unmodifiableMap(logCodeCounts), drops, bytes, duplicatesSuppressed, sampledOut,
+                decodeLatency.snapshot(),
+                Collections.unmodifiableMap(sinkSnapshots), spoolDepthRecords, spoolDepthBytes,
+                diagRevealerRestarts.sum(), pipelineStalls.sum(), lastTimeToRecoverMs, maxTimeToRecoverMs,
+                Collections.unmodifiableMap(new TreeMap<>(startupPhasesMs)));
+    }
+
+    private static LongAdder[] createCounters(int count)
+    {
+        final LongAdder[] counters = new LongAdder[count];
+        for (int i = 0; i < count; i++)
+        {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    /**
+     * The different places in the pipeline where a QCDM frame or pcap record can be lost.
+     */
+    public enum DropReason
+    {
+        /**
+         * The CRC at the end of the QCDM frame did not match the calculated CRC.
+         */
+        INVALID_CRC,
+
+        /**
+         * The diag_revealer header could not be parsed, so the FIFO reader had to skip to the next 0x7e byte.
+         */
+        UNKNOWN_HEADER,
+
+        /**
+         * The QCDM log code is not one that this app knows how to convert to a pcap record.
+         */
+        UNHANDLED_LOG_TYPE,
+
+        /**
+         * The QCDM log code is handled, but the parser could not convert it to a pcap record.
+         */
+        PARSER_NULL,
+
+        /**
+         * A sink threw an exception while handling a pcap record.
+         */
+        SINK_EXCEPTION,
+
+        /**
+         * An MQTT message was waiting in the store-and-forward spool but was evicted because the spool hit its size cap.
+         */
+        SPOOL_EVICTED,
+
+        /**
+         * diag_revealer sent a message that never reached the FIFO reader, as shown by a gap in the framing sequence
+         * numbers.
+         */
+        SEQUENCE_GAP,
+
+        /**
+         * A GSMTAP datagram was not streamed because the send queue or the socket send buffer was full, or the
+         * network was unreachable.
+         */
+        GSMTAP_UDP_DROPPED,
+
+        /**
+         * A pcap stream client skipped a record because its ring buffer was full.
+         */
+        PCAP_STREAM_SKIPPED
+    }
+
+    /**
+     * The stages of the pipeline that bytes are counted at.
+     */
+    public enum ByteStage
+    {
+        /**
+         * Bytes read from the diag_revealer FIFO, including the diag_revealer header.
+         */
+        FIFO_READ,
+
+        /**
+         * Bytes of QCDM frames after unescaping and passing the CRC check.
+         */
+        QCDM_DECODED,
+
+        /**
+         * Bytes of pcap records produced by the parsers.
+         */
+        PCAP_RECORD,
+
+        /**
+         * Bytes written to the pcap file.
+         */
+        PCAP_FILE_WRITTEN,
+
+        /**
+         * Bytes of pcap records published to the MQTT broker or added to a batch, including the records drained from
+         * the spool. Records written to the spool are counted when they are drained.
+         */
+        MQTT_PUBLISHED,
+
+        /**
+         * Bytes of GSMTAP datagrams sent by the UDP streamer.
+         */
+        GSMTAP_UDP_SENT,
+
+        /**
+         * Bytes sent to the pcap stream clients, counted once per client.
+         */
+        PCAP_STREAM_SENT
+    }
+
+    /**
+     * The cellular technologies that pcap records are counted for.
+     */
+    public enum Technology
+    {
+        LTE_RRC,
+        LTE_NAS,
+        WCDMA_RRC,
+        GSM,
+        UMTS_NAS;
+
+        /**
+         * @param messageType The Network Survey Messaging API message type of a pcap message.
+         * @return The technology for the message type, or null if the message type is not recognized.
+         */
+        public static Technology fromMessageType(String messageType)
+        {
+            if (messageType == null) return null;
+
+            switch (messageType)
+            {
+                case CraxiomConstants.LTE_RRC_MESSAGE_TYPE:
+                case CraxiomConstants.LTE_MIB_MESSAGE_TYPE:
+                    return LTE_RRC;
+                case CraxiomConstants.LTE_NAS_MESSAGE_TYPE:
+                    return LTE_NAS;
+                case CraxiomConstants.WCDMA_RRC_MESSAGE_TYPE:
+                    return WCDMA_RRC;
+                case CraxiomConstants.GSM_SIGNALING_MESSAGE_TYPE:
+                    return GSM;
+                case CraxiomConstants.UMTS_NAS_MESSAGE_TYPE:
+                    return UMTS_NAS;
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * @param messageKind The kind of a pcap message.
+         * @return The technology for the message kind, or null if the message kind is not known.
+         * @since 0.6.0
+         */
+        public static Technology fromMessageKind(MessageKind messageKind)
+        {
+            switch (messageKind)
+            {
+                case LTE_RRC:
+                case LTE_MIB:
+                    return LTE_RRC;
+                case LTE_NAS:
+                    return LTE_NAS;
+                case WCDMA_RRC:
+                    return WCDMA_RRC;
+                case GSM_SIGNALING:
+                    return GSM;
+                case UMTS_NAS:
+                    return UMTS_NAS;
+                default:
+                    return null;
+            }
+        }
+    }
+}
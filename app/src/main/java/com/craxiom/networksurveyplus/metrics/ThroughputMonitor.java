@@ -0,0 +1,167 @@
+package com.craxiom.networksurveyplus.metrics;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import timber.log.Timber;
+
+/**
+ * Samples the cumulative counters in the {@link PipelineMetrics} at a fixed interval and keeps the per-second rates in
+ * a {@link TimeSeries} for each {@link Series}.
+ * <p>
+ * The sampling runs on the service's status handler and is a handful of counter reads per interval, so it is cheap
+ * enough to always run. The UI pulls a {@link ThroughputSnapshot} when it wants to display the rates, which means a
+ * hidden dashboard costs nothing beyond the sampling itself.
+ *
+ * @since 0.6.0
+ */
+public class ThroughputMonitor
+{
+    /**
+     * How often the counters are sampled.
+     */
+    public static final int SAMPLE_INTERVAL_MS = 1_000;
+
+    /**
+     * The number of samples kept for each series (two minutes of history at the default sample interval).
+     */
+    public static final int HISTORY_SIZE = 120;
+
+    private final PipelineMetrics metrics;
+    private final TimeSeries[] series = new TimeSeries[Series.values().length];
+    private final long[] previousCounts = new long[Series.values().length];
+    private final Runnable sampleRunnable = this::sampleOnSchedule;
+
+    private long previousSampleNanos = -1;
+    private volatile Handler handler;
+
+    /**
+     * @param metrics The metrics registry to sample the counters from.
+     */
+    public ThroughputMonitor(PipelineMetrics metrics)
+    {
+        this.metrics = metrics;
+        for (int i = 0; i < series.length; i++)
+        {
+            series[i] = new TimeSeries(HISTORY_SIZE);
+        }
+    }
+
+    /**
+     * Starts sampling the counters on the provided handler's thread.
+     *
+     * @param handler The handler to schedule the periodic sampling on.
+     */
+    public void start(Handler handler)
+    {
+        this.handler = handler;
+        handler.postDelayed(sampleRunnable, SAMPLE_INTERVAL_MS);
+    }
+
+    /**
+     * Stops sampling the counters.
+     */
+    public void stop()
+    {
+        final Handler currentHandler = handler;
+        handler = null;
+        if (currentHandler != null) currentHandler.removeCallbacks(sampleRunnable);
+    }
+
+    /**
+     * @return A copy of all the series at this point in time.
+     */
+    public synchronized ThroughputSnapshot snapshot()
+    {
+        final double[][] samples = new double[series.length][];
+        for (int i = 0; i < series.length; i++)
+        {
+            samples[i] = series[i].toArray();
+        }
+        return new ThroughputSnapshot(SAMPLE_INTERVAL_MS, samples);
+    }
+
+    private void sampleOnSchedule()
+    {
+        try
+        {
+            sample(SystemClock.elapsedRealtimeNanos());
+        } catch (Exception e)
+        {
+            Timber.e(e, "Could not sample the pipeline throughput");
+        }
+
+        final Handler currentHandler = handler;
+        if (currentHandler != null) currentHandler.postDelayed(sampleRunnable, SAMPLE_INTERVAL_MS);
+    }
+
+    /**
+     * Reads the current value of each counter and adds the per-second rate since the previous sample to each series.
+     * The first call only establishes the baseline.
+     *
+     * @param nowNanos The current monotonic time in nanoseconds.
+     */
+    public synchronized void sample(long nowNanos)
+    {
+        final boolean hasBaseline = previousSampleNanos >= 0;
+        final long elapsedNanos = nowNanos - previousSampleNanos;
+
+        for (Series s : Series.values())
+        {
+            final long count = getCount(s);
+            if (hasBaseline && elapsedNanos > 0)
+            {
+                series[s.ordinal()].add((count - previousCounts[s.ordinal()]) * 1_000_000_000.0 / elapsedNanos);
+            }
+            previousCounts[s.ordinal()] = count;
+        }
+
+        previousSampleNanos = nowNanos;
+    }
+
+    private long getCount(Series s)
+    {
+        switch (s)
+        {
+            case FRAMES:
+                return metrics.getFramesDecoded();
+            case RECORDS:
+                return metrics.getRecordsProcessed();
+            case LTE_RRC:
+                return metrics.getRecordsProcessed(PipelineMetrics.Technology.LTE_RRC);
+            case LTE_NAS:
+                return metrics.getRecordsProcessed(PipelineMetrics.Technology.LTE_NAS);
+            case WCDMA_RRC:
+                return metrics.getRecordsProcessed(PipelineMetrics.Technology.WCDMA_RRC);
+            case GSM:
+                return metrics.getRecordsProcessed(PipelineMetrics.Technology.GSM);
+            case UMTS_NAS:
+                return metrics.getRecordsProcessed(PipelineMetrics.Technology.UMTS_NAS);
+            case BYTES_WRITTEN:
+                return metrics.getByteCount(PipelineMetrics.ByteStage.PCAP_FILE_WRITTEN);
+            case MQTT_PUBLISHED:
+                return metrics.getMqttMessagesPublished();
+            case DROPS:
+                return metrics.getTotalDropCount();
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * The rates that are tracked. All rates are per second.
+     */
+    public enum Series
+    {
+        FRAMES,
+        RECORDS,
+        LTE_RRC,
+        LTE_NAS,
+        WCDMA_RRC,
+        GSM,
+        UMTS_NAS,
+        BYTES_WRITTEN,
+        MQTT_PUBLISHED,
+        DROPS
+    }
+}
@@ -0,0 +1,79 @@
+package com.craxiom.networksurveyplus.metrics;
+
+/**
+ * An immutable copy of the {@link ThroughputMonitor} series. Each series is ordered from oldest to newest sample.
+ *
+ * @since 0.6.0
+ */
+public class ThroughputSnapshot
+{
+    private final int sampleIntervalMs;
+    private final double[][] samples;
+
+    ThroughputSnapshot(int sampleIntervalMs, double[][] samples)
+    {
+        this.sampleIntervalMs = sampleIntervalMs;
+        //noinspection AssignmentOrReturnOfFieldWithMutableType
+        this.samples = samples;
+    }
+
+    /**
+     * @return The time between each sample in a series.
+     */
+    public int getSampleIntervalMs()
+    {
+        return sampleIntervalMs;
+    }
+
+    /**
+     * @param series The series to get the samples for.
+     * @return A copy of the per-second rates, ordered from oldest to newest.
+     */
+    public double[] getSamples(ThroughputMonitor.Series series)
+    {
+        return samples[series.ordinal()].clone();
+    }
+
+    /**
+     * @param series The series to get the rate for.
+     * @return The most recent per-second rate, or 0 if no samples have been taken yet.
+     */
+    public double getLatest(ThroughputMonitor.Series series)
+    {
+        final double[] values = samples[series.ordinal()];
+        return values.length == 0 ? 0 : values[values.length - 1];
+    }
+
+    /**
+     * @param series      The series to get the average rate for.
+     * @param sampleCount The number of most recent samples to average.
+     * @return The average per-second rate over the most recent samples, or 0 if no samples have been taken yet.
+     */
+    public double getRecentAverage(ThroughputMonitor.Series series, int sampleCount)
+    {
+        final double[] values = samples[series.ordinal()];
+        final int count = Math.min(sampleCount, values.length);
+        if (count <= 0) return 0;
+
+        double sum = 0;
+        for (int i = values.length - count; i < values.length; i++)
+        {
+            sum += values[i];
+        }
+        return sum / count;
+    }
+
+    /**
+     * @param series The series to get the peak rate for.
+     * @return The highest per-second rate in the history, or 0 if no samples have been taken yet.
+     */
+    public double getMax(ThroughputMonitor.Series series)
+    {
+        double max = 0;
+        for (double value : samples[series.ordinal()])
+        {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+}
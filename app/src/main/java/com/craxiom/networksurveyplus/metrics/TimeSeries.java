@@ -0,0 +1,76 @@
+package com.craxiom.networksurveyplus.metrics;
+
+/**
+ * A fixed size ring buffer of primitive double samples. Once the buffer is full, each new sample overwrites the oldest
+ * one, so the memory used by a series never grows no matter how long the service runs.
+ * <p>
+ * This class is not thread safe; the {@link ThroughputMonitor} guards access to its series.
+ *
+ * @since 0.6.0
+ */
+public class TimeSeries
+{
+    private final double[] samples;
+    private int nextIndex = 0;
+    private int size = 0;
+
+    /**
+     * @param capacity The maximum number of samples to hold.
+     */
+    public TimeSeries(int capacity)
+    {
+        if (capacity <= 0) throw new IllegalArgumentException("The time series capacity must be positive");
+        samples = new double[capacity];
+    }
+
+    /**
+     * Adds a sample to the end of the series, overwriting the oldest sample if the series is full.
+     *
+     * @param value The sample value.
+     */
+    public void add(double value)
+    {
+        samples[nextIndex] = value;
+        nextIndex = (nextIndex + 1) % samples.length;
+        if (size < samples.length) size++;
+    }
+
+    /**
+     * @return The number of samples currently in the series.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return The maximum number of samples this series can hold.
+     */
+    public int getCapacity()
+    {
+        return samples.length;
+    }
+
+    /**
+     * @return The most recent sample, or 0 if the series is empty.
+     */
+    public double getLatest()
+    {
+        if (size == 0) return 0;
+        return samples[(nextIndex - 1 + samples.length) % samples.length];
+    }
+
+    /**
+     * @return A copy of the samples, ordered from oldest to newest.
+     */
+    public double[] toArray()
+    {
+        final double[] copy = new double[size];
+        final int oldestIndex = size < samples.length ? 0 : nextIndex;
+        for (int i = 0; i < size; i++)
+        {
+            copy[i] = samples[(oldestIndex + i) % samples.length];
+        }
+        return copy;
+    }
+}
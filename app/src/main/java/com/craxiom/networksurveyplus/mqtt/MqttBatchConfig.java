@@ -0,0 +1,66 @@
+package com.craxiom.networksurveyplus.mqtt;
+
+import com.craxiom.networksurveyplus.Constants;
+
+/**
+ * The batching settings for a single MQTT broker connection. The settings are resolved when the connection is made, so
+ * each broker connection can use different settings.
+ *
+ * @since 0.6.0
+ */
+public class MqttBatchConfig
+{
+    /**
+     * Publish each message on its own to the cellular OTA topic, which is what existing consumers expect.
+     */
+    public static final MqttBatchConfig DISABLED = new MqttBatchConfig(Constants.DEFAULT_MQTT_BATCH_SIZE, Constants.DEFAULT_MQTT_BATCH_LINGER_MS, false);
+
+    private final int batchSize;
+    private final int lingerMs;
+    private final boolean deflate;
+
+    /**
+     * @param batchSize The maximum number of messages to put in a single batch. A value of 1 or less disables batching.
+     * @param lingerMs  The maximum time a message will wait in a batch before the batch is published.
+     * @param deflate   True if the batch payload should be compressed with zlib.
+     */
+    public MqttBatchConfig(int batchSize, int lingerMs, boolean deflate)
+    {
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerMs = Math.max(1, lingerMs);
+        this.deflate = deflate;
+    }
+
+    /**
+     * @return True if messages should be grouped into batches, false if each message should be published on its own.
+     */
+    public boolean isEnabled()
+    {
+        return batchSize > 1;
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    public int getLingerMs()
+    {
+        return lingerMs;
+    }
+
+    public boolean isDeflate()
+    {
+        return deflate;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MqttBatchConfig{" +
+                "batchSize=" + batchSize +
+                ", lingerMs=" + lingerMs +
+                ", deflate=" + deflate +
+                '}';
+    }
+}
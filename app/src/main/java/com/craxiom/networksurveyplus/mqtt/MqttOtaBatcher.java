@@ -0,0 +1,215 @@
+package com.craxiom.networksurveyplus.mqtt;
+
+import com.google.protobuf.MessageLite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import timber.log.Timber;
+
+/**
+ * Accumulates cellular OTA messages into batches so that many messages can be sent in a single MQTT publish.
+ * <p>
+ * A batch is handed to the {@link BatchListener} once it holds {@link MqttBatchConfig#getBatchSize()} messages, or once
+ * the first message in the batch has waited {@link MqttBatchConfig#getLingerMs()}, whichever comes first. The batch
+ * payload is each message serialized as a length-delimited binary protobuf (see
+ * {@link MessageLite#writeDelimitedTo(java.io.OutputStream)}), one after the other, optionally compressed with zlib.
+ *
+ * @since 0.6.0
+ */
+public class MqttOtaBatcher
+{
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    private final MqttBatchConfig config;
+    private final BatchListener listener;
+    private final ScheduledExecutorService lingerScheduler;
+    private final Deflater deflater;
+
+    private final ByteArrayOutputStream batchBuffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+    private final ByteArrayOutputStream deflateBuffer;
+    private final byte[] deflateChunk;
+    private final List<String> messageTypes = new ArrayList<>();
+
+    /**
+     * Incremented every time a batch is published so that a linger timeout for an already published batch does not
+     * publish the next batch early.
+     */
+    private long batchGeneration = 0;
+    private boolean closed = false;
+
+    /**
+     * @param config   The batch settings for the current broker connection.
+     * @param listener The listener to hand each completed batch to.
+     */
+    public MqttOtaBatcher(MqttBatchConfig config, BatchListener listener)
+    {
+        this.config = config;
+        this.listener = listener;
+
+        lingerScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "MqttBatchLinger"));
+
+        if (config.isDeflate())
+        {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            deflateBuffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+            deflateChunk = new byte[INITIAL_BUFFER_SIZE];
+        } else
+        {
+            deflater = null;
+            deflateBuffer = null;
+            deflateChunk = null;
+        }
+    }
+
+    /**
+     * Adds a message to the current batch, publishing the batch if it is full.
+     *
+     * @param messageType The Network Survey Messaging API message type of the message.
+     * @param message     The message to add.
+     */
+    public synchronized void add(String messageType, MessageLite message)
+    {
+        if (closed) return;
+
+        try
+        {
+            message.writeDelimitedTo(batchBuffer);
+        } catch (IOException e)
+        {
+            Timber.e(e, "Could not add a %s message to the MQTT batch", messageType);
+            return;
+        }
+
+        onMessageAdded(messageType);
+    }
+
+    /**
+     * Adds a message that has already been serialized to the current batch, publishing the batch if it is full.
+     *
+     * @param messageType The Network Survey Messaging API message type of the message.
+     * @param message     The array holding the serialized protobuf message.
+     * @param offset      The start of the message in the array.
+     * @param length      The length of the message.
+     * @since 0.6.0
+     */
+    public synchronized void addEncoded(String messageType, byte[] message, int offset, int length)
+    {
+        if (closed) return;
+
+        int remaining = length;
+        while ((remaining & ~0x7F) != 0)
+        {
+            batchBuffer.write((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        batchBuffer.write(remaining);
+        batchBuffer.write(message, offset, length);
+
+        onMessageAdded(messageType);
+    }
+
+    /**
+     * Records the message type of the message that was just written to the batch buffer, and publishes the batch if it
+     * is full. Must be called while holding this object's lock.
+     */
+    private void onMessageAdded(String messageType)
+    {
+        messageTypes.add(messageType);
+
+        if (messageTypes.size() >= config.getBatchSize())
+        {
+            publishBatch();
+        } else if (messageTypes.size() == 1)
+        {
+            final long generation = batchGeneration;
+            lingerScheduler.schedule(() -> onLingerExpired(generation), config.getLingerMs(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Publishes any pending messages right away.
+     */
+    public synchronized void flush()
+    {
+        publishBatch();
+    }
+
+    /**
+     * Publishes any pending messages and releases the resources held by this batcher. Any messages added after this
+     * call are ignored.
+     */
+    public synchronized void close()
+    {
+        if (closed) return;
+
+        publishBatch();
+        closed = true;
+        lingerScheduler.shutdownNow();
+        if (deflater != null) deflater.end();
+    }
+
+    private synchronized void onLingerExpired(long generation)
+    {
+        if (generation == batchGeneration) publishBatch();
+    }
+
+    /**
+     * Hands the current batch to the listener and starts a new one. Must be called while holding this object's lock.
+     */
+    private void publishBatch()
+    {
+        if (closed || messageTypes.isEmpty()) return;
+
+        batchGeneration++;
+
+        final List<String> batchMessageTypes = new ArrayList<>(messageTypes);
+        final byte[] payload = config.isDeflate() ? deflate(batchBuffer) : batchBuffer.toByteArray();
+
+        messageTypes.clear();
+        batchBuffer.reset();
+
+        try
+        {
+            listener.onBatch(batchMessageTypes, payload, config.isDeflate());
+        } catch (Exception e)
+        {
+            Timber.e(e, "Could not publish a batch of %d MQTT messages", batchMessageTypes.size());
+        }
+    }
+
+    private byte[] deflate(ByteArrayOutputStream input)
+    {
+        deflater.reset();
+        deflater.setInput(input.toByteArray());
+        deflater.finish();
+
+        deflateBuffer.reset();
+        while (!deflater.finished())
+        {
+            final int length = deflater.deflate(deflateChunk);
+            deflateBuffer.write(deflateChunk, 0, length);
+        }
+
+        return deflateBuffer.toByteArray();
+    }
+
+    /**
+     * Listener for when a batch of messages is ready to be published.
+     */
+    public interface BatchListener
+    {
+        /**
+         * @param messageTypes The message type of each message in the batch, in the same order as the payload.
+         * @param payload      The length-delimited protobuf messages.
+         * @param deflated     True if the payload is compressed with zlib.
+         */
+        void onBatch(List<String> messageTypes, byte[] payload, boolean deflated);
+    }
+}
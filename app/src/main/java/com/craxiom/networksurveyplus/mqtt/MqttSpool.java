@@ -0,0 +1,710 @@
+package com.craxiom.networksurveyplus.mqtt;
+
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * A persistent, append-only store-and-forward queue for MQTT messages that could not be published because the broker
+ * was unreachable.
+ * <p>
+ * Records are appended to segment files in the spool directory. Each record is the message type (modified UTF-8),
+ * followed by the length of the message as a 4 byte int, followed by the serialized protobuf message. A cursor file
+ * keeps track of the oldest record that has not yet been acknowledged, so that records survive an app restart and are
+ * drained oldest first. Fully drained segments are deleted, and if the spool grows past its size cap, the oldest
+ * segments are evicted to make room.
+ * <p>
+ * Creating the spool does not touch the disk. The records left over from a previous run are recovered by
+ * {@link #recover()}, which scans every segment and so should be called on a background thread; any other method
+ * recovers first if that has not happened yet.
+ * <p>
+ * The public methods are thread safe, so records can be appended from the pipeline thread while another thread
+ * drains the spool. A drain reads a batch of records under the lock and then hands them to the consumer without it,
+ * so a slow publish never holds up an append. The segment file is flushed at most once per flush interval rather than
+ * for every record, as well as before a drain reads it.
+ *
+ * @since 0.6.0
+ */
+public class MqttSpool
+{
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+    private static final String SEGMENT_FILE_SUFFIX = ".spool";
+    private static final String CURSOR_FILE_NAME = "cursor";
+    private static final String CURSOR_TEMP_FILE_NAME = "cursor.tmp";
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final File spoolDirectory;
+    private final long maxSpoolBytes;
+    private final long segmentSizeBytes;
+    private final PipelineMetrics metrics;
+
+    /**
+     * The record count and size of each segment on disk, keyed by the segment ID, which increases for each new segment.
+     */
+    private final TreeMap<Long, SegmentInfo> segments = new TreeMap<>();
+
+    /**
+     * Held for the whole of a drain so that two drains never hand out the same records.
+     */
+    private final Object drainLock = new Object();
+
+    private DataOutputStream writeStream;
+    private long writeSegmentId = -1;
+    private long lastFlushNanos;
+
+    private long cursorSegmentId;
+    private long cursorOffset;
+    private int cursorRecordIndex;
+
+    private volatile boolean recovered = false;
+    private volatile long pendingRecords;
+    private long totalBytes;
+
+    /**
+     * Creates the spool. The records left over from a previous run are not recovered until {@link #recover()} is
+     * called, or the spool is first used.
+     *
+     * @param spoolDirectory   The directory to store the segment files in. It is created if it does not exist.
+     * @param maxSpoolBytes    The maximum number of bytes the spool can use on disk before the oldest segment is evicted.
+     * @param segmentSizeBytes The size at which a new segment file is started.
+     * @param metrics          The metrics registry to record the spool depth and evictions in.
+     */
+    public MqttSpool(File spoolDirectory, long maxSpoolBytes, long segmentSizeBytes, PipelineMetrics metrics)
+    {
+        this.spoolDirectory = spoolDirectory;
+        this.maxSpoolBytes = maxSpoolBytes;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Loads the cursor and scans the segment files left over from a previous run to rebuild the in-memory state. This
+     * reads every segment, so it should be called on a background thread. Only the first call has any effect.
+     *
+     * @since 0.6.0
+     */
+    public synchronized void recover()
+    {
+        if (recovered) return;
+
+        if (!spoolDirectory.exists() && !spoolDirectory.mkdirs())
+        {
+            Timber.e("Could not create the MQTT spool directory %s", spoolDirectory);
+        }
+
+        recoverSegments();
+        recovered = true;
+    }
+
+    /**
+     * Appends a record to the end of the spool, evicting the oldest segments if the spool is over its size cap.
+     *
+     * @param messageType The Network Survey Messaging API message type.
+     * @param message     The serialized protobuf message.
+     * @return True if the record was written to disk, false if it could not be written.
+     */
+    public synchronized boolean append(String messageType, byte[] message)
+    {
+        return append(messageType, message, 0, message.length);
+    }
+
+    /**
+     * Appends a record to the end of the spool, evicting the oldest segments if the spool is over its size cap.
+     *
+     * @param messageType The Network Survey Messaging API message type.
+     * @param message     The array holding the serialized protobuf message.
+     * @param offset      The start of the message in the array.
+     * @param length      The length of the message.
+     * @return True if the record was written to disk, false if it could not be written.
+     * @since 0.6.0
+     */
+    public synchronized boolean append(String messageType, byte[] message, int offset, int length)
+    {
+        recover();
+
+        try
+        {
+            if (writeStream == null || segments.get(writeSegmentId).bytes >= segmentSizeBytes)
+            {
+                startNewSegment();
+            }
+
+            final int startSize = writeStream.size();
+            writeStream.writeUTF(messageType);
+            writeStream.writeInt(length);
+            writeStream.write(message, offset, length);
+            if (System.nanoTime() - lastFlushNanos >= FLUSH_INTERVAL_NANOS) flushWriteStream();
+
+            final int recordBytes = writeStream.size() - startSize;
+            final SegmentInfo segmentInfo = segments.get(writeSegmentId);
+            segmentInfo.records++;
+            segmentInfo.bytes += recordBytes;
+            totalBytes += recordBytes;
+            pendingRecords++;
+
+            evictIfNecessary();
+            updateDepthMetrics();
+            return true;
+        } catch (IOException e)
+        {
+            Timber.e(e, "Could not append a %s record to the MQTT spool", messageType);
+            closeWriteStream();
+            return false;
+        }
+    }
+
+    /**
+     * Reads up to the specified number of the oldest records in the spool and hands them to the consumer. The cursor is
+     * advanced past each record the consumer accepts, so a record that the consumer rejects (by returning false or
+     * throwing an exception) will be the first one handed out on the next call.
+     * <p>
+     * The consumer is called without holding the spool lock, so records can be appended while it publishes. A record
+     * that is evicted while the consumer has it is not counted again when the cursor is advanced.
+     *
+     * @param maxRecords The maximum number of records to drain.
+     * @param consumer   The consumer to hand the records to, typically one that publishes them to the broker.
+     * @return The number of records drained.
+     */
+    public int drain(int maxRecords, RecordConsumer consumer)
+    {
+        synchronized (drainLock)
+        {
+            final List<SpooledRecord> batch = readBatch(maxRecords);
+
+            int accepted = 0;
+            for (SpooledRecord record : batch)
+            {
+                try
+                {
+                    if (!consumer.onRecord(record.messageType, record.message)) break;
+                } catch (Exception e)
+                {
+                    Timber.e(e, "The MQTT spool consumer could not handle a %s record", record.messageType);
+                    break;
+                }
+                accepted++;
+            }
+
+            if (accepted > 0) commit(batch, accepted);
+            return accepted;
+        }
+    }
+
+    /**
+     * Writes any buffered records out to the segment file. The records are flushed periodically as they are appended,
+     * so this only needs to be called to make sure the last few records are on disk, such as from a timer.
+     *
+     * @since 0.6.0
+     */
+    public synchronized void flush()
+    {
+        flushWriteStream();
+    }
+
+    /**
+     * @return The number of records in the spool that have not been drained yet. This does not take the spool lock
+     * once the spool has been recovered, so it can be called for every message.
+     */
+    public long getPendingRecords()
+    {
+        if (!recovered) recover();
+        return pendingRecords;
+    }
+
+    /**
+     * @return The number of bytes the spool is using on disk.
+     */
+    public synchronized long getSizeBytes()
+    {
+        recover();
+        return totalBytes;
+    }
+
+    /**
+     * Closes the current segment file. The spool can still be used after this call; the next append starts a new
+     * segment.
+     */
+    public synchronized void close()
+    {
+        closeWriteStream();
+    }
+
+    /**
+     * Reads up to the specified number of records, starting at the cursor, without moving the cursor.
+     */
+    private synchronized List<SpooledRecord> readBatch(int maxRecords)
+    {
+        recover();
+
+        final List<SpooledRecord> batch = new ArrayList<>();
+        if (pendingRecords == 0) return batch;
+
+        // The newest records might still be sitting in the write buffer
+        flushWriteStream();
+
+        long segmentId = cursorSegmentId;
+        long offset = cursorOffset;
+        int index = cursorRecordIndex;
+        try
+        {
+            while (batch.size() < maxRecords)
+            {
+                final SegmentInfo segmentInfo = segments.get(segmentId);
+                if (segmentInfo == null || index >= segmentInfo.records)
+                {
+                    final Long nextSegmentId = segments.higherKey(segmentId);
+                    if (nextSegmentId == null) break;
+
+                    segmentId = nextSegmentId;
+                    offset = 0;
+                    index = 0;
+                    continue;
+                }
+
+                final int batchSize = batch.size();
+                readSegment(segmentId, segmentInfo, offset, index, maxRecords - batchSize, batch);
+                if (batch.size() == batchSize) continue;
+
+                final SpooledRecord lastRecord = batch.get(batch.size() - 1);
+                offset = lastRecord.endOffset;
+                index += batch.size() - batchSize;
+            }
+        } catch (IOException e)
+        {
+            Timber.e(e, "Could not read the MQTT spool");
+        }
+
+        return batch;
+    }
+
+    /**
+     * Reads records from a segment starting at the given offset. If the segment ends in the middle of a record, the
+     * rest of the segment is dropped so that the records after it can still be drained.
+     */
+    private void readSegment(long segmentId, SegmentInfo segmentInfo, long offset, int index, int maxRecords,
+                             List<SpooledRecord> batch) throws IOException
+    {
+        long recordOffset = offset;
+        int recordIndex = index;
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(getSegmentFile(segmentId)))))
+        {
+            skipFully(inputStream, offset);
+
+            for (int i = 0; i < maxRecords && recordIndex < segmentInfo.records; i++)
+            {
+                final String messageType = inputStream.readUTF();
+                final int length = inputStream.readInt();
+                final byte[] message = new byte[length];
+                inputStream.readFully(message);
+
+                final long endOffset = recordOffset + getRecordSize(messageType, length);
+                batch.add(new SpooledRecord(messageType, message, segmentId, recordOffset, endOffset));
+                recordOffset = endOffset;
+                recordIndex++;
+            }
+        } catch (EOFException e)
+        {
+            dropSegmentTail(segmentId, segmentInfo, recordOffset, recordIndex);
+        }
+    }
+
+    /**
+     * Moves the cursor past the first records of a batch, which the consumer accepted. Records that were evicted while
+     * the consumer had them are skipped, since they are no longer at the cursor.
+     */
+    private synchronized void commit(List<SpooledRecord> batch, int accepted)
+    {
+        boolean advanced = false;
+        for (int i = 0; i < accepted; i++)
+        {
+            final SpooledRecord record = batch.get(i);
+            while (cursorSegmentId < record.segmentId)
+            {
+                final SegmentInfo cursorSegment = segments.get(cursorSegmentId);
+                if (cursorSegment != null && cursorRecordIndex < cursorSegment.records) break;
+                if (!advanceToNextSegment()) break;
+            }
+            if (record.segmentId != cursorSegmentId || record.startOffset != cursorOffset) continue;
+
+            cursorOffset = record.endOffset;
+            cursorRecordIndex++;
+            pendingRecords--;
+            advanced = true;
+        }
+
+        if (advanced)
+        {
+            writeCursor();
+            updateDepthMetrics();
+        }
+    }
+
+    /**
+     * Drops the records in a segment from the given record onwards, which could not be read because the segment file
+     * is shorter than expected. The file is truncated at that record, and the next append starts a new segment.
+     */
+    private void dropSegmentTail(long segmentId, SegmentInfo segmentInfo, long offset, int index) throws IOException
+    {
+        final int lostRecords = segmentInfo.records - index;
+        Timber.w("The MQTT spool segment %d ends in the middle of a record, dropping %d undelivered records", segmentId, lostRecords);
+
+        if (segmentId == writeSegmentId) closeWriteStream();
+        try (FileOutputStream outputStream = new FileOutputStream(getSegmentFile(segmentId), true))
+        {
+            outputStream.getChannel().truncate(offset);
+        }
+
+        pendingRecords -= lostRecords;
+        totalBytes -= segmentInfo.bytes - offset;
+        segmentInfo.records = index;
+        segmentInfo.bytes = offset;
+        updateDepthMetrics();
+    }
+
+    /**
+     * Moves the cursor to the start of the next segment, deleting the fully drained cursor segment if it is no longer
+     * being written to.
+     *
+     * @return True if the cursor was moved, false if there is no newer segment.
+     */
+    private boolean advanceToNextSegment()
+    {
+        final Long nextSegmentId = segments.higherKey(cursorSegmentId);
+        if (nextSegmentId == null) return false;
+
+        if (cursorSegmentId != writeSegmentId) deleteSegment(cursorSegmentId);
+
+        cursorSegmentId = nextSegmentId;
+        cursorOffset = 0;
+        cursorRecordIndex = 0;
+        return true;
+    }
+
+    private void startNewSegment() throws IOException
+    {
+        closeWriteStream();
+
+        writeSegmentId = segments.isEmpty() ? Math.max(cursorSegmentId, 0) : segments.lastKey() + 1;
+        segments.put(writeSegmentId, new SegmentInfo());
+        writeStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getSegmentFile(writeSegmentId), true)));
+
+        if (segments.size() == 1)
+        {
+            cursorSegmentId = writeSegmentId;
+            cursorOffset = 0;
+            cursorRecordIndex = 0;
+        }
+    }
+
+    /**
+     * Deletes the oldest segments until the spool is under its size cap. The segment currently being written to is
+     * never evicted.
+     */
+    private void evictIfNecessary()
+    {
+        if (totalBytes <= maxSpoolBytes) return;
+
+        while (totalBytes > maxSpoolBytes && segments.size() > 1)
+        {
+            final Map.Entry<Long, SegmentInfo> oldest = segments.firstEntry();
+            final long segmentId = oldest.getKey();
+
+            long lostRecords = 0;
+            if (segmentId == cursorSegmentId)
+            {
+                lostRecords = oldest.getValue().records - cursorRecordIndex;
+            } else if (segmentId > cursorSegmentId)
+            {
+                lostRecords = oldest.getValue().records;
+            }
+
+            Timber.w("The MQTT spool is over its size cap, evicting segment %d with %d undelivered records", segmentId, lostRecords);
+            deleteSegment(segmentId);
+
+            pendingRecords -= lostRecords;
+            metrics.addDrops(PipelineMetrics.DropReason.SPOOL_EVICTED, lostRecords);
+
+            if (segmentId >= cursorSegmentId)
+            {
+                cursorSegmentId = segments.firstKey();
+                cursorOffset = 0;
+                cursorRecordIndex = 0;
+            }
+        }
+
+        writeCursor();
+    }
+
+    private void deleteSegment(long segmentId)
+    {
+        final SegmentInfo segmentInfo = segments.remove(segmentId);
+        if (segmentInfo != null) totalBytes -= segmentInfo.bytes;
+
+        final File segmentFile = getSegmentFile(segmentId);
+        if (segmentFile.exists() && !segmentFile.delete())
+        {
+            Timber.e("Could not delete the MQTT spool segment %s", segmentFile);
+        }
+    }
+
+    private void recoverSegments()
+    {
+        final File[] files = spoolDirectory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                final String name = file.getName();
+                if (!name.startsWith(SEGMENT_FILE_PREFIX) || !name.endsWith(SEGMENT_FILE_SUFFIX)) continue;
+
+                try
+                {
+                    final long segmentId = Long.parseLong(name.substring(SEGMENT_FILE_PREFIX.length(), name.length() - SEGMENT_FILE_SUFFIX.length()));
+                    segments.put(segmentId, scanSegment(file));
+                } catch (Exception e)
+                {
+                    Timber.e(e, "Could not recover the MQTT spool segment %s", file);
+                }
+            }
+        }
+
+        readCursor();
+
+        // Any segments older than the cursor have already been drained
+        while (!segments.isEmpty() && segments.firstKey() < cursorSegmentId)
+        {
+            deleteSegment(segments.firstKey());
+        }
+
+        for (Map.Entry<Long, SegmentInfo> entry : segments.entrySet())
+        {
+            totalBytes += entry.getValue().bytes;
+            pendingRecords += entry.getValue().records;
+        }
+
+        final SegmentInfo cursorSegment = segments.get(cursorSegmentId);
+        if (cursorSegment != null)
+        {
+            pendingRecords -= Math.min(cursorRecordIndex, cursorSegment.records);
+        } else if (!segments.isEmpty())
+        {
+            cursorSegmentId = segments.firstKey();
+            cursorOffset = 0;
+            cursorRecordIndex = 0;
+        }
+
+        if (pendingRecords > 0) Timber.i("Recovered %d records from the MQTT spool", pendingRecords);
+        updateDepthMetrics();
+    }
+
+    /**
+     * Counts the complete records in a segment file. Any partial record at the end of the file (from the app being
+     * killed in the middle of a write) is truncated so that new records are not appended after garbage.
+     * <p>
+     * A record is only counted if it ends within the file, since skipping over the message can move past the end of
+     * the file without an error.
+     */
+    private SegmentInfo scanSegment(File file) throws IOException
+    {
+        final long fileLength = file.length();
+        final SegmentInfo segmentInfo = new SegmentInfo();
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            while (true)
+            {
+                final String messageType = inputStream.readUTF();
+                final int length = inputStream.readInt();
+                final long recordSize = getRecordSize(messageType, length);
+                if (length < 0 || segmentInfo.bytes + recordSize > fileLength) break;
+
+                skipFully(inputStream, length);
+                segmentInfo.records++;
+                segmentInfo.bytes += recordSize;
+            }
+        } catch (EOFException e)
+        {
+            // Reached the end of the segment
+        }
+
+        if (fileLength > segmentInfo.bytes)
+        {
+            Timber.w("Truncating a partial record at the end of the MQTT spool segment %s", file);
+            try (FileOutputStream outputStream = new FileOutputStream(file, true))
+            {
+                outputStream.getChannel().truncate(segmentInfo.bytes);
+            }
+        }
+
+        return segmentInfo;
+    }
+
+    private void readCursor()
+    {
+        final File cursorFile = new File(spoolDirectory, CURSOR_FILE_NAME);
+        if (!cursorFile.exists()) return;
+
+        try (DataInputStream inputStream = new DataInputStream(new FileInputStream(cursorFile)))
+        {
+            cursorSegmentId = inputStream.readLong();
+            cursorOffset = inputStream.readLong();
+            cursorRecordIndex = inputStream.readInt();
+        } catch (IOException e)
+        {
+            Timber.e(e, "Could not read the MQTT spool cursor, starting from the oldest segment");
+            cursorSegmentId = 0;
+            cursorOffset = 0;
+            cursorRecordIndex = 0;
+        }
+    }
+
+    /**
+     * Writes the cursor to a temporary file and then renames it over the old cursor so that a crash never leaves a
+     * partially written cursor behind.
+     */
+    private void writeCursor()
+    {
+        final File tempFile = new File(spoolDirectory, CURSOR_TEMP_FILE_NAME);
+        try (DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(tempFile)))
+        {
+            outputStream.writeLong(cursorSegmentId);
+            outputStream.writeLong(cursorOffset);
+            outputStream.writeInt(cursorRecordIndex);
+        } catch (IOException e)
+        {
+            Timber.e(e, "Could not write the MQTT spool cursor");
+            return;
+        }
+
+        if (!tempFile.renameTo(new File(spoolDirectory, CURSOR_FILE_NAME)))
+        {
+            Timber.e("Could not replace the MQTT spool cursor");
+        }
+    }
+
+    private void flushWriteStream()
+    {
+        lastFlushNanos = System.nanoTime();
+        if (writeStream == null) return;
+
+        try
+        {
+            writeStream.flush();
+        } catch (IOException e)
+        {
+            Timber.e(e, "Could not flush the MQTT spool segment");
+        }
+    }
+
+    private void closeWriteStream()
+    {
+        if (writeStream == null) return;
+
+        try
+        {
+            writeStream.close();
+        } catch (IOException e)
+        {
+            Timber.e(e, "Could not close the MQTT spool segment");
+        }
+
+        writeStream = null;
+    }
+
+    private void updateDepthMetrics()
+    {
+        metrics.setSpoolDepth(pendingRecords, totalBytes);
+    }
+
+    private File getSegmentFile(long segmentId)
+    {
+        return new File(spoolDirectory, SEGMENT_FILE_PREFIX + String.format(Locale.US, "%010d", segmentId) + SEGMENT_FILE_SUFFIX);
+    }
+
+    /**
+     * @return The number of bytes a record takes up in a segment file.
+     */
+    private static long getRecordSize(String messageType, int messageLength)
+    {
+        // writeUTF writes a 2 byte length followed by the modified UTF-8 bytes, which are the same as the standard
+        // UTF-8 bytes for the message type names
+        return 2 + messageType.getBytes(StandardCharsets.UTF_8).length + 4 + messageLength;
+    }
+
+    private static void skipFully(DataInputStream inputStream, long bytes) throws IOException
+    {
+        long remaining = bytes;
+        while (remaining > 0)
+        {
+            final long skipped = inputStream.skip(remaining);
+            if (skipped <= 0)
+            {
+                if (inputStream.read() == -1) throw new EOFException();
+                remaining--;
+            } else
+            {
+                remaining -= skipped;
+            }
+        }
+    }
+
+    /**
+     * A record read from a segment, along with where it is in the segment so that the cursor can be moved past it.
+     */
+    private static final class SpooledRecord
+    {
+        private final String messageType;
+        private final byte[] message;
+        private final long segmentId;
+        private final long startOffset;
+        private final long endOffset;
+
+        SpooledRecord(String messageType, byte[] message, long segmentId, long startOffset, long endOffset)
+        {
+            this.messageType = messageType;
+            this.message = message;
+            this.segmentId = segmentId;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+        }
+    }
+
+    /**
+     * The bookkeeping for a single segment file.
+     */
+    private static final class SegmentInfo
+    {
+        private int records;
+        private long bytes;
+    }
+
+    /**
+     * Consumer of records that are drained from the spool.
+     */
+    public interface RecordConsumer
+    {
+        /**
+         * @param messageType The Network Survey Messaging API message type of the record.
+         * @param message     The serialized protobuf message.
+         * @return True if the record was handled and can be removed from the spool, false to stop draining and keep
+         * the record in the spool.
+         */
+        boolean onRecord(String messageType, byte[] message);
+    }
+}
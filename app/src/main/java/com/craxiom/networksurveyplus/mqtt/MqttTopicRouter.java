@@ -0,0 +1,127 @@
+package com.craxiom.networksurveyplus.mqtt;
+
+import com.craxiom.networksurveyplus.messages.MessageKind;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics.Technology;
+
+import java.util.Locale;
+
+/**
+ * Picks the MQTT topic to publish each cellular OTA message to, so that a consumer that only cares about one
+ * technology (or one SIM) can subscribe to just those messages instead of receiving and decoding all of them.
+ * <p>
+ * The topics are built under the cellular OTA topic, with the technology name used in the record rules, for example
+ * {@code cellular_ota_message/lte_nas} or {@code cellular_ota_message/lte_nas/sim1}. A consumer that wants everything
+ * can subscribe to {@code cellular_ota_message/#}. Every topic is built when the router is created, so picking a
+ * topic does not allocate anything.
+ *
+ * @since 0.6.0
+ */
+public class MqttTopicRouter
+{
+    public static final String ROUTING_SINGLE = "single";
+    public static final String ROUTING_KIND = "kind";
+    public static final String ROUTING_KIND_AND_SIM = "kind_sim";
+
+    /**
+     * The SIM IDs that get their own topic. The SIM ID is a single byte in the pcap record, but a device only has a
+     * couple of SIM slots, and any higher ID is published to the topic for its message kind.
+     */
+    static final int MAX_SIM_TOPICS = 8;
+
+    private final String baseTopic;
+    private final String routing;
+    private final String[] kindTopics;
+    private final String[][] simTopics;
+
+    /**
+     * @param baseTopic The topic that every message is published to when routing is off, and that the other topics
+     *                  are built under.
+     * @param routing   One of {@link #ROUTING_SINGLE}, {@link #ROUTING_KIND}, or {@link #ROUTING_KIND_AND_SIM}.
+     * @throws IllegalArgumentException If the routing is not recognized.
+     */
+    public MqttTopicRouter(String baseTopic, String routing)
+    {
+        this.baseTopic = baseTopic;
+        this.routing = routing;
+
+        final boolean byKind;
+        final boolean bySim;
+        switch (routing)
+        {
+            case ROUTING_SINGLE:
+                byKind = false;
+                bySim = false;
+                break;
+            case ROUTING_KIND:
+                byKind = true;
+                bySim = false;
+                break;
+            case ROUTING_KIND_AND_SIM:
+                byKind = true;
+                bySim = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown MQTT topic routing: " + routing);
+        }
+
+        final MessageKind[] kinds = MessageKind.values();
+        kindTopics = new String[kinds.length];
+        simTopics = new String[kinds.length][];
+        for (MessageKind kind : kinds)
+        {
+            final Technology technology = Technology.fromMessageKind(kind);
+            final String kindTopic = byKind && technology != null ? baseTopic + "/" + technology.name().toLowerCase(Locale.ROOT) : baseTopic;
+            kindTopics[kind.ordinal()] = kindTopic;
+
+            if (bySim && technology != null)
+            {
+                final String[] topics = new String[MAX_SIM_TOPICS];
+                for (int simId = 0; simId < MAX_SIM_TOPICS; simId++)
+                {
+                    topics[simId] = kindTopic + "/sim" + simId;
+                }
+                simTopics[kind.ordinal()] = topics;
+            }
+        }
+    }
+
+    /**
+     * @param messageKind The kind of message to publish.
+     * @param simId       The SIM the message came from, or a negative value if it is not known.
+     * @return The topic to publish the message to.
+     */
+    public String getTopic(MessageKind messageKind, int simId)
+    {
+        if (messageKind == null) return baseTopic;
+
+        final String[] topics = simTopics[messageKind.ordinal()];
+        if (topics != null && simId >= 0 && simId < MAX_SIM_TOPICS) return topics[simId];
+
+        return kindTopics[messageKind.ordinal()];
+    }
+
+    /**
+     * @return True if the messages are split across more than the one base topic.
+     */
+    public boolean isSharded()
+    {
+        return !ROUTING_SINGLE.equals(routing);
+    }
+
+    /**
+     * @return True if the SIM ID is used to pick the topic, so callers can skip finding it otherwise.
+     */
+    public boolean isRoutedBySim()
+    {
+        return ROUTING_KIND_AND_SIM.equals(routing);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MqttTopicRouter{" +
+                "baseTopic='" + baseTopic + '\'' +
+                ", routing='" + routing + '\'' +
+                '}';
+    }
+}
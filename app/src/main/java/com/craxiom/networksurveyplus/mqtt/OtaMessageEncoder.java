@@ -0,0 +1,341 @@
+package com.craxiom.networksurveyplus.mqtt;
+
+import android.location.Location;
+
+import com.craxiom.messaging.GsmSignaling;
+import com.craxiom.messaging.GsmSignalingData;
+import com.craxiom.messaging.LteNas;
+import com.craxiom.messaging.LteNasData;
+import com.craxiom.messaging.LteRrc;
+import com.craxiom.messaging.LteRrcData;
+import com.craxiom.messaging.UmtsNas;
+import com.craxiom.messaging.UmtsNasData;
+import com.craxiom.messaging.WcdmaRrc;
+import com.craxiom.messaging.WcdmaRrcData;
+import com.craxiom.networksurveyplus.messages.MessageKind;
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.util.ParserUtils;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Objects;
+
+/**
+ * Writes the Network Survey Messaging API cellular OTA messages (GsmSignaling, UmtsNas, WcdmaRrc, LteRrc, and LteNas)
+ * straight to the protobuf wire format, without building a protobuf message for each pcap record.
+ * <p>
+ * The fields that are the same for every message in a session (the version, message type, device serial number,
+ * device name, and mission ID) are encoded once per message type, the device time string is only formatted once a
+ * second, and the pcap record is copied from the pcap message's buffer straight into the output. The field numbers
+ * are looked up from the generated message descriptors by their JSON names, so the output can be parsed by the
+ * generated classes of the messaging library the app is built with.
+ *
+ * @since 0.6.0
+ */
+public class OtaMessageEncoder
+{
+    private final String deviceId;
+    private final String missionId;
+    private final String version;
+    private final Schema[] schemas = new Schema[MessageKind.values().length];
+
+    private String deviceName;
+
+    private long deviceTimeSecond = Long.MIN_VALUE;
+    private String deviceTime;
+    private byte[] deviceTimeBytes;
+
+    /**
+     * @param deviceId  The ID of this device to put in each message.
+     * @param missionId The mission ID to put in each message.
+     * @param version   The Network Survey Messaging API version to put in each message.
+     */
+    public OtaMessageEncoder(String deviceId, String missionId, String version)
+    {
+        this.deviceId = deviceId;
+        this.missionId = missionId;
+        this.version = version;
+
+        schemas[MessageKind.GSM_SIGNALING.ordinal()] = new Schema(MessageKind.GSM_SIGNALING, GsmSignaling.getDescriptor(), GsmSignalingData.getDescriptor());
+        schemas[MessageKind.UMTS_NAS.ordinal()] = new Schema(MessageKind.UMTS_NAS, UmtsNas.getDescriptor(), UmtsNasData.getDescriptor());
+        schemas[MessageKind.WCDMA_RRC.ordinal()] = new Schema(MessageKind.WCDMA_RRC, WcdmaRrc.getDescriptor(), WcdmaRrcData.getDescriptor());
+        schemas[MessageKind.LTE_RRC.ordinal()] = new Schema(MessageKind.LTE_RRC, LteRrc.getDescriptor(), LteRrcData.getDescriptor());
+        schemas[MessageKind.LTE_NAS.ordinal()] = new Schema(MessageKind.LTE_NAS, LteNas.getDescriptor(), LteNasData.getDescriptor());
+
+        encodeSessionFields();
+    }
+
+    /**
+     * Sets the device name to put in each message, which is the MQTT client ID of the current broker connection.
+     *
+     * @param deviceName The device name, or null to leave it out.
+     */
+    public synchronized void setDeviceName(String deviceName)
+    {
+        if (Objects.equals(this.deviceName, deviceName)) return;
+
+        this.deviceName = deviceName;
+        encodeSessionFields();
+    }
+
+    /**
+     * @param messageKind The kind of pcap message.
+     * @return True if this encoder can encode the kind of message.
+     */
+    public boolean isSupported(MessageKind messageKind)
+    {
+        return schemas[messageKind.ordinal()] != null;
+    }
+
+    /**
+     * @param nowMs The current time in milliseconds since the epoch.
+     * @return The device time to put in a message, which is the current time in RFC 3339 format with second precision.
+     * The string is only formatted when the second changes.
+     */
+    public synchronized String getDeviceTime(long nowMs)
+    {
+        final long second = Math.floorDiv(nowMs, 1_000L);
+        if (second != deviceTimeSecond)
+        {
+            deviceTime = ParserUtils.getRfc3339String(ZonedDateTime.ofInstant(Instant.ofEpochSecond(second), ZoneId.systemDefault()));
+            deviceTimeBytes = deviceTime.getBytes(StandardCharsets.UTF_8);
+            deviceTimeSecond = second;
+        }
+        return deviceTime;
+    }
+
+    /**
+     * @param pcapMessage The pcap message to encode.
+     * @param location    The location to add to the message, or null.
+     * @param nowMs       The current time in milliseconds since the epoch.
+     * @return The number of bytes {@link #encode} needs for the message.
+     * @throws IllegalArgumentException If the kind of message is not supported.
+     */
+    public synchronized int getEncodedSize(PcapMessage pcapMessage, Location location, long nowMs)
+    {
+        final Schema schema = getSchema(pcapMessage);
+        getDeviceTime(nowMs);
+        final int dataSize = getDataSize(schema, pcapMessage, location);
+        return schema.header.length + CodedOutputStream.computeTagSize(schema.dataField)
+                + CodedOutputStream.computeUInt32SizeNoTag(dataSize) + dataSize;
+    }
+
+    /**
+     * Encodes a pcap message as its Network Survey Messaging API message.
+     *
+     * @param pcapMessage The pcap message to encode.
+     * @param location    The location to add to the message, or null.
+     * @param nowMs       The current time in milliseconds since the epoch.
+     * @param destination The array to write the message to, starting at index 0. It must be at least
+     *                    {@link #getEncodedSize} long.
+     * @return The length of the encoded message.
+     * @throws IllegalArgumentException If the kind of message is not supported.
+     */
+    public synchronized int encode(PcapMessage pcapMessage, Location location, long nowMs, byte[] destination)
+    {
+        final Schema schema = getSchema(pcapMessage);
+        getDeviceTime(nowMs);
+        final int dataSize = getDataSize(schema, pcapMessage, location);
+
+        final CodedOutputStream output = CodedOutputStream.newInstance(destination);
+        try
+        {
+            output.writeRawBytes(schema.header);
+            output.writeTag(schema.dataField, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            output.writeUInt32NoTag(dataSize);
+
+            output.writeRawBytes(schema.sessionFields);
+            writeBytesField(output, schema.deviceTimeField, deviceTimeBytes, deviceTimeBytes.length);
+            if (location != null)
+            {
+                final double latitude = location.getLatitude();
+                final double longitude = location.getLongitude();
+                final float altitude = (float) location.getAltitude();
+                final int accuracy = ParserUtils.roundAccuracy(location.getAccuracy());
+                if (schema.latitudeField != 0 && latitude != 0) output.writeDouble(schema.latitudeField, latitude);
+                if (schema.longitudeField != 0 && longitude != 0) output.writeDouble(schema.longitudeField, longitude);
+                if (schema.altitudeField != 0 && altitude != 0) output.writeFloat(schema.altitudeField, altitude);
+                if (schema.accuracyField != 0 && accuracy != 0) output.writeInt32(schema.accuracyField, accuracy);
+            }
+            writeBytesField(output, schema.pcapRecordField, pcapMessage.getPcapRecordBuffer(), pcapMessage.getPcapRecordLength());
+            final int channelType = getChannelTypeValue(schema, pcapMessage);
+            if (channelType != 0) output.writeEnum(schema.channelTypeField, channelType);
+        } catch (IOException e)
+        {
+            throw new IllegalArgumentException("The destination is too small for the encoded message", e);
+        }
+
+        return output.getTotalBytesWritten();
+    }
+
+    private Schema getSchema(PcapMessage pcapMessage)
+    {
+        final Schema schema = schemas[pcapMessage.getMessageKind().ordinal()];
+        if (schema == null)
+        {
+            throw new IllegalArgumentException("The " + pcapMessage.getMessageKind() + " messages can't be encoded");
+        }
+        return schema;
+    }
+
+    /**
+     * @return The size of the data message, leaving out the fields that have their default value like the generated
+     * classes do.
+     */
+    private int getDataSize(Schema schema, PcapMessage pcapMessage, Location location)
+    {
+        int size = schema.sessionFields.length + computeBytesFieldSize(schema.deviceTimeField, deviceTimeBytes.length)
+                + computeBytesFieldSize(schema.pcapRecordField, pcapMessage.getPcapRecordLength());
+
+        if (location != null)
+        {
+            if (schema.latitudeField != 0 && location.getLatitude() != 0) size += CodedOutputStream.computeDoubleSize(schema.latitudeField, 0);
+            if (schema.longitudeField != 0 && location.getLongitude() != 0) size += CodedOutputStream.computeDoubleSize(schema.longitudeField, 0);
+            if (schema.altitudeField != 0 && (float) location.getAltitude() != 0) size += CodedOutputStream.computeFloatSize(schema.altitudeField, 0);
+
+            final int accuracy = ParserUtils.roundAccuracy(location.getAccuracy());
+            if (schema.accuracyField != 0 && accuracy != 0) size += CodedOutputStream.computeInt32Size(schema.accuracyField, accuracy);
+        }
+
+        final int channelType = getChannelTypeValue(schema, pcapMessage);
+        if (channelType != 0) size += CodedOutputStream.computeEnumSize(schema.channelTypeField, channelType);
+
+        return size;
+    }
+
+    /**
+     * @return The channel type enum value, which is offset by 1 from the GSMTAP channel type to match the messaging
+     * API, or 0 if the message type does not have a channel type.
+     */
+    private static int getChannelTypeValue(Schema schema, PcapMessage pcapMessage)
+    {
+        if (schema.channelTypeField == 0 || schema.messageKind == MessageKind.UMTS_NAS) return 0;
+        return pcapMessage.getChannelType() + 1;
+    }
+
+    /**
+     * Encodes the version and message type of each top level message, and the device serial number, device name and
+     * mission ID of each data message.
+     */
+    private void encodeSessionFields()
+    {
+        for (Schema schema : schemas)
+        {
+            if (schema == null) continue;
+
+            schema.header = encodeStringFields(schema.versionField, version, schema.messageTypeField, schema.messageKind.getMessageType());
+            schema.sessionFields = encodeStringFields(schema.deviceSerialNumberField, deviceId,
+                    schema.deviceNameField, deviceName, schema.missionIdField, missionId);
+        }
+    }
+
+    /**
+     * @param fieldsAndValues Pairs of field numbers and string values. Null and empty values are left out.
+     * @return The encoded string fields.
+     */
+    private static byte[] encodeStringFields(Object... fieldsAndValues)
+    {
+        int size = 0;
+        for (int i = 0; i < fieldsAndValues.length; i += 2)
+        {
+            final int field = (Integer) fieldsAndValues[i];
+            final String value = (String) fieldsAndValues[i + 1];
+            if (field != 0 && value != null && !value.isEmpty()) size += CodedOutputStream.computeStringSize(field, value);
+        }
+
+        final byte[] encoded = new byte[size];
+        final CodedOutputStream output = CodedOutputStream.newInstance(encoded);
+        try
+        {
+            for (int i = 0; i < fieldsAndValues.length; i += 2)
+            {
+                final int field = (Integer) fieldsAndValues[i];
+                final String value = (String) fieldsAndValues[i + 1];
+                if (field != 0 && value != null && !value.isEmpty()) output.writeString(field, value);
+            }
+            output.checkNoSpaceLeft();
+        } catch (IOException e)
+        {
+            throw new IllegalStateException("Could not encode the session fields", e);
+        }
+        return encoded;
+    }
+
+    private static int computeBytesFieldSize(int field, int length)
+    {
+        if (field == 0 || length == 0) return 0;
+        return CodedOutputStream.computeTagSize(field) + CodedOutputStream.computeUInt32SizeNoTag(length) + length;
+    }
+
+    private static void writeBytesField(CodedOutputStream output, int field, byte[] value, int length) throws IOException
+    {
+        if (field == 0 || length == 0) return;
+
+        output.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(length);
+        output.writeRawBytes(value, 0, length);
+    }
+
+    /**
+     * The field numbers of one of the message types, along with its pre-encoded session fields. A field number of 0
+     * means the message type does not have that field.
+     */
+    private static final class Schema
+    {
+        private final MessageKind messageKind;
+        private final int versionField;
+        private final int messageTypeField;
+        private final int dataField;
+
+        private final int deviceSerialNumberField;
+        private final int deviceNameField;
+        private final int deviceTimeField;
+        private final int latitudeField;
+        private final int longitudeField;
+        private final int altitudeField;
+        private final int missionIdField;
+        private final int accuracyField;
+        private final int pcapRecordField;
+        private final int channelTypeField;
+
+        private byte[] header;
+        private byte[] sessionFields;
+
+        private Schema(MessageKind messageKind, Descriptors.Descriptor message, Descriptors.Descriptor data)
+        {
+            this.messageKind = messageKind;
+            versionField = getFieldNumber(message, "version");
+            messageTypeField = getFieldNumber(message, "messageType");
+            dataField = getFieldNumber(message, "data");
+
+            deviceSerialNumberField = getFieldNumber(data, "deviceSerialNumber");
+            deviceNameField = getFieldNumber(data, "deviceName");
+            deviceTimeField = getFieldNumber(data, "deviceTime");
+            latitudeField = getFieldNumber(data, "latitude");
+            longitudeField = getFieldNumber(data, "longitude");
+            altitudeField = getFieldNumber(data, "altitude");
+            missionIdField = getFieldNumber(data, "missionId");
+            accuracyField = getFieldNumber(data, "accuracy");
+            pcapRecordField = getFieldNumber(data, "pcapRecord");
+            channelTypeField = getFieldNumber(data, "channelType");
+        }
+
+        /**
+         * @return The number of the field with the JSON name, or 0 if the message does not have the field.
+         */
+        private static int getFieldNumber(Descriptors.Descriptor descriptor, String jsonName)
+        {
+            for (Descriptors.FieldDescriptor field : descriptor.getFields())
+            {
+                if (field.getJsonName().equals(jsonName)) return field.getNumber();
+            }
+            return 0;
+        }
+    }
+}
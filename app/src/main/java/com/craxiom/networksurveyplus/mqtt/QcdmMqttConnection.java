@@ -1,5 +1,6 @@
 package com.craxiom.networksurveyplus.mqtt;
 
+import android.content.Context;
 import android.location.Location;
 
 import com.craxiom.messaging.GsmSignaling;
@@ -12,19 +13,43 @@ import com.craxiom.messaging.UmtsNas;
 import com.craxiom.messaging.UmtsNasData;
 import com.craxiom.messaging.WcdmaRrc;
 import com.craxiom.messaging.WcdmaRrcData;
+import com.craxiom.mqttlibrary.connection.BrokerConnectionInfo;
+import com.craxiom.mqttlibrary.connection.ConnectionState;
 import com.craxiom.mqttlibrary.connection.DefaultMqttConnection;
 import com.craxiom.networksurveyplus.BuildConfig;
+import com.craxiom.networksurveyplus.Constants;
 import com.craxiom.networksurveyplus.GpsListener;
 import com.craxiom.networksurveyplus.IPcapMessageListener;
 import com.craxiom.networksurveyplus.messages.CraxiomConstants;
+import com.craxiom.networksurveyplus.messages.MessageKind;
 import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.metrics.LatencyHistogram;
+import com.craxiom.networksurveyplus.metrics.MetricsSnapshot;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
 import com.craxiom.networksurveyplus.util.ParserUtils;
+import com.craxiom.networksurveyplus.util.PcapUtils;
+import com.craxiom.networksurveyplus.util.RecordBufferPool;
 import com.google.protobuf.ByteString;
-
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.Message;
+import com.google.protobuf.Struct;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.Value;
+
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import timber.log.Timber;
 
@@ -36,136 +61,609 @@ import timber.log.Timber;
 public class QcdmMqttConnection extends DefaultMqttConnection implements IPcapMessageListener
 {
     private static final String MQTT_CELLULAR_OTA_MESSAGE_TOPIC = "cellular_ota_message";
+    private static final String MQTT_HEALTH_TOPIC = "network_survey_plus_health";
+    private static final String HEALTH_MESSAGE_TYPE = "NsPlusHealth";
+    private static final String MQTT_CELLULAR_OTA_BATCH_TOPIC = "cellular_ota_message_batch";
+    private static final String BATCH_MESSAGE_TYPE = "CellularOtaBatch";
+    private static final String BATCH_ENCODING = "protobuf-delimited";
+    private static final String BATCH_COMPRESSION_ZLIB = "zlib";
+    private static final String BATCH_COMPRESSION_NONE = "none";
     private static final String MISSION_ID_PREFIX = "NS+ ";
 
+    /**
+     * The spool is drained at a bounded rate after a reconnect so that the backlog does not starve the live messages or
+     * saturate a weak uplink. On top of that base rate, each interval also drains as many records as were spooled
+     * during the previous one (up to a cap), since the live messages keep going to the spool until it is empty. That
+     * way the backlog always shrinks by the base rate no matter how busy the capture is.
+     */
+    private static final int SPOOL_DRAIN_INTERVAL_MS = 100;
+    private static final int SPOOL_DRAIN_RECORDS_PER_INTERVAL = Constants.MQTT_SPOOL_DRAIN_RECORDS_PER_SECOND * SPOOL_DRAIN_INTERVAL_MS / 1_000;
+    private static final int SPOOL_DRAIN_MAX_RECORDS_PER_INTERVAL = SPOOL_DRAIN_RECORDS_PER_INTERVAL * 10;
+    private static final int SPOOL_FLUSH_INTERVAL_MS = 1_000;
+
     private final String deviceId;
     private final GpsListener gpsListener;
+    private final PipelineMetrics metrics;
     private final String missionId;
+    private final MqttSpool spool;
+    private final ScheduledExecutorService spoolDrainExecutor;
+    private final OtaMessageEncoder encoder;
+    private final AtomicInteger spooledSinceLastDrain = new AtomicInteger();
+
+    /**
+     * The builders for the messages that are published on their own. They are reused for every message so that the
+     * fields that stay the same for the whole connection are only set once. Only used while holding the builder lock.
+     */
+    private final Object liveBuilderLock = new Object();
+    private final GsmSignaling.Builder gsmSignalingBuilder = GsmSignaling.newBuilder();
+    private final GsmSignalingData.Builder gsmSignalingDataBuilder = GsmSignalingData.newBuilder();
+    private final UmtsNas.Builder umtsNasBuilder = UmtsNas.newBuilder();
+    private final UmtsNasData.Builder umtsNasDataBuilder = UmtsNasData.newBuilder();
+    private final WcdmaRrc.Builder wcdmaRrcBuilder = WcdmaRrc.newBuilder();
+    private final WcdmaRrcData.Builder wcdmaRrcDataBuilder = WcdmaRrcData.newBuilder();
+    private final LteRrc.Builder lteRrcBuilder = LteRrc.newBuilder();
+    private final LteRrcData.Builder lteRrcDataBuilder = LteRrcData.newBuilder();
+    private final LteNas.Builder lteNasBuilder = LteNas.newBuilder();
+    private final LteNasData.Builder lteNasDataBuilder = LteNasData.newBuilder();
+
+    private volatile MqttOtaBatcher batcher;
+    private volatile MqttTopicRouter topicRouter = new MqttTopicRouter(MQTT_CELLULAR_OTA_MESSAGE_TOPIC, MqttTopicRouter.ROUTING_SINGLE);
+    private volatile boolean livePublishingPaused = false;
+    private ScheduledFuture<?> spoolDrainFuture;
 
-    public QcdmMqttConnection(String deviceId, GpsListener gpsListener)
+    /**
+     * @param deviceId    The ID of this device to put in each message.
+     * @param gpsListener The listener to pull the latest location from for each message.
+     * @param metrics     The metrics registry to record the MQTT counters in.
+     * @param spool       The store-and-forward spool to write messages to while the broker is unreachable, or null to
+     *                    drop messages when the broker is unreachable.
+     */
+    public QcdmMqttConnection(String deviceId, GpsListener gpsListener, PipelineMetrics metrics, MqttSpool spool)
     {
         super();
         this.deviceId = deviceId;
         this.gpsListener = gpsListener;
+        this.metrics = metrics;
+        this.spool = spool;
+        spoolDrainExecutor = spool == null ? null : Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "MqttSpoolDrain");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (spool != null)
+        {
+            // The spool only flushes as records are appended, so make sure the last few records reach the disk
+            spoolDrainExecutor.scheduleWithFixedDelay(spool::flush, SPOOL_FLUSH_INTERVAL_MS, SPOOL_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
         missionId = MISSION_ID_PREFIX + deviceId + " " + DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneId.systemDefault()).format(LocalDateTime.now());
+        encoder = new OtaMessageEncoder(deviceId, missionId, BuildConfig.MESSAGING_API_VERSION);
+        initializeLiveBuilders();
+    }
+
+    /**
+     * Connects to the broker, and puts the MQTT client ID in the messages as the device name from now on.
+     */
+    @Override
+    public synchronized void connect(Context context, BrokerConnectionInfo connectionInfo)
+    {
+        super.connect(context, connectionInfo);
+        updateDeviceName();
     }
 
     @Override
     public void onPcapMessage(PcapMessage pcapMessage)
     {
-        switch (pcapMessage.getMessageType())
+        //TODO Add the LTE MIB messages
+        if (!encoder.isSupported(pcapMessage.getMessageKind()))
         {
-            case CraxiomConstants.GSM_SIGNALING_MESSAGE_TYPE:
-                convertAndPublishGsmMessage(pcapMessage);
-                break;
-            case CraxiomConstants.UMTS_NAS_MESSAGE_TYPE:
-                convertAndPublishUmtsMessage(pcapMessage);
-                break;
-            case CraxiomConstants.WCDMA_RRC_MESSAGE_TYPE:
-                convertAndPublishWcdmaRRCMessage(pcapMessage);
-                break;
-            case CraxiomConstants.LTE_RRC_MESSAGE_TYPE:
-                convertAndPublishLteRrcMessage(pcapMessage);
-                break;
-            case CraxiomConstants.LTE_NAS_MESSAGE_TYPE:
-                convertAndPublishLteNasMessage(pcapMessage);
-                break;
-            //TODO
-            //case CraxiomConstants.LTE_MIB_MESSAGE_TYPE:
-            default:
-                Timber.w("Unhandled message type for the MQTT Connection %s", pcapMessage.getMessageType());
+            Timber.w("Unhandled message type for the MQTT Connection %s", pcapMessage.getMessageType());
+            return;
         }
+
+        publishOtaMessage(pcapMessage, gpsListener.getLatestLocation());
     }
 
     /**
-     * Converts a PCAP message into a GSM Signaling message and publishes it to the MQTT server.
+     * Publishes the provided pipeline metrics to the health topic so that the health of the QCDM pipeline can be
+     * monitored remotely.
+     * <p>
+     * The health message is not part of the Network Survey Messaging API, so it is sent as a generic protobuf
+     * {@link Struct} that follows the same version/messageType/data layout as the other messages.
      *
-     * @param pcapMessage The PCAP message to convert and publish.
+     * @param snapshot The metrics to publish.
+     * @since 0.6.0
      */
-    private void convertAndPublishGsmMessage(PcapMessage pcapMessage)
+    public void publishHealthMessage(MetricsSnapshot snapshot)
     {
-        final GsmSignaling gsmSignaling = convertGsmMessage(pcapMessage, gpsListener.getLatestLocation());
-        publishMessage(MQTT_CELLULAR_OTA_MESSAGE_TOPIC, gsmSignaling);
+        final Struct.Builder dataBuilder = Struct.newBuilder();
+        dataBuilder.putFields("deviceSerialNumber", stringValue(deviceId));
+        if (mqttClientId != null) dataBuilder.putFields("deviceName", stringValue(mqttClientId));
+        dataBuilder.putFields("missionId", stringValue(missionId));
+        dataBuilder.putFields("deviceTime", stringValue(ParserUtils.getRfc3339String(
+                ZonedDateTime.ofInstant(Instant.ofEpochMilli(snapshot.getTimestampMs()), ZoneId.systemDefault()))));
+        dataBuilder.putFields("framesDecoded", numberValue(snapshot.getFramesDecoded()));
+        dataBuilder.putFields("recordsProcessed", numberValue(snapshot.getRecordsProcessed()));
+
+        final Struct.Builder dropsBuilder = Struct.newBuilder();
+        for (PipelineMetrics.DropReason reason : PipelineMetrics.DropReason.values())
+        {
+            dropsBuilder.putFields(reason.name(), numberValue(snapshot.getDropCount(reason)));
+        }
+        dataBuilder.putFields("drops", Value.newBuilder().setStructValue(dropsBuilder).build());
+
+        final Struct.Builder bytesBuilder = Struct.newBuilder();
+        for (PipelineMetrics.ByteStage stage : PipelineMetrics.ByteStage.values())
+        {
+            bytesBuilder.putFields(stage.name(), numberValue(snapshot.getByteCount(stage)));
+        }
+        dataBuilder.putFields("bytes", Value.newBuilder().setStructValue(bytesBuilder).build());
+
+        final Struct.Builder duplicatesBuilder = Struct.newBuilder();
+        for (PipelineMetrics.Technology technology : PipelineMetrics.Technology.values())
+        {
+            duplicatesBuilder.putFields(technology.name(), numberValue(snapshot.getDuplicatesSuppressed(technology)));
+        }
+        dataBuilder.putFields("duplicatesSuppressed", Value.newBuilder().setStructValue(duplicatesBuilder).build());
+
+        final Struct.Builder sampledOutBuilder = Struct.newBuilder();
+        for (PipelineMetrics.Technology technology : PipelineMetrics.Technology.values())
+        {
+            sampledOutBuilder.putFields(technology.name(), numberValue(snapshot.getSampledOut(technology)));
+        }
+        dataBuilder.putFields("sampledOut", Value.newBuilder().setStructValue(sampledOutBuilder).build());
+
+        final Struct.Builder logCodesBuilder = Struct.newBuilder();
+        for (Map.Entry<Integer, Long> entry : snapshot.getLogCodeCounts().entrySet())
+        {
+            logCodesBuilder.putFields(String.format("0x%04X", entry.getKey()), numberValue(entry.getValue()));
+        }
+        dataBuilder.putFields("logCodes", Value.newBuilder().setStructValue(logCodesBuilder).build());
+
+        dataBuilder.putFields("decodeLatency", histogramValue(snapshot.getDecodeLatency()));
+
+        final Struct.Builder sinksBuilder = Struct.newBuilder();
+        for (Map.Entry<String, LatencyHistogram.HistogramSnapshot> entry : snapshot.getSinkLatencies().entrySet())
+        {
+            sinksBuilder.putFields(entry.getKey(), histogramValue(entry.getValue()));
+        }
+        dataBuilder.putFields("sinkLatency", Value.newBuilder().setStructValue(sinksBuilder).build());
+
+        final Struct.Builder spoolBuilder = Struct.newBuilder();
+        spoolBuilder.putFields("depthRecords", numberValue(snapshot.getSpoolDepthRecords()));
+        spoolBuilder.putFields("depthBytes", numberValue(snapshot.getSpoolDepthBytes()));
+        dataBuilder.putFields("spool", Value.newBuilder().setStructValue(spoolBuilder).build());
+
+        final Struct.Builder supervisorBuilder = Struct.newBuilder();
+        supervisorBuilder.putFields("diagRevealerRestarts", numberValue(snapshot.getDiagRevealerRestarts()));
+        supervisorBuilder.putFields("pipelineStalls", numberValue(snapshot.getPipelineStalls()));
+        supervisorBuilder.putFields("lastTimeToRecoverMs", numberValue(snapshot.getLastTimeToRecoverMs()));
+        supervisorBuilder.putFields("maxTimeToRecoverMs", numberValue(snapshot.getMaxTimeToRecoverMs()));
+        dataBuilder.putFields("supervisor", Value.newBuilder().setStructValue(supervisorBuilder).build());
+
+        final Struct.Builder startupBuilder = Struct.newBuilder();
+        for (Map.Entry<String, Long> entry : snapshot.getStartupPhasesMs().entrySet())
+        {
+            startupBuilder.putFields(entry.getKey(), numberValue(entry.getValue()));
+        }
+        dataBuilder.putFields("startupPhasesMs", Value.newBuilder().setStructValue(startupBuilder).build());
+
+        final Struct.Builder healthBuilder = Struct.newBuilder();
+        healthBuilder.putFields("version", stringValue(BuildConfig.MESSAGING_API_VERSION));
+        healthBuilder.putFields("messageType", stringValue(HEALTH_MESSAGE_TYPE));
+        healthBuilder.putFields("data", Value.newBuilder().setStructValue(dataBuilder).build());
+
+        publishMessage(MQTT_HEALTH_TOPIC, healthBuilder.build());
     }
 
     /**
-     * Converts a PCAP message into a UMTS NAS message and publishes it to the MQTT server.
+     * Sets the batching settings to use for the next broker connection, and closes out any batch from the previous
+     * connection. This should be called before {@link #connect(Context, BrokerConnectionInfo)}.
      *
-     * @param pcapMessage The PCAP message to convert and publish.
+     * @param batchConfig The batch settings for the broker connection.
+     * @since 0.6.0
      */
-    private void convertAndPublishUmtsMessage(PcapMessage pcapMessage)
+    public synchronized void setBatchConfig(MqttBatchConfig batchConfig)
     {
-        final UmtsNas umtsNas = convertUmtsNasMessage(pcapMessage, gpsListener.getLatestLocation());
-        publishMessage(MQTT_CELLULAR_OTA_MESSAGE_TOPIC, umtsNas);
+        stopBatching();
+
+        Timber.i("Using the MQTT batch config %s", batchConfig);
+        if (batchConfig.isEnabled()) batcher = new MqttOtaBatcher(batchConfig, this::publishBatch);
     }
 
     /**
-     * Converts a PCAP message into a WCDMA RRC message and publishes it to the MQTT server.
+     * Sets how the cellular OTA messages are split across topics for the next broker connection. This should be called
+     * before {@link #connect(Context, BrokerConnectionInfo)}. The batches are always published to the one batch topic
+     * because a batch holds messages of every kind.
      *
-     * @param pcapMessage The PCAP message to convert and publish.
+     * @param routing One of the {@link MqttTopicRouter} routing values.
+     * @since 0.6.0
      */
-    private void convertAndPublishWcdmaRRCMessage(PcapMessage pcapMessage)
+    public void setTopicRouting(String routing)
     {
-        final WcdmaRrc wcdmaRrc = convertWcdmaRrcOtaMessage(pcapMessage, gpsListener.getLatestLocation());
-        publishMessage(MQTT_CELLULAR_OTA_MESSAGE_TOPIC, wcdmaRrc);
+        try
+        {
+            topicRouter = new MqttTopicRouter(MQTT_CELLULAR_OTA_MESSAGE_TOPIC, routing);
+        } catch (IllegalArgumentException e)
+        {
+            Timber.e(e, "Invalid MQTT topic routing, publishing every message to the %s topic", MQTT_CELLULAR_OTA_MESSAGE_TOPIC);
+            topicRouter = new MqttTopicRouter(MQTT_CELLULAR_OTA_MESSAGE_TOPIC, MqttTopicRouter.ROUTING_SINGLE);
+        }
+
+        Timber.i("Using the MQTT topic routing %s", topicRouter);
     }
 
     /**
-     * Converts a PCAP message into an LteRrc message and publishes it to the MQTT server.
+     * Publishes any pending batch and stops batching messages. This should be called before disconnecting from the
+     * broker so that the last partial batch is not lost.
      *
-     * @param pcapMessage The PCAP message to convert and publish.
+     * @since 0.6.0
      */
-    private void convertAndPublishLteRrcMessage(PcapMessage pcapMessage)
+    public synchronized void stopBatching()
     {
-        final LteRrc lteRrc = convertLteRrcMessage(pcapMessage, gpsListener.getLatestLocation());
-        publishMessage(MQTT_CELLULAR_OTA_MESSAGE_TOPIC, lteRrc);
+        final MqttOtaBatcher currentBatcher = batcher;
+        batcher = null;
+        if (currentBatcher != null) currentBatcher.close();
     }
 
     /**
-     * Converts a PCAP message into an LteNas message and publishes it to the MQTT server.
+     * Pauses or resumes publishing the cellular OTA messages. While paused, the messages are written to the
+     * store-and-forward spool instead, which keeps the radio quiet; resuming drains the spool. The health messages are
+     * not affected. Without a spool, the messages keep being published.
+     *
+     * @param paused True to hold the messages in the spool, false to publish them again.
+     * @since 0.6.0
+     */
+    public void setLivePublishingPaused(boolean paused)
+    {
+        if (livePublishingPaused == paused) return;
+
+        Timber.i("%s the MQTT OTA message publishing", paused ? "Pausing" : "Resuming");
+        livePublishingPaused = paused;
+        if (paused)
+        {
+            stopSpoolDrain();
+        } else if (getConnectionState() == ConnectionState.CONNECTED)
+        {
+            startSpoolDrain();
+        }
+    }
+
+    /**
+     * Starts draining the store-and-forward spool at a bounded rate, oldest records first. This should be called when
+     * the connection to the broker is established. Draining stops on its own once the spool is empty or the connection
+     * is lost. The spool is only looked at on the drain thread, since it might still need to recover its records from
+     * disk.
+     *
+     * @since 0.6.0
+     */
+    public synchronized void startSpoolDrain()
+    {
+        if (spool == null || livePublishingPaused) return;
+        if (spoolDrainFuture != null && !spoolDrainFuture.isDone()) return;
+
+        Timber.i("Draining the MQTT spool");
+        spooledSinceLastDrain.set(0);
+        spoolDrainFuture = spoolDrainExecutor.scheduleWithFixedDelay(this::drainSpool,
+                SPOOL_DRAIN_INTERVAL_MS, SPOOL_DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops draining the store-and-forward spool. Any records that have not been drained stay in the spool until the
+     * next call to {@link #startSpoolDrain()}.
+     *
+     * @since 0.6.0
+     */
+    public synchronized void stopSpoolDrain()
+    {
+        if (spoolDrainFuture != null)
+        {
+            spoolDrainFuture.cancel(false);
+            spoolDrainFuture = null;
+        }
+    }
+
+    /**
+     * Publishes the next group of records from the spool. Called periodically on the spool drain thread.
+     */
+    private void drainSpool()
+    {
+        try
+        {
+            if (getConnectionState() != ConnectionState.CONNECTED || livePublishingPaused || spool.getPendingRecords() == 0)
+            {
+                Timber.i("Stopping the MQTT spool drain; %d records remain", spool.getPendingRecords());
+                stopSpoolDrain();
+                return;
+            }
+
+            final int maxRecords = (int) Math.min(SPOOL_DRAIN_RECORDS_PER_INTERVAL + (long) spooledSinceLastDrain.getAndSet(0),
+                    SPOOL_DRAIN_MAX_RECORDS_PER_INTERVAL);
+            spool.drain(maxRecords, this::publishSpooledRecord);
+        } catch (Exception e)
+        {
+            Timber.e(e, "Could not drain the MQTT spool");
+        }
+    }
+
+    /**
+     * Parses a record from the spool and publishes it to its original topic.
+     *
+     * @return False if the connection was lost and the record should stay in the spool, true otherwise.
+     */
+    private boolean publishSpooledRecord(String messageType, byte[] messageBytes)
+    {
+        if (getConnectionState() != ConnectionState.CONNECTED) return false;
+
+        final Message message;
+        try
+        {
+            message = parseOtaMessage(messageType, messageBytes);
+        } catch (InvalidProtocolBufferException e)
+        {
+            Timber.e(e, "Discarding a corrupt %s record from the MQTT spool", messageType);
+            return true;
+        }
+
+        if (message == null)
+        {
+            Timber.w("Discarding a record with an unknown message type (%s) from the MQTT spool", messageType);
+            return true;
+        }
+
+        final MqttTopicRouter router = topicRouter;
+        final int simId;
+        if (router.isRoutedBySim())
+        {
+            // Only the SIM topics need the SIM ID, which means copying the pcap record out of the message
+            final ByteString pcapRecord = getPcapRecord(message);
+            simId = PcapUtils.getSimId(pcapRecord.toByteArray(), pcapRecord.size());
+        } else
+        {
+            simId = PcapMessage.UNSET_FIELD;
+        }
+
+        publishToBroker(messageType, router.getTopic(MessageKind.fromMessageType(messageType), simId), message);
+        return true;
+    }
+
+    /**
+     * Converts a PCAP message to its Network Survey Messaging API message, publishes it to the MQTT server on the topic
+     * picked by the {@link MqttTopicRouter}, and counts it in the pipeline metrics. If the broker is unreachable,
+     * publishing is paused, or older messages are still waiting in the spool, the message is written to the spool so
+     * that it can be published in order later.
+     * <p>
+     * The spool and the batches hold the binary protobuf messages, so for those the message is written straight to the
+     * wire format by the {@link OtaMessageEncoder}. The MQTT library publishes a single message as JSON, which needs
+     * the protobuf message object, so that is only built when the message is published on its own.
      *
      * @param pcapMessage The PCAP message to convert and publish.
+     * @param location    The location to add to the message.
+     * @since 0.6.0
+     */
+    private void publishOtaMessage(PcapMessage pcapMessage, Location location)
+    {
+        final String messageType = pcapMessage.getMessageType();
+        if (spool != null && (livePublishingPaused || getConnectionState() != ConnectionState.CONNECTED || spool.getPendingRecords() > 0))
+        {
+            encode(pcapMessage, location, (message, length) -> spool.append(messageType, message, 0, length));
+            spooledSinceLastDrain.incrementAndGet();
+            return;
+        }
+
+        final MqttOtaBatcher currentBatcher = batcher;
+        if (currentBatcher != null)
+        {
+            encode(pcapMessage, location, (message, length) -> currentBatcher.addEncoded(messageType, message, 0, length));
+        } else
+        {
+            final String topic = topicRouter.getTopic(pcapMessage.getMessageKind(), getSimId(pcapMessage));
+            publishMessage(topic, convertOtaMessage(pcapMessage, location));
+        }
+
+        metrics.incrementMqttMessagesPublished();
+        metrics.addBytes(PipelineMetrics.ByteStage.MQTT_PUBLISHED, pcapMessage.getPcapRecordLength());
+    }
+
+    /**
+     * Encodes a PCAP message into an array from the shared {@link RecordBufferPool} and hands it to the consumer. The
+     * array goes back to the pool when the consumer returns.
+     */
+    private void encode(PcapMessage pcapMessage, Location location, EncodedMessageConsumer consumer)
+    {
+        final RecordBufferPool pool = RecordBufferPool.getShared();
+        final long nowMs = System.currentTimeMillis();
+        final byte[] buffer;
+        final int length;
+        synchronized (encoder)
+        {
+            buffer = pool.acquire(encoder.getEncodedSize(pcapMessage, location, nowMs));
+            length = encoder.encode(pcapMessage, location, nowMs, buffer);
+        }
+
+        try
+        {
+            consumer.accept(buffer, length);
+        } finally
+        {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Sets the fields that are the same for every message on the live message builders.
      */
-    private void convertAndPublishLteNasMessage(PcapMessage pcapMessage)
+    private void initializeLiveBuilders()
     {
-        final LteNas lteNas = convertLteNasMessage(pcapMessage, gpsListener.getLatestLocation());
-        publishMessage(MQTT_CELLULAR_OTA_MESSAGE_TOPIC, lteNas);
+        synchronized (liveBuilderLock)
+        {
+            gsmSignalingBuilder.setVersion(BuildConfig.MESSAGING_API_VERSION);
+            gsmSignalingDataBuilder.setDeviceSerialNumber(deviceId).setMissionId(missionId);
+            umtsNasBuilder.setVersion(BuildConfig.MESSAGING_API_VERSION);
+            umtsNasDataBuilder.setDeviceSerialNumber(deviceId).setMissionId(missionId);
+            wcdmaRrcBuilder.setVersion(BuildConfig.MESSAGING_API_VERSION);
+            wcdmaRrcDataBuilder.setDeviceSerialNumber(deviceId).setMissionId(missionId);
+            lteRrcBuilder.setVersion(BuildConfig.MESSAGING_API_VERSION);
+            lteRrcDataBuilder.setDeviceSerialNumber(deviceId).setMissionId(missionId);
+            lteNasBuilder.setVersion(BuildConfig.MESSAGING_API_VERSION);
+            lteNasDataBuilder.setDeviceSerialNumber(deviceId).setMissionId(missionId);
+        }
     }
 
     /**
-     * Converts a PCAP message to a GSM Signaling message so that it can be sent out via MQTT.
+     * Puts the current MQTT client ID in the encoded and live messages as the device name, or leaves the device name
+     * out if there is no client ID.
+     */
+    private void updateDeviceName()
+    {
+        final String deviceName = mqttClientId;
+        encoder.setDeviceName(deviceName);
+
+        synchronized (liveBuilderLock)
+        {
+            if (deviceName != null)
+            {
+                gsmSignalingDataBuilder.setDeviceName(deviceName);
+                umtsNasDataBuilder.setDeviceName(deviceName);
+                wcdmaRrcDataBuilder.setDeviceName(deviceName);
+                lteRrcDataBuilder.setDeviceName(deviceName);
+                lteNasDataBuilder.setDeviceName(deviceName);
+            } else
+            {
+                gsmSignalingDataBuilder.clearDeviceName();
+                umtsNasDataBuilder.clearDeviceName();
+                wcdmaRrcDataBuilder.clearDeviceName();
+                lteRrcDataBuilder.clearDeviceName();
+                lteNasDataBuilder.clearDeviceName();
+            }
+        }
+    }
+
+    /**
+     * Converts a PCAP message to its Network Survey Messaging API message. The pcap record in the message wraps the
+     * PCAP message's buffer instead of copying it, so the message must not be used after the PCAP message is released.
      *
-     * @param pcapMessage The PCAP message to convert.
+     * @param pcapMessage The PCAP message to convert, which must be one of the kinds the encoder supports.
      * @param location    The location to add to the message.
      * @return The Network Survey Messaging API defined message.
      */
-    private GsmSignaling convertGsmMessage(PcapMessage pcapMessage, Location location)
+    private Message convertOtaMessage(PcapMessage pcapMessage, Location location)
     {
-        final GsmSignaling.Builder builder = GsmSignaling.newBuilder();
-        final GsmSignalingData.Builder dataBuilder = GsmSignalingData.newBuilder();
-
-        builder.setVersion(BuildConfig.MESSAGING_API_VERSION);
-        builder.setMessageType(pcapMessage.getMessageType());
-
-        dataBuilder.setDeviceSerialNumber(deviceId);
-        if (mqttClientId != null) dataBuilder.setDeviceName(mqttClientId);
-        dataBuilder.setMissionId(missionId);
-        dataBuilder.setDeviceTime(ParserUtils.getRfc3339String(ZonedDateTime.now()));
-        if (location != null)
-        {
-            dataBuilder.setAltitude((float) location.getAltitude());
-            dataBuilder.setLatitude(location.getLatitude());
-            dataBuilder.setLongitude(location.getLongitude());
-            dataBuilder.setAccuracy(ParserUtils.roundAccuracy(location.getAccuracy()));
+        switch (pcapMessage.getMessageKind())
+        {
+            case GSM_SIGNALING:
+                return convertGsmMessage(pcapMessage, location);
+            case UMTS_NAS:
+                return convertUmtsNasMessage(pcapMessage, location);
+            case WCDMA_RRC:
+                return convertWcdmaRrcOtaMessage(pcapMessage, location);
+            case LTE_RRC:
+                return convertLteRrcMessage(pcapMessage, location);
+            case LTE_NAS:
+                return convertLteNasMessage(pcapMessage, location);
+            default:
+                throw new IllegalArgumentException("Unhandled message kind " + pcapMessage.getMessageKind());
         }
+    }
 
-        dataBuilder.setPcapRecord(ByteString.copyFrom(pcapMessage.getPcapRecord()));
+    /**
+     * Publishes the provided cellular OTA message to the MQTT server and counts it in the pipeline metrics. If
+     * batching is enabled for the current broker connection, the message is added to the current batch instead.
+     *
+     * @param messageType The Network Survey Messaging API message type.
+     * @param topic       The topic to publish the message to when it is not batched.
+     * @param message     The Network Survey Messaging API message to publish.
+     * @since 0.6.0
+     */
+    private void publishToBroker(String messageType, String topic, Message message)
+    {
+        final MqttOtaBatcher currentBatcher = batcher;
+        if (currentBatcher != null)
+        {
+            currentBatcher.add(messageType, message);
+        } else
+        {
+            publishMessage(topic, message);
+        }
 
-        dataBuilder.setChannelTypeValue(pcapMessage.getChannelType() + 1); // Here we offset by 1 to match with the GsmSignalingChannelType values
+        metrics.incrementMqttMessagesPublished();
+        metrics.addBytes(PipelineMetrics.ByteStage.MQTT_PUBLISHED, getPcapRecord(message).size());
+    }
 
-        builder.setData(dataBuilder.build());
+    /**
+     * Publishes a batch of cellular OTA messages to the batch topic.
+     * <p>
+     * Like the health message, the batch is not part of the Network Survey Messaging API, so it is sent as a generic
+     * protobuf {@link Struct} that follows the version/messageType/data layout. The payload is the base64 encoding of
+     * the length-delimited binary protobuf messages, optionally compressed with zlib, and the messageTypes list gives
+     * the message type of each message in the payload so that a consumer knows which protobuf type to parse.
+     *
+     * @param messageTypes The message type of each message in the batch.
+     * @param payload      The batch payload.
+     * @param deflated     True if the payload is compressed with zlib.
+     * @since 0.6.0
+     */
+    private void publishBatch(List<String> messageTypes, byte[] payload, boolean deflated)
+    {
+        final ListValue.Builder messageTypesBuilder = ListValue.newBuilder();
+        for (String messageType : messageTypes)
+        {
+            messageTypesBuilder.addValues(stringValue(messageType));
+        }
 
-        return builder.build();
+        final Struct.Builder dataBuilder = Struct.newBuilder();
+        dataBuilder.putFields("deviceSerialNumber", stringValue(deviceId));
+        if (mqttClientId != null) dataBuilder.putFields("deviceName", stringValue(mqttClientId));
+        dataBuilder.putFields("missionId", stringValue(missionId));
+        dataBuilder.putFields("deviceTime", stringValue(ParserUtils.getRfc3339String(ZonedDateTime.now())));
+        dataBuilder.putFields("messageCount", numberValue(messageTypes.size()));
+        dataBuilder.putFields("messageTypes", Value.newBuilder().setListValue(messageTypesBuilder).build());
+        dataBuilder.putFields("encoding", stringValue(BATCH_ENCODING));
+        dataBuilder.putFields("compression", stringValue(deflated ? BATCH_COMPRESSION_ZLIB : BATCH_COMPRESSION_NONE));
+        dataBuilder.putFields("payload", stringValue(Base64.getEncoder().encodeToString(payload)));
+
+        final Struct.Builder batchBuilder = Struct.newBuilder();
+        batchBuilder.putFields("version", stringValue(BuildConfig.MESSAGING_API_VERSION));
+        batchBuilder.putFields("messageType", stringValue(BATCH_MESSAGE_TYPE));
+        batchBuilder.putFields("data", Value.newBuilder().setStructValue(dataBuilder).build());
+
+        publishMessage(MQTT_CELLULAR_OTA_BATCH_TOPIC, batchBuilder.build());
+    }
+
+    /**
+     * Converts a PCAP message to a GSM Signaling message so that it can be sent out via MQTT.
+     *
+     * @param pcapMessage The PCAP message to convert.
+     * @param location    The location to add to the message.
+     * @return The Network Survey Messaging API defined message.
+     */
+    private GsmSignaling convertGsmMessage(PcapMessage pcapMessage, Location location)
+    {
+        synchronized (liveBuilderLock)
+        {
+            gsmSignalingBuilder.setMessageType(pcapMessage.getMessageType());
+
+            gsmSignalingDataBuilder.setDeviceTime(encoder.getDeviceTime(System.currentTimeMillis()));
+            if (location != null)
+            {
+                gsmSignalingDataBuilder.setAltitude((float) location.getAltitude());
+                gsmSignalingDataBuilder.setLatitude(location.getLatitude());
+                gsmSignalingDataBuilder.setLongitude(location.getLongitude());
+                gsmSignalingDataBuilder.setAccuracy(ParserUtils.roundAccuracy(location.getAccuracy()));
+            } else
+            {
+                gsmSignalingDataBuilder.clearAltitude().clearLatitude().clearLongitude().clearAccuracy();
+            }
+
+            gsmSignalingDataBuilder.setPcapRecord(UnsafeByteOperations.unsafeWrap(pcapMessage.getPcapRecordBuffer(), 0, pcapMessage.getPcapRecordLength()));
+            gsmSignalingDataBuilder.setChannelTypeValue(pcapMessage.getChannelType() + 1); // Here we offset by 1 to match with the GsmSignalingChannelType values
+
+            final GsmSignaling message = gsmSignalingBuilder.setData(gsmSignalingDataBuilder).build();
+
+            // Don't hold on to the PCAP message's buffer, which goes back to the pool
+            gsmSignalingBuilder.clearData();
+            gsmSignalingDataBuilder.clearPcapRecord();
+            return message;
+        }
     }
 
     /**
@@ -177,28 +675,31 @@ public class QcdmMqttConnection extends DefaultMqttConnection implements IPcapMe
      */
     public UmtsNas convertUmtsNasMessage(PcapMessage pcapMessage, Location location)
     {
-        final UmtsNasData.Builder dataBuilder = UmtsNasData.newBuilder();
-
-        dataBuilder.setDeviceSerialNumber(deviceId);
-        if (mqttClientId != null) dataBuilder.setDeviceName(mqttClientId);
-        dataBuilder.setMissionId(missionId);
-        dataBuilder.setDeviceTime(ParserUtils.getRfc3339String(ZonedDateTime.now()));
-        if (location != null)
-        {
-            dataBuilder.setAltitude((float) location.getAltitude());
-            dataBuilder.setLatitude(location.getLatitude());
-            dataBuilder.setLongitude(location.getLongitude());
-            dataBuilder.setAccuracy(ParserUtils.roundAccuracy(location.getAccuracy()));
+        synchronized (liveBuilderLock)
+        {
+            umtsNasBuilder.setMessageType(pcapMessage.getMessageType());
+
+            umtsNasDataBuilder.setDeviceTime(encoder.getDeviceTime(System.currentTimeMillis()));
+            if (location != null)
+            {
+                umtsNasDataBuilder.setAltitude((float) location.getAltitude());
+                umtsNasDataBuilder.setLatitude(location.getLatitude());
+                umtsNasDataBuilder.setLongitude(location.getLongitude());
+                umtsNasDataBuilder.setAccuracy(ParserUtils.roundAccuracy(location.getAccuracy()));
+            } else
+            {
+                umtsNasDataBuilder.clearAltitude().clearLatitude().clearLongitude().clearAccuracy();
+            }
+
+            umtsNasDataBuilder.setPcapRecord(UnsafeByteOperations.unsafeWrap(pcapMessage.getPcapRecordBuffer(), 0, pcapMessage.getPcapRecordLength()));
+
+            final UmtsNas message = umtsNasBuilder.setData(umtsNasDataBuilder).build();
+
+            // Don't hold on to the PCAP message's buffer, which goes back to the pool
+            umtsNasBuilder.clearData();
+            umtsNasDataBuilder.clearPcapRecord();
+            return message;
         }
-
-        dataBuilder.setPcapRecord(ByteString.copyFrom(pcapMessage.getPcapRecord()));
-
-        final UmtsNas.Builder umtsNasBuilder = UmtsNas.newBuilder();
-        umtsNasBuilder.setVersion(BuildConfig.MESSAGING_API_VERSION);
-        umtsNasBuilder.setMessageType(pcapMessage.getMessageType());
-        umtsNasBuilder.setData(dataBuilder.build());
-
-        return umtsNasBuilder.build();
     }
 
     /**
@@ -210,30 +711,32 @@ public class QcdmMqttConnection extends DefaultMqttConnection implements IPcapMe
      */
     public WcdmaRrc convertWcdmaRrcOtaMessage(PcapMessage pcapMessage, Location location)
     {
-        final WcdmaRrc.Builder wcdmaRrcBuilder = WcdmaRrc.newBuilder();
-        final WcdmaRrcData.Builder dataBuilder = WcdmaRrcData.newBuilder();
-
-        wcdmaRrcBuilder.setVersion(BuildConfig.MESSAGING_API_VERSION);
-        wcdmaRrcBuilder.setMessageType(pcapMessage.getMessageType());
-
-        dataBuilder.setDeviceSerialNumber(deviceId);
-        if (mqttClientId != null) dataBuilder.setDeviceName(mqttClientId);
-        dataBuilder.setMissionId(missionId);
-        dataBuilder.setDeviceTime(ParserUtils.getRfc3339String(ZonedDateTime.now()));
-        if (location != null)
-        {
-            dataBuilder.setAltitude((float) location.getAltitude());
-            dataBuilder.setLatitude(location.getLatitude());
-            dataBuilder.setLongitude(location.getLongitude());
-            dataBuilder.setAccuracy(ParserUtils.roundAccuracy(location.getAccuracy()));
+        synchronized (liveBuilderLock)
+        {
+            wcdmaRrcBuilder.setMessageType(pcapMessage.getMessageType());
+
+            wcdmaRrcDataBuilder.setDeviceTime(encoder.getDeviceTime(System.currentTimeMillis()));
+            if (location != null)
+            {
+                wcdmaRrcDataBuilder.setAltitude((float) location.getAltitude());
+                wcdmaRrcDataBuilder.setLatitude(location.getLatitude());
+                wcdmaRrcDataBuilder.setLongitude(location.getLongitude());
+                wcdmaRrcDataBuilder.setAccuracy(ParserUtils.roundAccuracy(location.getAccuracy()));
+            } else
+            {
+                wcdmaRrcDataBuilder.clearAltitude().clearLatitude().clearLongitude().clearAccuracy();
+            }
+
+            wcdmaRrcDataBuilder.setPcapRecord(UnsafeByteOperations.unsafeWrap(pcapMessage.getPcapRecordBuffer(), 0, pcapMessage.getPcapRecordLength()));
+            wcdmaRrcDataBuilder.setChannelTypeValue(pcapMessage.getChannelType() + 1); // Here we offset by 1 to match with the WcdmaRrcChannelType values
+
+            final WcdmaRrc message = wcdmaRrcBuilder.setData(wcdmaRrcDataBuilder).build();
+
+            // Don't hold on to the PCAP message's buffer, which goes back to the pool
+            wcdmaRrcBuilder.clearData();
+            wcdmaRrcDataBuilder.clearPcapRecord();
+            return message;
         }
-
-        dataBuilder.setPcapRecord(ByteString.copyFrom(pcapMessage.getPcapRecord()));
-
-        dataBuilder.setChannelTypeValue(pcapMessage.getChannelType() + 1); // Here we offset by 1 to match with the WcdmaRrcChannelType values
-        wcdmaRrcBuilder.setData(dataBuilder.build());
-
-        return wcdmaRrcBuilder.build();
     }
 
     /**
@@ -245,31 +748,32 @@ public class QcdmMqttConnection extends DefaultMqttConnection implements IPcapMe
      */
     private LteRrc convertLteRrcMessage(PcapMessage pcapMessage, Location location)
     {
-        final LteRrc.Builder lteRrcBuilder = LteRrc.newBuilder();
-        final LteRrcData.Builder dataBuilder = LteRrcData.newBuilder();
-
-        lteRrcBuilder.setVersion(BuildConfig.MESSAGING_API_VERSION);
-        lteRrcBuilder.setMessageType(pcapMessage.getMessageType());
-
-        dataBuilder.setDeviceSerialNumber(deviceId);
-        if (mqttClientId != null) dataBuilder.setDeviceName(mqttClientId);
-        dataBuilder.setMissionId(missionId);
-        dataBuilder.setDeviceTime(ParserUtils.getRfc3339String(ZonedDateTime.now()));
-        if (location != null)
-        {
-            dataBuilder.setAltitude((float) location.getAltitude());
-            dataBuilder.setLatitude(location.getLatitude());
-            dataBuilder.setLongitude(location.getLongitude());
-            dataBuilder.setAccuracy(ParserUtils.roundAccuracy(location.getAccuracy()));
+        synchronized (liveBuilderLock)
+        {
+            lteRrcBuilder.setMessageType(pcapMessage.getMessageType());
+
+            lteRrcDataBuilder.setDeviceTime(encoder.getDeviceTime(System.currentTimeMillis()));
+            if (location != null)
+            {
+                lteRrcDataBuilder.setAltitude((float) location.getAltitude());
+                lteRrcDataBuilder.setLatitude(location.getLatitude());
+                lteRrcDataBuilder.setLongitude(location.getLongitude());
+                lteRrcDataBuilder.setAccuracy(ParserUtils.roundAccuracy(location.getAccuracy()));
+            } else
+            {
+                lteRrcDataBuilder.clearAltitude().clearLatitude().clearLongitude().clearAccuracy();
+            }
+
+            lteRrcDataBuilder.setPcapRecord(UnsafeByteOperations.unsafeWrap(pcapMessage.getPcapRecordBuffer(), 0, pcapMessage.getPcapRecordLength()));
+            lteRrcDataBuilder.setChannelTypeValue(pcapMessage.getChannelType() + 1); // Here we offset by 1 to match with the LteRrcChannelType values
+
+            final LteRrc message = lteRrcBuilder.setData(lteRrcDataBuilder).build();
+
+            // Don't hold on to the PCAP message's buffer, which goes back to the pool
+            lteRrcBuilder.clearData();
+            lteRrcDataBuilder.clearPcapRecord();
+            return message;
         }
-
-        dataBuilder.setPcapRecord(ByteString.copyFrom(pcapMessage.getPcapRecord()));
-
-        dataBuilder.setChannelTypeValue(pcapMessage.getChannelType() + 1); // Here we offset by 1 to match with the LteRrcChannelType values
-
-        lteRrcBuilder.setData(dataBuilder.build());
-
-        return lteRrcBuilder.build();
     }
 
     /**
@@ -281,29 +785,112 @@ public class QcdmMqttConnection extends DefaultMqttConnection implements IPcapMe
      */
     public LteNas convertLteNasMessage(PcapMessage pcapMessage, Location location)
     {
-        final LteNasData.Builder dataBuilder = LteNasData.newBuilder();
-
-        dataBuilder.setDeviceSerialNumber(deviceId);
-        if (mqttClientId != null) dataBuilder.setDeviceName(mqttClientId);
-        dataBuilder.setMissionId(missionId);
-        dataBuilder.setDeviceTime(ParserUtils.getRfc3339String(ZonedDateTime.now()));
-        if (location != null)
-        {
-            dataBuilder.setAltitude((float) location.getAltitude());
-            dataBuilder.setLatitude(location.getLatitude());
-            dataBuilder.setLongitude(location.getLongitude());
-            dataBuilder.setAccuracy(ParserUtils.roundAccuracy(location.getAccuracy()));
+        synchronized (liveBuilderLock)
+        {
+            lteNasBuilder.setMessageType(pcapMessage.getMessageType());
+
+            lteNasDataBuilder.setDeviceTime(encoder.getDeviceTime(System.currentTimeMillis()));
+            if (location != null)
+            {
+                lteNasDataBuilder.setAltitude((float) location.getAltitude());
+                lteNasDataBuilder.setLatitude(location.getLatitude());
+                lteNasDataBuilder.setLongitude(location.getLongitude());
+                lteNasDataBuilder.setAccuracy(ParserUtils.roundAccuracy(location.getAccuracy()));
+            } else
+            {
+                lteNasDataBuilder.clearAltitude().clearLatitude().clearLongitude().clearAccuracy();
+            }
+
+            lteNasDataBuilder.setPcapRecord(UnsafeByteOperations.unsafeWrap(pcapMessage.getPcapRecordBuffer(), 0, pcapMessage.getPcapRecordLength()));
+            lteNasDataBuilder.setChannelTypeValue(pcapMessage.getChannelType() + 1); // Here we offset by 1 to match with the LteNasChannelType values
+
+            final LteNas message = lteNasBuilder.setData(lteNasDataBuilder).build();
+
+            // Don't hold on to the PCAP message's buffer, which goes back to the pool
+            lteNasBuilder.clearData();
+            lteNasDataBuilder.clearPcapRecord();
+            return message;
         }
+    }
 
-        dataBuilder.setPcapRecord(ByteString.copyFrom(pcapMessage.getPcapRecord()));
+    /**
+     * Parses a serialized cellular OTA message back into its Network Survey Messaging API type.
+     *
+     * @param messageType  The message type that identifies which protobuf message the bytes hold.
+     * @param messageBytes The serialized protobuf message.
+     * @return The parsed message, or null if the message type is not one that this class publishes.
+     * @throws InvalidProtocolBufferException If the bytes are not a valid message of the specified type.
+     */
+    private static Message parseOtaMessage(String messageType, byte[] messageBytes) throws InvalidProtocolBufferException
+    {
+        switch (messageType)
+        {
+            case CraxiomConstants.GSM_SIGNALING_MESSAGE_TYPE:
+                return GsmSignaling.parseFrom(messageBytes);
+            case CraxiomConstants.UMTS_NAS_MESSAGE_TYPE:
+                return UmtsNas.parseFrom(messageBytes);
+            case CraxiomConstants.WCDMA_RRC_MESSAGE_TYPE:
+                return WcdmaRrc.parseFrom(messageBytes);
+            case CraxiomConstants.LTE_RRC_MESSAGE_TYPE:
+                return LteRrc.parseFrom(messageBytes);
+            case CraxiomConstants.LTE_NAS_MESSAGE_TYPE:
+                return LteNas.parseFrom(messageBytes);
+            default:
+                return null;
+        }
+    }
 
-        dataBuilder.setChannelTypeValue(pcapMessage.getChannelType() + 1); // Here we offset by 1 to match with the LteNasChannelType values
+    /**
+     * @return The SIM ID of the PCAP message, read back out of the pcap record if the parser did not set it.
+     */
+    private static int getSimId(PcapMessage pcapMessage)
+    {
+        final int simId = pcapMessage.getSimId();
+        if (simId != PcapMessage.UNSET_FIELD) return simId;
 
-        final LteNas.Builder lteNasBuilder = LteNas.newBuilder();
-        lteNasBuilder.setVersion(BuildConfig.MESSAGING_API_VERSION);
-        lteNasBuilder.setMessageType(pcapMessage.getMessageType());
-        lteNasBuilder.setData(dataBuilder.build());
+        return PcapUtils.getSimId(pcapMessage.getPcapRecordBuffer(), pcapMessage.getPcapRecordLength());
+    }
 
-        return lteNasBuilder.build();
+    /**
+     * @return The pcap record that a message from {@link #parseOtaMessage(String, byte[])} holds.
+     */
+    private static ByteString getPcapRecord(Message message)
+    {
+        if (message instanceof GsmSignaling) return ((GsmSignaling) message).getData().getPcapRecord();
+        if (message instanceof UmtsNas) return ((UmtsNas) message).getData().getPcapRecord();
+        if (message instanceof WcdmaRrc) return ((WcdmaRrc) message).getData().getPcapRecord();
+        if (message instanceof LteRrc) return ((LteRrc) message).getData().getPcapRecord();
+        if (message instanceof LteNas) return ((LteNas) message).getData().getPcapRecord();
+        return ByteString.EMPTY;
+    }
+
+    private static Value stringValue(String value)
+    {
+        return Value.newBuilder().setStringValue(value).build();
+    }
+
+    private static Value numberValue(long value)
+    {
+        return Value.newBuilder().setNumberValue(value).build();
+    }
+
+    private static Value histogramValue(LatencyHistogram.HistogramSnapshot histogram)
+    {
+        final Struct.Builder builder = Struct.newBuilder();
+        builder.putFields("count", numberValue(histogram.count));
+        builder.putFields("meanNanos", numberValue(histogram.meanNanos));
+        builder.putFields("p50Nanos", numberValue(histogram.p50Nanos));
+        builder.putFields("p90Nanos", numberValue(histogram.p90Nanos));
+        builder.putFields("p99Nanos", numberValue(histogram.p99Nanos));
+        builder.putFields("maxNanos", numberValue(histogram.maxNanos));
+        return Value.newBuilder().setStructValue(builder).build();
+    }
+
+    /**
+     * Receives a message that has been encoded into a pooled array, which is only valid until the call returns.
+     */
+    private interface EncodedMessageConsumer
+    {
+        void accept(byte[] message, int length);
     }
-}
\ No newline at end of file
+}
@@ -2,9 +2,9 @@ package com.craxiom.networksurveyplus.parser;
 
 import android.location.Location;
 
-import com.craxiom.networksurveyplus.messages.CraxiomConstants;
 import com.craxiom.networksurveyplus.messages.GsmSubtypes;
 import com.craxiom.networksurveyplus.messages.GsmtapConstants;
+import com.craxiom.networksurveyplus.messages.MessageKind;
 import com.craxiom.networksurveyplus.messages.PcapMessage;
 import com.craxiom.networksurveyplus.messages.QcdmConstants;
 import com.craxiom.networksurveyplus.messages.QcdmMessage;
@@ -92,10 +92,9 @@ public class QcdmGsmParser
         // Any channel type dir that has the 0x80 bit set is downlink, everything else is uplink
         final boolean isUplink = (channelTypeDir & 0x80) == 0x00;
 
-        final byte[] pcapRecord = PcapUtils.getGsmtapPcapRecord(GsmtapConstants.GSMTAP_TYPE_UM, l3Message, subtype, 0,
-                isUplink, 0, 0, qcdmMessage.getSimId(), location);
-
-        return new PcapMessage(pcapRecord, CraxiomConstants.GSM_SIGNALING_MESSAGE_TYPE, subtype);
+        return PcapUtils.createPcapMessage(MessageKind.GSM_SIGNALING, qcdmMessage.getLogType(), GsmtapConstants.GSMTAP_TYPE_UM,
+                l3Message, subtype, PcapMessage.UNSET_FIELD, isUplink, PcapMessage.UNSET_FIELD, PcapMessage.UNSET_FIELD,
+                PcapMessage.UNSET_FIELD, qcdmMessage.getSimId(), location, qcdmMessage.getCaptureTimeMicros());
     }
 
     /**
@@ -2,10 +2,10 @@ package com.craxiom.networksurveyplus.parser;
 
 import android.location.Location;
 
-import com.craxiom.networksurveyplus.messages.CraxiomConstants;
 import com.craxiom.networksurveyplus.messages.GsmtapConstants;
 import com.craxiom.networksurveyplus.messages.LteNasSubtypes;
 import com.craxiom.networksurveyplus.messages.LteRrcSubtypes;
+import com.craxiom.networksurveyplus.messages.MessageKind;
 import com.craxiom.networksurveyplus.messages.PcapMessage;
 import com.craxiom.networksurveyplus.messages.QcdmMessage;
 import com.craxiom.networksurveyplus.util.ParserUtils;
@@ -81,8 +81,6 @@ public class QcdmLteParser
         final int subframeNumber = sfnAndsubfn & 0xF;
         final int sfn = sfnAndsubfn >>> 4;
 
-        final int sfnAndPci = sfn | (pci << 16);
-
         // If the length field (last two bytes of the extended header) is != to the actual length then the extended header is 4 bytes longer
         int baseAndExtHeaderLength = 6 + frequencyLength + 5;
         int length = ParserUtils.getShort(logPayload, baseAndExtHeaderLength - 2, ByteOrder.LITTLE_ENDIAN);
@@ -106,10 +104,9 @@ public class QcdmLteParser
         Timber.v("baseAndExtHeaderLength=%d, providedLength=%d", baseAndExtHeaderLength, length);
 
         final byte[] message = Arrays.copyOfRange(logPayload, baseAndExtHeaderLength, baseAndExtHeaderLength + length);
-        final byte[] pcapRecord = PcapUtils.getGsmtapPcapRecord(GsmtapConstants.GSMTAP_TYPE_LTE_RRC, message, gsmtapChannelType, earfcn,
-                isUplink, sfnAndPci, subframeNumber, qcdmMessage.getSimId(), location);
-
-        return new PcapMessage(pcapRecord, CraxiomConstants.LTE_RRC_MESSAGE_TYPE, gsmtapChannelType);
+        return PcapUtils.createPcapMessage(MessageKind.LTE_RRC, qcdmMessage.getLogType(), GsmtapConstants.GSMTAP_TYPE_LTE_RRC,
+                message, gsmtapChannelType, earfcn, isUplink, pci, sfn, subframeNumber, qcdmMessage.getSimId(), location,
+                qcdmMessage.getCaptureTimeMicros());
     }
     /**
      * Given a {@link QcdmMessage} that contains an LTE NAS message, convert it to a pcap record byte array that
@@ -157,10 +154,9 @@ public class QcdmLteParser
         final boolean isUplink = false; // Always down-link ?
         final int gsmtapChannelType =  LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_BCCH_BCH_Message.ordinal();
 
-        final byte[] pcapRecord = PcapUtils.getGsmtapPcapRecord(GsmtapConstants.GSMTAP_TYPE_LTE_RRC, mib_payload, gsmtapChannelType,
-                earfcn, isUplink, sfn, 0, qcdmMessage.getSimId(), location);
-
-        return new PcapMessage(pcapRecord, CraxiomConstants.LTE_MIB_MESSAGE_TYPE, gsmtapChannelType);
+        return PcapUtils.createPcapMessage(MessageKind.LTE_MIB, logType, GsmtapConstants.GSMTAP_TYPE_LTE_RRC, mib_payload,
+                gsmtapChannelType, earfcn, isUplink, pci, sfn, 0, qcdmMessage.getSimId(), location,
+                qcdmMessage.getCaptureTimeMicros());
     }
 
     /**
@@ -185,10 +181,9 @@ public class QcdmLteParser
                 || logType == LOG_LTE_NAS_ESM_OTA_IN_MSG || logType == LOG_LTE_NAS_ESM_OTA_OUT_MSG;
         final int gsmtapChannelType = isPlain ? LteNasSubtypes.GSMTAP_LTE_NAS_PLAIN.ordinal() : LteNasSubtypes.GSMTAP_LTE_NAS_SEC_HEADER.ordinal();
 
-        final byte[] pcapRecord = PcapUtils.getGsmtapPcapRecord(GsmtapConstants.GSMTAP_TYPE_LTE_NAS, signalingMessage, gsmtapChannelType,
-                0, isUplink, 0, 0, qcdmMessage.getSimId(), location);
-
-        return new PcapMessage(pcapRecord, CraxiomConstants.LTE_NAS_MESSAGE_TYPE, gsmtapChannelType);
+        return PcapUtils.createPcapMessage(MessageKind.LTE_NAS, logType, GsmtapConstants.GSMTAP_TYPE_LTE_NAS, signalingMessage,
+                gsmtapChannelType, PcapMessage.UNSET_FIELD, isUplink, PcapMessage.UNSET_FIELD, PcapMessage.UNSET_FIELD,
+                PcapMessage.UNSET_FIELD, qcdmMessage.getSimId(), location, qcdmMessage.getCaptureTimeMicros());
     }
 
     /**
@@ -2,8 +2,8 @@ package com.craxiom.networksurveyplus.parser;
 
 import android.location.Location;
 
-import com.craxiom.networksurveyplus.messages.CraxiomConstants;
 import com.craxiom.networksurveyplus.messages.GsmtapConstants;
+import com.craxiom.networksurveyplus.messages.MessageKind;
 import com.craxiom.networksurveyplus.messages.PcapMessage;
 import com.craxiom.networksurveyplus.messages.QcdmConstants;
 import com.craxiom.networksurveyplus.messages.QcdmMessage;
@@ -96,9 +96,8 @@ public class QcdmUmtsParser
 
         final byte[] nasMessage = Arrays.copyOfRange(logPayload, 5 + startByte, logPayload.length);
 
-        final byte[] pcapRecord = PcapUtils.getGsmtapPcapRecord(GsmtapConstants.GSMTAP_TYPE_ABIS, nasMessage, 0, 0,
-                isUplink, 0, 0, simId, location);
-
-        return new PcapMessage(pcapRecord, CraxiomConstants.UMTS_NAS_MESSAGE_TYPE);
+        return PcapUtils.createPcapMessage(MessageKind.UMTS_NAS, qcdmMessage.getLogType(), GsmtapConstants.GSMTAP_TYPE_ABIS,
+                nasMessage, PcapMessage.UNSET_CHANNEL_TYPE, PcapMessage.UNSET_FIELD, isUplink, PcapMessage.UNSET_FIELD,
+                PcapMessage.UNSET_FIELD, PcapMessage.UNSET_FIELD, simId, location, qcdmMessage.getCaptureTimeMicros());
     }
 }
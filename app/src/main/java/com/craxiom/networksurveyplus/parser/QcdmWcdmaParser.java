@@ -2,8 +2,8 @@ package com.craxiom.networksurveyplus.parser;
 
 import android.location.Location;
 
-import com.craxiom.networksurveyplus.messages.CraxiomConstants;
 import com.craxiom.networksurveyplus.messages.GsmtapConstants;
+import com.craxiom.networksurveyplus.messages.MessageKind;
 import com.craxiom.networksurveyplus.messages.PcapMessage;
 import com.craxiom.networksurveyplus.messages.QcdmConstants;
 import com.craxiom.networksurveyplus.messages.QcdmMessage;
@@ -131,10 +131,9 @@ public class QcdmWcdmaParser
                 || subtype == UmtsRrcSubtypes.GSMTAP_RRC_SUB_UL_SHCCH_Message.ordinal();
 
         // TODO It is possible that the PSC can be passed where the LTE PCI was normally passed.
-        final byte[] pcapRecord = PcapUtils.getGsmtapPcapRecord(GsmtapConstants.GSMTAP_TYPE_UMTS_RRC, signalingMessage, subtype, uarfcn,
-                isUplink, 0, 0, qcdmMessage.getSimId(), location);
-
-        return new PcapMessage(pcapRecord, CraxiomConstants.WCDMA_RRC_MESSAGE_TYPE, subtype);
+        return PcapUtils.createPcapMessage(MessageKind.WCDMA_RRC, qcdmMessage.getLogType(), GsmtapConstants.GSMTAP_TYPE_UMTS_RRC,
+                signalingMessage, subtype, uarfcn, isUplink, PcapMessage.UNSET_FIELD, PcapMessage.UNSET_FIELD,
+                PcapMessage.UNSET_FIELD, qcdmMessage.getSimId(), location, qcdmMessage.getCaptureTimeMicros());
     }
 
     /**
@@ -9,9 +9,12 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.location.LocationProvider;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
@@ -23,8 +26,11 @@ import androidx.lifecycle.ViewModelProvider;
 import com.craxiom.networksurveyplus.R;
 import com.craxiom.networksurveyplus.ServiceStatusMessage;
 import com.craxiom.networksurveyplus.databinding.FragmentHomeBinding;
+import com.craxiom.networksurveyplus.metrics.ThroughputMonitor;
+import com.craxiom.networksurveyplus.metrics.ThroughputSnapshot;
 
 import java.text.DecimalFormat;
+import java.util.EnumMap;
 import java.util.Locale;
 
 import timber.log.Timber;
@@ -39,6 +45,9 @@ public class HomeFragment extends Fragment
 {
     private FragmentHomeBinding binding;
     private final DecimalFormat decimalFormat = new DecimalFormat("###.#####");
+    private final Handler dashboardHandler = new Handler(Looper.getMainLooper());
+    private final Runnable dashboardRefresher = this::refreshThroughputDashboard;
+    private final EnumMap<ThroughputMonitor.Series, TextView> throughputTextViews = new EnumMap<>(ThroughputMonitor.Series.class);
 
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater,
@@ -49,11 +58,11 @@ public class HomeFragment extends Fragment
         binding.setVm(homeViewModel);
 
         initializeView();
+        initializeThroughputDashboard(inflater.getContext());
 
         final LifecycleOwner viewLifecycleOwner = getViewLifecycleOwner();
         homeViewModel.getLocation().observe(viewLifecycleOwner, this::updateLocationTextView);
-        homeViewModel.getRecordCount().observe(viewLifecycleOwner,
-                recordCount -> binding.tvRecordCount.setText(String.format(Locale.US, "%d", recordCount)));
+        homeViewModel.getRecordCount().observe(viewLifecycleOwner, recordCount -> updateRecordCountTextView());
         homeViewModel.getProviderStatus().observe(viewLifecycleOwner, this::updateLocationProviderStatus);
 
         homeViewModel.getAppVersion().observe(viewLifecycleOwner, versionName -> binding.appVersionName.setText(getString(R.string.app_version, versionName)));
@@ -72,6 +81,17 @@ public class HomeFragment extends Fragment
         // we need to update the UI to show the new location in this onResume method. There might be better approaches
         // instead of recalling the initialize view method each time the fragment is resumed.
         initializeView();
+
+        // The dashboard pulls the throughput rates only while it is visible
+        dashboardHandler.post(dashboardRefresher);
+    }
+
+    @Override
+    public void onPause()
+    {
+        dashboardHandler.removeCallbacks(dashboardRefresher);
+
+        super.onPause();
     }
 
     @Override
@@ -82,20 +102,114 @@ public class HomeFragment extends Fragment
         homeViewModel.getLocation().removeObservers(viewLifecycleOwner);
         homeViewModel.getRecordCount().removeObservers(viewLifecycleOwner);
         homeViewModel.getProviderStatus().removeObservers(viewLifecycleOwner);
+        throughputTextViews.clear();
 
         super.onDestroyView();
     }
 
     /**
-     * Updates the view to have some basic status information such as the current state of the location.
+     * Adds a row to the throughput card for each of the throughput series.
+     *
+     * @param context The context to create the views with.
+     * @since 0.6.0
      */
-    private void initializeView()
+    private void initializeThroughputDashboard(Context context)
+    {
+        final LinearLayout throughputLayout = binding.llThroughput;
+        for (ThroughputMonitor.Series series : ThroughputMonitor.Series.values())
+        {
+            final LinearLayout row = new LinearLayout(context);
+            row.setOrientation(LinearLayout.HORIZONTAL);
+
+            final TextView label = new TextView(context);
+            label.setTextAppearance(R.style.DescriptionText);
+            label.setText(getSeriesLabel(series));
+            row.addView(label, new LinearLayout.LayoutParams(0, ViewGroup.LayoutParams.WRAP_CONTENT, 1));
+
+            final TextView value = new TextView(context);
+            value.setTextAppearance(R.style.DescriptionText);
+            row.addView(value, new LinearLayout.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+
+            throughputLayout.addView(row);
+            throughputTextViews.put(series, value);
+        }
+    }
+
+    /**
+     * Pulls the latest throughput snapshot from the service and updates the dashboard, then schedules the next refresh.
+     *
+     * @since 0.6.0
+     */
+    private void refreshThroughputDashboard()
+    {
+        final ThroughputSnapshot snapshot = binding == null ? null : binding.getVm().getThroughputSnapshot();
+        if (snapshot != null)
+        {
+            for (ThroughputMonitor.Series series : ThroughputMonitor.Series.values())
+            {
+                final TextView textView = throughputTextViews.get(series);
+                if (textView == null) continue;
+                textView.setText(getString(R.string.throughput_rate, snapshot.getLatest(series), snapshot.getMax(series)));
+            }
+        }
+
+        dashboardHandler.postDelayed(dashboardRefresher, ThroughputMonitor.SAMPLE_INTERVAL_MS);
+    }
+
+    /**
+     * @param series The throughput series.
+     * @return The string resource ID of the label to display for the series.
+     * @since 0.6.0
+     */
+    private static int getSeriesLabel(ThroughputMonitor.Series series)
     {
-        final Integer recordCount = binding.getVm().getRecordCount().getValue();
-        if (recordCount != null)
+        switch (series)
         {
-            binding.tvRecordCount.setText(String.format(Locale.US, "%d", recordCount));
+            case FRAMES:
+                return R.string.throughput_frames;
+            case RECORDS:
+                return R.string.throughput_records;
+            case LTE_RRC:
+                return R.string.throughput_lte_rrc;
+            case LTE_NAS:
+                return R.string.throughput_lte_nas;
+            case WCDMA_RRC:
+                return R.string.throughput_wcdma_rrc;
+            case GSM:
+                return R.string.throughput_gsm;
+            case UMTS_NAS:
+                return R.string.throughput_umts_nas;
+            case BYTES_WRITTEN:
+                return R.string.throughput_bytes_written;
+            case MQTT_PUBLISHED:
+                return R.string.throughput_mqtt_published;
+            case DROPS:
+            default:
+                return R.string.throughput_drops;
         }
+    }
+
+    /**
+     * Updates the record count text view with the latest record count and records per second.
+     *
+     * @since 0.6.0
+     */
+    private void updateRecordCountTextView()
+    {
+        final Long recordCount = binding.getVm().getRecordCount().getValue();
+        if (recordCount == null) return;
+
+        final Double recordsPerSecond = binding.getVm().getRecordsPerSecond().getValue();
+        binding.tvRecordCount.setText(String.format(Locale.US, "%d (%.1f/s)", recordCount,
+                recordsPerSecond == null ? 0.0 : recordsPerSecond));
+    }
+
+    /**
+     * Updates the view to have some basic status information such as the current state of the location.
+     */
+    private void initializeView()
+    {
+        updateRecordCountTextView();
 
         final TextView tvLocation = binding.tvLocation;
 
@@ -8,6 +8,9 @@ import androidx.lifecycle.ViewModel;
 
 import com.craxiom.networksurveyplus.IServiceStatusListener;
 import com.craxiom.networksurveyplus.ServiceStatusMessage;
+import com.craxiom.networksurveyplus.metrics.MetricsSnapshot;
+import com.craxiom.networksurveyplus.metrics.ThroughputMonitor;
+import com.craxiom.networksurveyplus.metrics.ThroughputSnapshot;
 
 import timber.log.Timber;
 
@@ -18,25 +21,60 @@ import timber.log.Timber;
 public class HomeViewModel extends ViewModel implements IServiceStatusListener
 {
     private final MutableLiveData<Location> location = new MutableLiveData<>();
-    private final MutableLiveData<Integer> recordCount = new MutableLiveData<>();
+    private final MutableLiveData<Long> recordCount = new MutableLiveData<>();
+    private final MutableLiveData<Double> recordsPerSecond = new MutableLiveData<>();
     private final MutableLiveData<ServiceStatusMessage.LocationProviderStatus> providerStatus = new MutableLiveData<>();
     private final MutableLiveData<String> appVersion = new MutableLiveData<>();
+    private final MutableLiveData<MetricsSnapshot> pipelineMetrics = new MutableLiveData<>();
+    private volatile ThroughputMonitor throughputMonitor;
 
     public LiveData<Location> getLocation()
     {
         return location;
     }
 
-    public LiveData<Integer> getRecordCount()
+    public LiveData<Long> getRecordCount()
     {
         return recordCount;
     }
 
+    public LiveData<Double> getRecordsPerSecond()
+    {
+        return recordsPerSecond;
+    }
+
     public MutableLiveData<ServiceStatusMessage.LocationProviderStatus> getProviderStatus()
     {
         return providerStatus;
     }
 
+    public LiveData<MetricsSnapshot> getPipelineMetrics()
+    {
+        return pipelineMetrics;
+    }
+
+    /**
+     * Sets the source of the throughput dashboard data. The dashboard pulls snapshots from the monitor only while it is
+     * visible, so nothing is pushed to the UI for the throughput rates.
+     *
+     * @param throughputMonitor The monitor from the bound service, or null if the service is not bound.
+     * @since 0.6.0
+     */
+    public void setThroughputMonitor(ThroughputMonitor throughputMonitor)
+    {
+        this.throughputMonitor = throughputMonitor;
+    }
+
+    /**
+     * @return The latest throughput rates, or null if the service is not bound.
+     * @since 0.6.0
+     */
+    public ThroughputSnapshot getThroughputSnapshot()
+    {
+        final ThroughputMonitor monitor = throughputMonitor;
+        return monitor == null ? null : monitor.snapshot();
+    }
+
     @Override
     public void onServiceStatusMessage(ServiceStatusMessage serviceMessage)
     {
@@ -47,13 +85,20 @@ public class HomeViewModel extends ViewModel implements IServiceStatusListener
                 break;
 
             case ServiceStatusMessage.SERVICE_RECORD_LOGGED_MESSAGE:
-                recordCount.postValue((Integer) serviceMessage.data);
+                // The record status instance is reused by the publisher, so copy the values out before posting them
+                final ServiceStatusMessage.RecordStatus recordStatus = (ServiceStatusMessage.RecordStatus) serviceMessage.data;
+                recordsPerSecond.postValue(recordStatus.recordsPerSecond);
+                recordCount.postValue(recordStatus.recordCount);
                 break;
 
             case ServiceStatusMessage.SERVICE_GPS_LOCATION_PROVIDER_STATUS:
                 providerStatus.postValue((ServiceStatusMessage.LocationProviderStatus) serviceMessage.data);
                 break;
 
+            case ServiceStatusMessage.SERVICE_PIPELINE_METRICS_MESSAGE:
+                pipelineMetrics.postValue((MetricsSnapshot) serviceMessage.data);
+                break;
+
             default:
                 Timber.e("Unrecognized service message type: %s", serviceMessage.what);
                 break;
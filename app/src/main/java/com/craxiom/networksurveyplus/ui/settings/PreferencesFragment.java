@@ -6,6 +6,7 @@ import android.content.SharedPreferences;
 import android.os.Bundle;
 
 import androidx.preference.EditTextPreference;
+import androidx.preference.ListPreference;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
 import androidx.preference.PreferenceScreen;
@@ -29,7 +30,22 @@ public class PreferencesFragment extends PreferenceFragmentCompat implements Sha
      */
     private static final String[] PROPERTY_KEYS = {Constants.PROPERTY_AUTO_START_PCAP_LOGGING,
             Constants.PROPERTY_LOG_ROLLOVER_SIZE_MB,
-            Constants.PROPERTY_MQTT_START_ON_BOOT};
+            Constants.PROPERTY_NATIVE_LOG_FILTER,
+            Constants.PROPERTY_SHARED_MEMORY_TRANSPORT,
+            Constants.PROPERTY_CAPTURE_PROFILE,
+            Constants.PROPERTY_CAPTURE_GOVERNOR,
+            Constants.PROPERTY_BROADCAST_DEDUP,
+            Constants.PROPERTY_SAMPLING_POLICY,
+            Constants.PROPERTY_DASHCAM_TRIGGERS,
+            Constants.PROPERTY_PCAP_RECORD_FILTER,
+            Constants.PROPERTY_GSMTAP_UDP_TARGET,
+            Constants.PROPERTY_PCAP_STREAM_ADDRESS,
+            Constants.PROPERTY_MQTT_START_ON_BOOT,
+            Constants.PROPERTY_MQTT_BATCH_SIZE,
+            Constants.PROPERTY_MQTT_BATCH_LINGER_MS,
+            Constants.PROPERTY_MQTT_BATCH_DEFLATE,
+            Constants.PROPERTY_MQTT_TOPIC_ROUTING,
+            Constants.PROPERTY_MQTT_RECORD_FILTER};
 
     @Override
     public void onCreatePreferences(Bundle savedInstanceState, String rootKey)
@@ -94,7 +110,22 @@ public class PreferencesFragment extends PreferenceFragmentCompat implements Sha
 
         updateIntPreferenceForMdm(preferenceScreen, Constants.PROPERTY_LOG_ROLLOVER_SIZE_MB, mdmProperties);
         updateBooleanPreferenceForMdm(preferenceScreen, mdmProperties, Constants.PROPERTY_AUTO_START_PCAP_LOGGING);
+        updateBooleanPreferenceForMdm(preferenceScreen, mdmProperties, Constants.PROPERTY_NATIVE_LOG_FILTER);
+        updateBooleanPreferenceForMdm(preferenceScreen, mdmProperties, Constants.PROPERTY_SHARED_MEMORY_TRANSPORT);
+        updateStringListPreferenceForMdm(preferenceScreen, Constants.PROPERTY_CAPTURE_PROFILE, mdmProperties);
+        updateBooleanPreferenceForMdm(preferenceScreen, mdmProperties, Constants.PROPERTY_CAPTURE_GOVERNOR);
+        updateBooleanPreferenceForMdm(preferenceScreen, mdmProperties, Constants.PROPERTY_BROADCAST_DEDUP);
+        updateStringListPreferenceForMdm(preferenceScreen, Constants.PROPERTY_SAMPLING_POLICY, mdmProperties);
+        updateStringListPreferenceForMdm(preferenceScreen, Constants.PROPERTY_DASHCAM_TRIGGERS, mdmProperties);
+        updateStringListPreferenceForMdm(preferenceScreen, Constants.PROPERTY_PCAP_RECORD_FILTER, mdmProperties);
+        updateStringPreferenceForMdm(preferenceScreen, Constants.PROPERTY_GSMTAP_UDP_TARGET, mdmProperties);
+        updateStringPreferenceForMdm(preferenceScreen, Constants.PROPERTY_PCAP_STREAM_ADDRESS, mdmProperties);
         updateBooleanPreferenceForMdm(preferenceScreen, mdmProperties, Constants.PROPERTY_MQTT_START_ON_BOOT);
+        updateListPreferenceForMdm(preferenceScreen, Constants.PROPERTY_MQTT_BATCH_SIZE, mdmProperties);
+        updateListPreferenceForMdm(preferenceScreen, Constants.PROPERTY_MQTT_BATCH_LINGER_MS, mdmProperties);
+        updateBooleanPreferenceForMdm(preferenceScreen, mdmProperties, Constants.PROPERTY_MQTT_BATCH_DEFLATE);
+        updateStringListPreferenceForMdm(preferenceScreen, Constants.PROPERTY_MQTT_TOPIC_ROUTING, mdmProperties);
+        updateStringListPreferenceForMdm(preferenceScreen, Constants.PROPERTY_MQTT_RECORD_FILTER, mdmProperties);
     }
 
     /**
@@ -156,4 +187,94 @@ public class PreferencesFragment extends PreferenceFragmentCompat implements Sha
             Timber.wtf(e, "Could not find the int preference or update the UI component for %s", preferenceKey);
         }
     }
+
+    /**
+     * Updates a drop down preference to reflect MDM control by disabling the UI preference component and pulling the
+     * specified integer preference value from the app restrictions. The MDM value does not have to be one of the drop
+     * down entries, and it is still the value that gets used, so in that case the raw value is shown as the summary.
+     *
+     * @param preferenceScreen The preference screen that contains the preference to set.
+     * @param preferenceKey    The key that corresponds to the preference of interest.
+     * @param mdmProperties    The map of mdm provided properties.
+     * @since 0.6.0
+     */
+    private void updateListPreferenceForMdm(PreferenceScreen preferenceScreen, String preferenceKey, Bundle mdmProperties)
+    {
+        try
+        {
+            final ListPreference preference = preferenceScreen.findPreference(preferenceKey);
+
+            if (preference != null && mdmProperties.containsKey(preferenceKey))
+            {
+                final String mdmProperty = String.valueOf(mdmProperties.getInt(preferenceKey));
+
+                preference.setEnabled(false);
+                preference.setValue(mdmProperty);
+
+                if (preference.findIndexOfValue(mdmProperty) < 0)
+                {
+                    // The simple summary provider shows a blank summary for a value that is not an entry. This one
+                    // keeps working if the MDM override is turned on and the user picks one of the entries.
+                    preference.setSummaryProvider((Preference.SummaryProvider<ListPreference>) listPreference -> {
+                        final CharSequence entry = listPreference.getEntry();
+                        return entry != null ? entry : listPreference.getValue();
+                    });
+                }
+            }
+        } catch (Exception e)
+        {
+            Timber.wtf(e, "Could not find the list preference or update the UI component for %s", preferenceKey);
+        }
+    }
+
+    /**
+     * Updates a text preference to reflect MDM control by disabling the UI preference component and pulling the
+     * specified string preference value from the app restrictions.
+     *
+     * @param preferenceScreen The preference screen that contains the preference to set.
+     * @param preferenceKey    The key that corresponds to the preference of interest.
+     * @param mdmProperties    The map of mdm provided properties.
+     * @since 0.6.0
+     */
+    private void updateStringPreferenceForMdm(PreferenceScreen preferenceScreen, String preferenceKey, Bundle mdmProperties)
+    {
+        try
+        {
+            final EditTextPreference preference = preferenceScreen.findPreference(preferenceKey);
+
+            if (preference != null && mdmProperties.containsKey(preferenceKey))
+            {
+                preference.setEnabled(false);
+                preference.setText(mdmProperties.getString(preferenceKey));
+            }
+        } catch (Exception e)
+        {
+            Timber.wtf(e, "Could not find the text preference or update the UI component for %s", preferenceKey);
+        }
+    }
+
+    /**
+     * Updates a list preference whose MDM value is a string, such as a choice restriction, if it exists.
+     *
+     * @param preferenceScreen The preference screen that contains the preference to set.
+     * @param preferenceKey    The key that corresponds to the preference of interest.
+     * @param mdmProperties    The map of mdm provided properties.
+     * @since 0.6.0
+     */
+    private void updateStringListPreferenceForMdm(PreferenceScreen preferenceScreen, String preferenceKey, Bundle mdmProperties)
+    {
+        try
+        {
+            final ListPreference preference = preferenceScreen.findPreference(preferenceKey);
+
+            if (preference != null && mdmProperties.containsKey(preferenceKey))
+            {
+                preference.setEnabled(false);
+                preference.setValue(mdmProperties.getString(preferenceKey));
+            }
+        } catch (Exception e)
+        {
+            Timber.wtf(e, "Could not find the list preference or update the UI component for %s", preferenceKey);
+        }
+    }
 }
@@ -0,0 +1,193 @@
+package com.craxiom.networksurveyplus.util;
+
+import com.craxiom.networksurveyplus.messages.DiagCommand;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds the diag config file that diag_revealer replays to the modem, so that the modem log mask can be generated
+ * from the QCDM log codes the app actually consumes instead of being fixed in a binary resource.
+ * <p>
+ * The config file is a series of HDLC framed diag commands (see {@link ParserUtils#encodeDiagFrame(byte[])}), each
+ * ending with 0x7e, which is how diag_revealer splits them. It starts with the same fixed set of version, status and
+ * subsystem queries the old config files started with, then configures event reporting, and then sends one
+ * {@link DiagCommand#DIAG_LOG_CONFIG_F} set mask command per equipment ID. A log code's equipment ID is its top 4
+ * bits and its item ID is the bottom 12 bits, so 0xB0C0 is item 0x0C0 of equipment 0xB (LTE).
+ * <p>
+ * {@link #compileMaskUpdate()} builds just the mask commands, for changing the log mask of a running capture through
+ * diag_revealer's control FIFO (see {@link DiagControlChannel}).
+ * <p>
+ * This class is not thread safe.
+ *
+ * @since 0.6.0
+ */
+public class DiagConfigCompiler
+{
+    private static final int LOG_CONFIG_DISABLE_OPERATION = 0;
+    private static final int LOG_CONFIG_SET_MASK_OPERATION = 3;
+    private static final int LTE_EQUIPMENT_ID = 0xB;
+
+    /**
+     * The LTE mask always covers at least this many items. The config file this compiler replaces was generated for
+     * this item count and is known to be accepted by the modems in the field.
+     */
+    private static final int LTE_MIN_LAST_ITEM = 0x19B;
+
+    /**
+     * The number of event IDs the event mask covers. Events outside of this range cannot be enabled.
+     */
+    static final int EVENT_MASK_BIT_COUNT = 0x840;
+
+    /**
+     * The queries sent before any of the masks, which get the modem's diag task into a known state.
+     */
+    private static final byte[][] PREAMBLE_COMMANDS = {
+            {DiagCommand.DIAG_TS_F},
+            {DiagCommand.DIAG_VERNO_F},
+            {DiagCommand.DIAG_EXT_BUILD_ID_F},
+            {DiagCommand.DIAG_DIAG_VER_F},
+            {DiagCommand.DIAG_STATUS_F},
+            {DiagCommand.DIAG_STATUS_SNAPSHOT_F},
+            {DiagCommand.DIAG_SUBSYS_CMD_F, 0x0F, 0x00, 0x00},
+            {DiagCommand.DIAG_SUBSYS_CMD_F, 0x09, 0x00, 0x00},
+            {DiagCommand.DIAG_SUBSYS_CMD_F, 0x08, 0x00, 0x00},
+            {DiagCommand.DIAG_SUBSYS_CMD_F, 0x08, 0x01, 0x00},
+            {DiagCommand.DIAG_SUBSYS_CMD_F, 0x04, 0x00, 0x00},
+            {DiagCommand.DIAG_SUBSYS_CMD_F, 0x04, 0x0F, 0x00}};
+
+    private final Map<Integer, BitSet> itemsByEquipmentId = new TreeMap<>();
+    private final BitSet events = new BitSet(EVENT_MASK_BIT_COUNT);
+
+    /**
+     * Enables the provided QCDM log codes, such as the ones in
+     * {@link com.craxiom.networksurveyplus.messages.QcdmConstants}.
+     *
+     * @param logCodes The 16-bit log codes to enable.
+     * @return This compiler, for chaining.
+     */
+    public DiagConfigCompiler addLogCodes(int... logCodes)
+    {
+        for (int logCode : logCodes)
+        {
+            if (logCode < 0 || logCode > 0xFFFF)
+            {
+                throw new IllegalArgumentException("Not a 16-bit QCDM log code: " + Integer.toHexString(logCode));
+            }
+
+            itemsByEquipmentId.computeIfAbsent(logCode >> 12, equipmentId -> new BitSet()).set(logCode & 0xFFF);
+        }
+        return this;
+    }
+
+    /**
+     * Enables the provided diag event IDs. If no events are added, event reporting is turned off.
+     *
+     * @param eventIds The event IDs to enable.
+     * @return This compiler, for chaining.
+     */
+    public DiagConfigCompiler addEvents(int... eventIds)
+    {
+        for (int eventId : eventIds)
+        {
+            if (eventId < 0 || eventId >= EVENT_MASK_BIT_COUNT)
+            {
+                throw new IllegalArgumentException("The event ID " + eventId + " is outside of the event mask");
+            }
+            events.set(eventId);
+        }
+        return this;
+    }
+
+    /**
+     * @return The content of the diag config file.
+     */
+    public byte[] compile()
+    {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        for (byte[] command : PREAMBLE_COMMANDS)
+        {
+            writeFrame(outputStream, command);
+        }
+        writeMaskCommands(outputStream);
+
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Creates the commands that replace the log and event masks the modem is currently using with the ones in this
+     * compiler. Unlike {@link #compile()}, all logging is turned off first, so that the log codes of any equipment ID
+     * that is not in this compiler are turned off too.
+     *
+     * @return The HDLC framed commands, in the same format as the diag config file.
+     */
+    public byte[] compileMaskUpdate()
+    {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        final ByteBuffer disableCommand = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        disableCommand.putInt(DiagCommand.DIAG_LOG_CONFIG_F).putInt(LOG_CONFIG_DISABLE_OPERATION);
+        writeFrame(outputStream, disableCommand.array());
+        writeMaskCommands(outputStream);
+
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Writes the event reporting commands and then the log mask commands.
+     */
+    private void writeMaskCommands(ByteArrayOutputStream outputStream)
+    {
+        final boolean eventsEnabled = !events.isEmpty();
+        writeFrame(outputStream, new byte[]{DiagCommand.DIAG_EVENT_REPORT_F, (byte) (eventsEnabled ? 1 : 0)});
+        if (eventsEnabled) writeFrame(outputStream, createEventMaskCommand());
+
+        for (Map.Entry<Integer, BitSet> entry : itemsByEquipmentId.entrySet())
+        {
+            writeFrame(outputStream, createLogMaskCommand(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * Creates the {@link DiagCommand#DIAG_EVENT_MASK_SET_F} command: the command code, a status byte, two bytes of
+     * padding, the number of bits in the mask, and then the mask with bit N set to enable event N.
+     */
+    private byte[] createEventMaskCommand()
+    {
+        final ByteBuffer command = ByteBuffer.allocate(6 + EVENT_MASK_BIT_COUNT / 8).order(ByteOrder.LITTLE_ENDIAN);
+        command.put((byte) DiagCommand.DIAG_EVENT_MASK_SET_F).put((byte) 0).putShort((short) 0);
+        command.putShort((short) EVENT_MASK_BIT_COUNT);
+        command.put(events.toByteArray());
+        return command.array();
+    }
+
+    /**
+     * Creates the {@link DiagCommand#DIAG_LOG_CONFIG_F} set mask command for one equipment ID: the command code and
+     * three bytes of padding, the operation, the equipment ID, the last item ID, and then the mask with bit N set to
+     * enable item N. All of the numbers are 32-bit little endian.
+     */
+    private static byte[] createLogMaskCommand(int equipmentId, BitSet items)
+    {
+        int lastItem = items.length() - 1;
+        if (equipmentId == LTE_EQUIPMENT_ID) lastItem = Math.max(lastItem, LTE_MIN_LAST_ITEM);
+
+        final ByteBuffer command = ByteBuffer.allocate(16 + lastItem / 8 + 1).order(ByteOrder.LITTLE_ENDIAN);
+        command.putInt(DiagCommand.DIAG_LOG_CONFIG_F);
+        command.putInt(LOG_CONFIG_SET_MASK_OPERATION);
+        command.putInt(equipmentId);
+        command.putInt(lastItem);
+        command.put(items.toByteArray());
+        return command.array();
+    }
+
+    private static void writeFrame(ByteArrayOutputStream outputStream, byte[] command)
+    {
+        final byte[] frame = ParserUtils.encodeDiagFrame(command);
+        outputStream.write(frame, 0, frame.length);
+    }
+}
@@ -0,0 +1,72 @@
+package com.craxiom.networksurveyplus.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes diag commands to diag_revealer's control FIFO (its "-c" option), which diag_revealer sends to the modem
+ * without stopping the capture. This is how the log mask is changed on the fly, instead of restarting diag_revealer
+ * with a new config file and losing the messages in between.
+ * <p>
+ * Each message is an 8-byte header followed by the commands, in the same HDLC framed format as the diag config file
+ * (see {@link DiagConfigCompiler}). The header is the {@link #MAGIC} and the length of the commands, both 32-bit little
+ * endian. See control_channel.h in the native code for how diag_revealer reads it.
+ * <p>
+ * Opening a FIFO for writing blocks until a reader has it open, so {@link #send(byte[])} should only be called while
+ * diag_revealer is running, and never from the main thread.
+ *
+ * @since 0.6.0
+ */
+public class DiagControlChannel
+{
+    static final int MAGIC = 0x4E534331;
+    static final int HEADER_LENGTH = 8;
+    static final int MAX_PAYLOAD_LENGTH = 65536;
+
+    private final File controlFifo;
+
+    /**
+     * @param controlFifo The control FIFO that diag_revealer reads.
+     */
+    public DiagControlChannel(File controlFifo)
+    {
+        this.controlFifo = controlFifo;
+    }
+
+    /**
+     * Sends the diag commands to diag_revealer as one message. Callers need to make sure that only one thread sends at a
+     * time, since a message larger than the pipe buffer can be split up by the kernel.
+     *
+     * @param diagCommands The HDLC framed diag commands, such as {@link DiagConfigCompiler#compileMaskUpdate()}.
+     * @throws IOException If the FIFO could not be written to.
+     */
+    public void send(byte[] diagCommands) throws IOException
+    {
+        final byte[] message = encodeMessage(diagCommands);
+        try (final FileOutputStream outputStream = new FileOutputStream(controlFifo, true))
+        {
+            outputStream.write(message);
+        }
+    }
+
+    /**
+     * @param diagCommands The HDLC framed diag commands.
+     * @return The control message that carries the commands.
+     */
+    static byte[] encodeMessage(byte[] diagCommands)
+    {
+        if (diagCommands.length == 0 || diagCommands.length > MAX_PAYLOAD_LENGTH)
+        {
+            throw new IllegalArgumentException("The diag commands must be 1 to " + MAX_PAYLOAD_LENGTH + " bytes, not " + diagCommands.length);
+        }
+
+        return ByteBuffer.allocate(HEADER_LENGTH + diagCommands.length).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(MAGIC)
+                .putInt(diagCommands.length)
+                .put(diagCommands)
+                .array();
+    }
+}
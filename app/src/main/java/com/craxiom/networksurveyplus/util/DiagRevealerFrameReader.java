@@ -0,0 +1,226 @@
+package com.craxiom.networksurveyplus.util;
+
+import com.craxiom.networksurveyplus.messages.DiagRevealerMessage;
+import com.craxiom.networksurveyplus.messages.DiagRevealerMessageHeader;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+
+import timber.log.Timber;
+
+/**
+ * Reads {@link DiagRevealerMessage}s from the diag_revealer FIFO, handling both versions of the framing.
+ * <p>
+ * Every stream starts out as version 1. If diag_revealer was started with version 2 of the framing, the first message
+ * announces it and this reader switches to the version 2 header for the rest of the stream. Version 2 messages carry
+ * a sequence number, which is checked so that lost messages show up in the {@link PipelineMetrics}, and a
+ * CLOCK_BOOTTIME timestamp, which is converted to wall clock time with a single offset captured when the reader is
+ * created. That way every message gets the time it was read from /dev/diag without a clock call per message.
+ * <p>
+ * Unlike {@link ParserUtils#getNextDiagRevealerMessage(InputStream, PipelineMetrics)}, this reader keeps state between
+ * messages, so one instance must be used for the life of the stream.
+ *
+ * @since 0.6.0
+ */
+public class DiagRevealerFrameReader
+{
+    /**
+     * Anything longer than this is treated as a corrupt header. A single /dev/diag read is at most 64 KB.
+     */
+    static final int MAX_MESSAGE_LENGTH = 1024 * 1024;
+
+    private static final int V1_HEADER_LENGTH = 4;
+
+    private final InputStream inputStream;
+    private final PipelineMetrics metrics;
+    private final long bootTimeToEpochNanos;
+
+    private final byte[] v1HeaderBytes = new byte[V1_HEADER_LENGTH];
+    private final byte[] v2HeaderBytes = new byte[DiagRevealerMessageHeader.V2_HEADER_LENGTH];
+
+    private int framingVersion = DiagRevealerMessage.FRAMING_V1;
+    private long expectedSequenceNumber = -1;
+    private boolean endOfStream = false;
+
+    /**
+     * @param inputStream          The input stream that is reading from the FIFO pipe. It is highly recommended to use
+     *                             a buffered input stream to prevent excessive read calls.
+     * @param metrics              The metrics to update, or null if no metrics should be recorded.
+     * @param bootTimeToEpochNanos The value to add to a CLOCK_BOOTTIME timestamp to get nanoseconds since the epoch.
+     *                             Typically {@code System.currentTimeMillis() * 1_000_000 - SystemClock.elapsedRealtimeNanos()}.
+     */
+    public DiagRevealerFrameReader(InputStream inputStream, PipelineMetrics metrics, long bootTimeToEpochNanos)
+    {
+        this.inputStream = inputStream;
+        this.metrics = metrics;
+        this.bootTimeToEpochNanos = bootTimeToEpochNanos;
+    }
+
+    /**
+     * @return The framing version currently being read, either {@link DiagRevealerMessage#FRAMING_V1} or
+     * {@link DiagRevealerMessage#FRAMING_V2}.
+     */
+    public int getFramingVersion()
+    {
+        return framingVersion;
+    }
+
+    /**
+     * @return True once the end of the stream has been reached, which for the FIFO means diag_revealer has exited.
+     * @since 0.6.0
+     */
+    public boolean isEndOfStream()
+    {
+        return endOfStream;
+    }
+
+    /**
+     * Reads the next Diag Revealer message from the stream. Framing version announcements are handled here and are not
+     * returned.
+     *
+     * @return The next Diag Revealer message, or null if the end of the stream was reached (see
+     * {@link #isEndOfStream()}) or something went wrong.
+     * @throws IOException if an error occurs when trying to read from the input stream.
+     */
+    public DiagRevealerMessage next() throws IOException
+    {
+        while (true)
+        {
+            final DiagRevealerMessage message;
+            if (framingVersion == DiagRevealerMessage.FRAMING_V2)
+            {
+                if (ParserUtils.readFully(inputStream, v2HeaderBytes, 0, v2HeaderBytes.length) != v2HeaderBytes.length)
+                {
+                    endOfStream = true;
+                    return null;
+                }
+                message = readV2Message();
+            } else
+            {
+                if (ParserUtils.readFully(inputStream, v1HeaderBytes, 0, v1HeaderBytes.length) != v1HeaderBytes.length)
+                {
+                    endOfStream = true;
+                    return null;
+                }
+                message = readV1Message();
+            }
+
+            if (message != null) return message;
+        }
+    }
+
+    /**
+     * Reads the rest of a version 1 message after its header.
+     *
+     * @return The message, or null if the message was a framing announcement or could not be parsed.
+     */
+    private DiagRevealerMessage readV1Message() throws IOException
+    {
+        final DiagRevealerMessageHeader header = DiagRevealerMessageHeader.parseDiagRevealerMessageHeader(v1HeaderBytes);
+        if (header == null || header.messageType < 1 || DiagRevealerMessage.MESSAGE_TYPE_FRAMING_VERSION < header.messageType || header.messageLength < 1)
+        {
+            handleUnknownHeader();
+            return null;
+        }
+
+        final byte[] messageBytes = readMessageBytes(header.messageLength);
+        if (messageBytes == null) return null;
+
+        if (header.messageType == DiagRevealerMessage.MESSAGE_TYPE_FRAMING_VERSION)
+        {
+            final int version = messageBytes.length < 2 ? -1 : ParserUtils.getShort(messageBytes, 0, ByteOrder.LITTLE_ENDIAN);
+            if (version != DiagRevealerMessage.FRAMING_V1 && version != DiagRevealerMessage.FRAMING_V2)
+            {
+                Timber.e("diag_revealer announced an unsupported framing version %d", version);
+                return null;
+            }
+
+            Timber.i("diag_revealer is using framing version %d", version);
+            framingVersion = version;
+            expectedSequenceNumber = -1;
+            return null;
+        }
+
+        return DiagRevealerMessage.parseDiagRevealerMessage(messageBytes, header);
+    }
+
+    /**
+     * Reads the payload of a version 2 message after its header.
+     *
+     * @return The message, or null if the message could not be parsed.
+     */
+    private DiagRevealerMessage readV2Message() throws IOException
+    {
+        final DiagRevealerMessageHeader header = DiagRevealerMessageHeader.parseDiagRevealerMessageHeaderV2(v2HeaderBytes);
+        if (header == null || header.messageType < 1 || 3 < header.messageType
+                || header.messageLength < 0 || MAX_MESSAGE_LENGTH < header.messageLength)
+        {
+            handleUnknownHeader();
+            return null;
+        }
+
+        checkSequenceNumber(header.sequenceNumber);
+
+        final byte[] payload = readMessageBytes(header.messageLength);
+        if (payload == null) return null;
+
+        if (header.messageType == 1)
+        {
+            final long timestampMicros = header.timestampNanos > 0 ? (header.timestampNanos + bootTimeToEpochNanos) / 1000 : 0;
+            return new DiagRevealerMessage(header, timestampMicros, payload);
+        }
+
+        return new DiagRevealerMessage(header, new String(payload));
+    }
+
+    private byte[] readMessageBytes(int length) throws IOException
+    {
+        final byte[] messageBytes = new byte[length];
+        final int bytesRead = ParserUtils.readFully(inputStream, messageBytes, 0, length);
+        if (bytesRead != length)
+        {
+            Timber.e("Could not get the correct number of bytes from the FIFO diag revealer queue; bytesRead=%d, expectedLength=%d", bytesRead, length);
+            endOfStream = true;
+            return null;
+        }
+
+        if (metrics != null)
+        {
+            final int headerLength = framingVersion == DiagRevealerMessage.FRAMING_V2 ? v2HeaderBytes.length : v1HeaderBytes.length;
+            metrics.addBytes(PipelineMetrics.ByteStage.FIFO_READ, headerLength + bytesRead);
+        }
+
+        return messageBytes;
+    }
+
+    /**
+     * Records any gap between the expected sequence number and the one received.
+     *
+     * @param sequenceNumber The sequence number from the message that was just read.
+     */
+    private void checkSequenceNumber(long sequenceNumber)
+    {
+        if (expectedSequenceNumber >= 0 && sequenceNumber != expectedSequenceNumber)
+        {
+            // The sequence number is an unsigned 32 bit value, so account for it wrapping around
+            final long missed = (sequenceNumber - expectedSequenceNumber) & 0xFFFFFFFFL;
+            Timber.w("Missed %d diag_revealer message(s); expected sequence number %d but received %d",
+                    missed, expectedSequenceNumber, sequenceNumber);
+            if (metrics != null) metrics.addDrops(PipelineMetrics.DropReason.SEQUENCE_GAP, missed);
+        }
+
+        expectedSequenceNumber = (sequenceNumber + 1) & 0xFFFFFFFFL;
+    }
+
+    private void handleUnknownHeader() throws IOException
+    {
+        Timber.e("Could not parse out the Diag Revealer header");
+        if (metrics != null) metrics.incrementDrop(PipelineMetrics.DropReason.UNKNOWN_HEADER);
+        ParserUtils.advanceTo7e(inputStream);
+
+        // Whatever was skipped may have held any number of messages, so don't count the next gap as lost messages
+        expectedSequenceNumber = -1;
+    }
+}
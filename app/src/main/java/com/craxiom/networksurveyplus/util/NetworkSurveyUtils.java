@@ -1,8 +1,12 @@
 package com.craxiom.networksurveyplus.util;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 
 /**
  * A collection of utilities for use throughout the app.
@@ -28,6 +32,26 @@ public final class NetworkSurveyUtils
         }
     }
 
+    /**
+     * Writes the content to the file unless the file already has exactly that content. The content is written to a
+     * temporary file that is then renamed over the target, so a reader never sees a partially written file.
+     *
+     * @param file    The file to write.
+     * @param content The content the file should have.
+     * @return True if the file was written, false if it was already up to date.
+     * @throws IOException If the file could not be read or written.
+     * @since 0.6.0
+     */
+    public static boolean writeFileIfChanged(File file, byte[] content) throws IOException
+    {
+        if (file.exists() && file.length() == content.length && Arrays.equals(Files.readAllBytes(file.toPath()), content)) return false;
+
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        Files.write(tempFile.toPath(), content);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
     /**
      * Get the name of a file without the file extension or period.
      *
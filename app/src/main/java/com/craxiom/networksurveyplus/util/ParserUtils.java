@@ -5,6 +5,7 @@ import android.location.Location;
 import com.craxiom.networksurveyplus.messages.DiagRevealerMessage;
 import com.craxiom.networksurveyplus.messages.DiagRevealerMessageHeader;
 import com.craxiom.networksurveyplus.messages.QcdmMessage;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -146,33 +147,76 @@ public class ParserUtils
      * @throws IOException if an error occurs when trying to read from the provided input stream.
      */
     public static DiagRevealerMessage getNextDiagRevealerMessage(InputStream inputStream) throws IOException
+    {
+        return getNextDiagRevealerMessage(inputStream, null);
+    }
+
+    /**
+     * Same as {@link #getNextDiagRevealerMessage(InputStream)}, but also records the bytes read and any unknown headers
+     * in the provided metrics.
+     *
+     * @param inputStream The input stream that is reading from the FIFO pipe.
+     * @param metrics     The metrics to update, or null if no metrics should be recorded.
+     * @return The next Diag Revealer message that is found in the input stream, or null if something goes wrong.
+     * @throws IOException if an error occurs when trying to read from the provided input stream.
+     * @since 0.6.0
+     */
+    public static DiagRevealerMessage getNextDiagRevealerMessage(InputStream inputStream, PipelineMetrics metrics) throws IOException
     {
         final byte[] headerBytes = new byte[4];
-        while ((inputStream.read(headerBytes)) != -1)
+        while (readFully(inputStream, headerBytes, 0, headerBytes.length) == headerBytes.length)
         {
             final DiagRevealerMessageHeader header = DiagRevealerMessageHeader.parseDiagRevealerMessageHeader(headerBytes);
             if (header == null || header.messageType < 1 || 3 < header.messageType || header.messageLength < 1)
             {
                 Timber.e("Could not parse out the Diag Revealer header");
+                if (metrics != null) metrics.incrementDrop(PipelineMetrics.DropReason.UNKNOWN_HEADER);
                 advanceTo7e(inputStream);
                 continue;
             }
 
             final byte[] messageBytes = new byte[header.messageLength];
 
-            final int bytesRead = inputStream.read(messageBytes);
+            final int bytesRead = readFully(inputStream, messageBytes, 0, messageBytes.length);
             if (bytesRead != messageBytes.length)
             {
                 Timber.e("Could not get the correct number of bytes from the FIFO diag revealer queue; bytesRead=%d, expectedLength=%d", bytesRead, messageBytes.length);
                 return null;
             }
 
+            if (metrics != null) metrics.addBytes(PipelineMetrics.ByteStage.FIFO_READ, headerBytes.length + bytesRead);
+
             return DiagRevealerMessage.parseDiagRevealerMessage(messageBytes, header);
         }
 
         return null;
     }
 
+    /**
+     * Reads from the input stream until the requested number of bytes have been read or the end of the stream is
+     * reached. A single {@link InputStream#read(byte[])} on a pipe can return fewer bytes than requested when the
+     * writer has not finished writing the message yet.
+     *
+     * @param inputStream The input stream to read from.
+     * @param buffer      The buffer to read the bytes in to.
+     * @param offset      The offset in the buffer to start writing at.
+     * @param length      The number of bytes to read.
+     * @return The number of bytes read, which is less than {@code length} only if the end of the stream was reached.
+     * @throws IOException if an error occurs when trying to read from the provided input stream.
+     * @since 0.6.0
+     */
+    public static int readFully(InputStream inputStream, byte[] buffer, int offset, int length) throws IOException
+    {
+        int totalRead = 0;
+        while (totalRead < length)
+        {
+            final int bytesRead = inputStream.read(buffer, offset + totalRead, length - totalRead);
+            if (bytesRead == -1) break;
+            totalRead += bytesRead;
+        }
+        return totalRead;
+    }
+
     /**
      * Moves the provide input stream to just after the next 0x7e byte.
      *
@@ -202,6 +246,26 @@ public class ParserUtils
      */
     public static void processDiagRevealerMessage(DiagRevealerMessage diagRevealerMessage, Consumer<QcdmMessage> messageConsumer)
     {
+        processDiagRevealerMessage(diagRevealerMessage, messageConsumer, null);
+    }
+
+    /**
+     * Same as {@link #processDiagRevealerMessage(DiagRevealerMessage, Consumer)}, but also records the decoded frames
+     * and any CRC failures in the provided metrics.
+     *
+     * @param diagRevealerMessage The Diag Revealer Message that contains the QCDM message(s) as a payload.
+     * @param messageConsumer     The consumer to pass each valid QCDM message to.
+     * @param metrics             The metrics to update, or null if no metrics should be recorded.
+     * @since 0.6.0
+     */
+    public static void processDiagRevealerMessage(DiagRevealerMessage diagRevealerMessage, Consumer<QcdmMessage> messageConsumer, PipelineMetrics metrics)
+    {
+        if ((diagRevealerMessage.header.flags & DiagRevealerMessageHeader.FLAG_DEFRAMED) != 0)
+        {
+            processDeframedMessage(diagRevealerMessage, messageConsumer, metrics);
+            return;
+        }
+
         try (final ByteArrayInputStream inputStream = new ByteArrayInputStream(diagRevealerMessage.payload))
         {
             while (inputStream.available() > 0)
@@ -232,10 +296,17 @@ public class ParserUtils
                 if (crc != expectedCrc)
                 {
                     Timber.w("Invalid CRC found on a diag message expected=%s, actual=%s", Integer.toHexString(expectedCrc), Integer.toHexString(crc));
+                    if (metrics != null) metrics.incrementDrop(PipelineMetrics.DropReason.INVALID_CRC);
                 } else
                 {
+                    if (metrics != null)
+                    {
+                        metrics.incrementFramesDecoded();
+                        metrics.addBytes(PipelineMetrics.ByteStage.QCDM_DECODED, diagMessageBytes.length);
+                    }
+
                     final byte[] qcdmBytes = Arrays.copyOfRange(diagMessageBytes, hasQcdmPrefix ? 8 : 0, diagMessageLengthWithoutCrc);
-                    messageConsumer.accept(new QcdmMessage(qcdmBytes, simId));
+                    messageConsumer.accept(new QcdmMessage(qcdmBytes, simId, diagRevealerMessage.getTimestampMicros()));
                 }
             }
         } catch (IOException e)
@@ -244,6 +315,32 @@ public class ParserUtils
         }
     }
 
+    /**
+     * Handles a Diag Revealer message that diag_revealer has already deframed, CRC checked, and filtered. The payload
+     * is the 4 byte Subscription ID followed by exactly one QCDM message, so there is nothing to unescape.
+     *
+     * @since 0.6.0
+     */
+    private static void processDeframedMessage(DiagRevealerMessage diagRevealerMessage, Consumer<QcdmMessage> messageConsumer, PipelineMetrics metrics)
+    {
+        final byte[] payload = diagRevealerMessage.payload;
+        if (payload.length <= 4)
+        {
+            Timber.e("A deframed Diag Revealer message is too short to hold a QCDM message, length=%d", payload.length);
+            return;
+        }
+
+        if (metrics != null)
+        {
+            metrics.incrementFramesDecoded();
+            metrics.addBytes(PipelineMetrics.ByteStage.QCDM_DECODED, payload.length - 4);
+        }
+
+        final int simId = getInteger(payload, 0, ByteOrder.LITTLE_ENDIAN);
+        final byte[] qcdmBytes = Arrays.copyOfRange(payload, 4, payload.length);
+        messageConsumer.accept(new QcdmMessage(qcdmBytes, simId, diagRevealerMessage.getTimestampMicros()));
+    }
+
     /**
      * Given an input stream that contains QCDM messages (aka diag messages), pull out each individual Diag
      * message and return it as a byte array.
@@ -305,6 +402,43 @@ public class ParserUtils
         return null;
     }
 
+    /**
+     * Creates the HDLC frame for a diag command that is sent to the modem, which is the inverse of
+     * {@link #getNextDiagMessageBytes(InputStream)}. The 16-bit CRC X25 of the command is appended in little endian
+     * order, any 0x7e and 0x7d bytes are escaped, and the frame is terminated with 0x7e.
+     *
+     * @param command The unescaped diag command, starting with the command code.
+     * @return The escaped frame, including the CRC and the trailing 0x7e.
+     * @since 0.6.0
+     */
+    public static byte[] encodeDiagFrame(byte[] command)
+    {
+        final short crc = calculateCrc16X25(command, command.length);
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(command.length + 8);
+        for (byte b : command)
+        {
+            writeEscaped(outputStream, b);
+        }
+        writeEscaped(outputStream, (byte) crc);
+        writeEscaped(outputStream, (byte) (crc >> 8));
+        outputStream.write(QcdmMessage.QCDM_FOOTER);
+
+        return outputStream.toByteArray();
+    }
+
+    private static void writeEscaped(ByteArrayOutputStream outputStream, byte b)
+    {
+        if (b == (byte) 0x7e || b == (byte) 0x7d)
+        {
+            outputStream.write(0x7d);
+            outputStream.write(b ^ 0x20);
+        } else
+        {
+            outputStream.write(b);
+        }
+    }
+
     /**
      * Calculates the CRC CCITT for the provided byte array.
      *
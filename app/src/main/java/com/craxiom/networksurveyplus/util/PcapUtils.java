@@ -2,6 +2,9 @@ package com.craxiom.networksurveyplus.util;
 
 import android.location.Location;
 
+import com.craxiom.networksurveyplus.messages.MessageKind;
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
@@ -21,6 +24,13 @@ public class PcapUtils
     private static final short PPI_GPS_FLAG_LON = 4;
     private static final short PPI_GPS_FLAG_ALT = 8;
 
+    private static final int PCAP_RECORD_HEADER_LENGTH = 16;
+    private static final int PPI_PACKET_HEADER_LENGTH = 8; // 1-byte version, 1-byte flags, 2-byte header length, 4-byte data link type (dlt)
+    private static final int PPI_FIELD_HEADER_LENGTH = 4; // 2-byte field type, 2-byte field length
+    private static final int LAYER3_HEADER_LENGTH = 20;
+    private static final int LAYER4_HEADER_LENGTH = 8;
+    public static final int GSMTAP_HEADER_LENGTH = 16;
+
     private PcapUtils()
     {
     }
@@ -45,15 +55,171 @@ public class PcapUtils
     public static byte[] getGsmtapPcapRecord(int payloadType, byte[] payload, int gsmtapChannelType, int arfcn,
                                              boolean isUplink, int sfnAndPci, int subframeNumber, int simId, Location location)
     {
-        final byte[] gsmtapHeader = getGsmtapHeader(payloadType, gsmtapChannelType, arfcn, isUplink, sfnAndPci, subframeNumber);
-        final byte[] layer4Header = getLayer4Header(gsmtapHeader.length + payload.length);
-        final byte[] layer3Header = getLayer3Header(layer4Header.length + gsmtapHeader.length + payload.length, simId);
-        final byte[] ppiPacketHeader = getPpiPacketHeader(location);
-        final long currentTimeMillis = System.currentTimeMillis();
-        final byte[] pcapRecordHeader = getPcapRecordHeader(currentTimeMillis / 1000, (currentTimeMillis * 1000) % 1_000_000,
-                ppiPacketHeader.length + layer3Header.length + layer4Header.length + gsmtapHeader.length + payload.length);
-
-        return concatenateByteArrays(pcapRecordHeader, ppiPacketHeader, layer3Header, layer4Header, gsmtapHeader, payload);
+        return getGsmtapPcapRecord(payloadType, payload, gsmtapChannelType, arfcn, isUplink, sfnAndPci, subframeNumber,
+                simId, location, 0);
+    }
+
+    /**
+     * Same as {@link #getGsmtapPcapRecord(int, byte[], int, int, boolean, int, int, int, Location)}, but stamps the
+     * PCAP record with the provided capture time instead of the current time.
+     *
+     * @param payloadType       The type of payload that follows the GSMTAP header.
+     * @param payload           The cellular payload that this PCAP record is for.
+     * @param gsmtapChannelType The channel subtype.
+     * @param arfcn             The ARFCN to include in the GSMTAP header (limited to 14 bits).
+     * @param isUplink          True if the cellular payload represents an uplink message, false otherwise.
+     * @param sfnAndPci         The System Frame Number as the last 12 bits, and the PCI as the first 16 bits.
+     * @param subframeNumber    The cellular Subframe Number that the payload was sent over.
+     * @param simId             The Subscription ID that will be used as the last octet of the destination IP address.
+     * @param location          The current location to be used for adding latitude, longitude and altitude to the packet.
+     * @param timestampMicros   The capture time in microseconds since the epoch. If 0 or less, the current time is used.
+     * @return The byte array for the GSMTAP header.
+     * @since 0.6.0
+     */
+    public static byte[] getGsmtapPcapRecord(int payloadType, byte[] payload, int gsmtapChannelType, int arfcn,
+                                             boolean isUplink, int sfnAndPci, int subframeNumber, int simId, Location location,
+                                             long timestampMicros)
+    {
+        final byte[] pcapRecord = new byte[getGsmtapPcapRecordLength(payload.length, location)];
+        writeGsmtapPcapRecord(pcapRecord, payloadType, payload, gsmtapChannelType, arfcn, isUplink, sfnAndPci,
+                subframeNumber, simId, location, timestampMicros);
+        return pcapRecord;
+    }
+
+    /**
+     * @param payloadLength The length of the cellular payload.
+     * @param location      The location that will be added to the PPI header, or null.
+     * @return The length of the pcap record that {@link #writeGsmtapPcapRecord} writes for the payload.
+     * @since 0.6.0
+     */
+    public static int getGsmtapPcapRecordLength(int payloadLength, Location location)
+    {
+        return PCAP_RECORD_HEADER_LENGTH + getPpiPacketHeaderLength(location) + LAYER3_HEADER_LENGTH
+                + LAYER4_HEADER_LENGTH + GSMTAP_HEADER_LENGTH + payloadLength;
+    }
+
+    /**
+     * Writes a GSMTAP pcap record to the start of the provided array, without allocating any intermediate arrays for
+     * the headers. The parameters are the same as
+     * {@link #getGsmtapPcapRecord(int, byte[], int, int, boolean, int, int, int, Location, long)}.
+     *
+     * @param destination The array to write the record to, which must be at least {@link #getGsmtapPcapRecordLength}
+     *                    long.
+     * @return The length of the record that was written.
+     * @since 0.6.0
+     */
+    public static int writeGsmtapPcapRecord(byte[] destination, int payloadType, byte[] payload, int gsmtapChannelType,
+                                            int arfcn, boolean isUplink, int sfnAndPci, int subframeNumber, int simId,
+                                            Location location, long timestampMicros)
+    {
+        final long recordTimeMicros = timestampMicros > 0 ? timestampMicros : System.currentTimeMillis() * 1000;
+
+        int offset = PCAP_RECORD_HEADER_LENGTH;
+        offset += putPpiPacketHeader(destination, offset, location);
+        final int packetLength = LAYER3_HEADER_LENGTH + LAYER4_HEADER_LENGTH + GSMTAP_HEADER_LENGTH + payload.length;
+        putLayer3Header(destination, offset, packetLength - LAYER3_HEADER_LENGTH, simId);
+        offset += LAYER3_HEADER_LENGTH;
+        putLayer4Header(destination, offset, GSMTAP_HEADER_LENGTH + payload.length);
+        offset += LAYER4_HEADER_LENGTH;
+        putGsmtapHeader(destination, offset, payloadType, gsmtapChannelType, arfcn, isUplink, sfnAndPci, subframeNumber);
+        offset += GSMTAP_HEADER_LENGTH;
+        System.arraycopy(payload, 0, destination, offset, payload.length);
+        offset += payload.length;
+
+        putPcapRecordHeader(destination, 0, recordTimeMicros / 1_000_000, recordTimeMicros % 1_000_000,
+                offset - PCAP_RECORD_HEADER_LENGTH);
+        return offset;
+    }
+
+    /**
+     * Creates the GSMTAP pcap record for a cellular payload, and wraps it in a {@link PcapMessage} that also carries
+     * the values that went into the headers, so that the sinks do not have to read them back out of the pcap record.
+     * <p>
+     * The record is written to an array from the shared {@link RecordBufferPool}, so the message has to be released
+     * once it has been sent to the sinks.
+     *
+     * @param messageKind       The kind of message.
+     * @param logType           The QCDM log type the payload came from.
+     * @param payloadType       The type of payload that follows the GSMTAP header.
+     * @param payload           The cellular payload that this PCAP record is for.
+     * @param gsmtapChannelType The channel subtype, or {@link PcapMessage#UNSET_CHANNEL_TYPE}.
+     * @param arfcn             The ARFCN, or {@link PcapMessage#UNSET_FIELD}. Only values that fit in 14 bits are put
+     *                          in the GSMTAP header, but the message always has the full value.
+     * @param isUplink          True if the cellular payload represents an uplink message, false otherwise.
+     * @param pci               The LTE PCI, or {@link PcapMessage#UNSET_FIELD}.
+     * @param sfn               The System Frame Number, or {@link PcapMessage#UNSET_FIELD}.
+     * @param subframeNumber    The cellular Subframe Number, or {@link PcapMessage#UNSET_FIELD}.
+     * @param simId             The Subscription ID that will be used as the last octet of the destination IP address.
+     * @param location          The current location to be used for adding latitude, longitude and altitude to the packet.
+     * @param timestampMicros   The capture time in microseconds since the epoch. If 0 or less, the current time is used.
+     * @return The new pcap message.
+     * @since 0.6.0
+     */
+    public static PcapMessage createPcapMessage(MessageKind messageKind, int logType, int payloadType, byte[] payload,
+                                                int gsmtapChannelType, int arfcn, boolean isUplink, int pci, int sfn,
+                                                int subframeNumber, int simId, Location location, long timestampMicros)
+    {
+        final long recordTimeMicros = timestampMicros > 0 ? timestampMicros : System.currentTimeMillis() * 1000;
+        final int sfnAndPci = (pci == PcapMessage.UNSET_FIELD ? 0 : pci << 16) | (sfn == PcapMessage.UNSET_FIELD ? 0 : sfn);
+
+        final RecordBufferPool pool = RecordBufferPool.getShared();
+        final byte[] buffer = pool.acquire(getGsmtapPcapRecordLength(payload.length, location));
+        final int pcapRecordLength = writeGsmtapPcapRecord(buffer, payloadType, payload,
+                gsmtapChannelType == PcapMessage.UNSET_CHANNEL_TYPE ? 0 : gsmtapChannelType, arfcn, isUplink, sfnAndPci,
+                subframeNumber == PcapMessage.UNSET_FIELD ? 0 : subframeNumber, simId, location, recordTimeMicros);
+
+        return new PcapMessage(buffer, pcapRecordLength, pool, messageKind, gsmtapChannelType, logType, arfcn, pci, sfn,
+                subframeNumber, isUplink, simId, recordTimeMicros);
+    }
+
+    /**
+     * Finds the start of the GSMTAP header in a pcap record created by
+     * {@link #getGsmtapPcapRecord(int, byte[], int, int, boolean, int, int, int, Location)}. The GSMTAP header comes
+     * after the pcap record header, the PPI header (which is longer when a location is included), and the IP and UDP
+     * headers. The last byte of the IP header, right before the UDP header, is the SIM ID.
+     *
+     * @param pcapRecord The pcap record to look in.
+     * @return The offset of the GSMTAP header, or -1 if the record is too short to hold one.
+     * @since 0.6.0
+     */
+    public static int getGsmtapHeaderOffset(byte[] pcapRecord)
+    {
+        return getGsmtapHeaderOffset(pcapRecord, pcapRecord == null ? 0 : pcapRecord.length);
+    }
+
+    /**
+     * Same as {@link #getGsmtapHeaderOffset(byte[])}, but for a record that only fills the start of the array.
+     *
+     * @param pcapRecord       The array holding the pcap record.
+     * @param pcapRecordLength The length of the pcap record.
+     * @return The offset of the GSMTAP header, or -1 if the record is too short to hold one.
+     * @since 0.6.0
+     */
+    public static int getGsmtapHeaderOffset(byte[] pcapRecord, int pcapRecordLength)
+    {
+        if (pcapRecord == null || pcapRecordLength < PCAP_RECORD_HEADER_LENGTH + 4) return -1;
+
+        final int ppiHeaderLength = (pcapRecord[PCAP_RECORD_HEADER_LENGTH + 2] & 0xFF)
+                | (pcapRecord[PCAP_RECORD_HEADER_LENGTH + 3] & 0xFF) << 8;
+        final int offset = PCAP_RECORD_HEADER_LENGTH + ppiHeaderLength + LAYER3_HEADER_LENGTH + LAYER4_HEADER_LENGTH;
+
+        return pcapRecordLength < offset + GSMTAP_HEADER_LENGTH ? -1 : offset;
+    }
+
+    /**
+     * Reads the SIM ID back out of a pcap record, where it is the last byte of the IP header.
+     *
+     * @param pcapRecord       The array holding the pcap record.
+     * @param pcapRecordLength The length of the pcap record.
+     * @return The SIM ID, or -1 if the record is too short to hold the GSMTAP header.
+     * @since 0.6.0
+     */
+    public static int getSimId(byte[] pcapRecord, int pcapRecordLength)
+    {
+        final int gsmtapOffset = getGsmtapHeaderOffset(pcapRecord, pcapRecordLength);
+        if (gsmtapOffset < 0) return -1;
+
+        return pcapRecord[gsmtapOffset - LAYER4_HEADER_LENGTH - 1] & 0xFF;
     }
 
     /**
@@ -121,25 +287,36 @@ public class PcapUtils
      * @return The byte array for the GSMTAP header.
      */
     public static byte[] getGsmtapHeader(int payloadType, int gsmtapChannelType, int arfcn, boolean isUplink, int sfnAndPci, int subframeNumber)
+    {
+        final byte[] header = new byte[GSMTAP_HEADER_LENGTH];
+        putGsmtapHeader(header, 0, payloadType, gsmtapChannelType, arfcn, isUplink, sfnAndPci, subframeNumber);
+        return header;
+    }
+
+    /**
+     * Writes the GSMTAP header described in {@link #getGsmtapHeader(int, int, int, boolean, int, int)} to the
+     * destination array.
+     */
+    private static void putGsmtapHeader(byte[] destination, int offset, int payloadType, int gsmtapChannelType,
+                                        int arfcn, boolean isUplink, int sfnAndPci, int subframeNumber)
     {
         // GSMTAP assumes the ARFCN fits in 14 bits, but the LTE spec has the EARFCN range go up to 65535
         if (arfcn < 0 || arfcn > 16_383) arfcn = 0;
         int arfcnAndUplink = isUplink ? arfcn | 0x4000 : arfcn;
 
-        return new byte[]{
-                (byte) 0x02, // GSMTAP version (2) (There is a version 3 but Wireshark does not seem to parse it)
-                (byte) 0x04, // Header length in 32-bit words (4 words aka 16 bytes)
-                (byte) (payloadType & 0xFF), // Payload type (1 byte)
-                (byte) 0x00, // Time Slot
-                (byte) ((arfcnAndUplink & 0xFF00) >>> 8), (byte) (arfcnAndUplink & 0x00FF), // PCS flag (bit 16), Uplink flag (bit 15), ARFCN (last 14 bits)
-                (byte) 0x00, // Signal Level dBm
-                (byte) 0x00, // Signal/Noise Ratio dB
-                (byte) (sfnAndPci >>> 24), (byte) ((sfnAndPci & 0xFF0000) >>> 16), (byte) ((sfnAndPci & 0xFF00) >>> 8), (byte) (sfnAndPci & 0xFF), // GSM Frame Number
-                (byte) (gsmtapChannelType & 0xFF), // Subtype - Type of burst/channel
-                (byte) 0x00, // Antenna Number
-                (byte) (subframeNumber & 0xFF), // Sub-Slot
-                (byte) 0x00 // Reserved for future use
-        };
+        destination[offset] = (byte) 0x02; // GSMTAP version (2) (There is a version 3 but Wireshark does not seem to parse it)
+        destination[offset + 1] = (byte) 0x04; // Header length in 32-bit words (4 words aka 16 bytes)
+        destination[offset + 2] = (byte) (payloadType & 0xFF); // Payload type (1 byte)
+        destination[offset + 3] = (byte) 0x00; // Time Slot
+        destination[offset + 4] = (byte) ((arfcnAndUplink & 0xFF00) >>> 8); // PCS flag (bit 16), Uplink flag (bit 15), ARFCN (last 14 bits)
+        destination[offset + 5] = (byte) (arfcnAndUplink & 0x00FF);
+        destination[offset + 6] = (byte) 0x00; // Signal Level dBm
+        destination[offset + 7] = (byte) 0x00; // Signal/Noise Ratio dB
+        putIntBigEndian(destination, offset + 8, sfnAndPci); // GSM Frame Number
+        destination[offset + 12] = (byte) (gsmtapChannelType & 0xFF); // Subtype - Type of burst/channel
+        destination[offset + 13] = (byte) 0x00; // Antenna Number
+        destination[offset + 14] = (byte) (subframeNumber & 0xFF); // Sub-Slot
+        destination[offset + 15] = (byte) 0x00; // Reserved for future use
     }
 
     /**
@@ -150,15 +327,27 @@ public class PcapUtils
      * @return The byte array for the layer 4 header.
      */
     public static byte[] getLayer4Header(int packetLength)
+    {
+        final byte[] header = new byte[LAYER4_HEADER_LENGTH];
+        putLayer4Header(header, 0, packetLength);
+        return header;
+    }
+
+    /**
+     * Writes the UDP header described in {@link #getLayer4Header(int)} to the destination array.
+     */
+    private static void putLayer4Header(byte[] destination, int offset, int packetLength)
     {
         final int totalLength = 8 + packetLength;
 
-        return new byte[]{
-                (byte) 0x12, (byte) 0x79, // Source Port (GSMTAP Port 4729)
-                (byte) 0x12, (byte) 0x79, // Destination Port (GSMTAP Port 4729)
-                (byte) ((totalLength & 0xFF00) >>> 8), (byte) (totalLength & 0x00FF), // Total length (layer 3 header plus all other headers and the payload, aka start of layer 3 header to end of packet)
-                (byte) 0x00, (byte) 0x00, // checksum
-        };
+        destination[offset] = (byte) 0x12; // Source Port (GSMTAP Port 4729)
+        destination[offset + 1] = (byte) 0x79;
+        destination[offset + 2] = (byte) 0x12; // Destination Port (GSMTAP Port 4729)
+        destination[offset + 3] = (byte) 0x79;
+        destination[offset + 4] = (byte) ((totalLength & 0xFF00) >>> 8); // Total length (layer 4 header plus the GSMTAP header and the payload)
+        destination[offset + 5] = (byte) (totalLength & 0x00FF);
+        destination[offset + 6] = (byte) 0x00; // checksum
+        destination[offset + 7] = (byte) 0x00;
     }
 
     /**
@@ -170,21 +359,30 @@ public class PcapUtils
      * @return The byte array for the layer 3 header.
      */
     public static byte[] getLayer3Header(int packetLength, int simId)
+    {
+        final byte[] header = new byte[LAYER3_HEADER_LENGTH];
+        putLayer3Header(header, 0, packetLength, simId);
+        return header;
+    }
+
+    /**
+     * Writes the IP header described in {@link #getLayer3Header(int, int)} to the destination array.
+     */
+    private static void putLayer3Header(byte[] destination, int offset, int packetLength, int simId)
     {
         final int totalLength = 20 + packetLength;
 
-        return new byte[]{
-                (byte) 0x45, // IPv4 version (4) and length (5 aka 20 bytes))
-                (byte) 0x00, // Differentiated Services Codepoint
-                (byte) ((totalLength & 0xFF00) >>> 8), (byte) (totalLength & 0x00FF), // Total length (layer 3 header plus all other headers and the payload, aka start of layer 3 header to end of packet)
-                (byte) 0x00, (byte) 0x00, // Identification
-                (byte) 0x00, (byte) 0x00, // Flags
-                (byte) 0x40, // Time to live (64)
-                (byte) 0x11, // Protocol (17 UDP)
-                (byte) 0x00, (byte) 0x00, // Header checksum
-                (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, // Source IP
-                (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) (simId & 0xFF), // Destination IP
-        };
+        destination[offset] = (byte) 0x45; // IPv4 version (4) and length (5 aka 20 bytes))
+        destination[offset + 1] = (byte) 0x00; // Differentiated Services Codepoint
+        destination[offset + 2] = (byte) ((totalLength & 0xFF00) >>> 8); // Total length (layer 3 header plus all other headers and the payload, aka start of layer 3 header to end of packet)
+        destination[offset + 3] = (byte) (totalLength & 0x00FF);
+        putIntBigEndian(destination, offset + 4, 0); // Identification and Flags
+        destination[offset + 8] = (byte) 0x40; // Time to live (64)
+        destination[offset + 9] = (byte) 0x11; // Protocol (17 UDP)
+        destination[offset + 10] = (byte) 0x00; // Header checksum
+        destination[offset + 11] = (byte) 0x00;
+        putIntBigEndian(destination, offset + 12, 0); // Source IP
+        putIntBigEndian(destination, offset + 16, simId & 0xFF); // Destination IP
     }
 
     /**
@@ -198,93 +396,108 @@ public class PcapUtils
      */
     public static byte[] getPpiPacketHeader(Location location)
     {
-        int ppiPacketHeaderSize = 8; // 1-byte version, 1-byte flags, 2-byte header length, 4-byte data link type (dlt)
-        byte[] ppiFieldHeader = getPpiFieldHeader(location);
-        int packetHeaderLength = ppiPacketHeaderSize + ppiFieldHeader.length;
-        byte[] ppiPacketHeader = {
-                (byte) 0x00, // version (0)
-                (byte) 0x00, // flags (0)
-                (byte) (packetHeaderLength & 0xFF), (byte) ((packetHeaderLength & 0xFF00) >>> 8),
-                (byte) 0xe4, 0, 0, 0  // Link Layer Type (4 bytes): 228 is LINKTYPE_IPV4
-        };
-        return concatenateByteArrays(ppiPacketHeader, ppiFieldHeader);
+        final byte[] header = new byte[getPpiPacketHeaderLength(location)];
+        putPpiPacketHeader(header, 0, location);
+        return header;
+    }
+
+    /**
+     * @param location The location to add to the PPI packet header, or null.
+     * @return The length of the PPI packet header, including the GPS field when there is a location.
+     */
+    private static int getPpiPacketHeaderLength(Location location)
+    {
+        return PPI_PACKET_HEADER_LENGTH + getPpiFieldHeaderLength(location);
+    }
+
+    /**
+     * Writes the PPI packet header described in {@link #getPpiPacketHeader(Location)} to the destination array.
+     *
+     * @return The number of bytes written.
+     */
+    private static int putPpiPacketHeader(byte[] destination, int offset, Location location)
+    {
+        final int packetHeaderLength = PPI_PACKET_HEADER_LENGTH + putPpiFieldHeader(destination, offset + PPI_PACKET_HEADER_LENGTH, location);
+
+        destination[offset] = (byte) 0x00; // version (0)
+        destination[offset + 1] = (byte) 0x00; // flags (0)
+        putShortLittleEndian(destination, offset + 2, packetHeaderLength);
+        putIntLittleEndian(destination, offset + 4, 0xe4); // Link Layer Type (4 bytes): 228 is LINKTYPE_IPV4
+
+        return packetHeaderLength;
+    }
+
+    /**
+     * @return The length of the PPI field headers for the location, which is 0 if there is no location.
+     */
+    private static int getPpiFieldHeaderLength(Location location)
+    {
+        if (location == null) return 0;
+
+        return PPI_FIELD_HEADER_LENGTH + getGeoTagLength(location);
     }
 
     /**
      * Following the PPI packet header, there are zero or more PPI field headers. There will be one
      * field header for each PPI tag. Possible tags are GPS, VECTOR, SENSOR or ANTENNA)
      *
-     * @param location The current location to be used for adding latitude, longitude and altitude to the packet
-     * @return The byte array for the PPI field header
+     * @param destination The array to write the field header to.
+     * @param offset      The index to start writing at.
+     * @param location    The current location to be used for adding latitude, longitude and altitude to the packet
+     * @return The number of bytes written.
+     */
+    private static int putPpiFieldHeader(byte[] destination, int offset, Location location)
+    {
+        if (location == null) return 0;
+
+        final int geoTagLength = putGeoTag(destination, offset + PPI_FIELD_HEADER_LENGTH, location);
+
+        putShortLittleEndian(destination, offset, 30002); // PPI field header type GPS (30002)
+        putShortLittleEndian(destination, offset + 2, geoTagLength); // GPS tag size
+
+        return PPI_FIELD_HEADER_LENGTH + geoTagLength;
+    }
+
+    /**
+     * @return The length of the geo-tag for the location.
      */
-    private static byte[] getPpiFieldHeader(Location location)
+    private static int getGeoTagLength(Location location)
     {
-        if (location == null) return new byte[]{};
-
-        byte[] geoTag = getGeoTag(location);
-        byte[] fieldHeader = {
-                (byte) 0x32, (byte) 0x75,  // PPI field header type GPS (30002)
-                (byte) (geoTag.length & 0xFF), (byte) ((geoTag.length & 0xFF00) >>> 8) // GPS tag size
-        };
-        return concatenateByteArrays(fieldHeader, geoTag);
+        // 1-byte version + 1-byte magic + 2-byte length + 4-byte fields bitmask, then the latitude and longitude
+        return 16 + (location.hasAltitude() ? 4 : 0);
     }
 
     /**
-     * Constructs a basic geo-tag header including the actual geo-fields (i.e. latitude, longitude, altitude).
+     * Writes a basic geo-tag header including the actual geo-fields (i.e. latitude, longitude, altitude).
      * The base header consists of:
      * 1-byte <i>version</i>; currently always set to 2
      * 1-byte <i>pad</i>; serves only to make the <i>len</i> field naturally aligned
      * 2-byte <i>len</i>; the length of the tag including the base header
      * 4-byte <i>present</i>; the bitmask indicating the fields present in the tag
      *
-     * @param location The current location to be used for adding latitude, longitude and altitude to the header
-     * @return The byte array for the geo-tag
+     * @param destination The array to write the geo-tag to.
+     * @param offset      The index to start writing at.
+     * @param location    The current location to be used for adding latitude, longitude and altitude to the header
+     * @return The number of bytes written.
      */
-    private static byte[] getGeoTag(Location location)
+    private static int putGeoTag(byte[] destination, int offset, Location location)
     {
-        byte[] geoTagHeader = {};
+        final int geoTagSize = getGeoTagLength(location);
+        int fieldsPresent = PPI_GPS_FLAG_LAT | PPI_GPS_FLAG_LON;
+        if (location.hasAltitude()) fieldsPresent |= PPI_GPS_FLAG_ALT;
 
-        if (location == null)
-        {
-            Timber.w("Current location could not be determined.");
-            return geoTagHeader;
-        } else
+        destination[offset] = (byte) 0x02; // version
+        destination[offset + 1] = (byte) 0xCF; // PPI GPS magic
+        putShortLittleEndian(destination, offset + 2, geoTagSize);
+        putIntLittleEndian(destination, offset + 4, fieldsPresent);
+        putIntLittleEndian(destination, offset + 8, (int) doubleToFixed37(location.getLatitude()));
+        putIntLittleEndian(destination, offset + 12, (int) doubleToFixed37(location.getLongitude()));
+        if (location.hasAltitude())
         {
-            int geoTagSize = 8; // 1-byte version + 1-byte magic + 2-byte length + 4-byte fields bitmask
-            geoTagSize += 8;
-            int fieldsPresent = PPI_GPS_FLAG_LAT | PPI_GPS_FLAG_LON;
-
-            long latitude = doubleToFixed37(location.getLatitude());
-            long longitude = doubleToFixed37(location.getLongitude());
-
-            if (location.hasAltitude())
-            {
-                geoTagSize += 4;
-                fieldsPresent |= PPI_GPS_FLAG_ALT;
-                long altitude = doubleToFixed64(location.getAltitude());
-
-                geoTagHeader = new byte[]{
-                        (byte) 0x02, // version
-                        (byte) 0xCF, // PPI GPS magic
-                        (byte) (geoTagSize & 0xFF), (byte) ((geoTagSize & 0xFF00) >>> 8),
-                        (byte) (fieldsPresent & 0xFF), (byte) ((fieldsPresent & 0xFF00) >>> 8), (byte) ((fieldsPresent & 0xFF0000) >>> 16), (byte) (fieldsPresent >>> 24),
-                        (byte) (latitude & 0xFF), (byte) ((latitude & 0xFF00) >>> 8), (byte) ((latitude & 0xFF0000) >>> 16), (byte) (latitude >>> 24),
-                        (byte) (longitude & 0xFF), (byte) ((longitude & 0xFF00) >>> 8), (byte) ((longitude & 0xFF0000) >>> 16), (byte) (longitude >>> 24),
-                        (byte) (altitude & 0xFF), (byte) ((altitude & 0xFF00) >>> 8), (byte) ((altitude & 0xFF0000) >>> 16), (byte) (altitude >>> 24)
-                };
-            } else
-            {
-                geoTagHeader = new byte[]{
-                        (byte) 0x02, // version
-                        (byte) 0xCF, // PPI GPS magic
-                        (byte) (geoTagSize & 0xFF), (byte) ((geoTagSize & 0xFF00) >>> 8),
-                        (byte) (fieldsPresent & 0xFF), (byte) ((fieldsPresent & 0xFF00) >>> 8), (byte) ((fieldsPresent & 0xFF0000) >>> 16), (byte) (fieldsPresent >>> 24),
-                        (byte) (latitude & 0xFF), (byte) ((latitude & 0xFF00) >>> 8), (byte) ((latitude & 0xFF0000) >>> 16), (byte) (latitude >>> 24),
-                        (byte) (longitude & 0xFF), (byte) ((longitude & 0xFF00) >>> 8), (byte) ((longitude & 0xFF0000) >>> 16), (byte) (longitude >>> 24),
-                };
-            }
+            putIntLittleEndian(destination, offset + 16, (int) doubleToFixed64(location.getAltitude()));
         }
-        return geoTagHeader;
+
+        return geoTagSize;
     }
 
     /**
@@ -297,11 +510,42 @@ public class PcapUtils
      */
     public static byte[] getPcapRecordHeader(long timeSec, long timeMicroSec, int length)
     {
-        return new byte[]{
-                (byte) (timeSec & 0x00FF), (byte) ((timeSec & 0xFF00) >>> 8), (byte) ((timeSec & 0xFF0000) >>> 16), (byte) (timeSec >>> 24),
-                (byte) (timeMicroSec & 0x00FF), (byte) ((timeMicroSec & 0xFF00) >>> 8), (byte) ((timeMicroSec & 0xFF0000) >>> 16), (byte) (timeMicroSec >>> 24),
-                (byte) (length & 0xFF), (byte) ((length & 0xFF00) >>> 8), (byte) ((length & 0xFF0000) >>> 16), (byte) (length >>> 24), // Frame length
-                (byte) (length & 0xFF), (byte) ((length & 0xFF00) >>> 8), (byte) ((length & 0xFF0000) >>> 16), (byte) (length >>> 24), // Capture length
-        };
+        final byte[] header = new byte[PCAP_RECORD_HEADER_LENGTH];
+        putPcapRecordHeader(header, 0, timeSec, timeMicroSec, length);
+        return header;
+    }
+
+    /**
+     * Writes the pcap record header described in {@link #getPcapRecordHeader(long, long, int)} to the destination
+     * array.
+     */
+    private static void putPcapRecordHeader(byte[] destination, int offset, long timeSec, long timeMicroSec, int length)
+    {
+        putIntLittleEndian(destination, offset, (int) timeSec);
+        putIntLittleEndian(destination, offset + 4, (int) timeMicroSec);
+        putIntLittleEndian(destination, offset + 8, length); // Frame length
+        putIntLittleEndian(destination, offset + 12, length); // Capture length
+    }
+
+    private static void putShortLittleEndian(byte[] destination, int offset, int value)
+    {
+        destination[offset] = (byte) (value & 0xFF);
+        destination[offset + 1] = (byte) ((value & 0xFF00) >>> 8);
+    }
+
+    private static void putIntLittleEndian(byte[] destination, int offset, int value)
+    {
+        destination[offset] = (byte) (value & 0xFF);
+        destination[offset + 1] = (byte) ((value & 0xFF00) >>> 8);
+        destination[offset + 2] = (byte) ((value & 0xFF0000) >>> 16);
+        destination[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static void putIntBigEndian(byte[] destination, int offset, int value)
+    {
+        destination[offset] = (byte) (value >>> 24);
+        destination[offset + 1] = (byte) ((value & 0xFF0000) >>> 16);
+        destination[offset + 2] = (byte) ((value & 0xFF00) >>> 8);
+        destination[offset + 3] = (byte) (value & 0xFF);
     }
 }
@@ -22,7 +22,12 @@ import android.os.Bundle;
 
 import androidx.preference.PreferenceManager;
 
+import com.craxiom.networksurveyplus.CaptureProfile;
 import com.craxiom.networksurveyplus.Constants;
+import com.craxiom.networksurveyplus.RecordRuleSet;
+import com.craxiom.networksurveyplus.SamplingPolicy;
+import com.craxiom.networksurveyplus.mqtt.MqttBatchConfig;
+import com.craxiom.networksurveyplus.mqtt.MqttTopicRouter;
 
 import timber.log.Timber;
 
@@ -108,4 +113,401 @@ public class PreferenceUtils
             return sharedPreferences.getBoolean(Constants.PROPERTY_MQTT_START_ON_BOOT, false);
         }
     }
+
+    /**
+     * Gets the preference for filtering the QCDM log codes in diag_revealer instead of in the app.
+     * <p>
+     * Like the other preferences, the MDM value is used first unless it is not set or the user has toggled the MDM
+     * override switch, in which case the user setting is used. Filtering is off by default.
+     *
+     * @param context The context to use when getting the Shared Preferences and Restriction Manager.
+     * @return True if diag_revealer should deframe the QCDM messages and only send the log codes this app handles.
+     * @since 0.6.0
+     */
+    public static boolean getNativeLogFilterPreference(Context context)
+    {
+        final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean mdmOverride = sharedPreferences.getBoolean(Constants.PROPERTY_MDM_OVERRIDE_KEY, false);
+
+        final RestrictionsManager restrictionsManager = (RestrictionsManager) context.getSystemService(Context.RESTRICTIONS_SERVICE);
+        Bundle mdmProperties = null;
+        if (restrictionsManager != null && !mdmOverride) mdmProperties = restrictionsManager.getApplicationRestrictions();
+
+        if (mdmProperties != null && mdmProperties.containsKey(Constants.PROPERTY_NATIVE_LOG_FILTER))
+        {
+            return mdmProperties.getBoolean(Constants.PROPERTY_NATIVE_LOG_FILTER);
+        }
+
+        return sharedPreferences.getBoolean(Constants.PROPERTY_NATIVE_LOG_FILTER, false);
+    }
+
+    /**
+     * Gets the preference for having diag_revealer hand off the QCDM messages through a shared memory ring buffer
+     * instead of the FIFO named pipe. The FIFO is the default.
+     *
+     * @param context The context to use when getting the Shared Preferences and Restriction Manager.
+     * @return True if the shared memory transport should be used.
+     * @since 0.6.0
+     */
+    public static boolean getSharedMemoryTransportPreference(Context context)
+    {
+        final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean mdmOverride = sharedPreferences.getBoolean(Constants.PROPERTY_MDM_OVERRIDE_KEY, false);
+
+        final RestrictionsManager restrictionsManager = (RestrictionsManager) context.getSystemService(Context.RESTRICTIONS_SERVICE);
+        Bundle mdmProperties = null;
+        if (restrictionsManager != null && !mdmOverride) mdmProperties = restrictionsManager.getApplicationRestrictions();
+
+        if (mdmProperties != null && mdmProperties.containsKey(Constants.PROPERTY_SHARED_MEMORY_TRANSPORT))
+        {
+            return mdmProperties.getBoolean(Constants.PROPERTY_SHARED_MEMORY_TRANSPORT);
+        }
+
+        return sharedPreferences.getBoolean(Constants.PROPERTY_SHARED_MEMORY_TRANSPORT, false);
+    }
+
+    /**
+     * Gets the capture profile, which decides which QCDM log codes the modem is asked to log. Like the other
+     * preferences, the MDM value is used first unless it is not set or the user has toggled the MDM override switch.
+     * The full profile is the default.
+     *
+     * @param context The context to use when getting the Shared Preferences and Restriction Manager.
+     * @return The capture profile to use.
+     * @since 0.6.0
+     */
+    public static CaptureProfile getCaptureProfilePreference(Context context)
+    {
+        final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean mdmOverride = sharedPreferences.getBoolean(Constants.PROPERTY_MDM_OVERRIDE_KEY, false);
+
+        final RestrictionsManager restrictionsManager = (RestrictionsManager) context.getSystemService(Context.RESTRICTIONS_SERVICE);
+        Bundle mdmProperties = null;
+        if (restrictionsManager != null && !mdmOverride) mdmProperties = restrictionsManager.getApplicationRestrictions();
+
+        if (mdmProperties != null && mdmProperties.containsKey(Constants.PROPERTY_CAPTURE_PROFILE))
+        {
+            return CaptureProfile.fromPreferenceValue(mdmProperties.getString(Constants.PROPERTY_CAPTURE_PROFILE));
+        }
+
+        return CaptureProfile.fromPreferenceValue(sharedPreferences.getString(Constants.PROPERTY_CAPTURE_PROFILE,
+                CaptureProfile.FULL.getPreferenceValue()));
+    }
+
+    /**
+     * Gets the preference for letting the {@link com.craxiom.networksurveyplus.CaptureGovernor} scale back the capture
+     * when the device is hot, low on battery, or overloaded. Like the other preferences, the MDM value is used first
+     * unless it is not set or the user has toggled the MDM override switch. The governor is off by default.
+     *
+     * @param context The context to use when getting the Shared Preferences and Restriction Manager.
+     * @return True if the capture governor should run.
+     * @since 0.6.0
+     */
+    public static boolean getCaptureGovernorPreference(Context context)
+    {
+        final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean mdmOverride = sharedPreferences.getBoolean(Constants.PROPERTY_MDM_OVERRIDE_KEY, false);
+
+        final RestrictionsManager restrictionsManager = (RestrictionsManager) context.getSystemService(Context.RESTRICTIONS_SERVICE);
+        Bundle mdmProperties = null;
+        if (restrictionsManager != null && !mdmOverride) mdmProperties = restrictionsManager.getApplicationRestrictions();
+
+        if (mdmProperties != null && mdmProperties.containsKey(Constants.PROPERTY_CAPTURE_GOVERNOR))
+        {
+            return mdmProperties.getBoolean(Constants.PROPERTY_CAPTURE_GOVERNOR);
+        }
+
+        return sharedPreferences.getBoolean(Constants.PROPERTY_CAPTURE_GOVERNOR, false);
+    }
+
+    /**
+     * Gets the preference for dropping the repeated copies of the broadcast messages (MIBs and SIBs) with the
+     * {@link com.craxiom.networksurveyplus.BroadcastDeduplicator}. Like the other preferences, the MDM value is used
+     * first unless it is not set or the user has toggled the MDM override switch. It is off by default so that the
+     * pcap files hold every message unless asked otherwise.
+     *
+     * @param context The context to use when getting the Shared Preferences and Restriction Manager.
+     * @return True if the repeated broadcast messages should be dropped.
+     * @since 0.6.0
+     */
+    public static boolean getBroadcastDedupPreference(Context context)
+    {
+        final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean mdmOverride = sharedPreferences.getBoolean(Constants.PROPERTY_MDM_OVERRIDE_KEY, false);
+
+        final RestrictionsManager restrictionsManager = (RestrictionsManager) context.getSystemService(Context.RESTRICTIONS_SERVICE);
+        Bundle mdmProperties = null;
+        if (restrictionsManager != null && !mdmOverride) mdmProperties = restrictionsManager.getApplicationRestrictions();
+
+        if (mdmProperties != null && mdmProperties.containsKey(Constants.PROPERTY_BROADCAST_DEDUP))
+        {
+            return mdmProperties.getBoolean(Constants.PROPERTY_BROADCAST_DEDUP);
+        }
+
+        return sharedPreferences.getBoolean(Constants.PROPERTY_BROADCAST_DEDUP, false);
+    }
+
+    /**
+     * Gets the {@link SamplingPolicy} for thinning out the flood channels, such as paging. Like the other preferences,
+     * the MDM value is used first unless it is not set or the user has toggled the MDM override switch. The MDM value
+     * can be any policy, while the settings screen offers a few presets. Every message is kept by default, and also
+     * if the policy can't be parsed.
+     *
+     * @param context The context to use when getting the Shared Preferences and Restriction Manager.
+     * @return The sampling policy to use.
+     * @since 0.6.0
+     */
+    public static SamplingPolicy getSamplingPolicyPreference(Context context)
+    {
+        final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean mdmOverride = sharedPreferences.getBoolean(Constants.PROPERTY_MDM_OVERRIDE_KEY, false);
+
+        final RestrictionsManager restrictionsManager = (RestrictionsManager) context.getSystemService(Context.RESTRICTIONS_SERVICE);
+        Bundle mdmProperties = null;
+        if (restrictionsManager != null && !mdmOverride) mdmProperties = restrictionsManager.getApplicationRestrictions();
+
+        final String spec;
+        if (mdmProperties != null && mdmProperties.containsKey(Constants.PROPERTY_SAMPLING_POLICY))
+        {
+            spec = mdmProperties.getString(Constants.PROPERTY_SAMPLING_POLICY);
+        } else
+        {
+            spec = sharedPreferences.getString(Constants.PROPERTY_SAMPLING_POLICY, SamplingPolicy.KEEP_ALL);
+        }
+
+        try
+        {
+            return SamplingPolicy.parse(spec);
+        } catch (IllegalArgumentException e)
+        {
+            Timber.e(e, "Invalid sampling policy, keeping every message");
+            return SamplingPolicy.parse(SamplingPolicy.KEEP_ALL);
+        }
+    }
+
+    /**
+     * Gets the trigger rules for the dashcam pcap capture mode. Like the other preferences, the MDM value is used first
+     * unless it is not set or the user has toggled the MDM override switch. An empty rule set means that every message
+     * is written to the pcap files, which is the default, and is also used if the rules can't be parsed.
+     *
+     * @param context The context to use when getting the Shared Preferences and Restriction Manager.
+     * @return The compiled trigger rules, or an empty rule set for continuous pcap logging.
+     * @since 0.6.0
+     */
+    public static RecordRuleSet getDashcamTriggersPreference(Context context)
+    {
+        final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean mdmOverride = sharedPreferences.getBoolean(Constants.PROPERTY_MDM_OVERRIDE_KEY, false);
+
+        final RestrictionsManager restrictionsManager = (RestrictionsManager) context.getSystemService(Context.RESTRICTIONS_SERVICE);
+        Bundle mdmProperties = null;
+        if (restrictionsManager != null && !mdmOverride) mdmProperties = restrictionsManager.getApplicationRestrictions();
+
+        final String spec;
+        if (mdmProperties != null && mdmProperties.containsKey(Constants.PROPERTY_DASHCAM_TRIGGERS))
+        {
+            spec = mdmProperties.getString(Constants.PROPERTY_DASHCAM_TRIGGERS);
+        } else
+        {
+            spec = sharedPreferences.getString(Constants.PROPERTY_DASHCAM_TRIGGERS, Constants.DASHCAM_TRIGGERS_OFF);
+        }
+
+        if (spec == null || Constants.DASHCAM_TRIGGERS_OFF.equalsIgnoreCase(spec.trim())) return RecordRuleSet.compile(null);
+
+        try
+        {
+            return RecordRuleSet.compile(spec);
+        } catch (IllegalArgumentException e)
+        {
+            Timber.e(e, "Invalid dashcam capture triggers, writing every message to the pcap files");
+            return RecordRuleSet.compile(null);
+        }
+    }
+
+    /**
+     * Gets the allow-list for one of the record sinks, such as the pcap files or the MQTT connection. Like the other
+     * preferences, the MDM value is used first unless it is not set or the user has toggled the MDM override switch.
+     * An empty rule set means that every record is sent to the sink, which is the default, and is also used if the
+     * rules can't be parsed so that a bad filter does not silently drop everything.
+     *
+     * @param preferenceKey The key of the record filter preference for the sink.
+     * @param context       The context to use when getting the Shared Preferences and Restriction Manager.
+     * @return The compiled allow-list, or an empty rule set to send every record to the sink.
+     * @since 0.6.0
+     */
+    public static RecordRuleSet getRecordFilterPreference(String preferenceKey, Context context)
+    {
+        final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean mdmOverride = sharedPreferences.getBoolean(Constants.PROPERTY_MDM_OVERRIDE_KEY, false);
+
+        final RestrictionsManager restrictionsManager = (RestrictionsManager) context.getSystemService(Context.RESTRICTIONS_SERVICE);
+        Bundle mdmProperties = null;
+        if (restrictionsManager != null && !mdmOverride) mdmProperties = restrictionsManager.getApplicationRestrictions();
+
+        final String spec;
+        if (mdmProperties != null && mdmProperties.containsKey(preferenceKey))
+        {
+            spec = mdmProperties.getString(preferenceKey);
+        } else
+        {
+            spec = sharedPreferences.getString(preferenceKey, Constants.RECORD_FILTER_ALL);
+        }
+
+        if (spec == null || Constants.RECORD_FILTER_ALL.equalsIgnoreCase(spec.trim())) return RecordRuleSet.compile(null);
+
+        try
+        {
+            return RecordRuleSet.compile(spec);
+        } catch (IllegalArgumentException e)
+        {
+            Timber.e(e, "Invalid %s record filter, sending every record", preferenceKey);
+            return RecordRuleSet.compile(null);
+        }
+    }
+
+    /**
+     * Gets the host (and optional port) to stream the GSMTAP packets to over UDP. Like the other preferences, the MDM
+     * value is used first unless it is not set or the user has toggled the MDM override switch. Streaming is off by
+     * default.
+     *
+     * @param context The context to use when getting the Shared Preferences and Restriction Manager.
+     * @return The target in the form host or host:port, or an empty string if streaming is off.
+     * @since 0.6.0
+     */
+    public static String getGsmtapUdpTargetPreference(Context context)
+    {
+        final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean mdmOverride = sharedPreferences.getBoolean(Constants.PROPERTY_MDM_OVERRIDE_KEY, false);
+
+        final RestrictionsManager restrictionsManager = (RestrictionsManager) context.getSystemService(Context.RESTRICTIONS_SERVICE);
+        Bundle mdmProperties = null;
+        if (restrictionsManager != null && !mdmOverride) mdmProperties = restrictionsManager.getApplicationRestrictions();
+
+        final String target;
+        if (mdmProperties != null && mdmProperties.containsKey(Constants.PROPERTY_GSMTAP_UDP_TARGET))
+        {
+            target = mdmProperties.getString(Constants.PROPERTY_GSMTAP_UDP_TARGET);
+        } else
+        {
+            target = sharedPreferences.getString(Constants.PROPERTY_GSMTAP_UDP_TARGET, "");
+        }
+
+        return target == null ? "" : target.trim();
+    }
+
+    /**
+     * Gets the address for the pcap stream server to listen on. Like the other preferences, the MDM value is used
+     * first unless it is not set or the user has toggled the MDM override switch. The server is off by default.
+     *
+     * @param context The context to use when getting the Shared Preferences and Restriction Manager.
+     * @return The address in the form port, host, or host:port, or an empty string if the server is off.
+     * @since 0.6.0
+     */
+    public static String getPcapStreamAddressPreference(Context context)
+    {
+        final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean mdmOverride = sharedPreferences.getBoolean(Constants.PROPERTY_MDM_OVERRIDE_KEY, false);
+
+        final RestrictionsManager restrictionsManager = (RestrictionsManager) context.getSystemService(Context.RESTRICTIONS_SERVICE);
+        Bundle mdmProperties = null;
+        if (restrictionsManager != null && !mdmOverride) mdmProperties = restrictionsManager.getApplicationRestrictions();
+
+        final String address;
+        if (mdmProperties != null && mdmProperties.containsKey(Constants.PROPERTY_PCAP_STREAM_ADDRESS))
+        {
+            address = mdmProperties.getString(Constants.PROPERTY_PCAP_STREAM_ADDRESS);
+        } else
+        {
+            address = sharedPreferences.getString(Constants.PROPERTY_PCAP_STREAM_ADDRESS, "");
+        }
+
+        return address == null ? "" : address.trim();
+    }
+
+    /**
+     * Gets how the cellular OTA messages should be split across the MQTT topics. Like the other preferences, the MDM
+     * value is used first unless it is not set or the user has toggled the MDM override switch. Publishing everything
+     * to the one cellular OTA topic is the default.
+     *
+     * @param context The context to use when getting the Shared Preferences and Restriction Manager.
+     * @return One of the {@link MqttTopicRouter} routing values.
+     * @since 0.6.0
+     */
+    public static String getMqttTopicRoutingPreference(Context context)
+    {
+        final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean mdmOverride = sharedPreferences.getBoolean(Constants.PROPERTY_MDM_OVERRIDE_KEY, false);
+
+        final RestrictionsManager restrictionsManager = (RestrictionsManager) context.getSystemService(Context.RESTRICTIONS_SERVICE);
+        Bundle mdmProperties = null;
+        if (restrictionsManager != null && !mdmOverride) mdmProperties = restrictionsManager.getApplicationRestrictions();
+
+        if (mdmProperties != null && mdmProperties.containsKey(Constants.PROPERTY_MQTT_TOPIC_ROUTING))
+        {
+            return mdmProperties.getString(Constants.PROPERTY_MQTT_TOPIC_ROUTING, MqttTopicRouter.ROUTING_SINGLE);
+        }
+
+        return sharedPreferences.getString(Constants.PROPERTY_MQTT_TOPIC_ROUTING, MqttTopicRouter.ROUTING_SINGLE);
+    }
+
+    /**
+     * Gets the MQTT batch settings to use for a new broker connection.
+     * <p>
+     * Like the other preferences, each value is first pulled from MDM, and if it is not set there (or the user has
+     * toggled the MDM override switch) then it is pulled from the user settings, falling back on the defaults.
+     *
+     * @param context The context to use when getting the Shared Preferences and Restriction Manager.
+     * @return The batch settings to use for the MQTT connection.
+     * @since 0.6.0
+     */
+    public static MqttBatchConfig getMqttBatchConfig(Context context)
+    {
+        final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean mdmOverride = sharedPreferences.getBoolean(Constants.PROPERTY_MDM_OVERRIDE_KEY, false);
+
+        final RestrictionsManager restrictionsManager = (RestrictionsManager) context.getSystemService(Context.RESTRICTIONS_SERVICE);
+        Bundle mdmProperties = null;
+        if (restrictionsManager != null && !mdmOverride) mdmProperties = restrictionsManager.getApplicationRestrictions();
+
+        final int batchSize = getIntPreference(Constants.PROPERTY_MQTT_BATCH_SIZE, Constants.DEFAULT_MQTT_BATCH_SIZE, mdmProperties, sharedPreferences);
+        final int lingerMs = getIntPreference(Constants.PROPERTY_MQTT_BATCH_LINGER_MS, Constants.DEFAULT_MQTT_BATCH_LINGER_MS, mdmProperties, sharedPreferences);
+
+        final boolean deflate;
+        if (mdmProperties != null && mdmProperties.containsKey(Constants.PROPERTY_MQTT_BATCH_DEFLATE))
+        {
+            deflate = mdmProperties.getBoolean(Constants.PROPERTY_MQTT_BATCH_DEFLATE);
+        } else
+        {
+            deflate = sharedPreferences.getBoolean(Constants.PROPERTY_MQTT_BATCH_DEFLATE, false);
+        }
+
+        return new MqttBatchConfig(batchSize, lingerMs, deflate);
+    }
+
+    /**
+     * Gets an integer preference, first from the MDM properties, then from the user settings. The user settings are
+     * stored as strings because they come from a drop down preference.
+     *
+     * @param preferenceKey     The preference key to use when pulling the value from MDM and Shared Preferences.
+     * @param defaultValue      The value to fall back on if the preference could not be found.
+     * @param mdmProperties     The MDM app restrictions, or null if MDM should not be used.
+     * @param sharedPreferences The user preferences.
+     * @return The preference value to use.
+     */
+    private static int getIntPreference(String preferenceKey, int defaultValue, Bundle mdmProperties, SharedPreferences sharedPreferences)
+    {
+        if (mdmProperties != null && mdmProperties.containsKey(preferenceKey))
+        {
+            return mdmProperties.getInt(preferenceKey, defaultValue);
+        }
+
+        final String preferenceValue = sharedPreferences.getString(preferenceKey, String.valueOf(defaultValue));
+        try
+        {
+            return Integer.parseInt(preferenceValue);
+        } catch (Exception e)
+        {
+            Timber.e(e, "Could not convert the %s user preference (%s) to an int", preferenceKey, preferenceValue);
+            return defaultValue;
+        }
+    }
 }
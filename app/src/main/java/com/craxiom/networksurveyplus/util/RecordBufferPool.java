@@ -0,0 +1,222 @@
+package com.craxiom.networksurveyplus.util;
+
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * A pool of byte arrays for the pcap records, so that a new array does not have to be allocated for every record.
+ * <p>
+ * The arrays come in power of two size classes, and a request is served from the smallest class that fits it. Each
+ * class holds on to a limited number of free arrays; an array released to a full class is left for the garbage
+ * collector, and a request larger than the largest class gets a plain array that is never pooled.
+ * <p>
+ * The arrays are handed out wrapped in a reference counted {@link PcapMessage}, which gives its array back to the pool
+ * when the last holder calls {@link PcapMessage#release()}. When leak detection is on, every pooled message is
+ * tracked, and a message that is garbage collected without being released is logged along with where it was created.
+ * Leak detection captures a stack trace per message, so it is only meant for debug builds.
+ *
+ * @since 0.6.0
+ */
+public class RecordBufferPool
+{
+    public static final int MIN_BUFFER_SIZE = 128;
+    public static final int MAX_BUFFER_SIZE = 8192;
+    public static final int DEFAULT_BUFFERS_PER_SIZE_CLASS = 64;
+
+    private static final RecordBufferPool SHARED = new RecordBufferPool(DEFAULT_BUFFERS_PER_SIZE_CLASS);
+
+    private final ArrayBlockingQueue<byte[]>[] sizeClasses;
+    private final AtomicInteger outstandingCount = new AtomicInteger();
+    private final AtomicLong allocationCount = new AtomicLong();
+    private final AtomicLong leakCount = new AtomicLong();
+
+    private final ReferenceQueue<PcapMessage> leakQueue = new ReferenceQueue<>();
+    private final Set<LeakTracker> leakTrackers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private volatile boolean leakDetectionEnabled = false;
+
+    /**
+     * @param buffersPerSizeClass The most free arrays to keep for each size class.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RecordBufferPool(int buffersPerSizeClass)
+    {
+        final int classCount = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE) + 1;
+        sizeClasses = new ArrayBlockingQueue[classCount];
+        for (int i = 0; i < classCount; i++)
+        {
+            sizeClasses[i] = new ArrayBlockingQueue<>(buffersPerSizeClass);
+        }
+    }
+
+    /**
+     * @return The pool that the parsers create their pcap records in.
+     */
+    public static RecordBufferPool getShared()
+    {
+        return SHARED;
+    }
+
+    /**
+     * Turns on the tracking of pooled messages that are never released. Only messages created after this is turned on
+     * are tracked.
+     *
+     * @param enabled True to log the messages that are garbage collected without being released.
+     */
+    public void setLeakDetectionEnabled(boolean enabled)
+    {
+        leakDetectionEnabled = enabled;
+        if (!enabled) leakTrackers.clear();
+    }
+
+    /**
+     * Hands out an array that is at least the requested length. The array must be given back with
+     * {@link #release(byte[])}, which {@link PcapMessage#release()} takes care of for the pooled messages.
+     *
+     * @param minLength The smallest length the array can have.
+     * @return An array from the pool, or a new one if the pool does not have a free one of the right size.
+     */
+    public byte[] acquire(int minLength)
+    {
+        if (leakDetectionEnabled) reportLeaks();
+
+        final int sizeClass = getSizeClass(minLength);
+        if (sizeClass < 0)
+        {
+            allocationCount.incrementAndGet();
+            return new byte[minLength];
+        }
+
+        outstandingCount.incrementAndGet();
+        final byte[] buffer = sizeClasses[sizeClass].poll();
+        if (buffer != null) return buffer;
+
+        allocationCount.incrementAndGet();
+        return new byte[MIN_BUFFER_SIZE << sizeClass];
+    }
+
+    /**
+     * Gives an array back to the pool. Arrays that are not one of the pool's sizes are ignored.
+     *
+     * @param buffer The array to give back, which must not be used after this call.
+     */
+    public void release(byte[] buffer)
+    {
+        final int sizeClass = getSizeClass(buffer.length);
+        if (sizeClass < 0 || buffer.length != MIN_BUFFER_SIZE << sizeClass) return;
+
+        outstandingCount.decrementAndGet();
+        sizeClasses[sizeClass].offer(buffer);
+    }
+
+    /**
+     * Starts tracking a pooled message if leak detection is on.
+     *
+     * @param message The message that was just created.
+     * @return The tracker to pass to {@link #untrack(Object)} once the message is released, or null if leak detection
+     * is off.
+     */
+    public Object track(PcapMessage message)
+    {
+        if (!leakDetectionEnabled) return null;
+
+        final LeakTracker tracker = new LeakTracker(message, leakQueue);
+        leakTrackers.add(tracker);
+        return tracker;
+    }
+
+    /**
+     * Stops tracking a message because it was released.
+     *
+     * @param tracker The tracker returned from {@link #track(PcapMessage)}, or null.
+     */
+    public void untrack(Object tracker)
+    {
+        if (tracker == null) return;
+
+        final LeakTracker leakTracker = (LeakTracker) tracker;
+        leakTrackers.remove(leakTracker);
+        leakTracker.clear();
+    }
+
+    /**
+     * Logs each tracked message that has been garbage collected without being released.
+     *
+     * @return The number of leaks found by this call.
+     */
+    public int reportLeaks()
+    {
+        int leaks = 0;
+        Reference<? extends PcapMessage> reference;
+        while ((reference = leakQueue.poll()) != null)
+        {
+            final LeakTracker tracker = (LeakTracker) reference;
+            if (leakTrackers.remove(tracker))
+            {
+                leaks++;
+                leakCount.incrementAndGet();
+                Timber.w(tracker.creationTrace, "A pooled pcap message was garbage collected without being released");
+            }
+        }
+        return leaks;
+    }
+
+    /**
+     * @return The number of pooled arrays that have been handed out and not given back.
+     */
+    public int getOutstandingCount()
+    {
+        return outstandingCount.get();
+    }
+
+    /**
+     * @return The number of arrays that had to be allocated because the pool did not have a free one.
+     */
+    public long getAllocationCount()
+    {
+        return allocationCount.get();
+    }
+
+    /**
+     * @return The number of leaked messages that have been found since the pool was created.
+     */
+    public long getLeakCount()
+    {
+        return leakCount.get();
+    }
+
+    /**
+     * @return The index of the smallest size class that fits the length, or -1 if the length is larger than the
+     * largest size class.
+     */
+    private static int getSizeClass(int length)
+    {
+        if (length > MAX_BUFFER_SIZE) return -1;
+        if (length <= MIN_BUFFER_SIZE) return 0;
+
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    /**
+     * Tracks a pooled message, and remembers where it was created so that a leak can be traced back to its source.
+     */
+    private static final class LeakTracker extends PhantomReference<PcapMessage>
+    {
+        private final Throwable creationTrace = new Throwable("The leaked pcap message was created here");
+
+        private LeakTracker(PcapMessage message, ReferenceQueue<PcapMessage> queue)
+        {
+            super(message, queue);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.craxiom.networksurveyplus.util;
+
+import com.craxiom.networksurveyplus.Constants;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * A long lived root shell that commands are written to one at a time, so that the cost of starting {@code su} (which
+ * can be hundreds of milliseconds when the root manager prompts or logs each grant) is only paid once.
+ * <p>
+ * Each command is followed by an echo of an end marker and the command's exit status. The output is read line by
+ * line until the marker comes back, which frames the response without needing to close the shell. The marker has a
+ * random part so that command output cannot be mistaken for it. stderr is merged into stdout so that one stream
+ * carries everything and the shell can never block on a full stderr pipe.
+ * <p>
+ * The output is read on a separate thread and handed over through a queue, so that each command can be given a
+ * deadline. A command that does not finish in time (for example because the root manager prompt is never answered)
+ * kills the shell and fails.
+ * <p>
+ * The shell is started on the first command. If it dies (for example because root was revoked), the command that
+ * was running fails and the next command starts a new shell.
+ * <p>
+ * This class is thread safe; commands from different threads run one after the other. {@link #close()} does not wait
+ * for a running command, so it can be called from the main thread.
+ *
+ * @since 0.6.0
+ */
+public class RootShell implements AutoCloseable
+{
+    /**
+     * Put on the output queue by the reader thread when the shell's output ends. Compared by identity.
+     */
+    @SuppressWarnings("StringOperationCanBeSimplified")
+    private static final String END_OF_OUTPUT = new String("");
+
+    private final List<String> shellCommand;
+    private final long commandTimeoutMs;
+    private final String endMarker = "__NS_PLUS_END_" + UUID.randomUUID().toString().replace("-", "") + "__";
+
+    /**
+     * Held for the whole of a command so that commands run one at a time. The shell itself is guarded by {@code this},
+     * which is only held briefly, so that the shell can be closed while a command is waiting on it.
+     */
+    private final Object commandLock = new Object();
+
+    private Shell shell;
+
+    /**
+     * Creates a root shell that runs commands with {@code su}.
+     */
+    public RootShell()
+    {
+        this(Collections.singletonList("su"));
+    }
+
+    /**
+     * @param shellCommand The command that starts the shell. This is {@code su} except in the unit tests.
+     */
+    public RootShell(List<String> shellCommand)
+    {
+        this(shellCommand, Constants.ROOT_COMMAND_TIMEOUT_MS);
+    }
+
+    /**
+     * @param shellCommand     The command that starts the shell. This is {@code su} except in the unit tests.
+     * @param commandTimeoutMs How long each command can run before the shell is killed.
+     */
+    public RootShell(List<String> shellCommand, long commandTimeoutMs)
+    {
+        this.shellCommand = new ArrayList<>(shellCommand);
+        this.commandTimeoutMs = commandTimeoutMs;
+    }
+
+    /**
+     * Runs a command in the shell and waits for it to finish.
+     *
+     * @param command The shell command line to run. It must not read from stdin.
+     * @return The exit status and output of the command.
+     * @throws IOException If the shell could not be started, died while running the command, or the command did not
+     *                     finish before the timeout.
+     */
+    public CommandResult run(String command) throws IOException
+    {
+        synchronized (commandLock)
+        {
+            final Shell currentShell = ensureStarted();
+
+            try
+            {
+                currentShell.stdin.write((command + "\necho \"" + endMarker + " $?\"\n").getBytes(StandardCharsets.UTF_8));
+                currentShell.stdin.flush();
+
+                final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(commandTimeoutMs);
+                final List<String> output = new ArrayList<>();
+                while (true)
+                {
+                    final String line = currentShell.lines.poll(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (line == null)
+                    {
+                        throw new IOException("The root shell did not finish within " + commandTimeoutMs + " ms running: " + command);
+                    }
+                    if (line == END_OF_OUTPUT) throw new IOException("The root shell exited while running: " + command);
+
+                    // The marker can follow output that did not end with a new line
+                    final int markerIndex = line.indexOf(endMarker);
+                    if (markerIndex != -1)
+                    {
+                        if (markerIndex > 0) output.add(line.substring(0, markerIndex));
+                        final int exitStatus = Integer.parseInt(line.substring(markerIndex + endMarker.length()).trim());
+                        return new CommandResult(exitStatus, output);
+                    }
+                    output.add(line);
+                }
+            } catch (IOException | NumberFormatException e)
+            {
+                destroy(currentShell);
+                throw e instanceof IOException ? (IOException) e : new IOException("Could not parse the exit status", e);
+            } catch (InterruptedException e)
+            {
+                destroy(currentShell);
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while running: " + command, e);
+            }
+        }
+    }
+
+    /**
+     * @return True if the shell process is currently running.
+     */
+    public synchronized boolean isAlive()
+    {
+        return shell != null && shell.process.isAlive();
+    }
+
+    /**
+     * Asks the shell to exit, and kills it if it does not. Any command that is running fails.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (shell == null) return;
+
+        try
+        {
+            shell.stdin.write("exit\n".getBytes(StandardCharsets.UTF_8));
+            shell.stdin.flush();
+        } catch (IOException e)
+        {
+            Timber.d(e, "Could not ask the root shell to exit");
+        }
+        destroy(shell);
+    }
+
+    private synchronized Shell ensureStarted() throws IOException
+    {
+        if (shell != null && shell.process.isAlive()) return shell;
+        if (shell != null) destroy(shell);
+
+        Timber.i("Starting a root shell");
+        shell = new Shell(new ProcessBuilder(shellCommand).redirectErrorStream(true).start());
+        return shell;
+    }
+
+    /**
+     * Kills the shell process and fails any command that is waiting on its output. The end of the output is queued
+     * here as well as by the reader thread, since a child of the shell can keep the output pipe open after the shell
+     * is killed.
+     */
+    private synchronized void destroy(Shell shellToDestroy)
+    {
+        shellToDestroy.process.destroy();
+        shellToDestroy.lines.add(END_OF_OUTPUT);
+        try
+        {
+            shellToDestroy.stdin.close();
+        } catch (IOException e)
+        {
+            Timber.d(e, "Could not close the root shell stdin");
+        }
+
+        if (shell == shellToDestroy) shell = null;
+    }
+
+    /**
+     * A running shell process, along with the thread that reads its output.
+     */
+    private static final class Shell
+    {
+        private final Process process;
+        private final OutputStream stdin;
+        private final LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<>();
+
+        Shell(Process process)
+        {
+            this.process = process;
+            stdin = process.getOutputStream();
+
+            final Thread readerThread = new Thread(this::readOutput, "RootShellReader");
+            readerThread.setDaemon(true);
+            readerThread.start();
+        }
+
+        private void readOutput()
+        {
+            try (BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)))
+            {
+                String line;
+                while ((line = stdout.readLine()) != null)
+                {
+                    lines.add(line);
+                }
+            } catch (IOException e)
+            {
+                Timber.d(e, "The root shell output was closed");
+            } finally
+            {
+                lines.add(END_OF_OUTPUT);
+            }
+        }
+    }
+
+    /**
+     * The result of a command run in the {@link RootShell}.
+     */
+    public static final class CommandResult
+    {
+        public final int exitStatus;
+        /**
+         * The lines the command wrote to stdout and stderr, interleaved.
+         */
+        public final List<String> output;
+
+        CommandResult(int exitStatus, List<String> output)
+        {
+            this.exitStatus = exitStatus;
+            this.output = Collections.unmodifiableList(output);
+        }
+
+        public boolean isSuccess()
+        {
+            return exitStatus == 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "CommandResult{exitStatus=" + exitStatus + ", output=" + output + '}';
+        }
+    }
+}
@@ -12,18 +12,24 @@
 
 package com.craxiom.networksurveyplus.util;
 
-import com.google.common.io.ByteStreams;
-
-import timber.log.Timber;
+import com.craxiom.networksurveyplus.Constants;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
 
 /**
  * Responsible for validating that the phone has the 'su' binary on the PATH and that
  * we are able to use it to get root privileges. Additionally, this class validates
  * that the /dev/diag device is present and operational.
  * <p>
+ * All of the privileged commands run in one shared {@link RootShell}, so {@code su} is only started once instead of
+ * once per check. The root and /dev/diag checks are sent as a single command, and a passing result is cached for
+ * {@link Constants#ROOT_CHECK_CACHE_MS} or until {@link #invalidateCache()} is called, for example because
+ * diag_revealer exited.
+ * <p>
  * Some of the implementation in this class is based on this stack overflow page:
  * https://stackoverflow.com/questions/1101380/determine-if-running-on-a-rooted-device
  *
@@ -31,77 +37,113 @@ import java.io.IOException;
  */
 public class RootUtil
 {
-    public static boolean isDeviceReadyForDiagReceiver()
-    {
-        return isRootPrivGiven() && isDevDiagAvailable();
-    }
+    private static final String DIAG_EXISTS_PREFIX = "diag_exists=";
+    private static final String DIAG_WRITABLE_PREFIX = "diag_writable=";
+    private static final String DIAG_CHECK_COMMAND = "id; test -e /dev/diag; echo " + DIAG_EXISTS_PREFIX + "$?; test -w /dev/diag; echo " + DIAG_WRITABLE_PREFIX + "$?";
+
+    private static final RootShell rootShell = new RootShell();
 
-    private static boolean isRootPrivGiven()
+    /**
+     * The System.nanoTime() of the last passing check, or 0 if there is no cached result.
+     */
+    private static volatile long readyCheckedAtNanos = 0;
+
+    public static boolean isDeviceReadyForDiagReceiver()
     {
-        if (isRootAvailable())
+        final long checkedAtNanos = readyCheckedAtNanos;
+        if (checkedAtNanos != 0
+                && System.nanoTime() - checkedAtNanos < TimeUnit.MILLISECONDS.toNanos(Constants.ROOT_CHECK_CACHE_MS))
         {
-            Process process = null;
-            try
-            {
-                process = new ProcessBuilder("su", "-c", "id")
-                        .redirectInput(ProcessBuilder.Redirect.PIPE)
-                        .start();
-                String output = new String(ByteStreams.toByteArray(process.getInputStream()));
-                return output.toLowerCase().contains("uid=0");
-            } catch (IOException e)
-            {
-                Timber.e("su ERROR: %s", e.getMessage());
-            } finally
-            {
-                if (process != null)
-                {
-                    process.destroy();
-                }
-            }
+            return true;
         }
 
-        return false;
+        final boolean ready = isRootAvailable() && checkRootAndDevDiag();
+        // Only a passing result is cached so that a root grant or /dev/diag device that shows up later is seen
+        readyCheckedAtNanos = ready ? System.nanoTime() : 0;
+        return ready;
     }
 
-    private static boolean isRootAvailable()
+    /**
+     * Forgets the cached result of {@link #isDeviceReadyForDiagReceiver()} so that the next call checks again.
+     *
+     * @since 0.6.0
+     */
+    public static void invalidateCache()
     {
-        for (String pathDir : System.getenv("PATH").split(":"))
-        {
-            if (new File(pathDir, "su").exists())
-            {
-                return true;
-            }
-        }
-        return false;
+        readyCheckedAtNanos = 0;
+    }
+
+    /**
+     * Runs a command as root in the shared root shell.
+     *
+     * @param command The shell command line to run.
+     * @return The exit status and output of the command.
+     * @throws IOException If the root shell could not be started or died while running the command.
+     * @since 0.6.0
+     */
+    public static RootShell.CommandResult runAsRoot(String command) throws IOException
+    {
+        return rootShell.run(command);
     }
 
-    private static boolean isDevDiagAvailable()
+    /**
+     * Closes the shared root shell. It is started again by the next privileged command.
+     *
+     * @since 0.6.0
+     */
+    public static void closeRootShell()
     {
-        return isDevDiagReadable() && isDevDiagWritable();
+        rootShell.close();
     }
 
-    private static boolean isDevDiagReadable()
+    /**
+     * Checks that we have root, that /dev/diag exists, and that it is writable, all in one round trip to the root
+     * shell.
+     */
+    private static boolean checkRootAndDevDiag()
     {
         try
         {
-            Process process = new ProcessBuilder("su", "-c", "test -e /dev/diag").start();
-            return process.waitFor() == 0;
-        } catch (Exception e)
+            final RootShell.CommandResult result = rootShell.run(DIAG_CHECK_COMMAND);
+
+            boolean rootGiven = false;
+            boolean diagExists = false;
+            boolean diagWritable = false;
+            for (String line : result.output)
+            {
+                if (line.toLowerCase().contains("uid=0")) rootGiven = true;
+                if (line.equals(DIAG_EXISTS_PREFIX + "0")) diagExists = true;
+                if (line.equals(DIAG_WRITABLE_PREFIX + "0")) diagWritable = true;
+            }
+
+            if (!rootGiven)
+            {
+                Timber.e("su ERROR: root privileges were not given: %s", result.output);
+            } else if (!diagExists)
+            {
+                Timber.e("Reading /dev/diag ERROR: the device does not exist");
+            } else if (!diagWritable)
+            {
+                Timber.e("Writing to /dev/diag ERROR: the device is not writable");
+            }
+
+            return rootGiven && diagExists && diagWritable;
+        } catch (IOException e)
         {
-            Timber.e("Reading /dev/diag ERROR: %s", e.getMessage());
+            Timber.e("su ERROR: %s", e.getMessage());
         }
+
         return false;
     }
 
-    private static boolean isDevDiagWritable()
+    private static boolean isRootAvailable()
     {
-        try
-        {
-            Process process = new ProcessBuilder("su", "-c", "test -w /dev/diag").start();
-            return process.waitFor() == 0;
-        } catch (Exception e)
+        for (String pathDir : System.getenv("PATH").split(":"))
         {
-            Timber.e("Writing to /dev/diag ERROR: %s", e.getMessage());
+            if (new File(pathDir, "su").exists())
+            {
+                return true;
+            }
         }
         return false;
     }
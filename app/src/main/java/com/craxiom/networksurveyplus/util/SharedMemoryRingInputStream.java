@@ -0,0 +1,295 @@
+package com.craxiom.networksurveyplus.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import timber.log.Timber;
+
+/**
+ * Reads the diag_revealer byte stream out of the shared memory ring buffer that diag_revealer writes to when it is
+ * started with the "-s" option, as an alternative to the FIFO named pipe.
+ * <p>
+ * The ring is a file that this app creates (see {@link #createRingFile(File, int)}) and both processes map. Reading it
+ * through a {@link MappedByteBuffer} avoids the copy into the kernel pipe buffer, and the ring can be made much larger
+ * than a pipe. The stream in the ring is exactly what would have been written to the FIFO, so it is read with the
+ * same {@link DiagRevealerFrameReader}, and batches that diag_revealer had to drop because the ring was full show up
+ * as sequence gaps.
+ * <p>
+ * The layout of the file is documented in shm_ring.h. diag_revealer owns the head index and this class owns the tail
+ * index. When the ring is empty, this class spins briefly and then sleeps. If a doorbell stream (the FIFO) was
+ * provided, it sets the waiting flag and blocks reading the doorbell, which diag_revealer writes a byte to once it
+ * has published more data. Otherwise it parks with a backoff of up to {@link #MAX_PARK_NANOS}.
+ * <p>
+ * This class is meant to be used by a single thread.
+ *
+ * @since 0.6.0
+ */
+public class SharedMemoryRingInputStream extends InputStream
+{
+    public static final int MAGIC = 0x4E535242;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 256;
+
+    public static final int MAGIC_OFFSET = 0;
+    public static final int VERSION_OFFSET = 4;
+    public static final int CAPACITY_OFFSET = 8;
+    public static final int DATA_OFFSET_OFFSET = 12;
+    public static final int HEAD_OFFSET = 64;
+    public static final int TAIL_OFFSET = 128;
+    public static final int CONSUMER_WAITING_OFFSET = 192;
+    public static final int PRODUCER_CLOSED_OFFSET = 196;
+    public static final int CONSUMER_CLOSED_OFFSET = 200;
+    public static final int DROPPED_BATCHES_OFFSET = 208;
+    public static final int DROPPED_BYTES_OFFSET = 216;
+
+    private static final int IDLE_SPINS = 32;
+    private static final long MIN_PARK_NANOS = 10_000;
+    static final long MAX_PARK_NANOS = 1_000_000;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer header;
+    private final InputStream doorbell;
+
+    private ByteBuffer data;
+    private int capacity;
+    private long tail;
+    private boolean endOfStream = false;
+    private volatile boolean closed = false;
+    private volatile long fenceField;
+
+    /**
+     * Creates an empty ring file, replacing any file left over from a previous run. This needs to happen before
+     * diag_revealer is started with the path.
+     *
+     * @param ringFile The file to create.
+     * @param capacity The size of the data area in bytes. Must be a power of two.
+     * @throws IOException If the file could not be created.
+     */
+    public static void createRingFile(File ringFile, int capacity) throws IOException
+    {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+        {
+            throw new IllegalArgumentException("The ring capacity must be a power of two, but was " + capacity);
+        }
+
+        if (ringFile.exists() && !ringFile.delete())
+        {
+            throw new IOException("Could not delete the old ring file " + ringFile);
+        }
+
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(ringFile, "rw"))
+        {
+            randomAccessFile.setLength(HEADER_SIZE + (long) capacity);
+        }
+
+        // diag_revealer runs as root, but the file still has to be readable and writable by it if the app's files
+        // directory has a restrictive mode
+        if (!ringFile.setReadable(true, false) || !ringFile.setWritable(true, false))
+        {
+            Timber.w("Could not open up the permissions on the ring file %s", ringFile);
+        }
+    }
+
+    /**
+     * @param ringFile The ring file, which must have been created with {@link #createRingFile(File, int)}.
+     * @param doorbell The stream diag_revealer writes a byte to when this reader is waiting, or null to poll instead.
+     * @throws IOException If the ring file could not be mapped.
+     */
+    public SharedMemoryRingInputStream(File ringFile, InputStream doorbell) throws IOException
+    {
+        this.doorbell = doorbell;
+
+        file = new RandomAccessFile(ringFile, "rw");
+        try
+        {
+            header = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            header.order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e)
+        {
+            file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        final byte[] oneByte = new byte[1];
+        return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException
+    {
+        if (length == 0) return 0;
+
+        final long head = awaitData();
+        if (head == -1) return -1;
+
+        final int count = (int) Math.min(length, head - tail);
+        final int start = (int) (tail & (capacity - 1));
+        final int first = Math.min(count, capacity - start);
+
+        data.position(start);
+        data.get(bytes, offset, first);
+        if (first < count)
+        {
+            data.position(0);
+            data.get(bytes, offset + first, count - first);
+        }
+
+        // The bytes have to be copied out before diag_revealer sees the space as free
+        tail += count;
+        fullFence();
+        header.putLong(TAIL_OFFSET, tail);
+
+        return count;
+    }
+
+    @Override
+    public int available()
+    {
+        if (data == null || closed) return 0;
+        return (int) Math.min(Integer.MAX_VALUE, header.getLong(HEAD_OFFSET) - tail);
+    }
+
+    /**
+     * Tells diag_revealer that this reader has gone away, so that its next write fails and it exits. The magic is also
+     * cleared so that a new reader of the same file waits for a restarted diag_revealer to set up the header again. The
+     * doorbell stream is not closed here.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed) return;
+        closed = true;
+
+        header.putInt(CONSUMER_CLOSED_OFFSET, 1);
+        header.putInt(MAGIC_OFFSET, 0);
+        file.close();
+    }
+
+    /**
+     * @return The number of batches diag_revealer has dropped because the ring was full.
+     */
+    public long getDroppedBatches()
+    {
+        return header.getLong(DROPPED_BATCHES_OFFSET);
+    }
+
+    /**
+     * Blocks until there is data between the tail and head indices.
+     *
+     * @return The head index, or -1 if diag_revealer has closed the ring and everything has been read.
+     */
+    private long awaitData() throws IOException
+    {
+        int idleCount = 0;
+        long parkNanos = MIN_PARK_NANOS;
+
+        while (!closed && !endOfStream)
+        {
+            if (data == null && !readHeader())
+            {
+                LockSupport.parkNanos(MAX_PARK_NANOS);
+                continue;
+            }
+
+            final long head = header.getLong(HEAD_OFFSET);
+            if (head != tail)
+            {
+                fullFence(); // The head has to be read before the data it covers
+                return head;
+            }
+
+            if (header.getInt(PRODUCER_CLOSED_OFFSET) != 0)
+            {
+                // Check once more in case a last batch was published right before closing
+                fullFence();
+                if (header.getLong(HEAD_OFFSET) == tail) endOfStream = true;
+                continue;
+            }
+
+            if (idleCount++ < IDLE_SPINS)
+            {
+                Thread.yield();
+            } else if (doorbell != null)
+            {
+                waitForDoorbell();
+            } else
+            {
+                LockSupport.parkNanos(parkNanos);
+                parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+            }
+        }
+
+        if (closed) throw new IOException("The shared memory ring has been closed");
+        return -1;
+    }
+
+    /**
+     * Sets the waiting flag and then blocks on the doorbell, unless diag_revealer published something in between.
+     */
+    private void waitForDoorbell() throws IOException
+    {
+        header.putInt(CONSUMER_WAITING_OFFSET, 1);
+        // diag_revealer stores head and then loads the waiting flag, so with this store then load ordering at least
+        // one of the two sides sees the other's store and a wakeup cannot be lost
+        fullFence();
+        if (header.getLong(HEAD_OFFSET) != tail || header.getInt(PRODUCER_CLOSED_OFFSET) != 0)
+        {
+            header.putInt(CONSUMER_WAITING_OFFSET, 0);
+            return;
+        }
+
+        if (doorbell.read() == -1)
+        {
+            // diag_revealer has exited without marking the ring as closed, so read what is left and stop
+            header.putInt(CONSUMER_WAITING_OFFSET, 0);
+            fullFence();
+            if (header.getLong(HEAD_OFFSET) == tail) endOfStream = true;
+        }
+    }
+
+    /**
+     * @return True once diag_revealer has filled in the header, at which point the data area is set up.
+     */
+    private boolean readHeader() throws IOException
+    {
+        if (header.getInt(MAGIC_OFFSET) != MAGIC) return false;
+        fullFence();
+
+        final int version = header.getInt(VERSION_OFFSET);
+        final int ringCapacity = header.getInt(CAPACITY_OFFSET);
+        final int dataOffset = header.getInt(DATA_OFFSET_OFFSET);
+        if (version != VERSION || Integer.bitCount(ringCapacity) != 1 || dataOffset + (long) ringCapacity > header.capacity())
+        {
+            throw new IOException("Unsupported shared memory ring: version=" + version + ", capacity=" + ringCapacity);
+        }
+
+        capacity = ringCapacity;
+        tail = header.getLong(TAIL_OFFSET);
+        header.position(dataOffset);
+        data = header.slice();
+        header.position(0);
+        return true;
+    }
+
+    /**
+     * A store followed by a load of a volatile field, which ART compiles to a store-release followed by a load-acquire
+     * and which therefore keeps the plain accesses to the mapped header on either side of it in order. The buffer has
+     * no atomic accessors before API 33, and diag_revealer uses sequentially consistent atomics for its side.
+     */
+    private void fullFence()
+    {
+        fenceField = tail;
+        tail = fenceField;
+    }
+}
@@ -0,0 +1,178 @@
+package com.craxiom.networksurveyplus;
+
+import android.location.Location;
+
+import com.craxiom.networksurveyplus.messages.CraxiomConstants;
+import com.craxiom.networksurveyplus.messages.GsmtapConstants;
+import com.craxiom.networksurveyplus.messages.LteRrcSubtypes;
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.messages.UmtsRrcSubtypes;
+import com.craxiom.networksurveyplus.util.PcapUtils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link BroadcastDeduplicator}.
+ *
+ * @since 0.6.0
+ */
+public class BroadcastDeduplicatorTest
+{
+    private static final int SIB = LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_BCCH_DL_SCH_Message.ordinal();
+    private static final int MIB = LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_BCCH_BCH_Message.ordinal();
+    private static final byte[] SIB1 = {0x40, 0x4c, 0x28, 0x0d, 0x01, 0x22, 0x33};
+    private static final long REFRESH_MS = 60_000;
+
+    private final BroadcastDeduplicator deduplicator = new BroadcastDeduplicator(16, 120_000, REFRESH_MS);
+
+    @Test
+    public void testRepeatedSibIsOnlyForwardedOnce()
+    {
+        assertTrue(deduplicator.shouldForward(lte(SIB, SIB1, 5230, 101, 0), 0));
+        assertFalse(deduplicator.shouldForward(lte(SIB, SIB1, 5230, 101, 0), 80));
+        assertFalse(deduplicator.shouldForward(lte(SIB, SIB1, 5230, 101, 0), 160));
+        assertEquals(2, deduplicator.getSuppressedCount());
+    }
+
+    @Test
+    public void testChangedSibIsForwarded()
+    {
+        final byte[] changedSib1 = SIB1.clone();
+        changedSib1[6] = 0x34;
+
+        assertTrue(deduplicator.shouldForward(lte(SIB, SIB1, 5230, 101, 0), 0));
+        assertTrue(deduplicator.shouldForward(lte(SIB, changedSib1, 5230, 101, 0), 80));
+        assertFalse(deduplicator.shouldForward(lte(SIB, changedSib1, 5230, 101, 0), 160));
+        assertTrue(deduplicator.shouldForward(lte(SIB, SIB1, 5230, 101, 0), 240));
+    }
+
+    @Test
+    public void testUnchangedSibIsRefreshed()
+    {
+        assertTrue(deduplicator.shouldForward(lte(SIB, SIB1, 5230, 101, 0), 0));
+        assertFalse(deduplicator.shouldForward(lte(SIB, SIB1, 5230, 101, 0), REFRESH_MS - 1));
+        assertTrue(deduplicator.shouldForward(lte(SIB, SIB1, 5230, 101, 0), REFRESH_MS));
+        assertFalse(deduplicator.shouldForward(lte(SIB, SIB1, 5230, 101, 0), REFRESH_MS + 80));
+        assertEquals(1, deduplicator.getRefreshCount());
+    }
+
+    @Test
+    public void testEachCellIsTrackedOnItsOwn()
+    {
+        assertTrue(deduplicator.shouldForward(lte(SIB, SIB1, 5230, 101, 0), 0));
+        assertTrue(deduplicator.shouldForward(lte(SIB, SIB1, 5230, 102, 0), 0));
+        assertTrue(deduplicator.shouldForward(lte(SIB, SIB1, 2000, 101, 0), 0));
+        assertTrue(deduplicator.shouldForward(lte(SIB, SIB1, 5230, 101, 1), 0));
+        assertTrue(deduplicator.shouldForward(lte(MIB, SIB1, 5230, 101, 0), 0));
+        assertEquals(5, deduplicator.size());
+        assertEquals(0, deduplicator.getSuppressedCount());
+    }
+
+    @Test
+    public void testSystemFrameNumberIsIgnored()
+    {
+        // dl-Bandwidth n50, normal PHICH duration and resources of one sixth, then the 8 bit SFN
+        assertTrue(deduplicator.shouldForward(lte(MIB, new byte[]{0x68, (byte) 0xA4, 0x00}, 5230, 101, 0), 0));
+        assertFalse(deduplicator.shouldForward(lte(MIB, new byte[]{0x69, (byte) 0xA8, 0x00}, 5230, 101, 0), 40));
+
+        // A different bandwidth is a change
+        assertTrue(deduplicator.shouldForward(lte(MIB, new byte[]{0x48, (byte) 0xA8, 0x00}, 5230, 101, 0), 80));
+
+        final int bch = UmtsRrcSubtypes.GSMTAP_RRC_SUB_BCCH_BCH_Message.ordinal();
+        assertTrue(deduplicator.shouldForward(wcdma(bch, new byte[]{0x12, 0x31, 0x55}), 0));
+        assertFalse(deduplicator.shouldForward(wcdma(bch, new byte[]{0x54, (byte) 0xB1, 0x55}), 20));
+        assertTrue(deduplicator.shouldForward(wcdma(bch, new byte[]{0x54, 0x68, 0x55}), 40));
+    }
+
+    @Test
+    public void testWcdmaSibsAreDeduplicated()
+    {
+        final int sib3 = UmtsRrcSubtypes.GSMTAP_RRC_SUB_SysInfoType3.ordinal();
+        assertTrue(deduplicator.shouldForward(wcdma(sib3, SIB1), 0));
+        assertFalse(deduplicator.shouldForward(wcdma(sib3, SIB1), 20));
+    }
+
+    @Test
+    public void testDedicatedMessagesAreAlwaysForwarded()
+    {
+        final int dlDcch = LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_DL_DCCH_Message.ordinal();
+        final int pcch = LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_PCCH_Message.ordinal();
+        for (int i = 0; i < 3; i++)
+        {
+            assertTrue(deduplicator.shouldForward(lte(dlDcch, SIB1, 5230, 101, 0), i));
+            assertTrue(deduplicator.shouldForward(lte(pcch, SIB1, 5230, 101, 0), i));
+        }
+
+        final byte[] gsmRecord = PcapUtils.getGsmtapPcapRecord(GsmtapConstants.GSMTAP_TYPE_UM, SIB1, 1, 0, false, 0,
+                0, 0, null, 1);
+        assertTrue(deduplicator.shouldForward(new PcapMessage(gsmRecord, CraxiomConstants.GSM_SIGNALING_MESSAGE_TYPE, 1), 0));
+        assertTrue(deduplicator.shouldForward(new PcapMessage(gsmRecord, CraxiomConstants.GSM_SIGNALING_MESSAGE_TYPE, 1), 1));
+
+        assertTrue(deduplicator.shouldForward(new PcapMessage(new byte[10], CraxiomConstants.LTE_RRC_MESSAGE_TYPE), 0));
+        assertEquals(0, deduplicator.size());
+    }
+
+    @Test
+    public void testLocationDoesNotChangeTheKey()
+    {
+        final Location location = new FakeLocation();
+        location.setLatitude(41.4928645);
+        location.setLongitude(-90.1333759);
+        location.setAltitude(152.6591);
+
+        final byte[] withLocation = PcapUtils.getGsmtapPcapRecord(GsmtapConstants.GSMTAP_TYPE_LTE_RRC, SIB1, SIB,
+                5230, false, 101 << 16, 0, 0, location, 1);
+        assertTrue(deduplicator.shouldForward(lte(SIB, SIB1, 5230, 101, 0), 0));
+        assertFalse(deduplicator.shouldForward(new PcapMessage(withLocation, CraxiomConstants.LTE_RRC_MESSAGE_TYPE, SIB), 20));
+    }
+
+    @Test
+    public void testExpiredEntriesAreForgotten()
+    {
+        final BroadcastDeduplicator shortLived = new BroadcastDeduplicator(2, 1_000, REFRESH_MS);
+
+        assertTrue(shortLived.shouldForward(lte(SIB, SIB1, 5230, 101, 0), 0));
+        assertFalse(shortLived.shouldForward(lte(SIB, SIB1, 5230, 101, 0), 999));
+        assertTrue(shortLived.shouldForward(lte(SIB, SIB1, 5230, 101, 0), 1_999));
+
+        // Full of live entries, so it starts over
+        assertTrue(shortLived.shouldForward(lte(SIB, SIB1, 5230, 102, 0), 2_000));
+        assertTrue(shortLived.shouldForward(lte(SIB, SIB1, 5230, 103, 0), 2_000));
+        assertEquals(1, shortLived.size());
+        assertTrue(shortLived.shouldForward(lte(SIB, SIB1, 5230, 101, 0), 2_000));
+
+        // Only the expired entries are purged
+        assertFalse(shortLived.shouldForward(lte(SIB, SIB1, 5230, 103, 0), 2_500));
+        assertTrue(shortLived.shouldForward(lte(SIB, SIB1, 5230, 104, 0), 3_100));
+        assertEquals(2, shortLived.size());
+        assertFalse(shortLived.shouldForward(lte(SIB, SIB1, 5230, 103, 0), 3_200));
+        assertTrue(shortLived.shouldForward(lte(SIB, SIB1, 5230, 101, 0), 3_200));
+    }
+
+    @Test
+    public void testClearForwardsTheNextCopy()
+    {
+        assertTrue(deduplicator.shouldForward(lte(SIB, SIB1, 5230, 101, 0), 0));
+        deduplicator.clear();
+        assertEquals(0, deduplicator.size());
+        assertTrue(deduplicator.shouldForward(lte(SIB, SIB1, 5230, 101, 0), 20));
+    }
+
+    private static PcapMessage lte(int subtype, byte[] payload, int earfcn, int pci, int simId)
+    {
+        final byte[] record = PcapUtils.getGsmtapPcapRecord(GsmtapConstants.GSMTAP_TYPE_LTE_RRC, payload, subtype,
+                earfcn, false, (pci << 16) | 312, 0, simId, null, 1);
+        return new PcapMessage(record, CraxiomConstants.LTE_RRC_MESSAGE_TYPE, subtype);
+    }
+
+    private static PcapMessage wcdma(int subtype, byte[] payload)
+    {
+        final byte[] record = PcapUtils.getGsmtapPcapRecord(GsmtapConstants.GSMTAP_TYPE_UMTS_RRC, payload, subtype,
+                10700, false, 0, 0, 0, null, 1);
+        return new PcapMessage(record, CraxiomConstants.WCDMA_RRC_MESSAGE_TYPE, subtype);
+    }
+}
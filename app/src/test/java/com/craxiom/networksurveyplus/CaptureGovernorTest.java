@@ -0,0 +1,167 @@
+package com.craxiom.networksurveyplus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link CaptureGovernor}, driven with simulated inputs.
+ *
+ * @since 0.6.0
+ */
+public class CaptureGovernorTest
+{
+    private static final long INTERVAL_MS = 10_000;
+    private static final long HOLD_MS = 60_000;
+
+    private static final CaptureGovernor.Input CALM = input(50, 0, 80, false, CaptureGovernor.THERMAL_STATUS_NONE);
+    private static final CaptureGovernor.Input WARM = input(50, 0, 80, false, CaptureGovernor.THERMAL_STATUS_MODERATE);
+    private static final CaptureGovernor.Input HOT = input(50, 0, 80, false, CaptureGovernor.THERMAL_STATUS_SEVERE);
+    private static final CaptureGovernor.Input BUSY = input(500, 0, 80, false, CaptureGovernor.THERMAL_STATUS_NONE);
+
+    private final CaptureGovernor governor = new CaptureGovernor(2, HOLD_MS);
+    private long nowMs = 0;
+
+    @Test
+    public void testCalmInputsStayNormal()
+    {
+        assertEquals(CaptureGovernor.Level.NORMAL, run(CALM, 100));
+    }
+
+    @Test
+    public void testASingleSpikeIsIgnored()
+    {
+        assertEquals(CaptureGovernor.Level.NORMAL, step(BUSY));
+        assertEquals(CaptureGovernor.Level.NORMAL, step(CALM));
+        assertEquals(CaptureGovernor.Level.NORMAL, step(BUSY));
+        assertEquals(CaptureGovernor.Level.NORMAL, step(CALM));
+    }
+
+    @Test
+    public void testSustainedLoadStepsUp()
+    {
+        assertEquals(CaptureGovernor.Level.NORMAL, step(BUSY));
+        assertEquals(CaptureGovernor.Level.REDUCED, step(BUSY));
+    }
+
+    @Test
+    public void testSevereHeatJumpsStraightToMinimal()
+    {
+        assertEquals(CaptureGovernor.Level.NORMAL, step(HOT));
+        assertEquals(CaptureGovernor.Level.MINIMAL, step(HOT));
+        assertFalse(governor.getLevel().isLiveMqttPublishing());
+    }
+
+    @Test
+    public void testRecoveryNeedsTheHoldTimeAndGoesOneLevelAtATime()
+    {
+        run(HOT, 2);
+        assertEquals(CaptureGovernor.Level.MINIMAL, governor.getLevel());
+
+        // Still moderately warm: good enough to leave MINIMAL, but not REDUCED
+        assertEquals(CaptureGovernor.Level.MINIMAL, run(WARM, (int) (HOLD_MS / INTERVAL_MS)));
+        assertEquals(CaptureGovernor.Level.REDUCED, step(WARM));
+        assertEquals(CaptureGovernor.Level.REDUCED, run(WARM, 100));
+
+        // Cooled down: another full hold time before going back to NORMAL
+        assertEquals(CaptureGovernor.Level.REDUCED, run(CALM, (int) (HOLD_MS / INTERVAL_MS)));
+        assertEquals(CaptureGovernor.Level.NORMAL, step(CALM));
+    }
+
+    @Test
+    public void testRecoveryHoldRestartsWhenThePressureComesBack()
+    {
+        run(BUSY, 2);
+        run(CALM, (int) (HOLD_MS / INTERVAL_MS) - 1);
+        step(WARM);
+        assertEquals(CaptureGovernor.Level.REDUCED, run(CALM, (int) (HOLD_MS / INTERVAL_MS)));
+        assertEquals(CaptureGovernor.Level.NORMAL, step(CALM));
+    }
+
+    @Test
+    public void testBatteryThresholdsHaveHysteresis()
+    {
+        assertEquals(CaptureGovernor.Level.REDUCED, run(input(50, 0, 20, false, 0), 2));
+
+        // Above the level that caused the step up, but below the recovery level
+        assertEquals(CaptureGovernor.Level.REDUCED, run(input(50, 0, 25, false, 0), 100));
+
+        // Plugging in lifts the battery limits
+        run(input(50, 0, 25, true, 0), (int) (HOLD_MS / INTERVAL_MS) + 1);
+        assertEquals(CaptureGovernor.Level.NORMAL, governor.getLevel());
+
+        assertEquals(CaptureGovernor.Level.MINIMAL, run(input(50, 0, 8, false, 0), 2));
+    }
+
+    @Test
+    public void testUnknownBatteryIsIgnored()
+    {
+        assertEquals(CaptureGovernor.Level.NORMAL, run(input(50, 0, CaptureGovernor.BATTERY_UNKNOWN, false, 0), 10));
+    }
+
+    @Test
+    public void testOverflowDropsBlockRecovery()
+    {
+        assertEquals(CaptureGovernor.Level.REDUCED, run(input(50, 1, 80, false, 0), 2));
+        assertEquals(CaptureGovernor.Level.REDUCED, run(input(50, 1, 80, false, 0), 100));
+        assertEquals(CaptureGovernor.Level.MINIMAL, run(input(50, 20, 80, false, 0), 2));
+    }
+
+    @Test
+    public void testQuickRelapseDoublesTheHoldTime()
+    {
+        final int holdSteps = (int) (HOLD_MS / INTERVAL_MS);
+
+        run(BUSY, 2);
+        run(CALM, holdSteps + 1);
+        assertEquals(CaptureGovernor.Level.NORMAL, governor.getLevel());
+
+        // The load comes right back once the full capture is on again
+        assertEquals(CaptureGovernor.Level.REDUCED, run(BUSY, 2));
+        assertEquals(CaptureGovernor.Level.REDUCED, run(CALM, holdSteps + 1));
+        assertEquals(CaptureGovernor.Level.NORMAL, run(CALM, holdSteps));
+    }
+
+    @Test
+    public void testResetGoesBackToNormal()
+    {
+        run(HOT, 2);
+        governor.reset();
+        assertEquals(CaptureGovernor.Level.NORMAL, governor.getLevel());
+        assertEquals(CaptureGovernor.Level.NORMAL, step(HOT));
+    }
+
+    @Test
+    public void testLevelsNeverCaptureMoreThanWasPicked()
+    {
+        assertEquals(CaptureProfile.FULL, CaptureGovernor.Level.NORMAL.limit(CaptureProfile.FULL));
+        assertEquals(CaptureProfile.LIGHT, CaptureGovernor.Level.NORMAL.limit(CaptureProfile.LIGHT));
+        assertEquals(CaptureProfile.LIGHT, CaptureGovernor.Level.REDUCED.limit(CaptureProfile.FULL));
+        assertEquals(CaptureProfile.LIGHT, CaptureGovernor.Level.MINIMAL.limit(CaptureProfile.LIGHT));
+        assertTrue(CaptureGovernor.Level.REDUCED.isLiveMqttPublishing());
+    }
+
+    private CaptureGovernor.Level step(CaptureGovernor.Input input)
+    {
+        nowMs += INTERVAL_MS;
+        return governor.evaluate(input, nowMs);
+    }
+
+    private CaptureGovernor.Level run(CaptureGovernor.Input input, int steps)
+    {
+        CaptureGovernor.Level level = governor.getLevel();
+        for (int i = 0; i < steps; i++)
+        {
+            level = step(input);
+        }
+        return level;
+    }
+
+    private static CaptureGovernor.Input input(double framesPerSecond, double overflowDropsPerSecond, int batteryPercent,
+                                               boolean charging, int thermalStatus)
+    {
+        return new CaptureGovernor.Input(framesPerSecond, overflowDropsPerSecond, 0, batteryPercent, charging, thermalStatus);
+    }
+}
@@ -0,0 +1,171 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static com.craxiom.networksurveyplus.TestRecords.ATTACH_ACCEPT;
+import static com.craxiom.networksurveyplus.TestRecords.DL_DCCH;
+import static com.craxiom.networksurveyplus.TestRecords.RRC_CONNECTION_RELEASE;
+import static com.craxiom.networksurveyplus.TestRecords.RRC_RECONFIGURATION;
+import static com.craxiom.networksurveyplus.TestRecords.lteNas;
+import static com.craxiom.networksurveyplus.TestRecords.lteRrc;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link DashcamRecorder}.
+ *
+ * @since 0.6.0
+ */
+public class DashcamRecorderTest
+{
+    private final PipelineMetrics metrics = new PipelineMetrics();
+    private File outputDirectory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        outputDirectory = Files.createTempDirectory("dashcam").toFile();
+    }
+
+    @After
+    public void tearDown()
+    {
+        final File[] files = outputDirectory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        outputDirectory.delete();
+    }
+
+    @Test
+    public void testNothingIsWrittenWithoutATrigger()
+    {
+        final DashcamRecorder recorder = createRecorder(60_000, 1_000_000, 10_000);
+
+        for (int i = 0; i < 100; i++)
+        {
+            recorder.onPcapMessage(lteRrc(DL_DCCH, RRC_RECONFIGURATION), i * 100);
+        }
+
+        assertFalse(recorder.isEventInProgress());
+        assertEquals(0, outputDirectory.list().length);
+        assertEquals(0, metrics.snapshot().getByteCount(PipelineMetrics.ByteStage.PCAP_FILE_WRITTEN));
+    }
+
+    @Test
+    public void testEventHasTheRecordsFromBeforeAndAfterTheTrigger() throws IOException
+    {
+        final DashcamRecorder recorder = createRecorder(60_000, 1_000_000, 10_000);
+
+        final PcapMessage before = lteRrc(DL_DCCH, RRC_RECONFIGURATION);
+        final PcapMessage trigger = lteRrc(DL_DCCH, RRC_CONNECTION_RELEASE);
+        final PcapMessage after = lteNas(ATTACH_ACCEPT);
+
+        recorder.onPcapMessage(before, 0);
+        recorder.onPcapMessage(trigger, 1_000);
+        assertTrue(recorder.isEventInProgress());
+        recorder.onPcapMessage(after, 5_000);
+        recorder.onPcapMessage(after, 11_000);
+        recorder.onPcapMessage(lteRrc(DL_DCCH, RRC_RECONFIGURATION), 11_001);
+        assertFalse(recorder.isEventInProgress());
+        recorder.close();
+
+        final File[] files = outputDirectory.listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().startsWith(Constants.DASHCAM_FILE_NAME_PREFIX));
+
+        final byte[] expected = concat(QcdmPcapWriter.PCAP_FILE_GLOBAL_HEADER, before.getPcapRecord(),
+                trigger.getPcapRecord(), after.getPcapRecord(), after.getPcapRecord());
+        assertArrayEquals(expected, Files.readAllBytes(files[0].toPath()));
+        assertEquals(expected.length - QcdmPcapWriter.PCAP_FILE_GLOBAL_HEADER.length,
+                metrics.snapshot().getByteCount(PipelineMetrics.ByteStage.PCAP_FILE_WRITTEN));
+    }
+
+    @Test
+    public void testAnotherTriggerExtendsTheEvent()
+    {
+        final DashcamRecorder recorder = createRecorder(60_000, 1_000_000, 10_000);
+
+        recorder.onPcapMessage(lteRrc(DL_DCCH, RRC_CONNECTION_RELEASE), 0);
+        recorder.onPcapMessage(lteRrc(DL_DCCH, RRC_CONNECTION_RELEASE), 8_000);
+        recorder.onPcapMessage(lteRrc(DL_DCCH, RRC_RECONFIGURATION), 15_000);
+        assertTrue(recorder.isEventInProgress());
+        recorder.onPcapMessage(lteRrc(DL_DCCH, RRC_RECONFIGURATION), 18_001);
+        assertFalse(recorder.isEventInProgress());
+
+        // A new trigger after the event ended starts a second file
+        recorder.onPcapMessage(lteRrc(DL_DCCH, RRC_CONNECTION_RELEASE), 20_000);
+        recorder.close();
+
+        assertEquals(2, recorder.getEventCount());
+        assertEquals(2, outputDirectory.list().length);
+    }
+
+    @Test
+    public void testBufferIsLimitedByTimeAndSize() throws IOException
+    {
+        final PcapMessage message = lteRrc(DL_DCCH, RRC_RECONFIGURATION);
+        final int recordLength = message.getPcapRecord().length;
+
+        final DashcamRecorder timeLimited = createRecorder(1_000, 1_000_000, 0);
+        for (int i = 0; i <= 20; i++)
+        {
+            timeLimited.onPcapMessage(message, i * 100);
+        }
+        assertEquals(11 * recordLength, timeLimited.getBufferedBytes());
+
+        final DashcamRecorder sizeLimited = createRecorder(60_000, 5 * recordLength, 0);
+        for (int i = 0; i < 20; i++)
+        {
+            sizeLimited.onPcapMessage(message, i);
+        }
+        assertEquals(5 * recordLength, sizeLimited.getBufferedBytes());
+
+        sizeLimited.onPcapMessage(lteRrc(DL_DCCH, RRC_CONNECTION_RELEASE), 20);
+        sizeLimited.close();
+
+        final File[] files = outputDirectory.listFiles();
+        assertEquals(1, files.length);
+        assertEquals(QcdmPcapWriter.PCAP_FILE_GLOBAL_HEADER.length + 5 * recordLength, files[0].length());
+    }
+
+    private DashcamRecorder createRecorder(long windowMs, long maxBufferBytes, long postTriggerMs)
+    {
+        return new DashcamRecorder(RecordRuleSet.compile("tech=lte_rrc,subtype=1,bytes=28/f8@0"), windowMs,
+                maxBufferBytes, postTriggerMs, outputDirectory, metrics);
+    }
+
+    private static byte[] concat(byte[]... arrays)
+    {
+        int length = 0;
+        for (byte[] array : arrays)
+        {
+            length += array.length;
+        }
+
+        final byte[] result = Arrays.copyOf(arrays[0], length);
+        int offset = arrays[0].length;
+        for (int i = 1; i < arrays.length; i++)
+        {
+            System.arraycopy(arrays[i], 0, result, offset, arrays[i].length);
+            offset += arrays[i].length;
+        }
+        return result;
+    }
+}
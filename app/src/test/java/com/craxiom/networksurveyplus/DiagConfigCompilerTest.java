@@ -0,0 +1,218 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.QcdmConstants;
+import com.craxiom.networksurveyplus.util.DiagConfigCompiler;
+import com.craxiom.networksurveyplus.util.ParserUtils;
+import com.google.common.io.ByteStreams;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link DiagConfigCompiler}.
+ *
+ * @since 0.6.0
+ */
+public class DiagConfigCompilerTest
+{
+    /**
+     * The number of fixed commands at the start of every config file.
+     */
+    private static final int PREAMBLE_COMMAND_COUNT = 12;
+
+    /**
+     * The log codes enabled by the ns_plus_diag.cfg file that used to be shipped in the app.
+     */
+    private static final int[] SHIPPED_LOG_CODES = {
+            0xB010, 0xB011, 0xB012, 0xB013, 0xB014, 0xB015, 0xB016, 0xB017, 0xB018, 0xB019, 0xB01A, 0xB01B, 0xB01C,
+            0xB01D, 0xB01E, 0xB01F, 0xB020, 0xB021, 0xB022, 0xB023, 0xB024, 0xB025, 0xB026, 0xB027, 0xB028, 0xB029,
+            0xB030, 0xB031, 0xB032, 0xB033,
+            QcdmConstants.LOG_LTE_RRC_OTA_MSG_LOG_C, QcdmConstants.LOG_LTE_RRC_MIB_MSG, 0xB0C2,
+            QcdmConstants.LOG_LTE_NAS_ESM_SEC_OTA_IN_MSG, QcdmConstants.LOG_LTE_NAS_ESM_SEC_OTA_OUT_MSG,
+            QcdmConstants.LOG_LTE_NAS_ESM_OTA_IN_MSG, QcdmConstants.LOG_LTE_NAS_ESM_OTA_OUT_MSG,
+            QcdmConstants.LOG_LTE_NAS_EMM_SEC_OTA_IN_MSG, QcdmConstants.LOG_LTE_NAS_EMM_SEC_OTA_OUT_MSG,
+            QcdmConstants.LOG_LTE_NAS_EMM_OTA_IN_MSG, QcdmConstants.LOG_LTE_NAS_EMM_OTA_OUT_MSG,
+            QcdmConstants.WCDMA_SEARCH_CELL_RESELECTION_RANK, QcdmConstants.WCDMA_RRC_STATES,
+            QcdmConstants.WCDMA_CELL_ID, QcdmConstants.WCDMA_SIB, QcdmConstants.WCDMA_SIGNALING_MESSAGES,
+            QcdmConstants.UMTS_NAS_OTA, QcdmConstants.UMTS_NAS_OTA_DSDS,
+            QcdmConstants.GSM_RR_SIGNALING_MESSAGES, 0x5134};
+
+    /**
+     * The diag event IDs enabled by the ns_plus_diag.cfg file that used to be shipped in the app.
+     */
+    private static final int[] SHIPPED_EVENTS = {
+            1605, 1606, 1607, 1608, 1609, 1610, 1611, 1612, 1613, 1614, 1615, 1616, 1617, 1618, 1619,
+            1807, 1808, 1888, 1889, 1890};
+
+    @Test
+    public void testReproducesTheShippedConfig() throws IOException
+    {
+        final byte[] shippedConfig;
+        try (final InputStream inputStream = getClass().getResourceAsStream("/ns_plus_diag.cfg"))
+        {
+            assertNotNull(inputStream);
+            shippedConfig = ByteStreams.toByteArray(inputStream);
+        }
+
+        final byte[] compiledConfig = new DiagConfigCompiler().addLogCodes(SHIPPED_LOG_CODES).addEvents(SHIPPED_EVENTS).compile();
+
+        final List<String> shippedCommands = splitLikeDiagRevealer(shippedConfig);
+        final List<String> compiledCommands = splitLikeDiagRevealer(compiledConfig);
+
+        // The preamble has to come first and in order
+        assertEquals(shippedCommands.subList(0, PREAMBLE_COMMAND_COUNT), compiledCommands.subList(0, PREAMBLE_COMMAND_COUNT));
+
+        // The masks for different equipment IDs and the event settings do not depend on each other, and the shipped
+        // file did not send them in any particular order
+        final List<String> shippedMasks = new ArrayList<>(shippedCommands.subList(PREAMBLE_COMMAND_COUNT, shippedCommands.size()));
+        final List<String> compiledMasks = new ArrayList<>(compiledCommands.subList(PREAMBLE_COMMAND_COUNT, compiledCommands.size()));
+        shippedMasks.sort(null);
+        compiledMasks.sort(null);
+        assertEquals(shippedMasks, compiledMasks);
+    }
+
+    @Test
+    public void testEveryFrameHasAValidCrc()
+    {
+        final byte[] config = new DiagConfigCompiler().addLogCodes(SHIPPED_LOG_CODES).addEvents(SHIPPED_EVENTS).compile();
+        final ByteArrayInputStream inputStream = new ByteArrayInputStream(config);
+
+        int frameCount = 0;
+        byte[] frame;
+        while ((frame = ParserUtils.getNextDiagMessageBytes(inputStream)) != null)
+        {
+            final int lengthWithoutCrc = frame.length - 2;
+            assertEquals(ParserUtils.getShort(frame, lengthWithoutCrc, ByteOrder.LITTLE_ENDIAN),
+                    ParserUtils.calculateCrc16X25(frame, lengthWithoutCrc));
+            frameCount++;
+        }
+
+        // The preamble, the event report and event mask, and the four equipment IDs
+        assertEquals(PREAMBLE_COMMAND_COUNT + 2 + 4, frameCount);
+    }
+
+    @Test
+    public void testOnlyTheRequestedCodesAreEnabled()
+    {
+        final byte[] config = new DiagConfigCompiler()
+                .addLogCodes(QcdmConstants.GSM_RR_SIGNALING_MESSAGES, QcdmConstants.UMTS_NAS_OTA)
+                .compile();
+        final List<byte[]> frames = readFrames(config);
+
+        // Event reporting is turned off when no events are requested
+        final byte[] eventReport = frames.get(PREAMBLE_COMMAND_COUNT);
+        assertEquals(0x60, eventReport[0]);
+        assertEquals(0, eventReport[1]);
+
+        final byte[] gsmMask = frames.get(PREAMBLE_COMMAND_COUNT + 1);
+        assertEquals(5, ParserUtils.getInteger(gsmMask, 8, ByteOrder.LITTLE_ENDIAN));
+        assertEquals(0x12F, ParserUtils.getInteger(gsmMask, 12, ByteOrder.LITTLE_ENDIAN));
+        assertEquals(16 + 0x12F / 8 + 1 + 2, gsmMask.length);
+        assertEquals(1, countSetBits(gsmMask, 16, gsmMask.length - 2));
+        assertTrue((gsmMask[16 + 0x12F / 8] & (1 << (0x12F % 8))) != 0);
+
+        final byte[] umtsMask = frames.get(PREAMBLE_COMMAND_COUNT + 2);
+        assertEquals(7, ParserUtils.getInteger(umtsMask, 8, ByteOrder.LITTLE_ENDIAN));
+        assertEquals(1, countSetBits(umtsMask, 16, umtsMask.length - 2));
+    }
+
+    @Test
+    public void testMaskUpdateDisablesLoggingFirst()
+    {
+        final DiagConfigCompiler compiler = new DiagConfigCompiler().addLogCodes(CaptureProfile.LIGHT.getLogTypes());
+        final List<byte[]> configFrames = readFrames(compiler.compile());
+        final List<byte[]> updateFrames = readFrames(compiler.compileMaskUpdate());
+
+        // The disable command, then the same event and log mask commands as the config file, without the preamble
+        final byte[] disable = updateFrames.get(0);
+        assertEquals(8 + 2, disable.length);
+        assertEquals(0x73, ParserUtils.getInteger(disable, 0, ByteOrder.LITTLE_ENDIAN));
+        assertEquals(0, ParserUtils.getInteger(disable, 4, ByteOrder.LITTLE_ENDIAN));
+
+        assertEquals(configFrames.size() - PREAMBLE_COMMAND_COUNT, updateFrames.size() - 1);
+        for (int i = 1; i < updateFrames.size(); i++)
+        {
+            assertEquals(Arrays.toString(configFrames.get(PREAMBLE_COMMAND_COUNT + i - 1)), Arrays.toString(updateFrames.get(i)));
+        }
+    }
+
+    @Test
+    public void testEscapesFrameDelimiters()
+    {
+        // 0x7E and 0x7D both have to be escaped inside of a frame
+        final byte[] frame = ParserUtils.encodeDiagFrame(new byte[]{0x7E, 0x01, 0x7D});
+        final byte[] decoded = ParserUtils.getNextDiagMessageBytes(new ByteArrayInputStream(frame));
+
+        assertEquals(0x7E, frame[frame.length - 1]);
+        assertEquals(1, countByte(frame, (byte) 0x7E));
+        assertEquals(Arrays.toString(new byte[]{0x7E, 0x01, 0x7D}), Arrays.toString(Arrays.copyOf(decoded, 3)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsEventsOutsideOfTheMask()
+    {
+        new DiagConfigCompiler().addEvents(0x840);
+    }
+
+    /**
+     * Splits the config file the same way diag_revealer does before writing each command to /dev/diag: after each
+     * 0x7e, skipping anything shorter than 3 bytes.
+     */
+    private static List<String> splitLikeDiagRevealer(byte[] config)
+    {
+        final List<String> commands = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < config.length; i++)
+        {
+            if (config[i] != 0x7E) continue;
+
+            final int length = i + 1 - start;
+            if (length >= 3) commands.add(ParserUtils.convertBytesToHexString(config, start, length));
+            start = i + 1;
+        }
+        return commands;
+    }
+
+    private static List<byte[]> readFrames(byte[] config)
+    {
+        final ByteArrayInputStream inputStream = new ByteArrayInputStream(config);
+        final List<byte[]> frames = new ArrayList<>();
+        byte[] frame;
+        while ((frame = ParserUtils.getNextDiagMessageBytes(inputStream)) != null)
+        {
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    private static int countSetBits(byte[] bytes, int from, int to)
+    {
+        int count = 0;
+        for (int i = from; i < to; i++)
+        {
+            count += Integer.bitCount(bytes[i] & 0xFF);
+        }
+        return count;
+    }
+
+    private static int countByte(byte[] bytes, byte value)
+    {
+        int count = 0;
+        for (byte b : bytes)
+        {
+            if (b == value) count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,80 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.util.DiagConfigCompiler;
+import com.craxiom.networksurveyplus.util.DiagControlChannel;
+import com.craxiom.networksurveyplus.util.ParserUtils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link DiagControlChannel}.
+ *
+ * @since 0.6.0
+ */
+public class DiagControlChannelTest
+{
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testMessageFormat() throws IOException
+    {
+        final File controlFile = temporaryFolder.newFile("diag_revealer_control");
+        final byte[] maskUpdate = new DiagConfigCompiler().addLogCodes(CaptureProfile.FULL.getLogTypes()).compileMaskUpdate();
+
+        final DiagControlChannel channel = new DiagControlChannel(controlFile);
+        channel.send(maskUpdate);
+        channel.send(new byte[]{0x1d, 0x1c, (byte) 0x93, 0x7e});
+
+        final byte[] written = Files.readAllBytes(controlFile.toPath());
+        assertEquals(8 + maskUpdate.length + 8 + 4, written.length);
+
+        // The magic is "1CSN" on the wire, the same as CONTROL_MAGIC in control_channel.h
+        assertEquals(0x4E534331, ParserUtils.getInteger(written, 0, ByteOrder.LITTLE_ENDIAN));
+        assertEquals("1CSN", new String(written, 0, 4));
+        assertEquals(maskUpdate.length, ParserUtils.getInteger(written, 4, ByteOrder.LITTLE_ENDIAN));
+        assertEquals(Arrays.toString(maskUpdate), Arrays.toString(Arrays.copyOfRange(written, 8, 8 + maskUpdate.length)));
+
+        final int second = 8 + maskUpdate.length;
+        assertEquals(0x4E534331, ParserUtils.getInteger(written, second, ByteOrder.LITTLE_ENDIAN));
+        assertEquals(4, ParserUtils.getInteger(written, second + 4, ByteOrder.LITTLE_ENDIAN));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsAnEmptyMessage() throws IOException
+    {
+        new DiagControlChannel(temporaryFolder.newFile()).send(new byte[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsAMessageDiagRevealerCannotBuffer() throws IOException
+    {
+        new DiagControlChannel(temporaryFolder.newFile()).send(new byte[65537]);
+    }
+
+    @Test
+    public void testCaptureProfiles()
+    {
+        assertEquals(CaptureProfile.LIGHT, CaptureProfile.fromPreferenceValue("light"));
+        assertEquals(CaptureProfile.FULL, CaptureProfile.fromPreferenceValue("FULL"));
+        assertEquals(CaptureProfile.FULL, CaptureProfile.fromPreferenceValue("unknown"));
+        assertEquals(CaptureProfile.FULL, CaptureProfile.fromPreferenceValue(null));
+
+        // The light profile has to be a subset of the full one, so the native log filter never drops its messages
+        for (int logType : CaptureProfile.LIGHT.getLogTypes())
+        {
+            assertTrue(Arrays.stream(CaptureProfile.FULL.getLogTypes()).anyMatch(fullType -> fullType == logType));
+        }
+    }
+}
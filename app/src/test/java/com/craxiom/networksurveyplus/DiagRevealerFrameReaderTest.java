@@ -0,0 +1,227 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.DiagRevealerMessage;
+import com.craxiom.networksurveyplus.messages.DiagRevealerMessageHeader;
+import com.craxiom.networksurveyplus.messages.QcdmConstants;
+import com.craxiom.networksurveyplus.messages.QcdmMessage;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+import com.craxiom.networksurveyplus.util.DiagRevealerFrameReader;
+import com.craxiom.networksurveyplus.util.ParserUtils;
+import com.craxiom.networksurveyplus.util.PcapUtils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link DiagRevealerFrameReader} and both versions of the diag_revealer FIFO framing.
+ *
+ * @since 0.6.0
+ */
+public class DiagRevealerFrameReaderTest
+{
+    private static final long BOOT_TIME_TO_EPOCH_NANOS = 1_600_000_000_000_000_000L;
+
+    @Test
+    public void testV1TimestampIsParsedAsDouble() throws IOException
+    {
+        final byte[] payload = {1, 2, 3, 4};
+        final ByteBuffer buffer = littleEndian(12 + payload.length);
+        buffer.putShort((short) 1).putShort((short) (8 + payload.length)).putDouble(1_612_345_678.25).put(payload);
+
+        final DiagRevealerMessage message = reader(buffer.array(), null).next();
+
+        assertEquals(1_612_345_678_250_000L, message.getTimestampMicros());
+        assertArrayEquals(payload, message.payload);
+    }
+
+    @Test
+    public void testV1LengthAbove32KbIsUnsigned() throws IOException
+    {
+        final byte[] payload = new byte[40_000];
+        payload[payload.length - 1] = 0x7e;
+        final ByteBuffer buffer = littleEndian(12 + payload.length);
+        buffer.putShort((short) 1).putShort((short) (8 + payload.length)).putDouble(1.0).put(payload);
+
+        final DiagRevealerMessage message = reader(buffer.array(), null).next();
+
+        assertEquals(40_000, message.payload.length);
+    }
+
+    @Test
+    public void testV2Framing() throws IOException
+    {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeFramingAnnouncement(stream);
+        final byte[] bigPayload = new byte[100_000];
+        bigPayload[0] = 0x42;
+        writeV2(stream, 1, 0, 5_000_000_123L, bigPayload);
+        writeV2(stream, 3, 1, 5_000_000_456L, "/data/0.mi2log".getBytes());
+        writeV2(stream, 1, 2, 6_000_000_000L, new byte[]{9});
+
+        final DiagRevealerFrameReader reader = reader(stream.toByteArray(), null);
+
+        final DiagRevealerMessage first = reader.next();
+        assertEquals(DiagRevealerMessage.FRAMING_V2, reader.getFramingVersion());
+        assertEquals(100_000, first.payload.length);
+        assertEquals(0x42, first.payload[0]);
+        assertEquals((BOOT_TIME_TO_EPOCH_NANOS + 5_000_000_123L) / 1000, first.getTimestampMicros());
+
+        final DiagRevealerMessage fileMessage = reader.next();
+        assertEquals(3, fileMessage.header.messageType);
+        assertEquals(1, fileMessage.header.sequenceNumber);
+
+        final DiagRevealerMessage last = reader.next();
+        assertArrayEquals(new byte[]{9}, last.payload);
+        assertEquals((BOOT_TIME_TO_EPOCH_NANOS + 6_000_000_000L) / 1000, last.getTimestampMicros());
+
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void testSequenceGapsAreCounted() throws IOException
+    {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeFramingAnnouncement(stream);
+        writeV2(stream, 1, 0, 1, new byte[]{1});
+        writeV2(stream, 1, 1, 2, new byte[]{2});
+        writeV2(stream, 1, 5, 3, new byte[]{3});
+        writeV2(stream, 1, 6, 4, new byte[]{4});
+
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final DiagRevealerFrameReader reader = reader(stream.toByteArray(), metrics);
+        for (int i = 0; i < 4; i++)
+        {
+            reader.next();
+        }
+
+        assertEquals(3, metrics.getDropCount(PipelineMetrics.DropReason.SEQUENCE_GAP));
+    }
+
+    @Test
+    public void testSequenceNumberWrapsAround() throws IOException
+    {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeFramingAnnouncement(stream);
+        writeV2(stream, 1, 0xFFFFFFFEL, 1, new byte[]{1});
+        writeV2(stream, 1, 0xFFFFFFFFL, 2, new byte[]{2});
+        writeV2(stream, 1, 0, 3, new byte[]{3});
+
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final DiagRevealerFrameReader reader = reader(stream.toByteArray(), metrics);
+        for (int i = 0; i < 3; i++)
+        {
+            reader.next();
+        }
+
+        assertEquals(0, metrics.getDropCount(PipelineMetrics.DropReason.SEQUENCE_GAP));
+    }
+
+    @Test
+    public void testMessagesSplitAcrossReads() throws IOException
+    {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeFramingAnnouncement(stream);
+        writeV2(stream, 1, 0, 1, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+
+        // Hand out at most 3 bytes per read, like a pipe where the writer has not finished the message yet
+        final InputStream trickle = new ByteArrayInputStream(stream.toByteArray())
+        {
+            @Override
+            public synchronized int read(byte[] b, int off, int len)
+            {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+
+        final DiagRevealerMessage message = new DiagRevealerFrameReader(trickle, null, 0).next();
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, message.payload);
+    }
+
+    @Test
+    public void testPcapRecordUsesCaptureTime()
+    {
+        final long captureTimeMicros = 1_612_345_678_123_456L;
+        final byte[] record = PcapUtils.getGsmtapPcapRecord(1, new byte[]{1, 2}, 0, 0, false, 0, 0, 0, null, captureTimeMicros);
+
+        final ByteBuffer buffer = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(1_612_345_678, buffer.getInt(0));
+        assertEquals(123_456, buffer.getInt(4));
+    }
+
+    @Test
+    public void testDeframedMessageIsNotUnescaped() throws IOException
+    {
+        // A QCDM log message that contains the HDLC flag and escape bytes, which must be passed through untouched
+        final byte[] qcdmBytes = {0x10, 0x00, 0x0e, 0x00, 0x0e, 0x00, (byte) 0xc0, (byte) 0xb0, 0, 0, 0, 0, 0, 0, 0, 0, 0x7d, 0x5e, 0x7e};
+        final ByteBuffer payload = littleEndian(4 + qcdmBytes.length);
+        payload.putInt(1).put(qcdmBytes);
+
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeFramingAnnouncement(stream);
+        writeV2(stream, 1, DiagRevealerMessageHeader.FLAG_DEFRAMED, 0, 2_000_000_000L, payload.array());
+
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final DiagRevealerMessage message = reader(stream.toByteArray(), metrics).next();
+        final List<QcdmMessage> qcdmMessages = new ArrayList<>();
+        ParserUtils.processDiagRevealerMessage(message, qcdmMessages::add, metrics);
+
+        assertEquals(1, qcdmMessages.size());
+        final QcdmMessage qcdmMessage = qcdmMessages.get(0);
+        assertEquals(1, qcdmMessage.getSimId());
+        assertEquals(QcdmConstants.LOG_LTE_RRC_OTA_MSG_LOG_C, qcdmMessage.getLogType());
+        assertEquals((BOOT_TIME_TO_EPOCH_NANOS + 2_000_000_000L) / 1000, qcdmMessage.getCaptureTimeMicros());
+        assertEquals(0, metrics.getDropCount(PipelineMetrics.DropReason.INVALID_CRC));
+    }
+
+    @Test
+    public void testLogFilterArgument()
+    {
+        assertEquals("0xB0C0,0x0713", DiagRevealerRunnable.createLogFilterArgument(new int[]{0xb0c0, 0x713}));
+        assertTrue(DiagRevealerRunnable.createLogFilterArgument(QcdmMessageProcessor.HANDLED_LOG_TYPES).startsWith("0xB0C0,"));
+    }
+
+    private static DiagRevealerFrameReader reader(byte[] bytes, PipelineMetrics metrics)
+    {
+        return new DiagRevealerFrameReader(new ByteArrayInputStream(bytes), metrics, BOOT_TIME_TO_EPOCH_NANOS);
+    }
+
+    private static ByteBuffer littleEndian(int capacity)
+    {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void writeFramingAnnouncement(ByteArrayOutputStream stream)
+    {
+        final ByteBuffer buffer = littleEndian(6);
+        buffer.putShort((short) DiagRevealerMessage.MESSAGE_TYPE_FRAMING_VERSION).putShort((short) 2)
+                .putShort((short) DiagRevealerMessage.FRAMING_V2);
+        stream.write(buffer.array(), 0, buffer.capacity());
+    }
+
+    private static void writeV2(ByteArrayOutputStream stream, int type, long sequenceNumber, long timestampNanos, byte[] payload)
+    {
+        writeV2(stream, type, 0, sequenceNumber, timestampNanos, payload);
+    }
+
+    private static void writeV2(ByteArrayOutputStream stream, int type, int flags, long sequenceNumber, long timestampNanos, byte[] payload)
+    {
+        final ByteBuffer buffer = littleEndian(20 + payload.length);
+        buffer.putShort((short) type).putShort((short) flags).putInt(payload.length).putInt((int) sequenceNumber)
+                .putLong(timestampNanos).put(payload);
+        stream.write(buffer.array(), 0, buffer.capacity());
+    }
+}
@@ -0,0 +1,167 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.GsmtapConstants;
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+import com.craxiom.networksurveyplus.util.PcapUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+import static com.craxiom.networksurveyplus.TestRecords.ATTACH_REJECT;
+import static com.craxiom.networksurveyplus.TestRecords.pooledLteNas;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Unit tests for the {@link GsmtapUdpStreamer}, which send the datagrams over the loopback interface.
+ *
+ * @since 0.6.0
+ */
+public class GsmtapUdpStreamerTest
+{
+    private final PipelineMetrics metrics = new PipelineMetrics();
+    private DatagramChannel receiver;
+    private InetSocketAddress target;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        receiver = DatagramChannel.open();
+        receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        final InetSocketAddress receiverAddress = (InetSocketAddress) receiver.getLocalAddress();
+        target = InetSocketAddress.createUnresolved(receiverAddress.getHostString(), receiverAddress.getPort());
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        receiver.close();
+    }
+
+    @Test
+    public void testGsmtapPacketIsSent() throws Exception
+    {
+        final GsmtapUdpStreamer streamer = new GsmtapUdpStreamer(target, 16, 4, metrics);
+        streamer.start();
+
+        final PcapMessage message = pooledLteNas(1);
+        streamer.onPcapMessage(message);
+
+        final byte[] datagram = receive();
+        final byte[] record = message.getPcapRecord();
+        final int gsmtapOffset = PcapUtils.getGsmtapHeaderOffset(record);
+        assertArrayEquals(Arrays.copyOfRange(record, gsmtapOffset, record.length), datagram);
+        assertEquals(GsmtapConstants.GSMTAP_TYPE_LTE_NAS, datagram[2]);
+        assertEquals(ATTACH_REJECT.length, datagram.length - PcapUtils.GSMTAP_HEADER_LENGTH);
+
+        waitForReferenceCount(message, 1);
+        assertEquals(1, streamer.getSentCount());
+        assertEquals(datagram.length, metrics.getByteCount(PipelineMetrics.ByteStage.GSMTAP_UDP_SENT));
+
+        message.release();
+        streamer.close();
+    }
+
+    @Test
+    public void testMessagesAreDroppedWhenTheQueueIsFull() throws Exception
+    {
+        final GsmtapUdpStreamer streamer = new GsmtapUdpStreamer(target, 2, 8, metrics);
+
+        // The sender is not started yet, so the queue fills up
+        final PcapMessage[] messages = {pooledLteNas(0), pooledLteNas(1), pooledLteNas(2)};
+        for (PcapMessage message : messages)
+        {
+            streamer.onPcapMessage(message);
+        }
+
+        assertEquals(1, streamer.getDroppedCount());
+        assertEquals(1, metrics.getDropCount(PipelineMetrics.DropReason.GSMTAP_UDP_DROPPED));
+        assertEquals(1, messages[2].getReferenceCount());
+
+        streamer.start();
+        assertEquals(0, receive()[12]);
+        assertEquals(1, receive()[12]);
+
+        for (PcapMessage message : messages)
+        {
+            waitForReferenceCount(message, 1);
+            message.release();
+        }
+        assertEquals(2, streamer.getSentCount());
+        streamer.close();
+    }
+
+    @Test
+    public void testQueuedMessagesAreReleasedOnClose() throws Exception
+    {
+        final GsmtapUdpStreamer streamer = new GsmtapUdpStreamer(target, 4, 4, metrics);
+        final PcapMessage message = pooledLteNas(0);
+        streamer.onPcapMessage(message);
+        assertEquals(2, message.getReferenceCount());
+
+        streamer.close();
+        assertEquals(1, message.getReferenceCount());
+
+        // Messages that come in after the streamer is closed are ignored
+        streamer.onPcapMessage(message);
+        assertEquals(1, message.getReferenceCount());
+        message.release();
+    }
+
+    @Test
+    public void testParseTarget()
+    {
+        final InetSocketAddress defaultPort = GsmtapUdpStreamer.parseTarget(" 192.168.42.10 ");
+        assertEquals("192.168.42.10", defaultPort.getHostString());
+        assertEquals(GsmtapConstants.GSMTAP_UDP_PORT, defaultPort.getPort());
+
+        final InetSocketAddress withPort = GsmtapUdpStreamer.parseTarget("laptop.local:5000");
+        assertEquals("laptop.local", withPort.getHostString());
+        assertEquals(5000, withPort.getPort());
+
+        assertEquals(GsmtapConstants.GSMTAP_UDP_PORT, GsmtapUdpStreamer.parseTarget("fe80::1").getPort());
+
+        final String[] invalidTargets = {"", "  ", null, "host:", ":4729", "host:abc", "host:70000"};
+        for (String invalidTarget : invalidTargets)
+        {
+            try
+            {
+                GsmtapUdpStreamer.parseTarget(invalidTarget);
+                throw new AssertionError("Expected the target to be rejected: " + invalidTarget);
+            } catch (IllegalArgumentException e)
+            {
+                // Expected
+            }
+        }
+    }
+
+    private byte[] receive() throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        receiver.configureBlocking(true);
+        assertNotNull(receiver.receive(buffer));
+        buffer.flip();
+        final byte[] datagram = new byte[buffer.remaining()];
+        buffer.get(datagram);
+        return datagram;
+    }
+
+    private static void waitForReferenceCount(PcapMessage message, int expected) throws InterruptedException
+    {
+        for (int i = 0; i < 200 && message.getReferenceCount() != expected; i++)
+        {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, message.getReferenceCount());
+    }
+}
@@ -0,0 +1,177 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.messaging.LteRrc;
+import com.craxiom.networksurveyplus.messages.CraxiomConstants;
+import com.craxiom.networksurveyplus.mqtt.MqttBatchConfig;
+import com.craxiom.networksurveyplus.mqtt.MqttOtaBatcher;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link MqttOtaBatcher}.
+ *
+ * @since 0.6.0
+ */
+public class MqttOtaBatcherTest
+{
+    @Test
+    public void testBatchPublishedWhenFull() throws Exception
+    {
+        final List<byte[]> payloads = new ArrayList<>();
+        final List<List<String>> messageTypes = new ArrayList<>();
+        final MqttOtaBatcher batcher = new MqttOtaBatcher(new MqttBatchConfig(3, 60_000, false), (types, payload, deflated) -> {
+            messageTypes.add(types);
+            payloads.add(payload);
+        });
+
+        for (int i = 0; i < 7; i++)
+        {
+            batcher.add(CraxiomConstants.LTE_RRC_MESSAGE_TYPE, createMessage(i));
+        }
+
+        assertEquals(2, payloads.size());
+        assertEquals(3, messageTypes.get(0).size());
+
+        final List<LteRrc> firstBatch = parseBatch(payloads.get(0), false);
+        assertEquals(3, firstBatch.size());
+        assertEquals("mission-0", firstBatch.get(0).getData().getMissionId());
+        assertEquals("mission-2", firstBatch.get(2).getData().getMissionId());
+
+        // Closing the batcher publishes the partial batch
+        batcher.close();
+        assertEquals(3, payloads.size());
+        assertEquals(1, parseBatch(payloads.get(2), false).size());
+    }
+
+    @Test
+    public void testBatchPublishedAfterLinger() throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<byte[]> payloads = new ArrayList<>();
+        final MqttOtaBatcher batcher = new MqttOtaBatcher(new MqttBatchConfig(100, 50, false), (types, payload, deflated) -> {
+            payloads.add(payload);
+            latch.countDown();
+        });
+
+        batcher.add(CraxiomConstants.LTE_RRC_MESSAGE_TYPE, createMessage(1));
+        batcher.add(CraxiomConstants.LTE_RRC_MESSAGE_TYPE, createMessage(2));
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        batcher.close();
+
+        assertEquals(1, payloads.size());
+        assertEquals(2, parseBatch(payloads.get(0), false).size());
+    }
+
+    @Test
+    public void testDeflatedBatch() throws Exception
+    {
+        final byte[][] batchPayload = new byte[1][];
+        final boolean[] batchDeflated = new boolean[1];
+        final MqttOtaBatcher batcher = new MqttOtaBatcher(new MqttBatchConfig(50, 60_000, true), (types, payload, deflated) -> {
+            batchPayload[0] = payload;
+            batchDeflated[0] = deflated;
+        });
+
+        int uncompressedSize = 0;
+        for (int i = 0; i < 50; i++)
+        {
+            final LteRrc message = createMessage(i);
+            uncompressedSize += message.getSerializedSize() + 1;
+            batcher.add(CraxiomConstants.LTE_RRC_MESSAGE_TYPE, message);
+        }
+        batcher.close();
+
+        assertTrue(batchDeflated[0]);
+        assertTrue(batchPayload[0].length < uncompressedSize);
+
+        final List<LteRrc> messages = parseBatch(batchPayload[0], true);
+        assertEquals(50, messages.size());
+        assertEquals("mission-49", messages.get(49).getData().getMissionId());
+    }
+
+    @Test
+    public void testEncodedMessagesInBatch() throws Exception
+    {
+        final List<byte[]> payloads = new ArrayList<>();
+        final MqttOtaBatcher batcher = new MqttOtaBatcher(new MqttBatchConfig(3, 60_000, false), (types, payload, deflated) -> payloads.add(payload));
+
+        // A message long enough to need a two byte length prefix, and one that sits in the middle of its array
+        final LteRrc.Builder longMessage = createMessage(0).toBuilder();
+        longMessage.getDataBuilder().setDeviceName(new String(new char[200]).replace('\0', 'x'));
+        final byte[] longBytes = longMessage.build().toByteArray();
+        final byte[] middleBytes = createMessage(2).toByteArray();
+        final byte[] padded = new byte[middleBytes.length + 10];
+        System.arraycopy(middleBytes, 0, padded, 5, middleBytes.length);
+
+        batcher.addEncoded(CraxiomConstants.LTE_RRC_MESSAGE_TYPE, longBytes, 0, longBytes.length);
+        batcher.add(CraxiomConstants.LTE_RRC_MESSAGE_TYPE, createMessage(1));
+        batcher.addEncoded(CraxiomConstants.LTE_RRC_MESSAGE_TYPE, padded, 5, middleBytes.length);
+
+        assertEquals(1, payloads.size());
+        final List<LteRrc> messages = parseBatch(payloads.get(0), false);
+        assertEquals(3, messages.size());
+        assertEquals(longMessage.build(), messages.get(0));
+        assertEquals(createMessage(1), messages.get(1));
+        assertEquals(createMessage(2), messages.get(2));
+        batcher.close();
+    }
+
+    @Test
+    public void testDisabledConfig()
+    {
+        assertFalse(MqttBatchConfig.DISABLED.isEnabled());
+        assertTrue(new MqttBatchConfig(2, 100, false).isEnabled());
+        assertEquals(1, new MqttBatchConfig(0, 100, false).getBatchSize());
+    }
+
+    private static LteRrc createMessage(int index)
+    {
+        final LteRrc.Builder builder = LteRrc.newBuilder();
+        builder.setVersion("0.7.0");
+        builder.setMessageType(CraxiomConstants.LTE_RRC_MESSAGE_TYPE);
+        builder.getDataBuilder().setDeviceSerialNumber("12345").setMissionId("mission-" + index);
+        return builder.build();
+    }
+
+    private static List<LteRrc> parseBatch(byte[] payload, boolean deflated) throws Exception
+    {
+        InputStream inputStream = new ByteArrayInputStream(payload);
+        if (deflated)
+        {
+            final ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+            final InflaterInputStream inflaterInputStream = new InflaterInputStream(inputStream);
+            final byte[] buffer = new byte[1024];
+            int length;
+            while ((length = inflaterInputStream.read(buffer)) != -1)
+            {
+                inflated.write(buffer, 0, length);
+            }
+            inputStream = new ByteArrayInputStream(inflated.toByteArray());
+        }
+
+        final List<LteRrc> messages = new ArrayList<>();
+        LteRrc message;
+        while ((message = LteRrc.parseDelimitedFrom(inputStream)) != null)
+        {
+            messages.add(message);
+        }
+
+        assertNull(LteRrc.parseDelimitedFrom(inputStream));
+        return messages;
+    }
+}
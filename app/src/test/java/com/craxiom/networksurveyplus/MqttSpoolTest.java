@@ -0,0 +1,274 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+import com.craxiom.networksurveyplus.mqtt.MqttSpool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link MqttSpool} store-and-forward queue.
+ *
+ * @since 0.6.0
+ */
+public class MqttSpoolTest
+{
+    private static final long SEGMENT_SIZE = 256;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testDrainOldestFirst() throws Exception
+    {
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final MqttSpool spool = new MqttSpool(temporaryFolder.newFolder(), 1024 * 1024, SEGMENT_SIZE, metrics);
+
+        for (int i = 0; i < 50; i++)
+        {
+            assertTrue(spool.append("LteRrc", message(i)));
+        }
+        assertEquals(50, spool.getPendingRecords());
+        assertEquals(50, metrics.getSpoolDepthRecords());
+
+        final List<String> drained = new ArrayList<>();
+        assertEquals(20, spool.drain(20, (type, bytes) -> drained.add(new String(bytes, StandardCharsets.UTF_8))));
+        assertEquals(30, spool.drain(100, (type, bytes) -> drained.add(new String(bytes, StandardCharsets.UTF_8))));
+
+        assertEquals(50, drained.size());
+        for (int i = 0; i < 50; i++)
+        {
+            assertEquals("message-" + i, drained.get(i));
+        }
+        assertEquals(0, spool.getPendingRecords());
+        assertEquals(0, metrics.getSpoolDepthRecords());
+    }
+
+    @Test
+    public void testRejectedRecordStaysInSpool() throws Exception
+    {
+        final MqttSpool spool = new MqttSpool(temporaryFolder.newFolder(), 1024 * 1024, SEGMENT_SIZE, new PipelineMetrics());
+        spool.append("LteNas", message(0));
+        spool.append("LteNas", message(1));
+
+        assertEquals(0, spool.drain(10, (type, bytes) -> false));
+        assertEquals(2, spool.getPendingRecords());
+
+        final List<String> drained = new ArrayList<>();
+        spool.drain(10, (type, bytes) -> drained.add(type + ":" + new String(bytes, StandardCharsets.UTF_8)));
+        assertEquals("LteNas:message-0", drained.get(0));
+        assertEquals(2, drained.size());
+    }
+
+    @Test
+    public void testCursorSurvivesRestart() throws Exception
+    {
+        final File directory = temporaryFolder.newFolder();
+        final MqttSpool spool = new MqttSpool(directory, 1024 * 1024, SEGMENT_SIZE, new PipelineMetrics());
+        for (int i = 0; i < 30; i++)
+        {
+            spool.append("GsmSignaling", message(i));
+        }
+        spool.drain(12, (type, bytes) -> true);
+        spool.close();
+
+        // Simulate the app being killed in the middle of writing a record
+        final File[] segmentFiles = directory.listFiles((dir, name) -> name.endsWith(".spool"));
+        assertTrue(segmentFiles != null && segmentFiles.length > 1);
+        File newestSegment = segmentFiles[0];
+        for (File segmentFile : segmentFiles)
+        {
+            if (segmentFile.getName().compareTo(newestSegment.getName()) > 0) newestSegment = segmentFile;
+        }
+        try (FileOutputStream outputStream = new FileOutputStream(newestSegment, true))
+        {
+            outputStream.write(new byte[]{0, 6, 'L', 't'});
+        }
+
+        final MqttSpool reopenedSpool = new MqttSpool(directory, 1024 * 1024, SEGMENT_SIZE, new PipelineMetrics());
+        assertEquals(18, reopenedSpool.getPendingRecords());
+
+        reopenedSpool.append("GsmSignaling", message(30));
+
+        final List<String> drained = new ArrayList<>();
+        reopenedSpool.drain(100, (type, bytes) -> drained.add(new String(bytes, StandardCharsets.UTF_8)));
+        assertEquals(19, drained.size());
+        assertEquals("message-12", drained.get(0));
+        assertEquals("message-30", drained.get(18));
+    }
+
+    @Test
+    public void testRecoveryIsDeferredUntilFirstUse() throws Exception
+    {
+        final File directory = new File(temporaryFolder.getRoot(), "spool");
+        final MqttSpool spool = new MqttSpool(directory, 1024 * 1024, SEGMENT_SIZE, new PipelineMetrics());
+        assertFalse(directory.exists());
+
+        spool.recover();
+        assertTrue(directory.exists());
+        assertEquals(0, spool.getPendingRecords());
+    }
+
+    @Test
+    public void testRecoveryTruncatesRecordCutOffMidPayload() throws Exception
+    {
+        final File directory = temporaryFolder.newFolder();
+        final MqttSpool spool = new MqttSpool(directory, 1024 * 1024, 1024 * 1024, new PipelineMetrics());
+        spool.append("LteRrc", largeMessage(0));
+        spool.append("LteRrc", largeMessage(1));
+        spool.close();
+
+        // Cut the second record off in the middle of its message
+        final File segmentFile = getOnlySegmentFile(directory);
+        truncate(segmentFile, segmentFile.length() - 50);
+
+        final MqttSpool reopenedSpool = new MqttSpool(directory, 1024 * 1024, 1024 * 1024, new PipelineMetrics());
+        assertEquals(1, reopenedSpool.getPendingRecords());
+        assertEquals(segmentFile.length(), reopenedSpool.getSizeBytes());
+
+        reopenedSpool.append("LteRrc", largeMessage(2));
+
+        final List<byte[]> drained = new ArrayList<>();
+        assertEquals(2, reopenedSpool.drain(100, (type, bytes) -> drained.add(bytes)));
+        assertArrayEquals(largeMessage(0), drained.get(0));
+        assertArrayEquals(largeMessage(2), drained.get(1));
+        assertEquals(0, reopenedSpool.drain(100, (type, bytes) -> true));
+        assertEquals(0, reopenedSpool.getPendingRecords());
+    }
+
+    @Test
+    public void testDrainDropsRecordCutOffMidPayload() throws Exception
+    {
+        final File directory = temporaryFolder.newFolder();
+        final MqttSpool spool = new MqttSpool(directory, 1024 * 1024, 1024 * 1024, new PipelineMetrics());
+        for (int i = 0; i < 3; i++)
+        {
+            spool.append("LteNas", largeMessage(i));
+        }
+        spool.close();
+
+        // The segment loses the end of its last record after the spool has counted it
+        final File segmentFile = getOnlySegmentFile(directory);
+        truncate(segmentFile, segmentFile.length() - 50);
+
+        final List<byte[]> drained = new ArrayList<>();
+        assertEquals(2, spool.drain(100, (type, bytes) -> drained.add(bytes)));
+        assertEquals(0, spool.getPendingRecords());
+        assertEquals(segmentFile.length(), spool.getSizeBytes());
+
+        // Records appended afterwards are still delivered
+        spool.append("LteNas", largeMessage(3));
+        assertEquals(1, spool.drain(100, (type, bytes) -> drained.add(bytes)));
+        assertArrayEquals(largeMessage(3), drained.get(2));
+    }
+
+    @Test
+    public void testEvictionWhenOverCap() throws Exception
+    {
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final MqttSpool spool = new MqttSpool(temporaryFolder.newFolder(), 4 * SEGMENT_SIZE, SEGMENT_SIZE, metrics);
+
+        for (int i = 0; i < 200; i++)
+        {
+            spool.append("UmtsNas", message(i));
+        }
+
+        assertTrue(spool.getSizeBytes() <= 4 * SEGMENT_SIZE + SEGMENT_SIZE);
+        final long evicted = metrics.getDropCount(PipelineMetrics.DropReason.SPOOL_EVICTED);
+        assertTrue(evicted > 0);
+        assertEquals(200 - evicted, spool.getPendingRecords());
+        assertEquals(spool.getSizeBytes(), metrics.getSpoolDepthBytes());
+
+        // The oldest records that survived eviction are drained first, and the newest record is last
+        final List<String> drained = new ArrayList<>();
+        spool.drain(1000, (type, bytes) -> drained.add(new String(bytes, StandardCharsets.UTF_8)));
+        assertEquals(200 - evicted, drained.size());
+        assertEquals("message-" + evicted, drained.get(0));
+        assertEquals("message-199", drained.get(drained.size() - 1));
+    }
+
+    @Test
+    public void testAppendIsNotBlockedByTheDrainConsumer() throws Exception
+    {
+        final MqttSpool spool = new MqttSpool(temporaryFolder.newFolder(), 1024 * 1024, SEGMENT_SIZE, new PipelineMetrics());
+        for (int i = 0; i < 5; i++)
+        {
+            spool.append("LteRrc", message(i));
+        }
+
+        // The consumer waits on another thread that appends, which would deadlock if the spool was locked
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final List<String> drained = new ArrayList<>();
+        try
+        {
+            assertEquals(5, spool.drain(5, (type, bytes) -> {
+                final int index = drained.size();
+                try
+                {
+                    executor.submit(() -> spool.append("LteRrc", message(index + 5))).get(5, TimeUnit.SECONDS);
+                } catch (Exception e)
+                {
+                    throw new AssertionError("Could not append while draining", e);
+                }
+                return drained.add(new String(bytes, StandardCharsets.UTF_8));
+            }));
+        } finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertEquals(5, spool.getPendingRecords());
+        spool.drain(10, (type, bytes) -> drained.add(new String(bytes, StandardCharsets.UTF_8)));
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals("message-" + i, drained.get(i));
+        }
+    }
+
+    private static byte[] message(int index)
+    {
+        return ("message-" + index).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return A message that is long enough to be cut off in the middle of its bytes.
+     */
+    private static byte[] largeMessage(int index)
+    {
+        final byte[] message = new byte[200];
+        Arrays.fill(message, (byte) index);
+        return message;
+    }
+
+    private static File getOnlySegmentFile(File directory)
+    {
+        final File[] segmentFiles = directory.listFiles((dir, name) -> name.endsWith(".spool"));
+        assertTrue(segmentFiles != null && segmentFiles.length == 1);
+        return segmentFiles[0];
+    }
+
+    private static void truncate(File file, long length) throws IOException
+    {
+        try (FileOutputStream outputStream = new FileOutputStream(file, true))
+        {
+            outputStream.getChannel().truncate(length);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.GsmtapConstants;
+import com.craxiom.networksurveyplus.messages.MessageKind;
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.mqtt.MqttTopicRouter;
+import com.craxiom.networksurveyplus.util.PcapUtils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link MqttTopicRouter}.
+ *
+ * @since 0.6.0
+ */
+public class MqttTopicRouterTest
+{
+    private static final String BASE_TOPIC = "cellular_ota_message";
+
+    @Test
+    public void testSingleTopic()
+    {
+        final MqttTopicRouter router = new MqttTopicRouter(BASE_TOPIC, MqttTopicRouter.ROUTING_SINGLE);
+
+        assertFalse(router.isSharded());
+        assertFalse(router.isRoutedBySim());
+        for (MessageKind kind : MessageKind.values())
+        {
+            assertEquals(BASE_TOPIC, router.getTopic(kind, 1));
+        }
+    }
+
+    @Test
+    public void testTopicPerKind()
+    {
+        final MqttTopicRouter router = new MqttTopicRouter(BASE_TOPIC, MqttTopicRouter.ROUTING_KIND);
+
+        assertTrue(router.isSharded());
+        assertFalse(router.isRoutedBySim());
+        assertEquals("cellular_ota_message/lte_nas", router.getTopic(MessageKind.LTE_NAS, 1));
+        assertEquals("cellular_ota_message/lte_rrc", router.getTopic(MessageKind.LTE_RRC, 0));
+        assertEquals("cellular_ota_message/wcdma_rrc", router.getTopic(MessageKind.WCDMA_RRC, 0));
+        assertEquals("cellular_ota_message/gsm", router.getTopic(MessageKind.GSM_SIGNALING, 0));
+        assertEquals("cellular_ota_message/umts_nas", router.getTopic(MessageKind.UMTS_NAS, 0));
+        assertEquals(BASE_TOPIC, router.getTopic(MessageKind.UNKNOWN, 0));
+        assertEquals(BASE_TOPIC, router.getTopic(null, 0));
+    }
+
+    @Test
+    public void testTopicPerKindAndSim()
+    {
+        final MqttTopicRouter router = new MqttTopicRouter(BASE_TOPIC, MqttTopicRouter.ROUTING_KIND_AND_SIM);
+
+        assertTrue(router.isRoutedBySim());
+
+        assertEquals("cellular_ota_message/lte_nas/sim1", router.getTopic(MessageKind.LTE_NAS, 1));
+        assertEquals("cellular_ota_message/lte_rrc/sim0", router.getTopic(MessageKind.LTE_RRC, 0));
+
+        // The topics are built up front, so the same string is handed back for every message
+        assertSame(router.getTopic(MessageKind.LTE_NAS, 1), router.getTopic(MessageKind.LTE_NAS, 1));
+
+        // Messages without a known SIM go to the topic for their kind
+        assertEquals("cellular_ota_message/lte_nas", router.getTopic(MessageKind.LTE_NAS, PcapMessage.UNSET_FIELD));
+        assertEquals("cellular_ota_message/lte_nas", router.getTopic(MessageKind.LTE_NAS, 200));
+        assertEquals(BASE_TOPIC, router.getTopic(MessageKind.UNKNOWN, 1));
+    }
+
+    @Test
+    public void testUnknownRoutingIsRejected()
+    {
+        try
+        {
+            new MqttTopicRouter(BASE_TOPIC, "by_color");
+            throw new AssertionError("Expected the routing to be rejected");
+        } catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSimIdIsReadFromThePcapRecord()
+    {
+        final byte[] record = PcapUtils.getGsmtapPcapRecord(GsmtapConstants.GSMTAP_TYPE_LTE_NAS, new byte[]{0x07, 0x42},
+                0, 0, false, 0, 0, 1, null, 1);
+
+        assertEquals(1, PcapUtils.getSimId(record, record.length));
+        assertEquals(-1, PcapUtils.getSimId(record, 20));
+    }
+}
@@ -0,0 +1,170 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.messaging.GsmSignaling;
+import com.craxiom.messaging.LteNas;
+import com.craxiom.messaging.LteRrc;
+import com.craxiom.messaging.LteRrcData;
+import com.craxiom.messaging.UmtsNas;
+import com.craxiom.messaging.WcdmaRrc;
+import com.craxiom.networksurveyplus.messages.CraxiomConstants;
+import com.craxiom.networksurveyplus.messages.GsmtapConstants;
+import com.craxiom.networksurveyplus.messages.MessageKind;
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.mqtt.OtaMessageEncoder;
+import com.craxiom.networksurveyplus.util.PcapUtils;
+import com.google.protobuf.ByteString;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link OtaMessageEncoder}.
+ *
+ * @since 0.6.0
+ */
+public class OtaMessageEncoderTest
+{
+    private static final String DEVICE_ID = "12345";
+    private static final String MISSION_ID = "NS+ 12345 20201019-120000";
+    private static final String VERSION = "0.7.0";
+    private static final long NOW_MS = 1_603_108_800_123L;
+    private static final byte[] PAYLOAD = {0x20, 0x02, 0x30, 0x00, 0x11};
+
+    private final OtaMessageEncoder encoder = new OtaMessageEncoder(DEVICE_ID, MISSION_ID, VERSION);
+
+    @Test
+    public void testEncodedMessageMatchesTheBuiltMessage() throws Exception
+    {
+        encoder.setDeviceName("nsp-client");
+        final FakeLocation location = new FakeLocation();
+        location.setLatitude(51.5);
+        location.setLongitude(-0.12);
+        location.setAltitude(35.5);
+        location.setAccuracy(4.6f);
+
+        final PcapMessage pcapMessage = createMessage(MessageKind.LTE_RRC, GsmtapConstants.GSMTAP_TYPE_LTE_RRC, 3);
+        final LteRrc lteRrc = LteRrc.parseFrom(encode(pcapMessage, location));
+
+        final LteRrc.Builder expected = LteRrc.newBuilder();
+        expected.setVersion(VERSION);
+        expected.setMessageType(CraxiomConstants.LTE_RRC_MESSAGE_TYPE);
+        final LteRrcData.Builder dataBuilder = expected.getDataBuilder();
+        dataBuilder.setDeviceSerialNumber(DEVICE_ID);
+        dataBuilder.setDeviceName("nsp-client");
+        dataBuilder.setMissionId(MISSION_ID);
+        dataBuilder.setDeviceTime(encoder.getDeviceTime(NOW_MS));
+        dataBuilder.setLatitude(51.5);
+        dataBuilder.setLongitude(-0.12);
+        dataBuilder.setAltitude(35.5f);
+        dataBuilder.setAccuracy(5);
+        dataBuilder.setPcapRecord(ByteString.copyFrom(pcapMessage.getPcapRecord()));
+        dataBuilder.setChannelTypeValue(4);
+
+        assertEquals(expected.build(), lteRrc);
+        pcapMessage.release();
+    }
+
+    @Test
+    public void testEachMessageKind() throws Exception
+    {
+        final PcapMessage gsm = createMessage(MessageKind.GSM_SIGNALING, GsmtapConstants.GSMTAP_TYPE_UM, 1);
+        final GsmSignaling gsmSignaling = GsmSignaling.parseFrom(encode(gsm, null));
+        assertEquals(CraxiomConstants.GSM_SIGNALING_MESSAGE_TYPE, gsmSignaling.getMessageType());
+        assertEquals(2, gsmSignaling.getData().getChannelTypeValue());
+        assertEquals(ByteString.copyFrom(gsm.getPcapRecord()), gsmSignaling.getData().getPcapRecord());
+
+        final PcapMessage umts = createMessage(MessageKind.UMTS_NAS, GsmtapConstants.GSMTAP_TYPE_ABIS, PcapMessage.UNSET_CHANNEL_TYPE);
+        final UmtsNas umtsNas = UmtsNas.parseFrom(encode(umts, null));
+        assertEquals(CraxiomConstants.UMTS_NAS_MESSAGE_TYPE, umtsNas.getMessageType());
+        assertEquals(MISSION_ID, umtsNas.getData().getMissionId());
+        assertEquals(ByteString.copyFrom(umts.getPcapRecord()), umtsNas.getData().getPcapRecord());
+
+        final PcapMessage wcdma = createMessage(MessageKind.WCDMA_RRC, GsmtapConstants.GSMTAP_TYPE_UMTS_RRC, 0);
+        final WcdmaRrc wcdmaRrc = WcdmaRrc.parseFrom(encode(wcdma, null));
+        assertEquals(CraxiomConstants.WCDMA_RRC_MESSAGE_TYPE, wcdmaRrc.getMessageType());
+        assertEquals(1, wcdmaRrc.getData().getChannelTypeValue());
+
+        final PcapMessage nas = createMessage(MessageKind.LTE_NAS, GsmtapConstants.GSMTAP_TYPE_LTE_NAS, 0);
+        final LteNas lteNas = LteNas.parseFrom(encode(nas, null));
+        assertEquals(VERSION, lteNas.getVersion());
+        assertEquals(DEVICE_ID, lteNas.getData().getDeviceSerialNumber());
+        assertEquals("", lteNas.getData().getDeviceName());
+        assertEquals(0.0, lteNas.getData().getLatitude(), 0.0);
+
+        assertFalse(encoder.isSupported(MessageKind.LTE_MIB));
+        assertFalse(encoder.isSupported(MessageKind.UNKNOWN));
+        try
+        {
+            encode(new PcapMessage(new byte[10], CraxiomConstants.LTE_MIB_MESSAGE_TYPE), null);
+            throw new AssertionError("Expected the LTE MIB message to be rejected");
+        } catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+
+        gsm.release();
+        umts.release();
+        wcdma.release();
+        nas.release();
+    }
+
+    @Test
+    public void testDeviceTimeIsCachedPerSecond()
+    {
+        final String deviceTime = encoder.getDeviceTime(NOW_MS);
+        assertSame(deviceTime, encoder.getDeviceTime(NOW_MS + 876));
+        assertEquals(Instant.ofEpochSecond(NOW_MS / 1000), ZonedDateTime.parse(deviceTime).toInstant());
+
+        final String nextDeviceTime = encoder.getDeviceTime(NOW_MS + 877);
+        assertNotEquals(deviceTime, nextDeviceTime);
+        assertEquals(Instant.ofEpochSecond(NOW_MS / 1000 + 1), ZonedDateTime.parse(nextDeviceTime).toInstant());
+    }
+
+    @Test
+    public void testDeviceNameChanges() throws Exception
+    {
+        final PcapMessage pcapMessage = createMessage(MessageKind.LTE_RRC, GsmtapConstants.GSMTAP_TYPE_LTE_RRC, 1);
+
+        encoder.setDeviceName("first");
+        assertEquals("first", LteRrc.parseFrom(encode(pcapMessage, null)).getData().getDeviceName());
+
+        encoder.setDeviceName("second");
+        assertEquals("second", LteRrc.parseFrom(encode(pcapMessage, null)).getData().getDeviceName());
+
+        encoder.setDeviceName(null);
+        final LteRrc lteRrc = LteRrc.parseFrom(encode(pcapMessage, null));
+        assertEquals("", lteRrc.getData().getDeviceName());
+        assertEquals(DEVICE_ID, lteRrc.getData().getDeviceSerialNumber());
+        assertEquals(MISSION_ID, lteRrc.getData().getMissionId());
+
+        pcapMessage.release();
+    }
+
+    private byte[] encode(PcapMessage pcapMessage, FakeLocation location)
+    {
+        final int size = encoder.getEncodedSize(pcapMessage, location, NOW_MS);
+
+        // Leave room after the message to make sure the encoder only writes what it says it will
+        final byte[] buffer = new byte[size + 16];
+        final int length = encoder.encode(pcapMessage, location, NOW_MS, buffer);
+        assertEquals(size, length);
+        assertTrue(Arrays.equals(new byte[16], Arrays.copyOfRange(buffer, size, buffer.length)));
+
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private static PcapMessage createMessage(MessageKind messageKind, int payloadType, int channelType)
+    {
+        return PcapUtils.createPcapMessage(messageKind, 0xB0C0, payloadType, PAYLOAD, channelType, 875, false,
+                PcapMessage.UNSET_FIELD, PcapMessage.UNSET_FIELD, PcapMessage.UNSET_FIELD, 0, null, 0);
+    }
+}
@@ -0,0 +1,206 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+import static com.craxiom.networksurveyplus.TestRecords.pooledLteNas;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link PcapStreamServer}, which connect to it over the loopback interface.
+ *
+ * @since 0.6.0
+ */
+public class PcapStreamServerTest
+{
+    private final PipelineMetrics metrics = new PipelineMetrics();
+    private PcapStreamServer server;
+
+    @After
+    public void tearDown()
+    {
+        if (server != null) server.close();
+    }
+
+    @Test
+    public void testEachClientGetsTheHeaderAndTheRecords() throws Exception
+    {
+        startServer(2, 64 * 1024, 10_000);
+
+        try (Socket first = connect(); Socket second = connect())
+        {
+            waitForClients(2);
+
+            final PcapMessage[] messages = {pooledLteNas(0), pooledLteNas(1)};
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(QcdmPcapWriter.PCAP_FILE_GLOBAL_HEADER);
+            for (PcapMessage message : messages)
+            {
+                server.onPcapMessage(message);
+                expected.write(message.getPcapRecord());
+                message.release();
+            }
+
+            assertArrayEquals(expected.toByteArray(), read(first, expected.size()));
+            assertArrayEquals(expected.toByteArray(), read(second, expected.size()));
+
+            waitForPendingBytes(0);
+            final List<PcapStreamServer.ClientStats> stats = server.getClientStats();
+            assertEquals(2, stats.size());
+            for (PcapStreamServer.ClientStats clientStats : stats)
+            {
+                assertEquals(expected.size(), clientStats.getBytesSent());
+                assertEquals(2, clientStats.getRecordsQueued());
+                assertEquals(0, clientStats.getRecordsSkipped());
+            }
+            assertEquals(2L * expected.size(), metrics.getByteCount(PipelineMetrics.ByteStage.PCAP_STREAM_SENT));
+        }
+    }
+
+    @Test
+    public void testStalledClientIsDisconnected() throws Exception
+    {
+        // The ring is too small for a record, so every record is skipped
+        startServer(1, 32, 0);
+
+        try (Socket client = connect())
+        {
+            waitForClients(1);
+
+            final PcapMessage message = pooledLteNas(0);
+            server.onPcapMessage(message);
+            assertEquals(1, server.getClientStats().get(0).getRecordsSkipped());
+            assertEquals(1, metrics.getDropCount(PipelineMetrics.DropReason.PCAP_STREAM_SKIPPED));
+            assertArrayEquals(QcdmPcapWriter.PCAP_FILE_GLOBAL_HEADER, read(client, QcdmPcapWriter.PCAP_FILE_GLOBAL_HEADER.length));
+
+            // Still no room after the stall timeout, so the server hangs up
+            Thread.sleep(5);
+            server.onPcapMessage(message);
+            message.release();
+            assertEquals(-1, client.getInputStream().read());
+            waitForClients(0);
+        }
+    }
+
+    @Test
+    public void testExtraClientsAreTurnedAway() throws Exception
+    {
+        startServer(1, 1024, 10_000);
+
+        try (Socket first = connect())
+        {
+            waitForClients(1);
+            try (Socket second = connect())
+            {
+                assertEquals(-1, second.getInputStream().read());
+            }
+
+            assertEquals(1, server.getClientStats().size());
+            assertArrayEquals(QcdmPcapWriter.PCAP_FILE_GLOBAL_HEADER, read(first, QcdmPcapWriter.PCAP_FILE_GLOBAL_HEADER.length));
+        }
+    }
+
+    @Test
+    public void testPortInUseStopsTheServer() throws Exception
+    {
+        startServer(1, 1024, 10_000);
+
+        final PcapStreamServer secondServer = new PcapStreamServer(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                server.getLocalPort()), 1, 1024, 10_000, metrics);
+        secondServer.start();
+        assertFalse(secondServer.awaitListening(2_000));
+        assertEquals(-1, secondServer.getLocalPort());
+        secondServer.close();
+    }
+
+    @Test
+    public void testParseBindAddress()
+    {
+        final InetSocketAddress portOnly = PcapStreamServer.parseBindAddress("6000");
+        assertEquals(InetAddress.getLoopbackAddress(), portOnly.getAddress());
+        assertEquals(6000, portOnly.getPort());
+
+        final InetSocketAddress hostOnly = PcapStreamServer.parseBindAddress("127.0.0.1");
+        assertEquals(Constants.PCAP_STREAM_DEFAULT_PORT, hostOnly.getPort());
+
+        final InetSocketAddress hostAndPort = PcapStreamServer.parseBindAddress(" 0.0.0.0:7000 ");
+        assertEquals("0.0.0.0", hostAndPort.getHostString());
+        assertEquals(7000, hostAndPort.getPort());
+        assertTrue(hostAndPort.isUnresolved());
+
+        final String[] invalidAddresses = {"", null, ":5555", "127.0.0.1:", "127.0.0.1:port", "99999"};
+        for (String invalidAddress : invalidAddresses)
+        {
+            try
+            {
+                PcapStreamServer.parseBindAddress(invalidAddress);
+                throw new AssertionError("Expected the address to be rejected: " + invalidAddress);
+            } catch (IllegalArgumentException e)
+            {
+                // Expected
+            }
+        }
+    }
+
+    private void startServer(int maxClients, int clientBufferBytes, long stallTimeoutMs) throws InterruptedException
+    {
+        server = new PcapStreamServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), maxClients,
+                clientBufferBytes, stallTimeoutMs, metrics);
+        server.start();
+        assertTrue(server.awaitListening(2_000));
+    }
+
+    private Socket connect() throws IOException
+    {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        socket.setSoTimeout(2_000);
+        return socket;
+    }
+
+    private void waitForClients(int expected) throws InterruptedException
+    {
+        for (int i = 0; i < 200 && server.getClientStats().size() != expected; i++)
+        {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, server.getClientStats().size());
+    }
+
+    private void waitForPendingBytes(long expected) throws InterruptedException
+    {
+        for (int i = 0; i < 200; i++)
+        {
+            boolean done = true;
+            for (PcapStreamServer.ClientStats clientStats : server.getClientStats())
+            {
+                if (clientStats.getPendingBytes() != expected) done = false;
+            }
+            if (done) return;
+            Thread.sleep(5);
+        }
+        throw new AssertionError("The clients still have bytes waiting to be sent");
+    }
+
+    private static byte[] read(Socket socket, int length) throws IOException
+    {
+        final InputStream inputStream = socket.getInputStream();
+        final byte[] bytes = new byte[length];
+        new DataInputStream(inputStream).readFully(bytes);
+        return bytes;
+    }
+}
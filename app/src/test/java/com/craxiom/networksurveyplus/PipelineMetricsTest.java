@@ -0,0 +1,118 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.DiagRevealerMessage;
+import com.craxiom.networksurveyplus.messages.DiagRevealerMessageHeader;
+import com.craxiom.networksurveyplus.metrics.LatencyHistogram;
+import com.craxiom.networksurveyplus.metrics.MetricsSnapshot;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+import com.craxiom.networksurveyplus.util.ParserUtils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link PipelineMetrics} registry and the {@link LatencyHistogram}.
+ *
+ * @since 0.6.0
+ */
+public class PipelineMetricsTest
+{
+    @Test
+    public void testHistogramPercentiles()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++)
+        {
+            histogram.recordNanos(i * 1_000L);
+        }
+
+        final LatencyHistogram.HistogramSnapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000, snapshot.count);
+        assertEquals(500_500, snapshot.meanNanos);
+        assertEquals(1_000_000, snapshot.maxNanos);
+
+        // The log-linear buckets guarantee the reported value is within 12.5% of the actual value
+        assertWithinPercent(500_000, snapshot.p50Nanos, 12.5);
+        assertWithinPercent(900_000, snapshot.p90Nanos, 12.5);
+        assertWithinPercent(990_000, snapshot.p99Nanos, 12.5);
+    }
+
+    @Test
+    public void testHistogramEmpty()
+    {
+        final LatencyHistogram.HistogramSnapshot snapshot = new LatencyHistogram().snapshot();
+
+        assertEquals(0, snapshot.count);
+        assertEquals(0, snapshot.p99Nanos);
+        assertEquals(0, snapshot.maxNanos);
+    }
+
+    @Test
+    public void testCountersAndSnapshot()
+    {
+        final PipelineMetrics metrics = new PipelineMetrics();
+        metrics.incrementLogCode(0xB0C0);
+        metrics.incrementLogCode(0xB0C0);
+        metrics.incrementLogCode(0x713A);
+        metrics.incrementDrop(PipelineMetrics.DropReason.UNHANDLED_LOG_TYPE);
+        metrics.addBytes(PipelineMetrics.ByteStage.PCAP_RECORD, 100);
+        metrics.addBytes(PipelineMetrics.ByteStage.PCAP_RECORD, 50);
+        metrics.getSinkLatency("QcdmPcapWriter").recordNanos(1_000);
+
+        final MetricsSnapshot snapshot = metrics.snapshot();
+
+        assertEquals(2L, (long) snapshot.getLogCodeCounts().get(0xB0C0));
+        assertEquals(1L, (long) snapshot.getLogCodeCounts().get(0x713A));
+        assertEquals(2, snapshot.getLogCodeCounts().size());
+        assertEquals(1, snapshot.getDropCount(PipelineMetrics.DropReason.UNHANDLED_LOG_TYPE));
+        assertEquals(1, snapshot.getTotalDropCount());
+        assertEquals(150, snapshot.getByteCount(PipelineMetrics.ByteStage.PCAP_RECORD));
+        assertEquals(1, snapshot.getSinkLatencies().get("QcdmPcapWriter").count);
+    }
+
+    @Test
+    public void testCrcFailuresAreCounted()
+    {
+        final byte[] frame = {(byte) 0x10, (byte) 0x00, (byte) 0x04, (byte) 0x00};
+        final short crc = ParserUtils.calculateCrc16X25(frame, frame.length);
+
+        final byte[] payload = {
+                frame[0], frame[1], frame[2], frame[3], (byte) (crc & 0xFF), (byte) ((crc >> 8) & 0xFF), (byte) 0x7e,
+                frame[0], frame[1], frame[2], frame[3], (byte) ~(crc & 0xFF), (byte) ((crc >> 8) & 0xFF), (byte) 0x7e};
+
+        final DiagRevealerMessage message = new DiagRevealerMessage(new DiagRevealerMessageHeader(1, payload.length + 8), 0, payload);
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final AtomicInteger messageCount = new AtomicInteger(0);
+
+        ParserUtils.processDiagRevealerMessage(message, m -> messageCount.incrementAndGet(), metrics);
+
+        assertEquals(1, messageCount.get());
+        assertEquals(1, metrics.snapshot().getFramesDecoded());
+        assertEquals(1, metrics.getDropCount(PipelineMetrics.DropReason.INVALID_CRC));
+        assertEquals(payload.length / 2 - 1, metrics.getByteCount(PipelineMetrics.ByteStage.QCDM_DECODED));
+    }
+
+    @Test
+    public void testUnknownHeadersAreCounted() throws IOException
+    {
+        final byte[] fifoBytes = {(byte) 0x09, (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x7e};
+        final PipelineMetrics metrics = new PipelineMetrics();
+
+        assertNull(ParserUtils.getNextDiagRevealerMessage(new ByteArrayInputStream(fifoBytes), metrics));
+        assertEquals(1, metrics.getDropCount(PipelineMetrics.DropReason.UNKNOWN_HEADER));
+    }
+
+    private static void assertWithinPercent(long expected, long actual, double percent)
+    {
+        final double error = Math.abs(actual - expected) * 100.0 / expected;
+        assertTrue("Expected " + expected + " but was " + actual, error <= percent);
+    }
+}
@@ -0,0 +1,107 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link PipelineWatchdog} and the outage metrics it records.
+ *
+ * @since 0.6.0
+ */
+public class PipelineWatchdogTest
+{
+    @Test
+    public void testStallIsReportedAfterTheTimeout()
+    {
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final PipelineWatchdog watchdog = new PipelineWatchdog(metrics, 10_000);
+
+        assertFalse(watchdog.check(0, true));
+        assertFalse(watchdog.check(9_999, true));
+        assertTrue(watchdog.check(10_000, true));
+
+        assertEquals(1, metrics.getPipelineStalls());
+        assertTrue(metrics.isPipelineDown());
+
+        // The restarted process gets the full timeout
+        assertFalse(watchdog.check(15_000, true));
+        assertTrue(watchdog.check(20_000, true));
+        assertEquals(2, metrics.getPipelineStalls());
+    }
+
+    @Test
+    public void testProgressResetsTheTimeout()
+    {
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final PipelineWatchdog watchdog = new PipelineWatchdog(metrics, 10_000);
+
+        assertFalse(watchdog.check(0, true));
+        metrics.addBytes(PipelineMetrics.ByteStage.FIFO_READ, 100);
+        assertFalse(watchdog.check(8_000, true));
+        assertFalse(watchdog.check(17_000, true));
+        assertTrue(watchdog.check(18_000, true));
+    }
+
+    @Test
+    public void testTimeoutBacksOffWhileThePipelineStaysQuiet()
+    {
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final PipelineWatchdog watchdog = new PipelineWatchdog(metrics, 10_000, 30_000);
+
+        assertFalse(watchdog.check(0, true));
+        assertTrue(watchdog.check(10_000, true));
+        assertEquals(20_000, watchdog.getStallTimeoutMs());
+
+        // The restart takes the process down for a moment, which does not reset the backoff
+        assertFalse(watchdog.check(11_000, false));
+        assertFalse(watchdog.check(30_000, true));
+        assertTrue(watchdog.check(31_000, true));
+        assertEquals(30_000, watchdog.getStallTimeoutMs());
+
+        assertFalse(watchdog.check(60_000, true));
+        assertTrue(watchdog.check(61_000, true));
+        assertEquals(30_000, watchdog.getStallTimeoutMs());
+
+        // Data arriving puts the timeout back to the start
+        metrics.addBytes(PipelineMetrics.ByteStage.FIFO_READ, 100);
+        assertFalse(watchdog.check(62_000, true));
+        assertEquals(10_000, watchdog.getStallTimeoutMs());
+        assertTrue(watchdog.check(72_000, true));
+    }
+
+    @Test
+    public void testNoStallWhileCaptureIsNotExpected()
+    {
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final PipelineWatchdog watchdog = new PipelineWatchdog(metrics, 10_000);
+
+        assertFalse(watchdog.check(0, false));
+        assertFalse(watchdog.check(50_000, false));
+        assertFalse(watchdog.check(55_000, true));
+        assertEquals(0, metrics.getPipelineStalls());
+    }
+
+    @Test
+    public void testTimeToRecover()
+    {
+        final PipelineMetrics metrics = new PipelineMetrics();
+        assertEquals(-1, metrics.getLastTimeToRecoverMs());
+
+        // Coming up without an outage records nothing
+        metrics.markPipelineUp();
+        assertEquals(-1, metrics.getLastTimeToRecoverMs());
+
+        metrics.markPipelineDown();
+        assertTrue(metrics.isPipelineDown());
+        metrics.markPipelineUp();
+
+        assertFalse(metrics.isPipelineDown());
+        assertTrue(metrics.getLastTimeToRecoverMs() >= 0);
+        assertEquals(metrics.getLastTimeToRecoverMs(), metrics.getMaxTimeToRecoverMs());
+    }
+}
@@ -3,9 +3,11 @@ package com.craxiom.networksurveyplus;
 import android.location.Location;
 
 import com.craxiom.messaging.LteRrcChannelType;
+import com.craxiom.networksurveyplus.messages.CraxiomConstants;
 import com.craxiom.networksurveyplus.messages.DiagRevealerMessage;
 import com.craxiom.networksurveyplus.messages.GsmtapConstants;
 import com.craxiom.networksurveyplus.messages.LteRrcSubtypes;
+import com.craxiom.networksurveyplus.messages.MessageKind;
 import com.craxiom.networksurveyplus.messages.PcapMessage;
 import com.craxiom.networksurveyplus.messages.QcdmMessage;
 import com.craxiom.networksurveyplus.parser.QcdmLteParser;
@@ -18,6 +20,7 @@ import org.junit.Test;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -41,7 +44,9 @@ import static com.craxiom.networksurveyplus.messages.QcdmConstants.LOG_LTE_RRC_M
 import static com.craxiom.networksurveyplus.messages.QcdmConstants.LOG_LTE_RRC_OTA_MSG_LOG_C;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -298,6 +303,64 @@ public class QcdmTest
         //assertArrayEquals(expectedPcapRecordBytes, Arrays.copyOfRange(pcapRecordBytes, 8, pcapRecordBytes.length));
 
     }
+
+    /**
+     * Checks that the values that went into the GSMTAP header are also set on the LTE RRC and MIB pcap messages.
+     *
+     * @since 0.6.0
+     */
+    @Test
+    public void testLteRrcRecordMetadata()
+    {
+        final byte[] rrcMessageBytes = {(byte) 0x10, (byte) 0x00, (byte) 0x25, (byte) 0x00, (byte) 0x25, (byte) 0x00, (byte) 0xc0, (byte) 0xb0, (byte) 0xfc, (byte) 0x85, (byte) 0xc1, (byte) 0xdf, (byte) 0x57, (byte) 0x20, (byte) 0xef, (byte) 0x00, (byte) 0x14, (byte) 0x0e, (byte) 0x30, (byte) 0x00, (byte) 0xed, (byte) 0x01, (byte) 0x6b, (byte) 0x03, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x08, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x06, (byte) 0x00, (byte) 0x41, (byte) 0x3d, (byte) 0x13, (byte) 0x6c, (byte) 0x58, (byte) 0xf8};
+        final PcapMessage rrcMessage = QcdmLteParser.convertLteRrcOtaMessage(new QcdmMessage(rrcMessageBytes, 1, 1_600_000_000_123_456L), null);
+
+        assertNotNull(rrcMessage);
+        assertTrue(rrcMessage.hasRecordMetadata());
+        assertEquals(MessageKind.LTE_RRC, rrcMessage.getMessageKind());
+        assertEquals(LOG_LTE_RRC_OTA_MSG_LOG_C, rrcMessage.getLogType());
+        assertEquals(GSMTAP_LTE_RRC_SUB_UL_CCCH_Message.ordinal(), rrcMessage.getChannelType());
+        assertEquals(875, rrcMessage.getArfcn());
+        assertEquals(493, rrcMessage.getPci());
+        assertEquals(0, rrcMessage.getSfn());
+        assertEquals(0, rrcMessage.getSubframeNumber());
+        assertTrue(rrcMessage.isUplink());
+        assertEquals(1, rrcMessage.getSimId());
+        assertEquals(1_600_000_000_123_456L, rrcMessage.getTimestampMicros());
+
+        final byte[] mibMessageBytes = {(byte) 0x10, (byte) 0x00, (byte) 0x17, (byte) 0x00, (byte) 0x17, (byte) 0x00, (byte) 0xc1, (byte) 0xb0, (byte) 0x27, (byte) 0xb0, (byte) 0xc2, (byte) 0x77, (byte) 0x75, (byte) 0x5e, (byte) 0x03, (byte) 0x01, (byte) 0x02, (byte) 0xae, (byte) 0x00, (byte) 0xfb, (byte) 0x04, (byte) 0x00, (byte) 0x00, (byte) 0x34, (byte) 0x02, (byte) 0x02, (byte) 0x4b};
+        final PcapMessage mibMessage = QcdmLteParser.convertLteMibMessage(new QcdmMessage(mibMessageBytes, 0), null);
+
+        assertEquals(MessageKind.LTE_MIB, mibMessage.getMessageKind());
+        assertEquals(1275, mibMessage.getArfcn());
+        assertEquals(174, mibMessage.getPci());
+        assertEquals(564, mibMessage.getSfn());
+        assertFalse(mibMessage.isUplink());
+        assertTrue(mibMessage.getTimestampMicros() > 0);
+
+        // The record timestamp matches the one on the message
+        final byte[] record = rrcMessage.getPcapRecord();
+        assertEquals(1_600_000_000L, ParserUtils.getInteger(record, 0, ByteOrder.LITTLE_ENDIAN) & 0xFFFFFFFFL);
+        assertEquals(123_456, ParserUtils.getInteger(record, 4, ByteOrder.LITTLE_ENDIAN));
+    }
+
+    /**
+     * Checks that a message created without the record metadata gets its message kind from the message type.
+     *
+     * @since 0.6.0
+     */
+    @Test
+    public void testMessageKindFromMessageType()
+    {
+        final PcapMessage message = new PcapMessage(new byte[0], CraxiomConstants.WCDMA_RRC_MESSAGE_TYPE, 3);
+
+        assertEquals(MessageKind.WCDMA_RRC, message.getMessageKind());
+        assertFalse(message.hasRecordMetadata());
+        assertEquals(PcapMessage.UNSET_FIELD, message.getSimId());
+        assertEquals(MessageKind.UNKNOWN, new PcapMessage(new byte[0], "Unknown").getMessageKind());
+        assertEquals(MessageKind.UNKNOWN, new PcapMessage(new byte[0], null).getMessageKind());
+    }
+
     /**
      * Tests the Gsmtap Type conversion and checks the result against the {@link LteRrcChannelType} values.
      * This particular test verifies for versions 2, 3, 4, 6, 7, 8, 13, and 22.
@@ -0,0 +1,152 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.GsmtapConstants;
+import com.craxiom.networksurveyplus.messages.MessageKind;
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.util.PcapUtils;
+import com.craxiom.networksurveyplus.util.RecordBufferPool;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link RecordBufferPool} and the reference counting of the pooled {@link PcapMessage}s.
+ *
+ * @since 0.6.0
+ */
+public class RecordBufferPoolTest
+{
+    private static final byte[] PAYLOAD = {0x20, 0x02, 0x30, 0x00, 0x11};
+
+    @Test
+    public void testArraysComeFromTheSmallestSizeClass()
+    {
+        final RecordBufferPool pool = new RecordBufferPool(4);
+
+        assertEquals(RecordBufferPool.MIN_BUFFER_SIZE, pool.acquire(1).length);
+        assertEquals(RecordBufferPool.MIN_BUFFER_SIZE, pool.acquire(128).length);
+        assertEquals(256, pool.acquire(129).length);
+        assertEquals(RecordBufferPool.MAX_BUFFER_SIZE, pool.acquire(RecordBufferPool.MAX_BUFFER_SIZE).length);
+        assertEquals(4, pool.getOutstandingCount());
+
+        // Records that are too large for the pool get an exact array that is not pooled
+        final byte[] large = pool.acquire(RecordBufferPool.MAX_BUFFER_SIZE + 1);
+        assertEquals(RecordBufferPool.MAX_BUFFER_SIZE + 1, large.length);
+        assertEquals(4, pool.getOutstandingCount());
+        pool.release(large);
+        assertEquals(4, pool.getOutstandingCount());
+    }
+
+    @Test
+    public void testReleasedArraysAreReused()
+    {
+        final RecordBufferPool pool = new RecordBufferPool(1);
+
+        final byte[] first = pool.acquire(300);
+        final byte[] second = pool.acquire(300);
+        assertEquals(2, pool.getAllocationCount());
+
+        pool.release(first);
+        pool.release(second); // The size class is full, so this one is left for the garbage collector
+        assertEquals(0, pool.getOutstandingCount());
+
+        assertSame(first, pool.acquire(400));
+        assertNotSame(second, pool.acquire(500));
+        assertEquals(3, pool.getAllocationCount());
+    }
+
+    @Test
+    public void testPooledMessageHoldsTheSameRecord()
+    {
+        final PcapMessage message = createLteRrcMessage();
+        final byte[] expected = PcapUtils.getGsmtapPcapRecord(GsmtapConstants.GSMTAP_TYPE_LTE_RRC, PAYLOAD, 1, 875,
+                false, 493 << 16 | 564, 0, 0, null, message.getTimestampMicros());
+
+        assertEquals(expected.length, message.getPcapRecordLength());
+        assertTrue(message.getPcapRecordBuffer().length >= expected.length);
+        assertArrayEquals(expected, Arrays.copyOf(message.getPcapRecordBuffer(), message.getPcapRecordLength()));
+        assertArrayEquals(expected, message.getPcapRecord());
+        assertSame(message.getPcapRecord(), message.getPcapRecord());
+
+        message.release();
+    }
+
+    @Test
+    public void testBufferIsReturnedOnTheLastRelease()
+    {
+        final RecordBufferPool pool = RecordBufferPool.getShared();
+        final int outstandingBefore = pool.getOutstandingCount();
+
+        final PcapMessage message = createLteRrcMessage();
+        assertEquals(outstandingBefore + 1, pool.getOutstandingCount());
+
+        assertSame(message, message.retain());
+        assertEquals(2, message.getReferenceCount());
+
+        message.release();
+        assertEquals(outstandingBefore + 1, pool.getOutstandingCount());
+
+        message.release();
+        assertEquals(0, message.getReferenceCount());
+        assertEquals(outstandingBefore, pool.getOutstandingCount());
+
+        assertReleaseFails(message::release);
+        assertReleaseFails(message::retain);
+    }
+
+    @Test
+    public void testUnreleasedMessagesAreReportedAsLeaks() throws InterruptedException
+    {
+        final RecordBufferPool pool = new RecordBufferPool(4);
+        pool.setLeakDetectionEnabled(true);
+
+        final PcapMessage released = new PcapMessage(pool.acquire(10), 10, pool, MessageKind.LTE_NAS,
+                PcapMessage.UNSET_CHANNEL_TYPE, 0xB0EC, PcapMessage.UNSET_FIELD, PcapMessage.UNSET_FIELD,
+                PcapMessage.UNSET_FIELD, PcapMessage.UNSET_FIELD, false, 0, 1);
+        released.release();
+        createLeakedMessage(pool);
+
+        int leaks = 0;
+        for (int i = 0; i < 50 && leaks == 0; i++)
+        {
+            System.gc();
+            Thread.sleep(10);
+            leaks += pool.reportLeaks();
+        }
+
+        assertEquals(1, leaks);
+        assertEquals(1, pool.getLeakCount());
+    }
+
+    private static void createLeakedMessage(RecordBufferPool pool)
+    {
+        new PcapMessage(pool.acquire(10), 10, pool, MessageKind.LTE_NAS, PcapMessage.UNSET_CHANNEL_TYPE, 0xB0EC,
+                PcapMessage.UNSET_FIELD, PcapMessage.UNSET_FIELD, PcapMessage.UNSET_FIELD, PcapMessage.UNSET_FIELD,
+                false, 0, 1);
+    }
+
+    private static PcapMessage createLteRrcMessage()
+    {
+        return PcapUtils.createPcapMessage(MessageKind.LTE_RRC, 0xB0C0, GsmtapConstants.GSMTAP_TYPE_LTE_RRC, PAYLOAD,
+                1, 875, false, 493, 564, PcapMessage.UNSET_FIELD, 0, null, 0);
+    }
+
+    private static void assertReleaseFails(Runnable action)
+    {
+        try
+        {
+            action.run();
+            throw new AssertionError("Expected the released message to be rejected");
+        } catch (IllegalStateException e)
+        {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.CraxiomConstants;
+import com.craxiom.networksurveyplus.messages.GsmtapConstants;
+import com.craxiom.networksurveyplus.messages.MessageKind;
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+import com.craxiom.networksurveyplus.util.PcapUtils;
+
+import org.junit.Test;
+
+import static com.craxiom.networksurveyplus.TestRecords.ATTACH_ACCEPT;
+import static com.craxiom.networksurveyplus.TestRecords.ATTACH_REJECT;
+import static com.craxiom.networksurveyplus.TestRecords.DL_DCCH;
+import static com.craxiom.networksurveyplus.TestRecords.RRC_CONNECTION_RELEASE;
+import static com.craxiom.networksurveyplus.TestRecords.RRC_RECONFIGURATION;
+import static com.craxiom.networksurveyplus.TestRecords.UL_DCCH;
+import static com.craxiom.networksurveyplus.TestRecords.lteNas;
+import static com.craxiom.networksurveyplus.TestRecords.lteRrc;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link RecordRuleSet} and the {@link RecordFields} it matches against.
+ *
+ * @since 0.6.0
+ */
+public class RecordRuleSetTest
+{
+    private final RecordFields fields = new RecordFields();
+
+    @Test
+    public void testFieldsAreReadFromTheRecord()
+    {
+        fields.load(lteRrc(UL_DCCH, RRC_RECONFIGURATION, 5230, 101, 1, true));
+
+        assertEquals(0xB0C0, fields.getLogType());
+        assertEquals(PipelineMetrics.Technology.LTE_RRC.ordinal(), fields.getTechnology());
+        assertEquals(UL_DCCH, fields.getSubtype());
+        assertEquals(1, fields.getSimId());
+        assertEquals(5230, fields.getArfcn());
+        assertEquals(101, fields.getPci());
+        assertEquals(RecordFields.DIRECTION_UPLINK, fields.getDirection());
+
+        fields.load(lteNas(ATTACH_ACCEPT));
+        assertEquals(PipelineMetrics.Technology.LTE_NAS.ordinal(), fields.getTechnology());
+        assertEquals(RecordFields.UNKNOWN, fields.getPci());
+        assertEquals(RecordFields.DIRECTION_DOWNLINK, fields.getDirection());
+
+        fields.load(new PcapMessage(new byte[0], "unknown"));
+        assertEquals(RecordFields.UNKNOWN, fields.getTechnology());
+        assertEquals(RecordFields.UNKNOWN, fields.getSimId());
+        assertEquals(RecordFields.UNKNOWN, fields.getDirection());
+    }
+
+    @Test
+    public void testFieldsComeFromTheRecordMetadata()
+    {
+        // An EARFCN that does not fit in the GSMTAP header
+        final PcapMessage message = PcapUtils.createPcapMessage(MessageKind.LTE_RRC, 0xB0C0,
+                GsmtapConstants.GSMTAP_TYPE_LTE_RRC, RRC_RECONFIGURATION, DL_DCCH, 66486, false, 101, 312, 0, 1, null, 0);
+        fields.load(message);
+
+        assertEquals(66486, fields.getArfcn());
+        assertEquals(101, fields.getPci());
+        assertEquals(1, fields.getSimId());
+        assertEquals(RecordFields.DIRECTION_DOWNLINK, fields.getDirection());
+        assertTrue(RecordRuleSet.compile("arfcn=66486,pci=101,sim=1,dir=dl").matchesAny(fields));
+    }
+
+    @Test
+    public void testTriggerConditions()
+    {
+        final RecordRuleSet release = RecordRuleSet.compile("tech=lte_rrc,subtype=1,bytes=28/f8@0");
+        assertEquals(1, release.size());
+        assertTrue(matches(release, lteRrc(DL_DCCH, RRC_CONNECTION_RELEASE, 5230, 101, 0, false)));
+        assertFalse(matches(release, lteRrc(DL_DCCH, RRC_RECONFIGURATION, 5230, 101, 0, false)));
+        assertFalse(matches(release, lteRrc(UL_DCCH, RRC_CONNECTION_RELEASE, 5230, 101, 0, true)));
+        assertFalse(matches(release, lteNas(ATTACH_REJECT)));
+
+        final RecordRuleSet reject = RecordRuleSet.compile("log=0xB0EC,tech=lte_nas,bytes=0744@0");
+        assertTrue(matches(reject, lteNas(ATTACH_REJECT)));
+        assertFalse(matches(reject, lteNas(ATTACH_ACCEPT)));
+
+        final RecordRuleSet anywhere = RecordRuleSet.compile("bytes=440f");
+        assertTrue(matches(anywhere, lteNas(ATTACH_REJECT)));
+        assertFalse(matches(anywhere, lteNas(ATTACH_ACCEPT)));
+        assertFalse(matches(anywhere, new PcapMessage(new byte[0], CraxiomConstants.LTE_NAS_MESSAGE_TYPE)));
+
+        assertFalse(matches(RecordRuleSet.compile("log=0xB0E2"), lteNas(ATTACH_REJECT)));
+    }
+
+    @Test
+    public void testCellAndDirectionConditions()
+    {
+        final RecordRuleSet rules = RecordRuleSet.compile("pci=101|200..210,arfcn=5230;sim=1,dir=ul;arfcn=100..199");
+
+        assertEquals(0b001, rules.match(fields.load(lteRrc(DL_DCCH, RRC_RECONFIGURATION, 5230, 101, 0, false))));
+        assertEquals(0b001, rules.match(fields.load(lteRrc(DL_DCCH, RRC_RECONFIGURATION, 5230, 205, 0, false))));
+        assertEquals(0b000, rules.match(fields.load(lteRrc(DL_DCCH, RRC_RECONFIGURATION, 5230, 211, 0, false))));
+        assertEquals(0b000, rules.match(fields.load(lteRrc(DL_DCCH, RRC_RECONFIGURATION, 5231, 101, 0, false))));
+        assertEquals(0b011, rules.match(fields.load(lteRrc(UL_DCCH, RRC_RECONFIGURATION, 5230, 210, 1, true))));
+        assertEquals(0b100, rules.match(fields.load(lteRrc(DL_DCCH, RRC_RECONFIGURATION, 199, 5, 0, false))));
+        assertEquals(0b000, rules.match(fields.load(lteRrc(DL_DCCH, RRC_RECONFIGURATION, 200, 5, 0, false))));
+
+        // Only the LTE RRC records carry a PCI
+        assertEquals(0b000, rules.match(fields.load(lteNas(ATTACH_REJECT))));
+    }
+
+    @Test
+    public void testEachMatchingRuleHasItsBitSet()
+    {
+        final RecordRuleSet rules = RecordRuleSet.compile("tech=lte_nas;all;tech=gsm|lte_rrc;tech=wcdma_rrc");
+
+        assertEquals(4, rules.size());
+        assertEquals("all", rules.getRuleSpec(1));
+        assertEquals(0b0011, rules.match(fields.load(lteNas(ATTACH_ACCEPT))));
+        assertEquals(0b0110, rules.match(fields.load(lteRrc(DL_DCCH, RRC_RECONFIGURATION, 5230, 101, 0, false))));
+        assertEquals(0b0010, rules.match(fields.load(new PcapMessage(new byte[0], "unknown"))));
+    }
+
+    @Test
+    public void testEmptyRuleSetMatchesNothing()
+    {
+        assertTrue(RecordRuleSet.compile("").isEmpty());
+        assertTrue(RecordRuleSet.compile(null).isEmpty());
+        assertFalse(RecordRuleSet.compile("").matchesAny(fields.load(lteNas(ATTACH_REJECT))));
+        assertEquals(2, RecordRuleSet.compile("tech=gsm; tech=lte_nas;").size());
+    }
+
+    @Test
+    public void testInvalidRulesAreRejected()
+    {
+        final StringBuilder tooManyRules = new StringBuilder();
+        for (int i = 0; i <= RecordRuleSet.MAX_RULES; i++)
+        {
+            tooManyRules.append("pci=").append(i).append(';');
+        }
+
+        final String[] invalidRules = {"tech=lte", "log=xyz", "bytes=074", "bytes=0744/ff", "bytes=0744@-1",
+                "subtype", "color=red", "bytes=@0", "subtype=256", "pci=-1", "pci=10..5", "dir=up", "sim=1,sim=2",
+                "bytes=07,bytes=08", tooManyRules.toString()};
+        for (String invalidRule : invalidRules)
+        {
+            try
+            {
+                RecordRuleSet.compile(invalidRule);
+                throw new AssertionError("Expected the rule to be rejected: " + invalidRule);
+            } catch (IllegalArgumentException e)
+            {
+                // Expected
+            }
+        }
+    }
+
+    private boolean matches(RecordRuleSet rules, PcapMessage message)
+    {
+        return rules.matchesAny(fields.load(message));
+    }
+}
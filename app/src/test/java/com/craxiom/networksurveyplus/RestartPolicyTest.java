@@ -0,0 +1,63 @@
+package com.craxiom.networksurveyplus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for the {@link RestartPolicy} used to supervise diag_revealer.
+ *
+ * @since 0.6.0
+ */
+public class RestartPolicyTest
+{
+    @Test
+    public void testDelayBacksOffUpToTheMax()
+    {
+        final RestartPolicy policy = new RestartPolicy(1_000, 5_000, 60_000, 100, 600_000);
+
+        assertEquals(1_000, policy.nextDelayMs(0, 10));
+        assertEquals(2_000, policy.nextDelayMs(1_000, 10));
+        assertEquals(4_000, policy.nextDelayMs(2_000, 10));
+        assertEquals(5_000, policy.nextDelayMs(3_000, 10));
+        assertEquals(5_000, policy.nextDelayMs(4_000, 10));
+    }
+
+    @Test
+    public void testStableRunResetsTheDelay()
+    {
+        final RestartPolicy policy = new RestartPolicy(1_000, 60_000, 60_000, 100, 600_000);
+
+        assertEquals(1_000, policy.nextDelayMs(0, 10));
+        assertEquals(2_000, policy.nextDelayMs(1_000, 10));
+        assertEquals(1_000, policy.nextDelayMs(100_000, 60_000));
+        assertEquals(2_000, policy.nextDelayMs(101_000, 10));
+    }
+
+    @Test
+    public void testGivesUpOnceTheBudgetIsUsed()
+    {
+        final RestartPolicy policy = new RestartPolicy(1_000, 1_000, 60_000, 3, 10_000);
+
+        assertEquals(1_000, policy.nextDelayMs(0, 10));
+        assertEquals(1_000, policy.nextDelayMs(1_000, 10));
+        assertEquals(1_000, policy.nextDelayMs(2_000, 10));
+        assertEquals(RestartPolicy.GIVE_UP, policy.nextDelayMs(3_000, 10));
+
+        // The first restart has left the sliding window
+        assertEquals(1_000, policy.nextDelayMs(10_000, 10));
+        assertEquals(RestartPolicy.GIVE_UP, policy.nextDelayMs(10_500, 10));
+    }
+
+    @Test
+    public void testReset()
+    {
+        final RestartPolicy policy = new RestartPolicy(1_000, 60_000, 60_000, 1, 600_000);
+
+        assertEquals(1_000, policy.nextDelayMs(0, 10));
+        assertEquals(RestartPolicy.GIVE_UP, policy.nextDelayMs(1_000, 10));
+
+        policy.reset();
+        assertEquals(1_000, policy.nextDelayMs(2_000, 10));
+    }
+}
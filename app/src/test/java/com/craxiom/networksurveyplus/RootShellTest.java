@@ -0,0 +1,147 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.util.RootShell;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the {@link RootShell} command framing, using a plain {@code sh} in place of {@code su}.
+ *
+ * @since 0.6.0
+ */
+public class RootShellTest
+{
+    private RootShell shell;
+
+    @Before
+    public void setUp()
+    {
+        shell = new RootShell(Collections.singletonList("sh"));
+    }
+
+    @After
+    public void tearDown()
+    {
+        shell.close();
+    }
+
+    @Test(timeout = 10_000)
+    public void testOutputAndExitStatus() throws IOException
+    {
+        final RootShell.CommandResult result = shell.run("echo first; echo second >&2; false");
+
+        assertEquals(1, result.exitStatus);
+        assertFalse(result.isSuccess());
+        assertEquals(Arrays.asList("first", "second"), result.output);
+
+        assertTrue(shell.run("true").isSuccess());
+        assertTrue(shell.run("true").output.isEmpty());
+    }
+
+    @Test(timeout = 10_000)
+    public void testCommandsShareOneShell() throws IOException
+    {
+        final String pid = shell.run("echo $$").output.get(0);
+
+        shell.run("SHARED_VALUE=42");
+        assertEquals(pid, shell.run("echo $$").output.get(0));
+        assertEquals("42", shell.run("echo $SHARED_VALUE").output.get(0));
+    }
+
+    @Test(timeout = 10_000)
+    public void testOutputWithoutTrailingNewLine() throws IOException
+    {
+        final RootShell.CommandResult result = shell.run("printf partial");
+
+        assertEquals(0, result.exitStatus);
+        assertEquals(Collections.singletonList("partial"), result.output);
+    }
+
+    @Test(timeout = 10_000)
+    public void testShellIsRestartedAfterItExits() throws IOException
+    {
+        final String pid = shell.run("echo $$").output.get(0);
+
+        try
+        {
+            shell.run("exit 3");
+            fail("Expected the command to fail because the shell exited");
+        } catch (IOException e)
+        {
+            // Expected
+        }
+        assertFalse(shell.isAlive());
+
+        final RootShell.CommandResult result = shell.run("echo $$");
+        assertTrue(result.isSuccess());
+        assertFalse(pid.equals(result.output.get(0)));
+    }
+
+    @Test(timeout = 10_000)
+    public void testCommandTimesOut() throws IOException
+    {
+        final RootShell timeoutShell = new RootShell(Collections.singletonList("sh"), 200);
+        try
+        {
+            final long startNanos = System.nanoTime();
+            try
+            {
+                timeoutShell.run("sleep 5");
+                fail("Expected the command to time out");
+            } catch (IOException e)
+            {
+                // Expected
+            }
+            assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(2));
+            assertFalse(timeoutShell.isAlive());
+
+            // The next command gets a new shell
+            assertEquals(Collections.singletonList("after"), timeoutShell.run("echo after").output);
+        } finally
+        {
+            timeoutShell.close();
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void testCloseDoesNotWaitForRunningCommand() throws Exception
+    {
+        final AtomicReference<Exception> runFailure = new AtomicReference<>();
+        final Thread runner = new Thread(() -> {
+            try
+            {
+                shell.run("sleep 5");
+            } catch (Exception e)
+            {
+                runFailure.set(e);
+            }
+        });
+        runner.start();
+
+        while (!shell.isAlive())
+        {
+            Thread.sleep(5);
+        }
+        Thread.sleep(50);
+
+        final long startNanos = System.nanoTime();
+        shell.close();
+        runner.join(2_000);
+        assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(2));
+        assertFalse(runner.isAlive());
+        assertTrue(runFailure.get() instanceof IOException);
+    }
+}
@@ -0,0 +1,154 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.CraxiomConstants;
+import com.craxiom.networksurveyplus.messages.GsmSubtypes;
+import com.craxiom.networksurveyplus.messages.LteRrcSubtypes;
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.messages.UmtsRrcSubtypes;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link SamplingPolicy}.
+ *
+ * @since 0.6.0
+ */
+public class SamplingPolicyTest
+{
+    private static final PcapMessage LTE_PAGING = lte(LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_PCCH_Message);
+    private static final PcapMessage LTE_DCCH = lte(LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_DL_DCCH_Message);
+    private static final PcapMessage GSM_CCCH = new PcapMessage(new byte[0], CraxiomConstants.GSM_SIGNALING_MESSAGE_TYPE,
+            GsmSubtypes.GSMTAP_CHANNEL_CCCH.ordinal());
+
+    @Test
+    public void testKeepAll()
+    {
+        assertTrue(SamplingPolicy.parse("all").isKeepAll());
+        assertTrue(SamplingPolicy.parse("").isKeepAll());
+        assertTrue(SamplingPolicy.parse(null).isKeepAll());
+        assertTrue(SamplingPolicy.parse("lte_pcch=all, gsm_ccch=1/1").isKeepAll());
+        assertFalse(SamplingPolicy.parse("lte_pcch=1/2").isKeepAll());
+    }
+
+    @Test
+    public void testOneInN()
+    {
+        final SamplingPolicy policy = SamplingPolicy.parse("lte_pcch=1/3");
+
+        int kept = 0;
+        for (int i = 0; i < 30; i++)
+        {
+            if (policy.shouldKeep(LTE_PAGING, i)) kept++;
+        }
+
+        assertEquals(10, kept);
+        assertEquals(20, policy.getSampledOutCount(SamplingPolicy.SampledChannel.LTE_PCCH));
+        assertEquals(20, policy.getTotalSampledOutCount());
+    }
+
+    @Test
+    public void testTokenBucketCapsTheRate()
+    {
+        final SamplingPolicy policy = SamplingPolicy.parse("gsm_ccch=5/s");
+
+        // A burst of 20 at once only gets the 5 tokens in the bucket
+        int kept = 0;
+        for (int i = 0; i < 20; i++)
+        {
+            if (policy.shouldKeep(GSM_CCCH, 0)) kept++;
+        }
+        assertEquals(5, kept);
+
+        // One token comes back every 200 ms
+        assertFalse(policy.shouldKeep(GSM_CCCH, 199));
+        assertTrue(policy.shouldKeep(GSM_CCCH, 200));
+        assertFalse(policy.shouldKeep(GSM_CCCH, 200));
+
+        // A long quiet time only refills the bucket up to the burst size
+        kept = 0;
+        for (int i = 0; i < 20; i++)
+        {
+            if (policy.shouldKeep(GSM_CCCH, 60_000)) kept++;
+        }
+        assertEquals(5, kept);
+        assertEquals(32, policy.getSampledOutCount(SamplingPolicy.SampledChannel.GSM_CCCH));
+    }
+
+    @Test
+    public void testSlowRateStillAllowsOneMessage()
+    {
+        final SamplingPolicy policy = SamplingPolicy.parse("lte_pcch=0.5/s");
+
+        assertTrue(policy.shouldKeep(LTE_PAGING, 0));
+        assertFalse(policy.shouldKeep(LTE_PAGING, 1_000));
+        assertTrue(policy.shouldKeep(LTE_PAGING, 2_000));
+    }
+
+    @Test
+    public void testDedicatedSignalingIsNeverSampled()
+    {
+        final SamplingPolicy policy = SamplingPolicy.parse("lte_pcch=1/1000,lte_mib=1/1000,lte_sib=1/1000,"
+                + "wcdma_pcch=1/1000,wcdma_bcch=1/1000,gsm_ccch=1/1000,gsm_bcch=1/1000");
+
+        final PcapMessage nas = new PcapMessage(new byte[0], CraxiomConstants.LTE_NAS_MESSAGE_TYPE, 0);
+        final PcapMessage wcdmaDcch = new PcapMessage(new byte[0], CraxiomConstants.WCDMA_RRC_MESSAGE_TYPE,
+                UmtsRrcSubtypes.GSMTAP_RRC_SUB_DL_DCCH_Message.ordinal());
+        final PcapMessage gsmSdcch = new PcapMessage(new byte[0], CraxiomConstants.GSM_SIGNALING_MESSAGE_TYPE,
+                GsmSubtypes.GSMTAP_CHANNEL_SDCCH8.ordinal());
+        final PcapMessage umtsNas = new PcapMessage(new byte[0], CraxiomConstants.UMTS_NAS_MESSAGE_TYPE);
+
+        for (int i = 0; i < 100; i++)
+        {
+            assertTrue(policy.shouldKeep(LTE_DCCH, i));
+            assertTrue(policy.shouldKeep(lte(LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_UL_DCCH_Message), i));
+            assertTrue(policy.shouldKeep(nas, i));
+            assertTrue(policy.shouldKeep(wcdmaDcch, i));
+            assertTrue(policy.shouldKeep(gsmSdcch, i));
+            assertTrue(policy.shouldKeep(umtsNas, i));
+        }
+        assertEquals(0, policy.getTotalSampledOutCount());
+    }
+
+    @Test
+    public void testChannelsAreSampledOnTheirOwn()
+    {
+        final SamplingPolicy policy = SamplingPolicy.parse("lte_pcch=1/2, wcdma_pcch=1/2");
+        final PcapMessage wcdmaPaging = new PcapMessage(new byte[0], CraxiomConstants.WCDMA_RRC_MESSAGE_TYPE,
+                UmtsRrcSubtypes.GSMTAP_RRC_SUB_PCCH_Message.ordinal());
+
+        assertTrue(policy.shouldKeep(LTE_PAGING, 0));
+        assertTrue(policy.shouldKeep(wcdmaPaging, 0));
+        assertTrue(policy.shouldKeep(GSM_CCCH, 0));
+        assertFalse(policy.shouldKeep(LTE_PAGING, 0));
+        assertFalse(policy.shouldKeep(wcdmaPaging, 0));
+        assertTrue(policy.shouldKeep(GSM_CCCH, 0));
+        assertEquals(1, policy.getSampledOutCount(SamplingPolicy.SampledChannel.WCDMA_PCCH));
+    }
+
+    @Test
+    public void testInvalidPoliciesAreRejected()
+    {
+        final String[] invalidPolicies = {"lte_dcch=1/10", "lte_pcch", "lte_pcch=1/0", "lte_pcch=0/s", "lte_pcch=x/s",
+                "lte_pcch=10", "lte_pcch=1/10,,gsm_ccch=1/2"};
+        for (String invalidPolicy : invalidPolicies)
+        {
+            try
+            {
+                SamplingPolicy.parse(invalidPolicy);
+                throw new AssertionError("Expected the policy to be rejected: " + invalidPolicy);
+            } catch (IllegalArgumentException e)
+            {
+                // Expected
+            }
+        }
+    }
+
+    private static PcapMessage lte(LteRrcSubtypes subtype)
+    {
+        return new PcapMessage(new byte[0], CraxiomConstants.LTE_RRC_MESSAGE_TYPE, subtype.ordinal());
+    }
+}
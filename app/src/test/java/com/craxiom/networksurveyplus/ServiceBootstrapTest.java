@@ -0,0 +1,122 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the {@link ServiceBootstrap} phase ordering and timing.
+ *
+ * @since 0.6.0
+ */
+public class ServiceBootstrapTest
+{
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+    private final PipelineMetrics metrics = new PipelineMetrics();
+    private final ServiceBootstrap bootstrap = new ServiceBootstrap(executor, metrics);
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 10_000)
+    public void testIndependentPhasesRunInParallel() throws Exception
+    {
+        // Each phase waits for the other to start, so this only finishes if they run at the same time
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        final Runnable waitForOther = () -> {
+            bothStarted.countDown();
+            try
+            {
+                assertTrue(bothStarted.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        CompletableFuture.allOf(bootstrap.runPhase("first", waitForOther), bootstrap.runPhase("second", waitForOther)).get();
+
+        final Map<String, Long> phases = metrics.snapshot().getStartupPhasesMs();
+        assertTrue(phases.containsKey("first"));
+        assertTrue(phases.containsKey("second"));
+    }
+
+    @Test(timeout = 10_000)
+    public void testPhaseWaitsForItsDependencies() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean dependencyDone = new AtomicBoolean(false);
+
+        final CompletableFuture<String> dependency = bootstrap.supplyPhase("dependency", () -> {
+            try
+            {
+                release.await();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            dependencyDone.set(true);
+            return "ring";
+        });
+        final CompletableFuture<String> dependent = bootstrap.supplyPhase("dependent", () -> {
+            assertTrue(dependencyDone.get());
+            return dependency.join() + " started";
+        }, dependency);
+
+        Thread.sleep(50);
+        assertFalse(dependent.isDone());
+
+        release.countDown();
+        assertEquals("ring started", dependent.get());
+    }
+
+    @Test(timeout = 10_000)
+    public void testFailedDependencySkipsThePhase() throws Exception
+    {
+        final AtomicBoolean ran = new AtomicBoolean(false);
+        final CompletableFuture<Void> failed = bootstrap.runPhase("failed", () -> {
+            throw new IllegalStateException("expected");
+        });
+        final CompletableFuture<Void> dependent = bootstrap.runPhase("dependent", () -> ran.set(true), failed);
+
+        try
+        {
+            dependent.get();
+            fail("Expected the dependent phase to fail");
+        } catch (ExecutionException e)
+        {
+            // Expected
+        }
+        assertFalse(ran.get());
+        assertTrue(metrics.snapshot().getStartupPhasesMs().containsKey("failed"));
+    }
+
+    @Test
+    public void testFirstMessageIsOnlyRecordedOnce() throws InterruptedException
+    {
+        bootstrap.markFirstMessage();
+        final long firstMessageMs = metrics.snapshot().getStartupPhasesMs().get(ServiceBootstrap.FIRST_MESSAGE_PHASE);
+
+        Thread.sleep(20);
+        bootstrap.markFirstMessage();
+        assertEquals(firstMessageMs, (long) metrics.snapshot().getStartupPhasesMs().get(ServiceBootstrap.FIRST_MESSAGE_PHASE));
+    }
+}
@@ -0,0 +1,87 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link ServiceStatusPublisher}.
+ *
+ * @since 0.6.0
+ */
+public class ServiceStatusPublisherTest
+{
+    private static final long INTERVAL_NANOS = ServiceStatusPublisher.PUBLISH_INTERVAL_MS * 1_000_000L;
+
+    @Test
+    public void testUpdatesAreCoalesced()
+    {
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final ServiceStatusPublisher publisher = new ServiceStatusPublisher(metrics);
+        final AtomicInteger updateCount = new AtomicInteger(0);
+        final long[] lastRecordCount = {0};
+        publisher.registerListener(message -> {
+            updateCount.incrementAndGet();
+            lastRecordCount[0] = ((ServiceStatusMessage.RecordStatus) message.data).recordCount;
+        });
+
+        for (int i = 0; i < 1000; i++)
+        {
+            metrics.incrementRecordsProcessed();
+        }
+
+        assertTrue(publisher.publishStatus(INTERVAL_NANOS));
+        assertEquals(1, updateCount.get());
+        assertEquals(1000, lastRecordCount[0]);
+    }
+
+    @Test
+    public void testNoUpdateWhenNothingChanged()
+    {
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final ServiceStatusPublisher publisher = new ServiceStatusPublisher(metrics);
+        final AtomicInteger updateCount = new AtomicInteger(0);
+        publisher.registerListener(message -> updateCount.incrementAndGet());
+
+        assertTrue(publisher.publishStatus(INTERVAL_NANOS));
+        assertFalse(publisher.publishStatus(2 * INTERVAL_NANOS));
+        assertEquals(1, updateCount.get());
+    }
+
+    @Test
+    public void testRatesAreCalculatedOverOneSecond()
+    {
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final ServiceStatusPublisher publisher = new ServiceStatusPublisher(metrics);
+        final double[] lastRates = new double[2];
+        publisher.registerListener(message -> {
+            final ServiceStatusMessage.RecordStatus status = (ServiceStatusMessage.RecordStatus) message.data;
+            lastRates[0] = status.recordsPerSecond;
+            lastRates[1] = status.framesPerSecond;
+        });
+
+        // 25 records and 50 frames every publish interval is 100 records and 200 frames per second
+        long now = 0;
+        publisher.publishStatus(now);
+        for (int interval = 0; interval < 8; interval++)
+        {
+            for (int i = 0; i < 25; i++)
+            {
+                metrics.incrementRecordsProcessed();
+                metrics.incrementFramesDecoded();
+                metrics.incrementFramesDecoded();
+            }
+            now += INTERVAL_NANOS;
+            publisher.publishStatus(now);
+        }
+
+        assertEquals(100.0, lastRates[0], 0.001);
+        assertEquals(200.0, lastRates[1], 0.001);
+    }
+}
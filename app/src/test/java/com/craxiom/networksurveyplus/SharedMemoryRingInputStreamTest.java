@@ -0,0 +1,244 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.DiagRevealerMessage;
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+import com.craxiom.networksurveyplus.util.DiagRevealerFrameReader;
+import com.craxiom.networksurveyplus.util.SharedMemoryRingInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link SharedMemoryRingInputStream}, using a stub producer that writes the ring the same way
+ * diag_revealer does.
+ *
+ * @since 0.6.0
+ */
+public class SharedMemoryRingInputStreamTest
+{
+    private File ringFile;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        ringFile = File.createTempFile("ring", ".bin");
+    }
+
+    @After
+    public void tearDown()
+    {
+        //noinspection ResultOfMethodCallIgnored
+        ringFile.delete();
+    }
+
+    @Test(timeout = 10_000)
+    public void testMessagesWrapAroundTheRing() throws Exception
+    {
+        final int messageCount = 500;
+        SharedMemoryRingInputStream.createRingFile(ringFile, 1024);
+
+        final PipedOutputStream doorbellOut = new PipedOutputStream();
+        final PipedInputStream doorbellIn = new PipedInputStream(doorbellOut);
+        final AtomicReference<Throwable> producerError = new AtomicReference<>();
+
+        final Thread producerThread = new Thread(() -> {
+            try (final StubProducer producer = new StubProducer(ringFile, doorbellOut))
+            {
+                producer.writeBlocking(framingAnnouncement());
+                for (int i = 0; i < messageCount; i++)
+                {
+                    producer.writeBlocking(v2Packet(i, payload(i)));
+                }
+            } catch (Throwable t)
+            {
+                producerError.set(t);
+            }
+        });
+        producerThread.start();
+
+        final PipelineMetrics metrics = new PipelineMetrics();
+        try (final SharedMemoryRingInputStream ring = new SharedMemoryRingInputStream(ringFile, doorbellIn))
+        {
+            final DiagRevealerFrameReader reader = new DiagRevealerFrameReader(ring, metrics, 0);
+            for (int i = 0; i < messageCount; i++)
+            {
+                final DiagRevealerMessage message = reader.next();
+                assertEquals(i, message.header.sequenceNumber);
+                assertArrayEquals(payload(i), message.payload);
+            }
+
+            assertNull(reader.next());
+        }
+
+        producerThread.join();
+        assertNull(producerError.get());
+        assertEquals(0, metrics.getDropCount(PipelineMetrics.DropReason.SEQUENCE_GAP));
+    }
+
+    @Test(timeout = 10_000)
+    public void testFullRingShowsUpAsSequenceGap() throws Exception
+    {
+        SharedMemoryRingInputStream.createRingFile(ringFile, 256);
+
+        final PipelineMetrics metrics = new PipelineMetrics();
+        try (final StubProducer producer = new StubProducer(ringFile, null);
+             final SharedMemoryRingInputStream ring = new SharedMemoryRingInputStream(ringFile, null))
+        {
+            final DiagRevealerFrameReader reader = new DiagRevealerFrameReader(ring, metrics, 0);
+
+            assertTrue(producer.write(framingAnnouncement()));
+            assertTrue(producer.write(v2Packet(0, new byte[110])));
+            // Does not fit in the 120 bytes that are left
+            assertFalse(producer.write(v2Packet(1, new byte[110])));
+
+            assertEquals(0, reader.next().header.sequenceNumber);
+
+            assertTrue(producer.write(v2Packet(2, new byte[110])));
+            assertEquals(2, reader.next().header.sequenceNumber);
+
+            assertEquals(1, metrics.getDropCount(PipelineMetrics.DropReason.SEQUENCE_GAP));
+            assertEquals(1, ring.getDroppedBatches());
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void testCloseIsSeenByTheProducer() throws Exception
+    {
+        SharedMemoryRingInputStream.createRingFile(ringFile, 256);
+
+        try (final StubProducer producer = new StubProducer(ringFile, null))
+        {
+            new SharedMemoryRingInputStream(ringFile, null).close();
+            assertEquals(1, producer.map.getInt(SharedMemoryRingInputStream.CONSUMER_CLOSED_OFFSET));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityMustBeAPowerOfTwo() throws IOException
+    {
+        SharedMemoryRingInputStream.createRingFile(ringFile, 1000);
+    }
+
+    private static byte[] payload(int index)
+    {
+        final byte[] payload = new byte[1 + (index * 37) % 300];
+        for (int i = 0; i < payload.length; i++)
+        {
+            payload[i] = (byte) (index + i);
+        }
+        return payload;
+    }
+
+    private static byte[] framingAnnouncement()
+    {
+        return ByteBuffer.allocate(6).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort((short) DiagRevealerMessage.MESSAGE_TYPE_FRAMING_VERSION).putShort((short) 2)
+                .putShort((short) DiagRevealerMessage.FRAMING_V2).array();
+    }
+
+    private static byte[] v2Packet(long sequenceNumber, byte[] payload)
+    {
+        return ByteBuffer.allocate(20 + payload.length).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort((short) 1).putShort((short) 0).putInt(payload.length).putInt((int) sequenceNumber)
+                .putLong(sequenceNumber * 1000).put(payload).array();
+    }
+
+    /**
+     * Writes to the ring like shm_ring.c does in diag_revealer.
+     */
+    private static final class StubProducer implements AutoCloseable
+    {
+        private final RandomAccessFile file;
+        private final MappedByteBuffer map;
+        private final OutputStream doorbell;
+        private final int capacity;
+        private long head;
+
+        StubProducer(File ringFile, OutputStream doorbell) throws IOException
+        {
+            this.doorbell = doorbell;
+            file = new RandomAccessFile(ringFile, "rw");
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            capacity = (int) file.length() - SharedMemoryRingInputStream.HEADER_SIZE;
+
+            map.putInt(SharedMemoryRingInputStream.VERSION_OFFSET, SharedMemoryRingInputStream.VERSION);
+            map.putInt(SharedMemoryRingInputStream.CAPACITY_OFFSET, capacity);
+            map.putInt(SharedMemoryRingInputStream.DATA_OFFSET_OFFSET, SharedMemoryRingInputStream.HEADER_SIZE);
+            map.putInt(SharedMemoryRingInputStream.MAGIC_OFFSET, SharedMemoryRingInputStream.MAGIC);
+        }
+
+        /**
+         * @return False if the batch was dropped because the ring is full.
+         */
+        synchronized boolean write(byte[] batch) throws IOException
+        {
+            final long tail = map.getLong(SharedMemoryRingInputStream.TAIL_OFFSET);
+            if (batch.length > capacity - (head - tail))
+            {
+                map.putLong(SharedMemoryRingInputStream.DROPPED_BATCHES_OFFSET,
+                        map.getLong(SharedMemoryRingInputStream.DROPPED_BATCHES_OFFSET) + 1);
+                return false;
+            }
+
+            for (int i = 0; i < batch.length; i++)
+            {
+                map.put(SharedMemoryRingInputStream.HEADER_SIZE + (int) ((head + i) & (capacity - 1)), batch[i]);
+            }
+            head += batch.length;
+            map.putLong(SharedMemoryRingInputStream.HEAD_OFFSET, head);
+            ringDoorbell();
+            return true;
+        }
+
+        /**
+         * Unlike diag_revealer, waits for space so that nothing is dropped.
+         */
+        void writeBlocking(byte[] batch) throws IOException
+        {
+            while (batch.length > capacity - (head - map.getLong(SharedMemoryRingInputStream.TAIL_OFFSET)))
+            {
+                Thread.yield();
+            }
+            assertTrue(write(batch));
+        }
+
+        private void ringDoorbell() throws IOException
+        {
+            if (doorbell != null && map.getInt(SharedMemoryRingInputStream.CONSUMER_WAITING_OFFSET) != 0)
+            {
+                map.putInt(SharedMemoryRingInputStream.CONSUMER_WAITING_OFFSET, 0);
+                doorbell.write(1);
+                doorbell.flush();
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException
+        {
+            map.putInt(SharedMemoryRingInputStream.PRODUCER_CLOSED_OFFSET, 1);
+            ringDoorbell();
+            if (doorbell != null) doorbell.close();
+            file.close();
+        }
+    }
+}
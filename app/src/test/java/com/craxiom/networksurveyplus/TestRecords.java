@@ -0,0 +1,68 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.messages.CraxiomConstants;
+import com.craxiom.networksurveyplus.messages.GsmtapConstants;
+import com.craxiom.networksurveyplus.messages.LteRrcSubtypes;
+import com.craxiom.networksurveyplus.messages.MessageKind;
+import com.craxiom.networksurveyplus.messages.PcapMessage;
+import com.craxiom.networksurveyplus.util.PcapUtils;
+
+/**
+ * Builds the GSMTAP pcap records that the sink and rule tests feed through, along with a few real message payloads to
+ * put in them.
+ *
+ * @since 0.6.0
+ */
+public final class TestRecords
+{
+    public static final int DL_DCCH = LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_DL_DCCH_Message.ordinal();
+    public static final int UL_DCCH = LteRrcSubtypes.GSMTAP_LTE_RRC_SUB_UL_DCCH_Message.ordinal();
+
+    public static final int LTE_RRC_LOG_TYPE = 0xB0C0;
+    public static final int LTE_NAS_LOG_TYPE = 0xB0EC;
+
+    /**
+     * A DL-DCCH rrcConnectionRelease (message choice c1 with index 5).
+     */
+    public static final byte[] RRC_CONNECTION_RELEASE = {0x28, 0x02, 0x30};
+    public static final byte[] RRC_RECONFIGURATION = {0x20, 0x02, 0x30};
+    public static final byte[] ATTACH_REJECT = {0x07, 0x44, 0x0f};
+    public static final byte[] ATTACH_ACCEPT = {0x07, 0x42, 0x01};
+
+    private TestRecords()
+    {
+    }
+
+    /**
+     * @return An LTE RRC message on EARFCN 5230 and PCI 101 from the first SIM, sent on the downlink.
+     */
+    public static PcapMessage lteRrc(int subtype, byte[] payload)
+    {
+        return lteRrc(subtype, payload, 5230, 101, 0, false);
+    }
+
+    public static PcapMessage lteRrc(int subtype, byte[] payload, int earfcn, int pci, int simId, boolean isUplink)
+    {
+        final byte[] record = PcapUtils.getGsmtapPcapRecord(GsmtapConstants.GSMTAP_TYPE_LTE_RRC, payload, subtype,
+                earfcn, isUplink, (pci << 16) | 312, 0, simId, null, 1);
+        return new PcapMessage(record, CraxiomConstants.LTE_RRC_MESSAGE_TYPE, subtype, LTE_RRC_LOG_TYPE);
+    }
+
+    public static PcapMessage lteNas(byte[] payload)
+    {
+        final byte[] record = PcapUtils.getGsmtapPcapRecord(GsmtapConstants.GSMTAP_TYPE_LTE_NAS, payload, 0, 0, false,
+                0, 0, 0, null, 1);
+        return new PcapMessage(record, CraxiomConstants.LTE_NAS_MESSAGE_TYPE, 0, LTE_NAS_LOG_TYPE);
+    }
+
+    /**
+     * @param subtype The GSMTAP subtype, which the tests use to tell the messages apart.
+     * @return An LTE NAS attach reject in a record from the shared buffer pool, which the caller must release.
+     */
+    public static PcapMessage pooledLteNas(int subtype)
+    {
+        return PcapUtils.createPcapMessage(MessageKind.LTE_NAS, LTE_NAS_LOG_TYPE, GsmtapConstants.GSMTAP_TYPE_LTE_NAS,
+                ATTACH_REJECT, subtype, 0, false, PcapMessage.UNSET_FIELD, PcapMessage.UNSET_FIELD,
+                PcapMessage.UNSET_FIELD, 0, null, 0);
+    }
+}
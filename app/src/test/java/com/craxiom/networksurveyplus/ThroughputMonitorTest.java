@@ -0,0 +1,107 @@
+package com.craxiom.networksurveyplus;
+
+import com.craxiom.networksurveyplus.metrics.PipelineMetrics;
+import com.craxiom.networksurveyplus.metrics.ThroughputMonitor;
+import com.craxiom.networksurveyplus.metrics.ThroughputSnapshot;
+import com.craxiom.networksurveyplus.metrics.TimeSeries;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for the {@link ThroughputMonitor} and the {@link TimeSeries} ring buffer.
+ *
+ * @since 0.6.0
+ */
+public class ThroughputMonitorTest
+{
+    private static final long ONE_SECOND_NANOS = 1_000_000_000L;
+
+    @Test
+    public void testTimeSeriesWrapsAround()
+    {
+        final TimeSeries series = new TimeSeries(3);
+        assertEquals(0, series.toArray().length);
+        assertEquals(0.0, series.getLatest(), 0.0);
+
+        for (int i = 1; i <= 5; i++)
+        {
+            series.add(i);
+        }
+
+        assertEquals(3, series.size());
+        assertEquals(5.0, series.getLatest(), 0.0);
+        assertArrayEquals(new double[]{3, 4, 5}, series.toArray(), 0.0);
+    }
+
+    @Test
+    public void testRatesPerTechnology()
+    {
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final ThroughputMonitor monitor = new ThroughputMonitor(metrics);
+
+        monitor.sample(0);
+        for (int i = 0; i < 10; i++)
+        {
+            metrics.incrementRecordsProcessed(PipelineMetrics.Technology.LTE_RRC);
+        }
+        metrics.incrementRecordsProcessed(PipelineMetrics.Technology.GSM);
+        metrics.incrementMqttMessagesPublished();
+        metrics.addBytes(PipelineMetrics.ByteStage.PCAP_FILE_WRITTEN, 2_000);
+        metrics.incrementDrop(PipelineMetrics.DropReason.INVALID_CRC);
+        monitor.sample(2 * ONE_SECOND_NANOS);
+
+        final ThroughputSnapshot snapshot = monitor.snapshot();
+
+        assertEquals(5.5, snapshot.getLatest(ThroughputMonitor.Series.RECORDS), 0.001);
+        assertEquals(5.0, snapshot.getLatest(ThroughputMonitor.Series.LTE_RRC), 0.001);
+        assertEquals(0.5, snapshot.getLatest(ThroughputMonitor.Series.GSM), 0.001);
+        assertEquals(0.0, snapshot.getLatest(ThroughputMonitor.Series.LTE_NAS), 0.001);
+        assertEquals(0.5, snapshot.getLatest(ThroughputMonitor.Series.MQTT_PUBLISHED), 0.001);
+        assertEquals(1_000.0, snapshot.getLatest(ThroughputMonitor.Series.BYTES_WRITTEN), 0.001);
+        assertEquals(0.5, snapshot.getLatest(ThroughputMonitor.Series.DROPS), 0.001);
+    }
+
+    @Test
+    public void testHistoryIsBounded()
+    {
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final ThroughputMonitor monitor = new ThroughputMonitor(metrics);
+
+        for (int i = 0; i <= ThroughputMonitor.HISTORY_SIZE + 10; i++)
+        {
+            metrics.incrementRecordsProcessed(PipelineMetrics.Technology.LTE_NAS);
+            monitor.sample(i * ONE_SECOND_NANOS);
+        }
+
+        final double[] samples = monitor.snapshot().getSamples(ThroughputMonitor.Series.LTE_NAS);
+        assertEquals(ThroughputMonitor.HISTORY_SIZE, samples.length);
+        assertEquals(1.0, samples[samples.length - 1], 0.001);
+        assertEquals(1.0, monitor.snapshot().getMax(ThroughputMonitor.Series.LTE_NAS), 0.001);
+    }
+
+    @Test
+    public void testRecentAverage()
+    {
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final ThroughputMonitor monitor = new ThroughputMonitor(metrics);
+        assertEquals(0.0, monitor.snapshot().getRecentAverage(ThroughputMonitor.Series.FRAMES, 10), 0.0);
+
+        monitor.sample(0);
+        for (int i = 1; i <= 4; i++)
+        {
+            // i frames in the i-th second
+            for (int frame = 0; frame < i; frame++)
+            {
+                metrics.incrementFramesDecoded();
+            }
+            monitor.sample(i * ONE_SECOND_NANOS);
+        }
+
+        final ThroughputSnapshot snapshot = monitor.snapshot();
+        assertEquals(3.5, snapshot.getRecentAverage(ThroughputMonitor.Series.FRAMES, 2), 0.001);
+        assertEquals(2.5, snapshot.getRecentAverage(ThroughputMonitor.Series.FRAMES, 10), 0.001);
+    }
+}